@@ -0,0 +1,239 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+
+import com.vmturbo.platform.common.dto.ActionResponseState;
+import com.vmturbo.platform.common.dto.CommodityDTO;
+import com.vmturbo.platform.sdk.common.DTO.ActionItemDTO;
+import com.vmturbo.platform.sdk.common.util.AccountDefinitionEntry;
+import com.vmturbo.platform.sdk.probe.ActionResult;
+
+/**
+ * The state of one action of the {@link VimActionExecutor}: the action, the session it runs in,
+ * the VC task it waits on and its outcome. Each action has its own context, so the executor can
+ * run any number of actions at the same time. A context is used by one thread at a time.
+ */
+public class ActionContext {
+
+    private final ActionItemDTO actionItem;
+
+    private final Map<String, String> accountValues;
+
+    /**
+     * Reports the progress of the action without blocking it.
+     */
+    private final ProgressReporter progressTracker;
+
+    /**
+     * New commodities of the resizes merged into the action, the latest of each type.
+     */
+    private List<CommodityDTO> newComms;
+
+    /**
+     * If non-null, the service instance (VCenter) that is the target of the action, borrowed
+     * from {@code sessionPool}.
+     */
+    private ServiceInstance servInst;
+    private SessionPool sessionPool;
+
+    /**
+     * If non-null, the watcher of the tasks and VMs of the target.
+     */
+    private TaskWatcher taskWatcher;
+
+    /**
+     * Properties of the VM of the action, read before the action.
+     */
+    private VmPreflight preflight;
+
+    /**
+     * VIM Task, if any, to monitor at the end of the action.
+     */
+    private Task task;
+
+    /**
+     * Final state of the last task monitored, null if it was not seen ending: timed out, or the
+     * updates were lost.
+     */
+    private TaskInfoState taskState;
+
+    /**
+     * Time spent in each stage, in milliseconds, indexed by stage ordinal, -1 for the stages not
+     * gone through. Guarded by {@code this}.
+     */
+    private final long[] stageMillis = new long[ActionMetrics.Stage.values().length];
+
+    /**
+     * Outcome of the action, set by {@link #finalizeResponse}.
+     */
+    private ActionResponseState finalActionState;
+    private String finalDescription;
+
+    /**
+     * @param actionItem The action.
+     * @param accountValues Map of credentials to connect to VCenter.
+     * @param progressTracker Progress reporter of the action.
+     */
+    public ActionContext(ActionItemDTO actionItem, Map<String, String> accountValues,
+                    ProgressReporter progressTracker) {
+        this.actionItem = actionItem;
+        this.accountValues = accountValues;
+        this.progressTracker = progressTracker;
+        newComms = actionItem.getNewComm() != null
+                        ? Collections.singletonList(actionItem.getNewComm())
+                        : Collections.<CommodityDTO>emptyList();
+        Arrays.fill(stageMillis, -1);
+    }
+
+    public ActionItemDTO getActionItem() {
+        return actionItem;
+    }
+
+    public Map<String, String> getAccountValues() {
+        return accountValues;
+    }
+
+    public ProgressReporter getProgressTracker() {
+        return progressTracker;
+    }
+
+    public List<CommodityDTO> getNewComms() {
+        return newComms;
+    }
+
+    public void setNewComms(List<CommodityDTO> newComms) {
+        this.newComms = newComms;
+    }
+
+    /**
+     * @return Name or address of the target of the action.
+     */
+    public String getTargetAddr() {
+        return accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
+    }
+
+    public ServiceInstance getServiceInstance() {
+        return servInst;
+    }
+
+    public TaskWatcher getTaskWatcher() {
+        return taskWatcher;
+    }
+
+    public VmPreflight getPreflight() {
+        return preflight;
+    }
+
+    public void setPreflight(VmPreflight preflight) {
+        this.preflight = preflight;
+    }
+
+    public Task getTask() {
+        return task;
+    }
+
+    public void setTask(Task task) {
+        this.task = task;
+    }
+
+    public TaskInfoState getTaskState() {
+        return taskState;
+    }
+
+    public void setTaskState(TaskInfoState taskState) {
+        this.taskState = taskState;
+    }
+
+    /**
+     * Add time spent in a stage. The steps of an action may complete on any thread.
+     *
+     * @param stage The stage.
+     * @param millis The time, in milliseconds.
+     */
+    public synchronized void addStageMillis(ActionMetrics.Stage stage, long millis) {
+        stageMillis[stage.ordinal()] = Math.max(0, stageMillis[stage.ordinal()]) + millis;
+    }
+
+    /**
+     * @return Time spent in each stage, in milliseconds, indexed by stage ordinal, -1 for the
+     *         stages not gone through.
+     */
+    public synchronized long[] getStageMillis() {
+        return stageMillis.clone();
+    }
+
+    /**
+     * Set the session the action runs in.
+     *
+     * @param pool The pool the session is borrowed from.
+     * @param si The session.
+     * @param watcher The task watcher of the target.
+     */
+    public void connected(SessionPool pool, ServiceInstance si, TaskWatcher watcher) {
+        sessionPool = pool;
+        servInst = si;
+        taskWatcher = watcher;
+    }
+
+    /**
+     * Return the session of the action to its pool, if any. The session of a failed action is
+     * checked before it is reused, in case the failure was the loss of the session.
+     */
+    public void release() {
+        if (servInst != null) {
+            sessionPool.release(servInst, finalActionState != ActionResponseState.SUCCEEDED);
+            servInst = null;
+        }
+    }
+
+    /**
+     * Return the session of the action to its pool once its last VC task is submitted: the task
+     * is followed on the session of the task watcher. The session just worked, so it is reused
+     * without a check.
+     */
+    public void taskSubmitted() {
+        if (servInst != null) {
+            sessionPool.release(servInst, false);
+            servInst = null;
+        }
+    }
+
+    /**
+     * Set the outcome of the action.
+     *
+     * @param actionState Value of ActionResponseState for the final response.
+     * @param description A string the describes detail of the response.
+     */
+    public void finalizeResponse(ActionResponseState actionState, String description) {
+        finalActionState = actionState;
+        finalDescription = description;
+    }
+
+    /**
+     * @return The description of the outcome of the action, as last finalized.
+     */
+    public String getFinalDescription() {
+        return finalDescription;
+    }
+
+    /**
+     * @return true if the action was finalized as failed.
+     */
+    public boolean isFailed() {
+        return finalActionState == ActionResponseState.FAILED;
+    }
+
+    /**
+     * @return The result of the action, as last finalized.
+     */
+    public ActionResult getResult() {
+        return new ActionResult(finalActionState, finalDescription);
+    }
+}
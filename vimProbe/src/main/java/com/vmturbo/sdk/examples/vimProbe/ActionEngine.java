@@ -0,0 +1,438 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded executor shared by the actions of all the VC targets.
+ *
+ * At most {@code maxConcurrentActions} actions run at the same time, at most
+ * {@code maxActionsPerHost} of them on the same host and at most {@code maxActionsPerCluster} in
+ * the same cluster; a vMotion counts on both its source and destination hosts. Targets with
+ * pending actions are served round-robin, one action at a time: a target that submits a burst of
+ * actions can not starve the others. Within a target, the first pending action whose hosts and
+ * clusters have room starts first, so an action waiting for a busy host does not hold back the
+ * actions on other hosts.
+ *
+ * A vMotion is limited by the migration limits of vCenter rather than by {@code maxActionsPerHost}:
+ * at most {@code maxMigrationsPerHost} migrations run on the same host and at most
+ * {@code maxMigrationsPerTarget} on the same target. It still counts as a running action on its
+ * hosts for the other actions.
+ *
+ * Actions are asynchronous: an action runs on a worker thread until it has to wait, for a VC task
+ * or before a retry, and returns the future of its outcome. It keeps its place in the limits until
+ * that future completes, but no thread: the waits are driven by the {@link TaskWatcher} and the
+ * timer thread of the engine, and the continuations run on the workers. A few workers can then
+ * follow many running actions. Each target also limits its actions that hold one of its sessions,
+ * to the sessions it can lend them, so a worker never blocks waiting for a session held by an
+ * action that waits for its turn on the workers. An action gives back its place in that limit once
+ * it no longer holds a session, typically when only its last VC task is left to follow, so a
+ * target can run as many vMotions as the migration limits allow with a few sessions.
+ */
+public class ActionEngine {
+
+    private final ExecutorService workers;
+
+    /**
+     * Runs the retries and timeouts on time, on the workers.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    private final int maxConcurrentActions;
+    private final int maxActionsPerHost;
+    private final int maxActionsPerCluster;
+    private final int maxMigrationsPerHost;
+    private final int maxMigrationsPerTarget;
+
+    /**
+     * Pending actions of each target, in submission order. The target served last is last.
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Queue<Action<?>>> pending = new LinkedHashMap<String, Queue<Action<?>>>();
+
+    /**
+     * Number of running actions on each host and cluster. Guarded by {@code this}.
+     */
+    private final Map<String, Integer> busyHosts = new HashMap<String, Integer>();
+    private final Map<String, Integer> busyClusters = new HashMap<String, Integer>();
+
+    /**
+     * Number of running actions holding a session of each target. Guarded by {@code this}.
+     */
+    private final Map<String, Integer> busyTargets = new HashMap<String, Integer>();
+
+    /**
+     * Number of running migrations on each host and target. Guarded by {@code this}.
+     */
+    private final Map<String, Integer> migratingHosts = new HashMap<String, Integer>();
+    private final Map<String, Integer> migratingTargets = new HashMap<String, Integer>();
+
+    /**
+     * Number of running actions. Guarded by {@code this}.
+     */
+    private int running = 0;
+
+    /**
+     * An action submitted to the engine, with the target, hosts and clusters it runs on.
+     */
+    private static class Action<T> {
+        private final AsyncFunction<Runnable, T> callable;
+        private final SettableFuture<T> result;
+        private final Collection<String> target;
+        private final int maxTargetSessions;
+        private final Collection<String> hosts;
+        private final Collection<String> clusters;
+        private final boolean migration;
+
+        /**
+         * true while the action counts in {@link #busyTargets}. Guarded by the engine.
+         */
+        private boolean holdsSession = false;
+
+        private Action(AsyncFunction<Runnable, T> callable, SettableFuture<T> result,
+                        String targetAddr, int maxTargetSessions, Collection<String> hosts,
+                        Collection<String> clusters, boolean migration) {
+            this.callable = callable;
+            this.result = result;
+            this.target = Collections.singleton(targetAddr);
+            this.maxTargetSessions = maxTargetSessions;
+            this.hosts = hosts;
+            this.clusters = clusters;
+            this.migration = migration;
+        }
+    }
+
+    /**
+     * @param actionThreads Number of worker threads.
+     * @param maxConcurrentActions Max number of actions running at the same time.
+     * @param maxActionsPerHost Max number of actions running on the same host.
+     * @param maxActionsPerCluster Max number of actions running in the same cluster.
+     * @param maxMigrationsPerHost Max number of migrations running on the same host.
+     * @param maxMigrationsPerTarget Max number of migrations running on the same target.
+     */
+    public ActionEngine(int actionThreads, int maxConcurrentActions, int maxActionsPerHost,
+                    int maxActionsPerCluster, int maxMigrationsPerHost,
+                    int maxMigrationsPerTarget) {
+        this.maxConcurrentActions = maxConcurrentActions;
+        this.maxActionsPerHost = maxActionsPerHost;
+        this.maxActionsPerCluster = maxActionsPerCluster;
+        this.maxMigrationsPerHost = maxMigrationsPerHost;
+        this.maxMigrationsPerTarget = maxMigrationsPerTarget;
+        workers = Executors.newFixedThreadPool(actionThreads,
+                        new ThreadFactoryBuilder().setNameFormat("vim-action-%d").setDaemon(true)
+                                        .build());
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                        .setNameFormat("vim-action-timer").setDaemon(true).build());
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * @return The executor of the continuations of the actions: the workers of the engine.
+     */
+    public Executor getExecutor() {
+        return workers;
+    }
+
+    /**
+     * Submit an action of a target.
+     *
+     * @param targetAddr Name or address of the target.
+     * @param maxTargetSessions Max number of actions of the target holding a session at the same
+     *            time.
+     * @param hosts Names of the hosts the action runs on, unique within the target.
+     * @param clusters Identifiers of the clusters the action runs in, unique within the target.
+     * @param migration true if the action is a vMotion, limited by the migration limits.
+     * @param action The action to run, returning the future of its outcome. It is passed a
+     *            callback to run once it no longer holds a session, which gives its place in
+     *            {@code maxTargetSessions} to the other actions of the target.
+     * @return The future result of the action. Cancelling it cancels the action.
+     */
+    public <T> ListenableFuture<T> submit(String targetAddr, int maxTargetSessions,
+                    Collection<String> hosts, Collection<String> clusters, boolean migration,
+                    AsyncFunction<Runnable, T> action) {
+        SettableFuture<T> result = SettableFuture.create();
+        synchronized (this) {
+            Queue<Action<?>> queue = pending.get(targetAddr);
+            if (queue == null) {
+                queue = new ArrayDeque<Action<?>>();
+                pending.put(targetAddr, queue);
+            }
+            queue.add(new Action<T>(action, result, targetAddr, maxTargetSessions,
+                            qualify(targetAddr, hosts), qualify(targetAddr, clusters), migration));
+            dispatch();
+        }
+        return result;
+    }
+
+    /**
+     * Run a step of an action later, on a worker, without holding a thread meanwhile.
+     *
+     * @param step The step.
+     * @param delayMillis Delay before the step, in milliseconds.
+     * @return The future outcome of the step. Cancelling it before the delay cancels the step.
+     */
+    public <T> ListenableFuture<T> schedule(final AsyncCallable<T> step, long delayMillis) {
+        final SettableFuture<T> result = SettableFuture.create();
+        final ScheduledFuture<?> scheduled = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call(step, result);
+                    }
+                });
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /**
+     * Complete a future with a value after a delay, unless it is completed before.
+     *
+     * @param future The future.
+     * @param value The value to complete it with.
+     * @param delayMillis The delay, in milliseconds.
+     */
+    public <T> void expire(final SettableFuture<T> future, final T value, long delayMillis) {
+        final ScheduledFuture<?> scheduled = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                future.set(value);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.cancel(false);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Delay before a retry, growing exponentially with the attempts and jittered so the retries of
+     * the actions that failed together do not hit VC together again.
+     *
+     * @param attempt Number of attempts so far, from 1.
+     * @param baseMillis Delay after the first attempt, in milliseconds.
+     * @param maxMillis Max delay, in milliseconds.
+     * @return A delay between half and all of {@code min(maxMillis, baseMillis * 2^(attempt-1))}.
+     */
+    public static long backoffMillis(int attempt, long baseMillis, long maxMillis) {
+        long delay = maxMillis;
+        if (attempt - 1 < Long.numberOfLeadingZeros(baseMillis) - 1) {
+            delay = Math.min(maxMillis, baseMillis << (attempt - 1));
+        }
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Run a step, and complete a future with its outcome.
+     */
+    private static <T> void call(AsyncCallable<T> step, SettableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            result.setFuture(step.call());
+        }
+        catch (Throwable t) {
+            result.setException(t);
+        }
+    }
+
+    /**
+     * Start pending actions while there is room, one per target in turn. Called holding the lock
+     * of the engine.
+     */
+    private void dispatch() {
+        boolean started = true;
+        while (started && running < maxConcurrentActions) {
+            started = false;
+            for (String targetAddr : new ArrayList<String>(pending.keySet())) {
+                if (running >= maxConcurrentActions) {
+                    break;
+                }
+                Queue<Action<?>> queue = pending.get(targetAddr);
+                Action<?> action = pollRunnable(queue);
+                if (action == null) {
+                    if (queue.isEmpty()) {
+                        // Only cancelled actions were left
+                        pending.remove(targetAddr);
+                    }
+                    continue;
+                }
+                // Serve the target again after the others
+                pending.remove(targetAddr);
+                if (!queue.isEmpty()) {
+                    pending.put(targetAddr, queue);
+                }
+                start(action);
+                started = true;
+            }
+        }
+    }
+
+    /**
+     * @param queue Pending actions of a target.
+     * @return The first action of the queue whose hosts and clusters have room, removed from the
+     *         queue, null if none.
+     */
+    private Action<?> pollRunnable(Queue<Action<?>> queue) {
+        for (Iterator<Action<?>> it = queue.iterator(); it.hasNext();) {
+            Action<?> action = it.next();
+            if (action.result.isCancelled()) {
+                it.remove();
+            } else if (hasRoom(action)) {
+                it.remove();
+                return action;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasRoom(Action<?> action) {
+        if (!hasRoom(busyTargets, action.target, action.maxTargetSessions)
+                        || !hasRoom(busyClusters, action.clusters, maxActionsPerCluster)) {
+            return false;
+        }
+        if (action.migration) {
+            return hasRoom(migratingHosts, action.hosts, maxMigrationsPerHost)
+                            && hasRoom(migratingTargets, action.target, maxMigrationsPerTarget);
+        }
+        return hasRoom(busyHosts, action.hosts, maxActionsPerHost);
+    }
+
+    private void start(final Action<?> action) {
+        running++;
+        add(busyTargets, action.target, 1);
+        action.holdsSession = true;
+        add(busyHosts, action.hosts, 1);
+        add(busyClusters, action.clusters, 1);
+        if (action.migration) {
+            add(migratingHosts, action.hosts, 1);
+            add(migratingTargets, action.target, 1);
+        }
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                ActionEngine.this.run(action);
+            }
+        });
+    }
+
+    /**
+     * Call an action. It keeps its place until its outcome is known, even if it is cancelled.
+     */
+    private <T> void run(final Action<T> action) {
+        ListenableFuture<T> outcome;
+        if (action.result.isCancelled()) {
+            outcome = Futures.immediateCancelledFuture();
+        } else {
+            try {
+                outcome = action.callable.apply(new Runnable() {
+                    @Override
+                    public void run() {
+                        sessionReleased(action);
+                    }
+                });
+            }
+            catch (Throwable t) {
+                // Failures are reported through the future result of the action
+                outcome = Futures.immediateFailedFuture(t);
+            }
+            action.result.setFuture(outcome);
+        }
+        outcome.addListener(new Runnable() {
+            @Override
+            public void run() {
+                finished(action);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Give back the place of a running action in the session limit of its target.
+     */
+    private synchronized void sessionReleased(Action<?> action) {
+        if (action.holdsSession) {
+            action.holdsSession = false;
+            add(busyTargets, action.target, -1);
+            dispatch();
+        }
+    }
+
+    private synchronized void finished(Action<?> action) {
+        running--;
+        if (action.holdsSession) {
+            action.holdsSession = false;
+            add(busyTargets, action.target, -1);
+        }
+        add(busyHosts, action.hosts, -1);
+        add(busyClusters, action.clusters, -1);
+        if (action.migration) {
+            add(migratingHosts, action.hosts, -1);
+            add(migratingTargets, action.target, -1);
+        }
+        dispatch();
+    }
+
+    private static boolean hasRoom(Map<String, Integer> busy, Collection<String> keys, int max) {
+        for (String key : keys) {
+            Integer count = busy.get(key);
+            if (count != null && count >= max) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(Map<String, Integer> busy, Collection<String> keys, int delta) {
+        for (String key : keys) {
+            Integer count = busy.get(key);
+            int updated = (count != null ? count : 0) + delta;
+            if (updated > 0) {
+                busy.put(key, updated);
+            } else {
+                busy.remove(key);
+            }
+        }
+    }
+
+    private static Collection<String> qualify(String targetAddr, Collection<String> keys) {
+        Collection<String> qualified = new LinkedHashSet<String>();
+        for (String key : keys) {
+            qualified.add(targetAddr + '/' + key);
+        }
+        return qualified;
+    }
+}
@@ -0,0 +1,212 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Latency histograms of the actions of the probe, per action type and stage.
+ *
+ * An action adds up the time it spends in each stage in its {@link ActionContext}; once done, the
+ * time of each stage it went through is recorded in the {@link LatencyHistogram} of its type and
+ * stage. The stages of an action may overlap, and do not add up to its total time.
+ */
+public class ActionMetrics implements ActionMetricsMXBean {
+
+    /**
+     * Stages of an action.
+     */
+    public enum Stage {
+        /** Waiting behind the actions of the same VM and for room in the engine. */
+        QUEUE("queue"),
+        /** Borrowing a session of the target. */
+        CONNECT("connect"),
+        /** Finding the VM and reading its properties. */
+        LOOKUP("lookup"),
+        /** Shutting down the guest, until the VM is powered off. */
+        SHUTDOWN("shutdown"),
+        /** Reconfiguration task, from its submission to its end. */
+        RECONFIGURE("reconfigure"),
+        /** Power on, from the first try to the submission of its task, or to its end within a
+         *  resize. */
+        POWER_ON("powerOn"),
+        /** Last task of the action, watched until it ends. */
+        MONITOR("monitor"),
+        /** From the start of the action to its result, without the queue. */
+        TOTAL("total");
+
+        private final String label;
+
+        private Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final String DOMAIN = "com.vmturbo.sdk.examples.vimProbe";
+
+    private static final Logger logger = Logger.getLogger(ActionMetrics.class);
+
+    /**
+     * Histograms indexed by action type and stage label.
+     */
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Number of actions completed by action type.
+     */
+    private final ConcurrentMap<String, AtomicLong> actions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Record the stages of a completed action.
+     *
+     * @param actionType Type of the action.
+     * @param stageMillis Time spent in each stage, in milliseconds, indexed by stage ordinal.
+     *            Negative for the stages not gone through, which are not recorded.
+     */
+    public void record(String actionType, long[] stageMillis) {
+        AtomicLong count = actions.get(actionType);
+        if (count == null) {
+            actions.putIfAbsent(actionType, new AtomicLong());
+            count = actions.get(actionType);
+        }
+        count.incrementAndGet();
+        for (Stage stage : Stage.values()) {
+            long millis = stageMillis[stage.ordinal()];
+            if (millis >= 0) {
+                getHistogram(actionType, stage).record(millis);
+            }
+        }
+    }
+
+    /**
+     * @param actionType Type of an action.
+     * @param stage Stage of the action.
+     * @return The histogram of the stage.
+     */
+    public LatencyHistogram getHistogram(String actionType, Stage stage) {
+        String key = key(actionType, stage);
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histograms.putIfAbsent(key, new LatencyHistogram());
+            histogram = histograms.get(key);
+        }
+        return histogram;
+    }
+
+    /**
+     * Describe the stages of an action, with the 95th percentile of each stage for its type.
+     *
+     * @param actionType Type of the action.
+     * @param stageMillis Time spent in each stage, in milliseconds, indexed by stage ordinal.
+     * @return The description, like {@code connect 12 ms (p95 40 ms), monitor 3200 ms (p95 9215
+     *         ms)}.
+     */
+    public String describe(String actionType, long[] stageMillis) {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            long millis = stageMillis[stage.ordinal()];
+            if (millis < 0) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(stage.getLabel()).append(' ').append(millis).append(" ms (p95 ")
+                            .append(getHistogram(actionType, stage).getPercentile(95))
+                            .append(" ms)");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param startNanos Start of a stage, from {@link System#nanoTime}.
+     * @return Time elapsed since, in milliseconds.
+     */
+    public static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server. Failures are logged.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=ActionMetrics");
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        }
+        catch (JMException e) {
+            logger.warn("Failed registering action metrics", e);
+        }
+    }
+
+    private static String key(String actionType, Stage stage) {
+        return actionType + '.' + stage.getLabel();
+    }
+
+    /**
+     * Percentile of each histogram, 0 for the highest value.
+     */
+    private Map<String, Long> getByKey(double percentile) {
+        Map<String, Long> byKey = new TreeMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            byKey.put(entry.getKey(), percentile > 0 ? histogram.getPercentile(percentile)
+                            : histogram.getMax());
+        }
+        return byKey;
+    }
+
+    @Override
+    public Map<String, Long> getActions() {
+        Map<String, Long> byType = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : actions.entrySet()) {
+            byType.put(entry.getKey(), entry.getValue().get());
+        }
+        return byType;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        Map<String, Long> byKey = new TreeMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            byKey.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return byKey;
+    }
+
+    @Override
+    public Map<String, Long> getP50Millis() {
+        return getByKey(50);
+    }
+
+    @Override
+    public Map<String, Long> getP95Millis() {
+        return getByKey(95);
+    }
+
+    @Override
+    public Map<String, Long> getP99Millis() {
+        return getByKey(99);
+    }
+
+    @Override
+    public Map<String, Long> getMaxMillis() {
+        return getByKey(0);
+    }
+}
@@ -0,0 +1,40 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link ActionMetrics} of the probe. The latencies are indexed by action type
+ * and stage, like {@code MOVE.monitor}, and are in milliseconds, since the probe started.
+ */
+public interface ActionMetricsMXBean {
+
+    /**
+     * @return Number of actions completed, by action type.
+     */
+    Map<String, Long> getActions();
+
+    /**
+     * @return Number of latencies recorded for each action type and stage.
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return Median latency of each action type and stage.
+     */
+    Map<String, Long> getP50Millis();
+
+    /**
+     * @return 95th percentile latency of each action type and stage.
+     */
+    Map<String, Long> getP95Millis();
+
+    /**
+     * @return 99th percentile latency of each action type and stage.
+     */
+    Map<String, Long> getP99Millis();
+
+    /**
+     * @return Highest latency of each action type and stage.
+     */
+    Map<String, Long> getMaxMillis();
+}
@@ -0,0 +1,144 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.google.common.hash.Hasher;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+
+/**
+ * Immutable record of the properties of a Datastore.
+ */
+public final class DatastoreRecord extends InventoryRecord {
+
+    static final String TYPE = "Datastore";
+
+    static final String PROPERTY_NAME = "name";
+    static final String PROPERTY_CAPACITY = "summary.capacity";
+    static final String PROPERTY_FREE_SPACE = "summary.freeSpace";
+    static final String PROPERTY_UNCOMMITTED = "summary.uncommitted";
+
+    /**
+     * Property paths retrieved for the datastores.
+     */
+    static final String[] PROPERTY_PATHS = {PROPERTY_NAME,
+                                            PROPERTY_CAPACITY,
+                                            PROPERTY_FREE_SPACE,
+                                            PROPERTY_UNCOMMITTED};
+
+    private final String name;
+    private final long capacity;
+    private final long freeSpace;
+    private final long uncommitted;
+
+    /**
+     * @param morVal Managed object reference value.
+     * @param name Name of the datastore, null if unknown.
+     * @param capacity Capacity, in bytes.
+     * @param freeSpace Free space, in bytes.
+     * @param uncommitted Storage the VMs may use in addition to the committed storage, in bytes.
+     */
+    public DatastoreRecord(String morVal, String name, long capacity, long freeSpace,
+                    long uncommitted) {
+        super(morVal);
+        this.name = name;
+        this.capacity = capacity;
+        this.freeSpace = freeSpace;
+        this.uncommitted = uncommitted;
+    }
+
+    /**
+     * Apply the property changes reported by the property collector for a datastore.
+     *
+     * @param previous The current record of the datastore, null if the datastore is new.
+     * @param morVal Managed object reference value of the datastore.
+     * @param changes The property changes.
+     * @return The updated datastore record.
+     */
+    public static DatastoreRecord update(DatastoreRecord previous, String morVal,
+                    PropertyChange[] changes) {
+        String name = previous != null ? previous.name : null;
+        long capacity = previous != null ? previous.capacity : 0;
+        long freeSpace = previous != null ? previous.freeSpace : 0;
+        long uncommitted = previous != null ? previous.uncommitted : 0;
+        if (changes != null) {
+            for (PropertyChange change : changes) {
+                Object val = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+                switch (change.getName()) {
+                    case PROPERTY_NAME:
+                        name = (String)val;
+                        break;
+                    case PROPERTY_CAPACITY:
+                        capacity = toLong(val);
+                        break;
+                    case PROPERTY_FREE_SPACE:
+                        freeSpace = toLong(val);
+                        break;
+                    case PROPERTY_UNCOMMITTED:
+                        uncommitted = toLong(val);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return new DatastoreRecord(morVal, name, capacity, freeSpace, uncommitted);
+    }
+
+    /**
+     * Write the record to a snapshot.
+     *
+     * @param out The snapshot output.
+     * @throws IOException if writing failed
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(getMorVal());
+        writeString(out, name);
+        out.writeLong(capacity);
+        out.writeLong(freeSpace);
+        out.writeLong(uncommitted);
+    }
+
+    /**
+     * Read a record written by {@link #write}.
+     *
+     * @param in The snapshot input.
+     * @return The record.
+     * @throws IOException if reading failed
+     */
+    public static DatastoreRecord read(DataInput in) throws IOException {
+        return new DatastoreRecord(in.readUTF(), readString(in), in.readLong(), in.readLong(),
+                        in.readLong());
+    }
+
+    @Override
+    public String getMorType() {
+        return TYPE;
+    }
+
+    @Override
+    public long getFingerprint() {
+        Hasher hasher = FINGERPRINT.newHasher();
+        putString(hasher, getMorVal());
+        putString(hasher, name);
+        return hasher.putLong(capacity).hash().asLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getFreeSpace() {
+        return freeSpace;
+    }
+
+    public long getUncommitted() {
+        return uncommitted;
+    }
+}
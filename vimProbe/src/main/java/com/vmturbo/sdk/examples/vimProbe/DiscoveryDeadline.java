@@ -0,0 +1,73 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Time budget of one discovery of a VC target.
+ *
+ * Every property and performance call of the discovery checks the deadline first. Once the
+ * budget is exhausted the remaining calls are skipped, and recorded so the discovery can return
+ * the entities gathered so far together with the list of what was skipped.
+ */
+public class DiscoveryDeadline {
+
+    private final long budgetMs;
+    private final long deadlineNanos;
+
+    private final List<String> skipped = new ArrayList<String>();
+
+    /**
+     * @param budgetMs Time budget of the discovery, in milliseconds, starting now.
+     */
+    public DiscoveryDeadline(long budgetMs) {
+        this.budgetMs = budgetMs;
+        this.deadlineNanos = System.nanoTime() + budgetMs * 1000000L;
+    }
+
+    /**
+     * @return The time budget of the discovery, in milliseconds.
+     */
+    public long getBudgetMs() {
+        return budgetMs;
+    }
+
+    /**
+     * @return Remaining time before the deadline, in milliseconds. 0 if the deadline has passed.
+     */
+    public long remainingMs() {
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1000000L);
+    }
+
+    /**
+     * @return true if the deadline has passed.
+     */
+    public boolean isExpired() {
+        return remainingMs() == 0;
+    }
+
+    /**
+     * Record a call that was skipped because the deadline had passed, or data lost to a failed
+     * discovery stage.
+     *
+     * @param what Description of what the call would have gathered.
+     */
+    public synchronized void skip(String what) {
+        skipped.add(what);
+    }
+
+    /**
+     * @return true if any call has been skipped.
+     */
+    public synchronized boolean hasSkipped() {
+        return !skipped.isEmpty();
+    }
+
+    /**
+     * @return Descriptions of the skipped calls, in the order they were skipped.
+     */
+    public synchronized List<String> getSkipped() {
+        return Collections.unmodifiableList(new ArrayList<String>(skipped));
+    }
+}
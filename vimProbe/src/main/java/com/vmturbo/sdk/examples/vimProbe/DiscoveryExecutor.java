@@ -0,0 +1,132 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Bounded executor shared by the discoveries of all the VC targets.
+ *
+ * At most {@code maxConcurrentDiscoveries} discoveries run at the same time, and at most one per
+ * target, so a {@link TargetContext} is never used by two threads at once. Targets with pending
+ * discoveries are served round-robin: a target that keeps submitting discoveries can not starve
+ * the others. Periodic housekeeping tasks, which may submit discoveries of their own, run on a
+ * separate timer thread.
+ */
+public class DiscoveryExecutor {
+
+    private static final Logger logger = Logger.getLogger(DiscoveryExecutor.class);
+
+    private final ExecutorService workers;
+
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Pending discoveries of each target, in submission order. Guarded by {@code this}.
+     */
+    private final Map<String, Queue<FutureTask<?>>> pending = new HashMap<String, Queue<FutureTask<?>>>();
+
+    /**
+     * @param maxConcurrentDiscoveries Max number of discoveries running at the same time.
+     */
+    public DiscoveryExecutor(int maxConcurrentDiscoveries) {
+        workers = Executors.newFixedThreadPool(maxConcurrentDiscoveries,
+                        new ThreadFactoryBuilder().setNameFormat("vim-discovery-%d")
+                                        .setDaemon(true).build());
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setNameFormat("vim-discovery-timer-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Run a housekeeping task periodically. The task should not block: tasks that use the
+     * context of a target should be submitted as discoveries of the target.
+     *
+     * @param task The task. A failure of the task does not stop the next runs.
+     * @param periodMs Delay between the end of a run and the start of the next one, in
+     *            milliseconds.
+     * @return The future of the schedule, to cancel it.
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, long periodMs) {
+        return timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    logger.warn("Housekeeping task failed", e);
+                }
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Submit a discovery of a target. It starts after the discoveries of the same target
+     * submitted before it have completed.
+     *
+     * @param targetAddr Name or address of the target.
+     * @param discovery The discovery to run.
+     * @return The future result of the discovery.
+     */
+    public <T> Future<T> submit(String targetAddr, Callable<T> discovery) {
+        FutureTask<T> task = new FutureTask<T>(discovery);
+        boolean idle;
+        synchronized (this) {
+            Queue<FutureTask<?>> queue = pending.get(targetAddr);
+            idle = queue == null;
+            if (idle) {
+                queue = new ArrayDeque<FutureTask<?>>();
+                pending.put(targetAddr, queue);
+            }
+            queue.add(task);
+        }
+        if (idle) {
+            schedule(targetAddr);
+        }
+        return task;
+    }
+
+    /**
+     * Queue the next pending discovery of a target behind the discoveries of the other targets.
+     *
+     * @param targetAddr Name or address of the target.
+     */
+    private void schedule(final String targetAddr) {
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                FutureTask<?> task;
+                synchronized (DiscoveryExecutor.this) {
+                    task = pending.get(targetAddr).peek();
+                }
+                // Failures are reported through the future of the task
+                task.run();
+                boolean more;
+                synchronized (DiscoveryExecutor.this) {
+                    Queue<FutureTask<?>> queue = pending.get(targetAddr);
+                    queue.remove();
+                    more = !queue.isEmpty();
+                    if (!more) {
+                        pending.remove(targetAddr);
+                    }
+                }
+                if (more) {
+                    schedule(targetAddr);
+                }
+            }
+        });
+    }
+}
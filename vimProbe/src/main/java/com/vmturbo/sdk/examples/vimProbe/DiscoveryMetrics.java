@@ -0,0 +1,351 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Timers and counters of the discoveries of one VC target, per discovery phase.
+ *
+ * A thread working on a phase opens a {@link Scope} for it; the static {@code record} methods
+ * then add to the counters of that phase, so the transport and the inventory mirror can count
+ * round trips, bytes and objects without knowing which target or phase they serve. Counts made
+ * outside of a scope are dropped. The counters of the current discovery are published, and
+ * summarised in one log line, when it ends.
+ */
+public class DiscoveryMetrics implements DiscoveryMetricsMXBean {
+
+    /**
+     * Phases of a discovery.
+     */
+    public enum Phase {
+        LOGIN("login"),
+        TRAVERSAL("traversal"),
+        PROPERTIES("properties"),
+        PERF("perf"),
+        DTO_BUILD("dtoBuild");
+
+        private final String label;
+
+        private Phase(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final int TIME_NANOS = 0;
+    private static final int ROUND_TRIPS = 1;
+    private static final int BYTES = 2;
+    private static final int OBJECTS = 3;
+    private static final int SAMPLES = 4;
+    private static final int ERRORS = 5;
+    private static final int FIELDS = 6;
+
+    private static final String DOMAIN = "com.vmturbo.sdk.examples.vimProbe";
+
+    private static final Logger logger = Logger.getLogger(DiscoveryMetrics.class);
+
+    /**
+     * Scope of the phase the current thread is working on, if any.
+     */
+    private static final ThreadLocal<Scope> currentScope = new ThreadLocal<Scope>();
+
+    private final String targetAddr;
+
+    /**
+     * Counters of the discovery in progress, {@link #FIELDS} per phase.
+     */
+    private volatile AtomicLongArray current = new AtomicLongArray(Phase.values().length * FIELDS);
+    private volatile long cycleStartNanos = System.nanoTime();
+
+    /**
+     * Counters of the last completed discovery.
+     */
+    private volatile long[] last = new long[Phase.values().length * FIELDS];
+    private volatile long lastCycleMillis = 0;
+    private volatile long cycles = 0;
+    private volatile String lastSummary = "";
+
+    /**
+     * A phase worked on by the current thread, from {@link DiscoveryMetrics#begin} until closed.
+     * Scopes nest: closing a scope restores the scope that was open before it.
+     */
+    public final class Scope implements AutoCloseable {
+        private final Phase phase;
+        private final long startNanos = System.nanoTime();
+        private final Scope previous = currentScope.get();
+        private final AtomicLongArray counters = current;
+
+        private Scope(Phase phase) {
+            this.phase = phase;
+            currentScope.set(this);
+        }
+
+        private void add(int field, long delta) {
+            counters.addAndGet(phase.ordinal() * FIELDS + field, delta);
+        }
+
+        @Override
+        public void close() {
+            add(TIME_NANOS, System.nanoTime() - startNanos);
+            if (previous != null) {
+                currentScope.set(previous);
+            } else {
+                currentScope.remove();
+            }
+        }
+    }
+
+    /**
+     * @param targetAddr Address of the target.
+     */
+    public DiscoveryMetrics(String targetAddr) {
+        this.targetAddr = targetAddr;
+    }
+
+    /**
+     * Start working on a phase in the current thread.
+     *
+     * @param phase The phase.
+     * @return The scope of the phase, to close when the thread is done with it.
+     */
+    public Scope begin(Phase phase) {
+        return new Scope(phase);
+    }
+
+    /**
+     * Count a SOAP call of the phase of the current thread.
+     *
+     * @param bytes Number of bytes sent and received on the wire.
+     */
+    public static void recordCall(long bytes) {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.add(ROUND_TRIPS, 1);
+            scope.add(BYTES, bytes);
+        }
+    }
+
+    /**
+     * Count objects handled by the phase of the current thread.
+     *
+     * @param count Number of managed objects, performance entities or DTOs.
+     */
+    public static void recordObjects(long count) {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.add(OBJECTS, count);
+        }
+    }
+
+    /**
+     * Count performance samples decoded by the phase of the current thread.
+     *
+     * @param count Number of samples.
+     */
+    public static void recordSamples(long count) {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.add(SAMPLES, count);
+        }
+    }
+
+    /**
+     * Count a failure of the phase of the current thread.
+     */
+    public static void recordError() {
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.add(ERRORS, 1);
+        }
+    }
+
+    /**
+     * Start counting a new discovery. Scopes still open from the previous one add to its
+     * counters, which are no longer published.
+     */
+    public void startCycle() {
+        current = new AtomicLongArray(Phase.values().length * FIELDS);
+        cycleStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Publish the counters of the discovery in progress.
+     *
+     * @return The summary line of the discovery.
+     */
+    public String endCycle() {
+        AtomicLongArray counters = current;
+        long[] values = new long[counters.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = counters.get(i);
+        }
+        last = values;
+        lastCycleMillis = (System.nanoTime() - cycleStartNanos) / 1000000L;
+        cycles++;
+
+        StringBuilder sb = new StringBuilder("Discovery of target ").append(targetAddr)
+                        .append(" took ").append(lastCycleMillis).append(" ms:");
+        for (Phase phase : Phase.values()) {
+            if (isIdle(values, phase)) {
+                continue;
+            }
+            long millis = get(values, phase, TIME_NANOS) / 1000000L;
+            long roundTrips = get(values, phase, ROUND_TRIPS);
+            long objects = get(values, phase, OBJECTS);
+            sb.append(' ').append(phase.getLabel()).append(" [").append(millis).append(" ms, ")
+                            .append(roundTrips).append(" calls, ")
+                            .append(String.format(Locale.ROOT, "%.1f",
+                                            get(values, phase, BYTES) / 1048576.0))
+                            .append(" MB, ").append(objects).append(" objects, ")
+                            .append(perSecond(objects, millis)).append("/s");
+            long samples = get(values, phase, SAMPLES);
+            if (samples > 0) {
+                sb.append(", ").append(samples).append(" samples");
+            }
+            long errors = get(values, phase, ERRORS);
+            if (errors > 0) {
+                sb.append(", ").append(errors).append(" errors");
+            }
+            sb.append(']');
+        }
+        lastSummary = sb.toString();
+        return lastSummary;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server. Failures are logged.
+     */
+    public void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = getObjectName();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        }
+        catch (JMException e) {
+            logger.warn("Failed registering discovery metrics of target: " + targetAddr, e);
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, if registered.
+     */
+    public void unregister() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = getObjectName();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        }
+        catch (JMException e) {
+            logger.warn("Failed unregistering discovery metrics of target: " + targetAddr, e);
+        }
+    }
+
+    private ObjectName getObjectName() throws JMException {
+        return new ObjectName(DOMAIN + ":type=DiscoveryMetrics,target="
+                        + ObjectName.quote(targetAddr));
+    }
+
+    private static long get(long[] values, Phase phase, int field) {
+        return values[phase.ordinal() * FIELDS + field];
+    }
+
+    private static boolean isIdle(long[] values, Phase phase) {
+        for (int field = 0; field < FIELDS; field++) {
+            if (get(values, phase, field) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long perSecond(long count, long millis) {
+        return millis > 0 ? count * 1000 / millis : 0;
+    }
+
+    private Map<String, Long> getByPhase(int field) {
+        long[] values = last;
+        Map<String, Long> byPhase = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            long value = get(values, phase, field);
+            byPhase.put(phase.getLabel(), field == TIME_NANOS ? value / 1000000L : value);
+        }
+        return byPhase;
+    }
+
+    @Override
+    public String getTargetAddr() {
+        return targetAddr;
+    }
+
+    @Override
+    public long getCycles() {
+        return cycles;
+    }
+
+    @Override
+    public long getLastCycleMillis() {
+        return lastCycleMillis;
+    }
+
+    @Override
+    public Map<String, Long> getPhaseMillis() {
+        return getByPhase(TIME_NANOS);
+    }
+
+    @Override
+    public Map<String, Long> getRoundTrips() {
+        return getByPhase(ROUND_TRIPS);
+    }
+
+    @Override
+    public Map<String, Long> getBytes() {
+        return getByPhase(BYTES);
+    }
+
+    @Override
+    public Map<String, Long> getObjects() {
+        return getByPhase(OBJECTS);
+    }
+
+    @Override
+    public Map<String, Long> getObjectsPerSecond() {
+        long[] values = last;
+        Map<String, Long> byPhase = new LinkedHashMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            byPhase.put(phase.getLabel(), perSecond(get(values, phase, OBJECTS),
+                            get(values, phase, TIME_NANOS) / 1000000L));
+        }
+        return byPhase;
+    }
+
+    @Override
+    public Map<String, Long> getPerfSamples() {
+        return getByPhase(SAMPLES);
+    }
+
+    @Override
+    public Map<String, Long> getErrors() {
+        return getByPhase(ERRORS);
+    }
+
+    @Override
+    public String getLastSummary() {
+        return lastSummary;
+    }
+}
@@ -0,0 +1,65 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.Map;
+
+/**
+ * JMX view of the {@link DiscoveryMetrics} of a VC target. The per-phase values are those of the
+ * last completed discovery, indexed by phase name.
+ */
+public interface DiscoveryMetricsMXBean {
+
+    /**
+     * @return Address of the target.
+     */
+    String getTargetAddr();
+
+    /**
+     * @return Number of discoveries completed since the probe started.
+     */
+    long getCycles();
+
+    /**
+     * @return Duration of the last discovery, in milliseconds.
+     */
+    long getLastCycleMillis();
+
+    /**
+     * @return Time spent in each phase, summed over the threads running it, in milliseconds.
+     */
+    Map<String, Long> getPhaseMillis();
+
+    /**
+     * @return Number of SOAP calls made by each phase.
+     */
+    Map<String, Long> getRoundTrips();
+
+    /**
+     * @return Number of bytes sent and received on the wire by each phase.
+     */
+    Map<String, Long> getBytes();
+
+    /**
+     * @return Number of managed objects, performance entities or DTOs handled by each phase.
+     */
+    Map<String, Long> getObjects();
+
+    /**
+     * @return Number of objects handled per second of each phase.
+     */
+    Map<String, Long> getObjectsPerSecond();
+
+    /**
+     * @return Number of performance samples decoded by each phase.
+     */
+    Map<String, Long> getPerfSamples();
+
+    /**
+     * @return Number of failed calls or traversals of each phase.
+     */
+    Map<String, Long> getErrors();
+
+    /**
+     * @return Summary of the last discovery, as logged.
+     */
+    String getLastSummary();
+}
@@ -0,0 +1,201 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A chain of discovery stages running concurrently, connected by bounded queues.
+ *
+ * The caller feeds the first stage with {@link #put}. Each stage runs on its own thread and
+ * passes its output to the next stage. A stage that falls behind fills its input queue, which
+ * blocks the stage before it: discovery time approaches the time of the slowest stage instead
+ * of the sum of all the stages. An item a stage fails to process is dropped and counted, so the
+ * caller can tell a partial result from a complete one.
+ *
+ * @param <T> Type of the items passed between the stages.
+ */
+public class DiscoveryPipeline<T> {
+
+    /**
+     * Receiver of the items emitted by a producer or a stage.
+     */
+    public interface Sink<T> {
+        /**
+         * @param item The item to pass on. Blocks while the receiving queue is full.
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void put(T item) throws InterruptedException;
+    }
+
+    /**
+     * One stage of the pipeline.
+     */
+    public interface Stage<T> {
+        /**
+         * Process one item, emitting zero or more items to the next stage.
+         *
+         * @param item The item to process.
+         * @param out The input of the next stage.
+         * @throws Exception if processing the item failed. The item is dropped, counted in
+         *             {@link DiscoveryPipeline#getDropped}, and the error logged; the stage
+         *             carries on with the next item.
+         */
+        void process(T item, Sink<T> out) throws Exception;
+
+        /**
+         * Called once after the last item, to emit anything the stage holds back.
+         *
+         * @param out The input of the next stage.
+         * @throws Exception if flushing failed. The items held back are dropped, and counted
+         *             as one in {@link DiscoveryPipeline#getDropped}.
+         */
+        void flush(Sink<T> out) throws Exception;
+    }
+
+    /**
+     * Marks the end of the items in a queue.
+     */
+    private static final Object END = new Object();
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final List<Future<?>> workers = new ArrayList<Future<?>>();
+
+    private final BlockingQueue<Object> input;
+
+    /**
+     * Number of items dropped by the stages.
+     */
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Start the stages.
+     *
+     * @param executor Executor running the stages, it needs one thread per stage.
+     * @param queueCapacity Capacity of the queue in front of each stage.
+     * @param stages The stages, in order.
+     */
+    public DiscoveryPipeline(ExecutorService executor, int queueCapacity, List<Stage<T>> stages) {
+        input = new ArrayBlockingQueue<Object>(queueCapacity);
+        BlockingQueue<Object> in = input;
+        for (int i = 0; i < stages.size(); i++) {
+            BlockingQueue<Object> out = i < stages.size() - 1
+                            ? new ArrayBlockingQueue<Object>(queueCapacity) : null;
+            workers.add(executor.submit(new StageWorker(stages.get(i), in, out)));
+            in = out;
+        }
+    }
+
+    /**
+     * Feed an item to the first stage. Blocks while the first stage is behind.
+     *
+     * @param item The item.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(T item) throws InterruptedException {
+        input.put(item);
+    }
+
+    /**
+     * Signal the end of the input and wait for all the stages to complete.
+     *
+     * @throws InterruptedException if interrupted while waiting, the stages are then cancelled
+     * @throws ExecutionException if a stage failed outside of processing an item
+     */
+    public void close() throws InterruptedException, ExecutionException {
+        try {
+            input.put(END);
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e) {
+            cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of items the stages failed to process, and so dropped.
+     */
+    public int getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Stop all the stages.
+     */
+    public void cancel() {
+        for (Future<?> worker : workers) {
+            worker.cancel(true);
+        }
+    }
+
+    /**
+     * Runs one stage until the end of its input.
+     */
+    private class StageWorker implements Runnable {
+
+        private final Stage<T> stage;
+        private final BlockingQueue<Object> in;
+        private final BlockingQueue<Object> out;
+        private final Sink<T> sink;
+
+        StageWorker(Stage<T> stage, BlockingQueue<Object> in, final BlockingQueue<Object> out) {
+            this.stage = stage;
+            this.in = in;
+            this.out = out;
+            this.sink = new Sink<T>() {
+                @Override
+                public void put(T item) throws InterruptedException {
+                    if (out != null) {
+                        out.put(item);
+                    }
+                }
+            };
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void run() {
+            try {
+                for (Object item = in.take(); item != END; item = in.take()) {
+                    try {
+                        stage.process((T)item, sink);
+                    }
+                    catch (InterruptedException e) {
+                        throw e;
+                    }
+                    catch (Exception e) {
+                        dropped.incrementAndGet();
+                        logger.error("Discovery pipeline stage failed processing an item", e);
+                    }
+                }
+                try {
+                    stage.flush(sink);
+                }
+                catch (InterruptedException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    dropped.incrementAndGet();
+                    logger.error("Discovery pipeline stage failed flushing", e);
+                }
+                if (out != null) {
+                    out.put(END);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
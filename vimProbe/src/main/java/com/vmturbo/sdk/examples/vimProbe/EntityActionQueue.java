@@ -0,0 +1,383 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.vmturbo.platform.common.dto.ActionResponseState;
+import com.vmturbo.platform.common.dto.ActionType;
+import com.vmturbo.platform.common.dto.CommodityDTO;
+import com.vmturbo.platform.common.dto.ModelEnum.Commodity;
+import com.vmturbo.platform.common.dto.ModelEnum.CommodityAttribute;
+import com.vmturbo.platform.sdk.common.DTO.ActionItemDTO;
+import com.vmturbo.platform.sdk.common.DTO.EntityDTO;
+import com.vmturbo.platform.sdk.probe.ActionResult;
+
+/**
+ * Queue of the actions of each entity, in front of the {@link ActionEngine}.
+ *
+ * The actions of one entity run one after the other, in submission order, while the actions of
+ * different entities run in parallel. An action that waits behind a running one on the same
+ * entity can still be changed by the actions submitted after it:
+ * <ul>
+ * <li>Resizes of the same kind, capacity or limit, merge into one action with the latest value of
+ * each commodity, so a VM resized in CPU and then in memory is shut down once.</li>
+ * <li>A start joins the start waiting before it.</li>
+ * <li>A move replaces the move waiting before it, which fails as superseded: the VM goes where the
+ * latest move sends it.</li>
+ * </ul>
+ * Only the last waiting action of an entity is merged with, so an action never passes a
+ * conflicting one submitted before it. The actions merged together share the result of the
+ * merged action.
+ */
+public class EntityActionQueue {
+
+    private static final Logger logger = Logger.getLogger("com.vmturbo.platform.container.mediation");
+
+    /**
+     * Kinds of actions that can be merged together.
+     */
+    private enum Kind {
+        START, MOVE, CAPACITY, LIMIT
+    }
+
+    /**
+     * Groups of each entity, indexed by entity key. The first group is running, the others wait.
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Deque<Group>> entities = new HashMap<String, Deque<Group>>();
+
+    /**
+     * One submitted action.
+     */
+    private static class Member {
+        private final ActionItemDTO actionItem;
+        private final Map<String, String> accountValues;
+        private final ProgressReporter reporter;
+        private final AsyncFunction<Group, ActionResult> starter;
+        private final SettableFuture<ActionResult> result = SettableFuture.create();
+        private final long submitNanos = System.nanoTime();
+
+        private Member(ActionItemDTO actionItem, Map<String, String> accountValues,
+                        ProgressReporter reporter, AsyncFunction<Group, ActionResult> starter) {
+            this.actionItem = actionItem;
+            this.accountValues = accountValues;
+            this.reporter = reporter;
+            this.starter = starter;
+        }
+    }
+
+    /**
+     * Actions of one entity merged into one, run as the latest of them with the latest value of
+     * each commodity.
+     */
+    public static class Group {
+        private final String key;
+        private final Kind kind;
+        private final List<Member> members = new ArrayList<Member>();
+        private final Map<Commodity, CommodityDTO> newComms = new LinkedHashMap<Commodity, CommodityDTO>();
+
+        /**
+         * true once the group is the first of its entity.
+         */
+        private boolean started = false;
+
+        /**
+         * Result of the running group, null until it is started.
+         */
+        private ListenableFuture<ActionResult> running;
+
+        private Group(String key, Kind kind) {
+            this.key = key;
+            this.kind = kind;
+        }
+
+        private void add(Member member) {
+            members.add(member);
+            CommodityDTO newComm = member.actionItem.getNewComm();
+            if (newComm != null) {
+                // Keep the order of the commodities, with the latest value of each
+                newComms.remove(newComm.getCommodityType());
+                newComms.put(newComm.getCommodityType(), newComm);
+            }
+        }
+
+        /**
+         * @return The latest action of the group, the one run.
+         */
+        public ActionItemDTO getActionItem() {
+            return last().actionItem;
+        }
+
+        /**
+         * @return Map of credentials to connect to VCenter, of the latest action of the group.
+         */
+        public Map<String, String> getAccountValues() {
+            return last().accountValues;
+        }
+
+        /**
+         * @return Progress reporter of the latest action of the group.
+         */
+        public ProgressReporter getProgressTracker() {
+            return last().reporter;
+        }
+
+        /**
+         * @return Submission time of the latest action of the group, from {@link System#nanoTime}.
+         */
+        public long getSubmitNanos() {
+            return last().submitNanos;
+        }
+
+        /**
+         * @return The new commodities of the resizes of the group, the latest of each type.
+         */
+        public List<CommodityDTO> getNewComms() {
+            return new ArrayList<CommodityDTO>(newComms.values());
+        }
+
+        /**
+         * @return Number of actions merged in the group.
+         */
+        public int size() {
+            return members.size();
+        }
+
+        private Member last() {
+            return members.get(members.size() - 1);
+        }
+    }
+
+    /**
+     * Submit an action. It starts once the actions of its entity submitted before it are done,
+     * unless a later action merges with it or supersedes it first.
+     *
+     * @param targetAddr Name or address of the target.
+     * @param actionItem The action.
+     * @param accountValues Map of credentials to connect to VCenter.
+     * @param reporter Progress reporter of the action.
+     * @param starter Starts the group of the action, returning its future result, if the action
+     *            is the latest of the group.
+     * @return The future result of the action.
+     */
+    public ListenableFuture<ActionResult> submit(String targetAddr, ActionItemDTO actionItem,
+                    Map<String, String> accountValues, ProgressReporter reporter,
+                    AsyncFunction<Group, ActionResult> starter) {
+        final Member member = new Member(actionItem, accountValues, reporter, starter);
+        final String key = key(targetAddr, actionItem.getTargetSE());
+        Kind kind = kind(actionItem);
+        Group start = null;
+        List<Member> superseded = new ArrayList<Member>();
+        List<Member> merged = new ArrayList<Member>();
+        synchronized (this) {
+            Deque<Group> groups = entities.get(key);
+            if (groups == null) {
+                groups = new ArrayDeque<Group>();
+                entities.put(key, groups);
+            }
+            Group tail = groups.peekLast();
+            // The first group is running: only the ones behind it are merged with
+            if (groups.size() > 1 && kind != null && tail.kind == kind) {
+                if (kind == Kind.MOVE) {
+                    superseded.addAll(tail.members);
+                    tail.members.clear();
+                } else {
+                    merged.addAll(tail.members);
+                }
+                tail.add(member);
+            } else {
+                Group group = new Group(key, kind);
+                group.add(member);
+                groups.add(group);
+                if (groups.size() == 1) {
+                    group.started = true;
+                    start = group;
+                }
+            }
+        }
+        member.result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (member.result.isCancelled()) {
+                    cancelled(key, member);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        for (Member old : superseded) {
+            logger.info("Action " + old.actionItem.getUuid() + " superseded by "
+                            + actionItem.getUuid());
+            old.result.set(new ActionResult(ActionResponseState.FAILED, String.format(
+                            "%s: %s superseded by a newer %s", displayName(old.actionItem),
+                            old.actionItem.getActionType(), actionItem.getActionType())));
+        }
+        for (Member old : merged) {
+            old.reporter.updateActionProgress(ActionResponseState.QUEUED, String.format(
+                            "%s: %s merged with a newer %s", displayName(old.actionItem),
+                            old.actionItem.getActionType(), actionItem.getActionType()));
+        }
+        if (start != null) {
+            start(start);
+        }
+        return member.result;
+    }
+
+    /**
+     * Start a group, and the next group of its entity once it is done.
+     */
+    private void start(final Group group) {
+        final List<Member> members;
+        synchronized (this) {
+            members = new ArrayList<Member>(group.members);
+        }
+        ListenableFuture<ActionResult> result;
+        if (members.isEmpty()) {
+            // All the actions were cancelled while waiting
+            result = Futures.immediateCancelledFuture();
+        } else {
+            try {
+                result = members.get(members.size() - 1).starter.apply(group);
+            }
+            catch (Throwable t) {
+                result = Futures.immediateFailedFuture(t);
+            }
+        }
+        final ListenableFuture<ActionResult> running = result;
+        boolean cancel;
+        synchronized (this) {
+            group.running = running;
+            cancel = allDone(members);
+        }
+        if (cancel) {
+            running.cancel(true);
+        }
+        running.addListener(new Runnable() {
+            @Override
+            public void run() {
+                for (Member member : members) {
+                    complete(member.result, running);
+                }
+                Group next;
+                synchronized (EntityActionQueue.this) {
+                    Deque<Group> groups = entities.get(group.key);
+                    groups.poll();
+                    next = groups.peek();
+                    if (next == null) {
+                        entities.remove(group.key);
+                    } else {
+                        next.started = true;
+                    }
+                }
+                if (next != null) {
+                    start(next);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Forget a cancelled action. A waiting group left without actions is dropped, and a running
+     * one is cancelled.
+     */
+    private void cancelled(String key, Member member) {
+        ListenableFuture<ActionResult> cancel = null;
+        synchronized (this) {
+            Deque<Group> groups = entities.get(key);
+            if (groups == null) {
+                return;
+            }
+            for (Group group : groups) {
+                if (group.members.contains(member)) {
+                    if (group.started) {
+                        // A group being started is cancelled once its result is set
+                        if (group.running != null && allDone(group.members)) {
+                            cancel = group.running;
+                        }
+                    } else {
+                        group.members.remove(member);
+                        if (group.members.isEmpty()) {
+                            groups.remove(group);
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+        if (cancel != null) {
+            cancel.cancel(true);
+        }
+    }
+
+    private static boolean allDone(Collection<Member> members) {
+        for (Member member : members) {
+            if (!member.result.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void complete(SettableFuture<ActionResult> result,
+                    ListenableFuture<ActionResult> outcome) {
+        try {
+            result.set(Futures.getDone(outcome));
+        }
+        catch (ExecutionException e) {
+            result.setException(e.getCause());
+        }
+        catch (RuntimeException e) {
+            // Cancelled
+            result.cancel(false);
+        }
+    }
+
+    /**
+     * @return The kind of an action, null if it is never merged.
+     */
+    private static Kind kind(ActionItemDTO actionItem) {
+        ActionType type = actionItem.getActionType();
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
+            case START:
+                return Kind.START;
+            case MOVE:
+                return Kind.MOVE;
+            case RECONFIGURE:
+                return actionItem.getNewComm() != null ? Kind.CAPACITY : null;
+            case RIGHT_SIZE:
+                if (actionItem.getNewComm() == null) {
+                    return null;
+                }
+                CommodityAttribute attr = actionItem.getCommodityAttribute();
+                return attr == CommodityAttribute.Capacity ? Kind.CAPACITY
+                                : attr == CommodityAttribute.Limit ? Kind.LIMIT : null;
+            default:
+                return null;
+        }
+    }
+
+    private static String key(String targetAddr, EntityDTO se) {
+        String id = se.getId() != null ? se.getId() : se.getDisplayName();
+        return targetAddr + '/' + se.getEntity() + '/' + id;
+    }
+
+    private static String displayName(ActionItemDTO actionItem) {
+        return actionItem.getTargetSE().getDisplayName();
+    }
+}
@@ -0,0 +1,202 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertySpec;
+
+/**
+ * Managed object references of the VMs and hosts of a VC target, indexed by name and by UUID, so
+ * the actions find their entities without searching the inventory of the target.
+ *
+ * The index is filled and kept current by the {@link TaskWatcher} of the target, from the update
+ * sets of its filter on a container view of all the VMs and hosts. It is ready once the first
+ * update set without truncation is applied, and reset when the watcher starts over. Lookups never
+ * wait for the index: until it is ready, they search the inventory of the target instead. When several
+ * objects of a type have the same name, the name resolves to the last one reported. The parent of
+ * each host is kept too, to tell which cluster it belongs to.
+ */
+public class EntityIndex {
+
+    static final String PROPERTY_PARENT = "parent";
+
+    /**
+     * Objects indexed by MOR value.
+     */
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * MOR values indexed by type and name.
+     */
+    private final Map<String, String> byName = new HashMap<String, String>();
+
+    /**
+     * MOR values indexed by type and UUID.
+     */
+    private final Map<String, String> byUuid = new HashMap<String, String>();
+
+    private boolean ready = false;
+
+    /**
+     * Name and UUID of one object.
+     */
+    private static class Entry {
+        private final String type;
+        private String name;
+        private String uuid;
+
+        /**
+         * MOR value of the parent of a host: its cluster, or the compute resource of a standalone
+         * host.
+         */
+        private String parent;
+
+        private Entry(String type) {
+            this.type = type;
+        }
+    }
+
+    /**
+     * @return The properties the index is built from, for each managed object class.
+     */
+    static PropertySpec[] getPropertySpecs() {
+        return new PropertySpec[] {
+            InventoryMirror.createPropertySpec(VmRecord.TYPE,
+                            new String[] {VmRecord.PROPERTY_NAME, VmRecord.PROPERTY_UUID}),
+            InventoryMirror.createPropertySpec(HostRecord.TYPE,
+                            new String[] {HostRecord.PROPERTY_NAME, HostRecord.PROPERTY_UUID,
+                                PROPERTY_PARENT})};
+    }
+
+    /**
+     * Forget all the objects, until the index is filled again.
+     */
+    synchronized void reset() {
+        entries.clear();
+        byName.clear();
+        byUuid.clear();
+        ready = false;
+    }
+
+    /**
+     * Mark the index as complete.
+     */
+    synchronized void setReady() {
+        ready = true;
+    }
+
+    /**
+     * Apply the update of one object.
+     *
+     * @param update The update.
+     */
+    synchronized void apply(ObjectUpdate update) {
+        String morVal = update.getObj().getVal();
+        Entry entry = entries.get(morVal);
+        if (entry != null) {
+            // Another object with the same name or UUID may own the key by now
+            removeOwned(byName, key(entry.type, entry.name), morVal);
+            removeOwned(byUuid, uuidKey(entry.type, entry.uuid), morVal);
+        }
+        if (update.getKind() == ObjectUpdateKind.leave) {
+            entries.remove(morVal);
+            return;
+        }
+        if (entry == null) {
+            entry = new Entry(update.getObj().getType());
+            entries.put(morVal, entry);
+        }
+        if (update.getChangeSet() != null) {
+            for (PropertyChange change : update.getChangeSet()) {
+                Object value = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+                switch (change.getName()) {
+                    case VmRecord.PROPERTY_NAME:
+                        entry.name = (String)value;
+                        break;
+                    case VmRecord.PROPERTY_UUID:
+                    case HostRecord.PROPERTY_UUID:
+                        entry.uuid = (String)value;
+                        break;
+                    case PROPERTY_PARENT:
+                        entry.parent = value != null ? ((ManagedObjectReference)value).getVal()
+                                        : null;
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        if (entry.name != null) {
+            byName.put(key(entry.type, entry.name), morVal);
+        }
+        if (entry.uuid != null) {
+            byUuid.put(uuidKey(entry.type, entry.uuid), morVal);
+        }
+    }
+
+    /**
+     * @return true if the index is complete.
+     */
+    public synchronized boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @param type Managed object class name, VirtualMachine or HostSystem.
+     * @param name Name of the object.
+     * @return The reference of the object, null if it is not in the index.
+     */
+    public synchronized ManagedObjectReference findByName(String type, String name) {
+        return toMor(type, byName.get(key(type, name)));
+    }
+
+    /**
+     * @param type Managed object class name, VirtualMachine or HostSystem.
+     * @param uuid BIOS UUID of the VM, or hardware UUID of the host.
+     * @return The reference of the object, null if it is not in the index.
+     */
+    public synchronized ManagedObjectReference findByUuid(String type, String uuid) {
+        return toMor(type, byUuid.get(uuidKey(type, uuid)));
+    }
+
+    /**
+     * @param hostName Name of a host.
+     * @return MOR value of the cluster, or standalone compute resource, of the host, null if the
+     *         host is not in the index.
+     */
+    public synchronized String findClusterOfHost(String hostName) {
+        String morVal = byName.get(key(HostRecord.TYPE, hostName));
+        return morVal != null ? entries.get(morVal).parent : null;
+    }
+
+    private static ManagedObjectReference toMor(String type, String morVal) {
+        return morVal != null ? InventoryMirror.createMor(type, morVal) : null;
+    }
+
+    /**
+     * Remove a key of the index if it still maps to an object.
+     *
+     * @param index The index.
+     * @param key The key.
+     * @param morVal MOR value of the object.
+     */
+    private static void removeOwned(Map<String, String> index, String key, String morVal) {
+        if (morVal.equals(index.get(key))) {
+            index.remove(key);
+        }
+    }
+
+    private static String key(String type, String value) {
+        return type + '/' + value;
+    }
+
+    private static String uuidKey(String type, String uuid) {
+        return key(type, uuid != null ? uuid.toLowerCase(Locale.ROOT) : null);
+    }
+}
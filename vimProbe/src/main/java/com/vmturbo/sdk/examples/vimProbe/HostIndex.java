@@ -0,0 +1,41 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Immutable index of the host attributes needed to build the VM entity DTOs.
+ *
+ * The index is built from the retrieved host properties before any DTO is built, so hosts and
+ * VMs can be parsed in any order and VMs can be parsed concurrently.
+ */
+public class HostIndex {
+
+    /**
+     * CPU speed of a core (summary.hardware.cpuMhz), indexed by host MOR value.
+     */
+    private final ImmutableMap<String, Integer> cpuMhzMap;
+
+    /**
+     * @param cpuMhzMap CPU speed of a core, indexed by host MOR value.
+     */
+    public HostIndex(Map<String, Integer> cpuMhzMap) {
+        this.cpuMhzMap = ImmutableMap.copyOf(cpuMhzMap);
+    }
+
+    /**
+     * @param hostMorVal Host MOR value.
+     * @return CPU speed of a core of the host in MHz, or null if the host is unknown.
+     */
+    public Integer getCpuMhz(String hostMorVal) {
+        return cpuMhzMap.get(hostMorVal);
+    }
+
+    /**
+     * @return Number of hosts in the index.
+     */
+    public int size() {
+        return cpuMhzMap.size();
+    }
+}
@@ -0,0 +1,193 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.hash.Hasher;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+
+/**
+ * Immutable record of the properties of a HostSystem.
+ */
+public final class HostRecord extends InventoryRecord {
+
+    static final String TYPE = "HostSystem";
+
+    static final String PROPERTY_UUID = "summary.hardware.uuid";
+    static final String PROPERTY_NAME = "name";
+    static final String PROPERTY_MEM_SIZE = "summary.hardware.memorySize";
+    static final String PROPERTY_CPU_MHZ = "summary.hardware.cpuMhz";
+    static final String PROPERTY_NUM_CPU_THREADS = "summary.hardware.numCpuThreads";
+    static final String PROPERTY_DATASTORE = "datastore";
+    static final String PROPERTY_NETWORK = "network";
+
+    /**
+     * Property paths retrieved for the hosts.
+     */
+    static final String[] PROPERTY_PATHS = {PROPERTY_UUID,
+                                            PROPERTY_NAME,
+                                            PROPERTY_MEM_SIZE,
+                                            PROPERTY_CPU_MHZ,
+                                            PROPERTY_NUM_CPU_THREADS,
+                                            PROPERTY_DATASTORE,
+                                            PROPERTY_NETWORK};
+
+    private final String uuid;
+    private final String name;
+    private final long memorySize;
+    private final int cpuMhz;
+    private final int numCpuThreads;
+    private final List<String> datastoreMorVals;
+    private final List<String> networkMorVals;
+
+    /**
+     * @param morVal Managed object reference value.
+     * @param uuid Hardware UUID of the host, may be null.
+     * @param name Name of the host, null if unknown.
+     * @param memorySize Memory size, in bytes.
+     * @param cpuMhz CPU speed of a core, in MHz.
+     * @param numCpuThreads Number of CPU threads.
+     * @param datastoreMorVals MOR values of the datastores mounted by the host, unmodifiable.
+     * @param networkMorVals MOR values of the networks of the host, unmodifiable.
+     */
+    public HostRecord(String morVal, String uuid, String name, long memorySize, int cpuMhz,
+                    int numCpuThreads, List<String> datastoreMorVals, List<String> networkMorVals) {
+        super(morVal);
+        this.uuid = uuid;
+        this.name = name;
+        this.memorySize = memorySize;
+        this.cpuMhz = cpuMhz;
+        this.numCpuThreads = numCpuThreads;
+        this.datastoreMorVals = datastoreMorVals;
+        this.networkMorVals = networkMorVals;
+    }
+
+    /**
+     * Apply the property changes reported by the property collector for a host.
+     *
+     * @param previous The current record of the host, null if the host is new.
+     * @param morVal Managed object reference value of the host.
+     * @param changes The property changes.
+     * @return The updated host record.
+     */
+    public static HostRecord update(HostRecord previous, String morVal, PropertyChange[] changes) {
+        String uuid = previous != null ? previous.uuid : null;
+        String name = previous != null ? previous.name : null;
+        long memorySize = previous != null ? previous.memorySize : 0;
+        int cpuMhz = previous != null ? previous.cpuMhz : 0;
+        int numCpuThreads = previous != null ? previous.numCpuThreads : 0;
+        List<String> datastoreMorVals = previous != null ? previous.datastoreMorVals
+                        : Collections.<String>emptyList();
+        List<String> networkMorVals = previous != null ? previous.networkMorVals
+                        : Collections.<String>emptyList();
+        if (changes != null) {
+            for (PropertyChange change : changes) {
+                Object val = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+                switch (change.getName()) {
+                    case PROPERTY_UUID:
+                        uuid = (String)val;
+                        break;
+                    case PROPERTY_NAME:
+                        name = (String)val;
+                        break;
+                    case PROPERTY_MEM_SIZE:
+                        memorySize = toLong(val);
+                        break;
+                    case PROPERTY_CPU_MHZ:
+                        cpuMhz = toInt(val);
+                        break;
+                    case PROPERTY_NUM_CPU_THREADS:
+                        numCpuThreads = toInt(val);
+                        break;
+                    case PROPERTY_DATASTORE:
+                        datastoreMorVals = toMorVals(val);
+                        break;
+                    case PROPERTY_NETWORK:
+                        networkMorVals = toMorVals(val);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return new HostRecord(morVal, uuid, name, memorySize, cpuMhz, numCpuThreads,
+                        datastoreMorVals, networkMorVals);
+    }
+
+    /**
+     * Write the record to a snapshot.
+     *
+     * @param out The snapshot output.
+     * @throws IOException if writing failed
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(getMorVal());
+        writeString(out, uuid);
+        writeString(out, name);
+        out.writeLong(memorySize);
+        out.writeInt(cpuMhz);
+        out.writeInt(numCpuThreads);
+        writeStrings(out, datastoreMorVals);
+        writeStrings(out, networkMorVals);
+    }
+
+    /**
+     * Read a record written by {@link #write}.
+     *
+     * @param in The snapshot input.
+     * @return The record.
+     * @throws IOException if reading failed
+     */
+    public static HostRecord read(DataInput in) throws IOException {
+        return new HostRecord(in.readUTF(), readString(in), readString(in), in.readLong(),
+                        in.readInt(), in.readInt(), readStrings(in), readStrings(in));
+    }
+
+    @Override
+    public String getMorType() {
+        return TYPE;
+    }
+
+    @Override
+    public long getFingerprint() {
+        Hasher hasher = FINGERPRINT.newHasher();
+        putString(hasher, getMorVal());
+        putString(hasher, uuid);
+        putString(hasher, name);
+        putStrings(hasher, datastoreMorVals);
+        putStrings(hasher, networkMorVals);
+        return hasher.putLong(memorySize).putInt(cpuMhz).putInt(numCpuThreads).hash().asLong();
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public int getCpuMhz() {
+        return cpuMhz;
+    }
+
+    public int getNumCpuThreads() {
+        return numCpuThreads;
+    }
+
+    public List<String> getDatastoreMorVals() {
+        return datastoreMorVals;
+    }
+
+    public List<String> getNetworkMorVals() {
+        return networkMorVals;
+    }
+}
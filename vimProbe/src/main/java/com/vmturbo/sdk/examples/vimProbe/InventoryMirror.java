@@ -0,0 +1,726 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Local mirror of the hosts, VMs, datastores and networks of a VC target, kept in sync incrementally with the property
+ * collector.
+ *
+ * The inventory is partitioned by compute resource: a cluster, or the compute resource of a
+ * standalone host. Each partition has its own property collector, with one filter on the hosts,
+ * datastores and networks of its compute resource and one on the VMs of its hosts, and the
+ * partitions are traversed concurrently. Datastores and networks shared by several compute
+ * resources are recorded by each of their partitions. The
+ * first WaitForUpdatesEx call of a collector returns all the objects of its filters, and the
+ * following calls with the returned version only the objects that changed since. A collector and
+ * its version belong to the session that created them: when the session is lost, or a version is
+ * rejected, the partition is pulled again.
+ *
+ * The mirror is used by the discovery thread of its target, and each partition by one traversal
+ * thread at a time.
+ */
+public class InventoryMirror {
+
+    static final String TYPE_COMPUTE_RESOURCE = "ComputeResource";
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    /**
+     * Partitions indexed by compute resource MOR value.
+     */
+    private final Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+
+    /**
+     * Work done on one partition.
+     */
+    private interface PartitionTask {
+        void run(Partition partition) throws InterruptedException;
+    }
+
+    /**
+     * @return The partitions.
+     */
+    public List<Partition> getPartitions() {
+        return new ArrayList<Partition>(partitions.values());
+    }
+
+    /**
+     * @return true if all the partitions can be synced incrementally.
+     */
+    public boolean isTracking() {
+        for (Partition partition : partitions.values()) {
+            if (!partition.isTracking()) {
+                return false;
+            }
+        }
+        return !partitions.isEmpty();
+    }
+
+    /**
+     * @return The host records of all the partitions.
+     */
+    public List<HostRecord> getHosts() {
+        Map<String, HostRecord> hosts = new HashMap<String, HostRecord>();
+        for (Partition partition : partitions.values()) {
+            hosts.putAll(partition.hosts);
+        }
+        return new ArrayList<HostRecord>(hosts.values());
+    }
+
+    /**
+     * @return The VM records of all the partitions.
+     */
+    public List<VmRecord> getVms() {
+        Map<String, VmRecord> vms = new HashMap<String, VmRecord>();
+        for (Partition partition : partitions.values()) {
+            vms.putAll(partition.vms);
+        }
+        return new ArrayList<VmRecord>(vms.values());
+    }
+
+    /**
+     * @return The datastore records of all the partitions.
+     */
+    public List<DatastoreRecord> getDatastores() {
+        Map<String, DatastoreRecord> datastores = new HashMap<String, DatastoreRecord>();
+        for (Partition partition : partitions.values()) {
+            datastores.putAll(partition.datastores);
+        }
+        return new ArrayList<DatastoreRecord>(datastores.values());
+    }
+
+    /**
+     * @return The network records of all the partitions.
+     */
+    public List<NetworkRecord> getNetworks() {
+        Map<String, NetworkRecord> networks = new HashMap<String, NetworkRecord>();
+        for (Partition partition : partitions.values()) {
+            networks.putAll(partition.networks);
+        }
+        return new ArrayList<NetworkRecord>(networks.values());
+    }
+
+    /**
+     * Restore the mirror from a snapshot.
+     *
+     * @param restored The partitions.
+     */
+    public void restore(Collection<Partition> restored) {
+        partitions.clear();
+        for (Partition partition : restored) {
+            partitions.put(partition.computeResourceMorVal, partition);
+        }
+    }
+
+    /**
+     * Forget the content of the mirror, without any remote call. Used when the session that owned
+     * the property collectors is lost.
+     */
+    public void clear() {
+        partitions.clear();
+    }
+
+    /**
+     * List the compute resources of the target, and update the partitions accordingly. The
+     * partitions of the compute resources that are gone are destroyed. If the listing fails the
+     * partitions are left as they are.
+     *
+     * @param context The context of the target, connected.
+     * @param pageSize Max number of objects per page.
+     */
+    public void updatePartitions(TargetContext context, int pageSize) {
+        if (!context.checkDeadline()) {
+            context.skipped("compute resources");
+            return;
+        }
+        ServiceInstance si = context.getServiceInstance();
+        PropertyCollector propCol = si.getPropertyCollector();
+        Map<String, String> computeResources = new HashMap<String, String>();
+        ContainerView view = null;
+        try {
+            view = si.getViewManager().createContainerView(si.getRootFolder(),
+                            new String[] {TYPE_COMPUTE_RESOURCE}, true);
+            RetrieveOptions options = new RetrieveOptions();
+            options.setMaxObjects(pageSize);
+            RetrieveResult result = propCol.retrievePropertiesEx(new PropertyFilterSpec[] {
+                            createViewFilterSpec(view, TYPE_COMPUTE_RESOURCE, new String[0])},
+                            options);
+            while (result != null) {
+                if (result.getObjects() != null) {
+                    for (ObjectContent oc : result.getObjects()) {
+                        computeResources.put(oc.getObj().getVal(), oc.getObj().getType());
+                    }
+                    DiscoveryMetrics.recordObjects(result.getObjects().length);
+                }
+                if (result.getToken() == null) {
+                    break;
+                }
+                result = propCol.continueRetrievePropertiesEx(result.getToken());
+            }
+        }
+        catch (RemoteException e) {
+            logger.error("Failed listing compute resources of target: " + context.getTargetAddr(), e);
+            context.remoteCallFailed("compute resources");
+            return;
+        }
+        finally {
+            if (view != null && context.checkDeadline()) {
+                try {
+                    view.destroyView();
+                }
+                catch (Exception e) {
+                    logger.warn("Failed destroying container view of compute resources", e);
+                }
+            }
+        }
+
+        for (Partition partition : getPartitions()) {
+            if (!computeResources.containsKey(partition.computeResourceMorVal)) {
+                partition.destroyCollector(context);
+                partitions.remove(partition.computeResourceMorVal);
+            }
+        }
+        for (Map.Entry<String, String> computeResource : computeResources.entrySet()) {
+            if (!partitions.containsKey(computeResource.getKey())) {
+                partitions.put(computeResource.getKey(),
+                                new Partition(computeResource.getValue(), computeResource.getKey()));
+            }
+        }
+        logger.info("Target " + context.getTargetAddr() + " has " + partitions.size()
+                        + " compute resources");
+    }
+
+    /**
+     * First phase of a sync: bring the partitions up to date, pulling the hosts, datastores and
+     * networks of the partitions that are not tracked yet. The partitions are synced concurrently.
+     *
+     * @param context The context of the target, connected.
+     * @param pageSize Max number of objects per update set.
+     * @param executor Executor running the traversals.
+     * @param maxConcurrent Max number of partitions traversed at the same time.
+     * @throws InterruptedException if interrupted while waiting for the traversals
+     */
+    public void syncHosts(final TargetContext context, final int pageSize,
+                    ExecutorService executor, int maxConcurrent) throws InterruptedException {
+        forEachPartition(context, executor, maxConcurrent, DiscoveryMetrics.Phase.TRAVERSAL,
+                        new PartitionTask() {
+                            @Override
+                            public void run(Partition partition) {
+                                partition.syncHosts(context, pageSize);
+                            }
+                        });
+    }
+
+    /**
+     * Second phase of a sync: pass on the VMs of all the partitions, pulling the VMs of the
+     * partitions that are not tracked yet. The partitions are traversed concurrently, and a VM
+     * seen in two partitions, because it moved during the sync, is only passed on once.
+     *
+     * @param context The context of the target, connected.
+     * @param pageSize Max number of objects per update set.
+     * @param executor Executor running the traversals.
+     * @param maxConcurrent Max number of partitions traversed at the same time.
+     * @param vmPages Receives the VM records, one page at a time. Called from several threads.
+     * @throws InterruptedException if interrupted while waiting for the traversals
+     */
+    public void syncVms(final TargetContext context, final int pageSize, ExecutorService executor,
+                    int maxConcurrent, final DiscoveryPipeline.Sink<List<VmRecord>> vmPages)
+                    throws InterruptedException {
+        final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final DiscoveryPipeline.Sink<List<VmRecord>> uniqueVmPages = new DiscoveryPipeline.Sink<List<VmRecord>>() {
+            @Override
+            public void put(List<VmRecord> page) throws InterruptedException {
+                List<VmRecord> unique = new ArrayList<VmRecord>(page.size());
+                for (VmRecord vm : page) {
+                    if (seen.add(vm.getMorVal())) {
+                        unique.add(vm);
+                    }
+                }
+                if (!unique.isEmpty()) {
+                    vmPages.put(unique);
+                }
+            }
+        };
+        forEachPartition(context, executor, maxConcurrent, DiscoveryMetrics.Phase.PROPERTIES,
+                        new PartitionTask() {
+                            @Override
+                            public void run(Partition partition) throws InterruptedException {
+                                partition.syncVms(context, pageSize, uniqueVmPages);
+                            }
+                        });
+    }
+
+    /**
+     * Run a task on every partition, on at most {@code maxConcurrent} threads of an executor.
+     *
+     * @param context The context of the target.
+     * @param executor The executor.
+     * @param maxConcurrent Max number of partitions processed at the same time.
+     * @param phase Discovery phase the calls and objects of the task are counted in.
+     * @param task The task.
+     * @throws InterruptedException if interrupted while waiting for the tasks
+     */
+    private void forEachPartition(final TargetContext context, ExecutorService executor,
+                    int maxConcurrent, final DiscoveryMetrics.Phase phase, final PartitionTask task)
+                    throws InterruptedException {
+        final Queue<Partition> queue = new ConcurrentLinkedQueue<Partition>(partitions.values());
+        List<Future<?>> workers = new ArrayList<Future<?>>();
+        for (int i = 0; i < Math.min(maxConcurrent, queue.size()); i++) {
+            workers.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(phase)) {
+                        for (Partition partition = queue.poll(); partition != null; partition = queue.poll()) {
+                            try {
+                                task.run(partition);
+                            }
+                            catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                            catch (Exception e) {
+                                DiscoveryMetrics.recordError();
+                                logger.error("Failed traversing compute resource "
+                                                + partition.computeResourceMorVal + " of target: "
+                                                + context.getTargetAddr(), e);
+                                context.skipped("compute resource "
+                                                + partition.computeResourceMorVal);
+                            }
+                        }
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (InterruptedException e) {
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+            throw e;
+        }
+        catch (ExecutionException e) {
+            // Failures are logged by the workers
+            logger.error("Traversal worker failed", e.getCause());
+        }
+    }
+
+    /**
+     * Create the filter specification selecting the properties of all the objects of a
+     * container view.
+     *
+     * @param view The container view.
+     * @param moCls Managed object class name
+     * @param propPaths property paths for the managed object class
+     * @return The filter specification.
+     */
+    protected static PropertyFilterSpec createViewFilterSpec(ContainerView view, String moCls,
+                    String[] propPaths) {
+        TraversalSpec viewTraversal = new TraversalSpec();
+        viewTraversal.setName("traverseView");
+        viewTraversal.setType("ContainerView");
+        viewTraversal.setPath("view");
+        viewTraversal.setSkip(false);
+
+        return createFilterSpec(view.getMOR(), new SelectionSpec[] {viewTraversal},
+                        createPropertySpec(moCls, propPaths));
+    }
+
+    /**
+     * Create the filter specification selecting the properties of the objects reached from a
+     * root object.
+     *
+     * @param root The root object, not selected itself.
+     * @param traversals The traversals from the root object to the selected objects.
+     * @param propertySpecs The properties selected, for each managed object class.
+     * @return The filter specification.
+     */
+    protected static PropertyFilterSpec createFilterSpec(ManagedObjectReference root,
+                    SelectionSpec[] traversals, PropertySpec... propertySpecs) {
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(root);
+        objectSpec.setSkip(true);
+        objectSpec.setSelectSet(traversals);
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] {objectSpec});
+        filterSpec.setPropSet(propertySpecs);
+        return filterSpec;
+    }
+
+    /**
+     * @param moCls Managed object class name, its subclasses are selected too.
+     * @param propPaths property paths for the managed object class
+     * @return The property specification.
+     */
+    protected static PropertySpec createPropertySpec(String moCls, String[] propPaths) {
+        PropertySpec propertySpec = new PropertySpec();
+        propertySpec.setType(moCls);
+        propertySpec.setPathSet(propPaths);
+        return propertySpec;
+    }
+
+    /**
+     * @param type Managed object class name.
+     * @param name Name of the traversal.
+     * @param path Property traversed.
+     * @param next Traversals applied to the objects reached, may be empty.
+     * @return The traversal specification.
+     */
+    protected static TraversalSpec createTraversalSpec(String type, String name, String path,
+                    SelectionSpec... next) {
+        TraversalSpec traversal = new TraversalSpec();
+        traversal.setName(name);
+        traversal.setType(type);
+        traversal.setPath(path);
+        traversal.setSkip(false);
+        if (next.length > 0) {
+            traversal.setSelectSet(next);
+        }
+        return traversal;
+    }
+
+    static ManagedObjectReference createMor(String type, String val) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(type);
+        mor.setVal(val);
+        return mor;
+    }
+
+    /**
+     * The hosts, VMs, datastores and networks of one compute resource, and the property
+     * collector tracking them.
+     */
+    public static class Partition {
+
+        private final Logger logger = Logger.getLogger(getClass());
+
+        final String computeResourceType;
+        final String computeResourceMorVal;
+
+        /**
+         * Records of the hosts, VMs, datastores and networks, indexed by MOR value.
+         */
+        final Map<String, HostRecord> hosts = new HashMap<String, HostRecord>();
+        final Map<String, VmRecord> vms = new HashMap<String, VmRecord>();
+        final Map<String, DatastoreRecord> datastores = new HashMap<String, DatastoreRecord>();
+        final Map<String, NetworkRecord> networks = new HashMap<String, NetworkRecord>();
+
+        /**
+         * MOR value of the property collector of the partition, null if not created yet.
+         */
+        String collectorMorVal;
+
+        /**
+         * true once the VM filter has been added to the collector.
+         */
+        boolean vmFilter;
+
+        /**
+         * Version of the last update set applied, null if the partition is not tracked.
+         */
+        String version;
+
+        /**
+         * true if the hosts were pulled by the current sync, and the VMs must be pulled next.
+         */
+        private boolean pulling;
+
+        /**
+         * @param computeResourceType Managed object class name of the compute resource.
+         * @param computeResourceMorVal MOR value of the compute resource.
+         */
+        public Partition(String computeResourceType, String computeResourceMorVal) {
+            this.computeResourceType = computeResourceType;
+            this.computeResourceMorVal = computeResourceMorVal;
+        }
+
+        /**
+         * @return true if the partition can be synced incrementally.
+         */
+        public boolean isTracking() {
+            return collectorMorVal != null && vmFilter && version != null;
+        }
+
+        /**
+         * Bring the partition up to date: apply the changes since its version, or pull its hosts,
+         * datastores and networks if it is not tracked or its version is no longer valid.
+         *
+         * @param context The context of the target, connected.
+         * @param pageSize Max number of objects per update set.
+         */
+        void syncHosts(TargetContext context, int pageSize) {
+            pulling = false;
+            if (isTracking()) {
+                try {
+                    waitForUpdates(context, getCollector(context), pageSize, null);
+                    return;
+                }
+                catch (InvalidCollectorVersion e) {
+                    logger.warn("Property collector version of compute resource "
+                                    + computeResourceMorVal + " is no longer valid");
+                }
+                catch (ManagedObjectNotFound e) {
+                    logger.warn("Property collector of compute resource " + computeResourceMorVal
+                                    + " is gone");
+                }
+                catch (RemoteException e) {
+                    logger.error("Failed syncing compute resource " + computeResourceMorVal, e);
+                    context.remoteCallFailed("inventory updates of " + computeResourceMorVal);
+                    return;
+                }
+                catch (InterruptedException e) {
+                    // Not passing on any VM, can not happen
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            // Pull the partition again
+            destroyCollector(context);
+            if (!context.checkDeadline()) {
+                context.skipped("hosts of " + computeResourceMorVal);
+                return;
+            }
+            try {
+                PropertyCollector collector = context.getServiceInstance().getPropertyCollector()
+                                .createPropertyCollector();
+                collectorMorVal = collector.getMOR().getVal();
+                version = "";
+                pulling = true;
+                // Compute resource -> hosts, datastores and networks, in the same update sets
+                collector.createFilter(createFilterSpec(getComputeResourceMor(),
+                                new SelectionSpec[] {
+                                    createTraversalSpec(TYPE_COMPUTE_RESOURCE, "crToHost", "host"),
+                                    createTraversalSpec(TYPE_COMPUTE_RESOURCE, "crToDs", "datastore"),
+                                    createTraversalSpec(TYPE_COMPUTE_RESOURCE, "crToNet", "network")},
+                                createPropertySpec(HostRecord.TYPE, HostRecord.PROPERTY_PATHS),
+                                createPropertySpec(DatastoreRecord.TYPE, DatastoreRecord.PROPERTY_PATHS),
+                                createPropertySpec(NetworkRecord.TYPE, NetworkRecord.PROPERTY_PATHS)),
+                                true);
+                waitForUpdates(context, collector, pageSize, null);
+            }
+            catch (RemoteException e) {
+                logger.error("Failed retrieving hosts of compute resource " + computeResourceMorVal, e);
+                context.remoteCallFailed("hosts of " + computeResourceMorVal);
+                version = null;
+            }
+            catch (InterruptedException e) {
+                // Not passing on any VM, can not happen
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Pass on the VMs of the partition, pulling them if the hosts were just pulled.
+         *
+         * @param context The context of the target, connected.
+         * @param pageSize Max number of objects per update set.
+         * @param vmPages Receives the VM records, one page at a time.
+         * @throws InterruptedException if interrupted while passing on the VMs
+         */
+        void syncVms(TargetContext context, int pageSize,
+                        DiscoveryPipeline.Sink<List<VmRecord>> vmPages) throws InterruptedException {
+            if (!pulling) {
+                List<VmRecord> all = new ArrayList<VmRecord>(vms.values());
+                for (int start = 0; start < all.size(); start += pageSize) {
+                    vmPages.put(all.subList(start, Math.min(start + pageSize, all.size())));
+                }
+                return;
+            }
+            if (version == null || !context.checkDeadline()) {
+                context.skipped("VMs of " + computeResourceMorVal);
+                return;
+            }
+            try {
+                // Compute resource -> hosts -> VMs
+                PropertyCollector collector = getCollector(context);
+                collector.createFilter(createFilterSpec(getComputeResourceMor(),
+                                new SelectionSpec[] {createTraversalSpec(TYPE_COMPUTE_RESOURCE,
+                                                "crToHost", "host", createTraversalSpec(
+                                                                HostRecord.TYPE, "hostToVm", "vm"))},
+                                createPropertySpec(VmRecord.TYPE, VmRecord.PROPERTY_PATHS)), true);
+                vmFilter = true;
+                waitForUpdates(context, collector, pageSize, vmPages);
+            }
+            catch (RemoteException e) {
+                logger.error("Failed retrieving VMs of compute resource " + computeResourceMorVal, e);
+                context.remoteCallFailed("VMs of " + computeResourceMorVal + " after the first "
+                                + vms.size());
+                version = null;
+            }
+            finally {
+                pulling = false;
+            }
+        }
+
+        /**
+         * Destroy the property collector of the partition, its filters with it, and forget its
+         * content.
+         *
+         * @param context The context of the target, connected.
+         */
+        void destroyCollector(TargetContext context) {
+            if (collectorMorVal != null && context.checkDeadline()) {
+                try {
+                    getCollector(context).destroyPropertyCollector();
+                }
+                catch (Exception e) {
+                    logger.warn("Failed destroying the property collector of compute resource "
+                                    + computeResourceMorVal, e);
+                }
+            }
+            collectorMorVal = null;
+            vmFilter = false;
+            version = null;
+            hosts.clear();
+            vms.clear();
+            datastores.clear();
+            networks.clear();
+        }
+
+        private PropertyCollector getCollector(TargetContext context) {
+            ServerConnection sc = context.getServiceInstance().getServerConnection();
+            return new PropertyCollector(sc, createMor("PropertyCollector", collectorMorVal));
+        }
+
+        private ManagedObjectReference getComputeResourceMor() {
+            return createMor(computeResourceType, computeResourceMorVal);
+        }
+
+        /**
+         * Apply the update sets of the collector from the current version on, until there are no
+         * more changes.
+         *
+         * @param context The context of the target, connected.
+         * @param collector The property collector of the partition.
+         * @param pageSize Max number of objects per update set.
+         * @param vmPages If not null, receives the records of the VMs entered or modified by each
+         *            update set.
+         * @throws RemoteException if a remote call failed
+         * @throws InterruptedException if interrupted while passing on the VMs
+         */
+        private void waitForUpdates(TargetContext context, PropertyCollector collector,
+                        int pageSize, DiscoveryPipeline.Sink<List<VmRecord>> vmPages)
+                        throws RemoteException, InterruptedException {
+            WaitOptions options = new WaitOptions();
+            options.setMaxWaitSeconds(0); // Return at once when nothing changed
+            options.setMaxObjectUpdates(pageSize);
+            while (true) {
+                if (!context.checkDeadline()) {
+                    // The remaining updates are applied by the next sync, from the current version
+                    context.skipped("inventory updates of " + computeResourceMorVal);
+                    return;
+                }
+                UpdateSet updates = collector.waitForUpdatesEx(version, options);
+                if (updates == null) {
+                    return;
+                }
+                List<VmRecord> changedVms = apply(updates);
+                version = updates.getVersion();
+                if (vmPages != null && !changedVms.isEmpty()) {
+                    vmPages.put(changedVms);
+                }
+                if (!Boolean.TRUE.equals(updates.getTruncated())) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Apply an update set to the records.
+         *
+         * @param updates The update set.
+         * @return The records of the VMs entered or modified.
+         */
+        private List<VmRecord> apply(UpdateSet updates) {
+            List<VmRecord> changedVms = new ArrayList<VmRecord>();
+            if (updates.getFilterSet() == null) {
+                return changedVms;
+            }
+            for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+                if (filterUpdate.getObjectSet() == null) {
+                    continue;
+                }
+                DiscoveryMetrics.recordObjects(filterUpdate.getObjectSet().length);
+                for (ObjectUpdate update : filterUpdate.getObjectSet()) {
+                    String morType = update.getObj().getType();
+                    String morVal = update.getObj().getVal();
+                    boolean leave = update.getKind() == ObjectUpdateKind.leave;
+                    if (HostRecord.TYPE.equals(morType)) {
+                        if (leave) {
+                            hosts.remove(morVal);
+                        } else {
+                            hosts.put(morVal, HostRecord.update(hosts.get(morVal), morVal,
+                                            update.getChangeSet()));
+                        }
+                    } else if (VmRecord.TYPE.equals(morType)) {
+                        if (leave) {
+                            vms.remove(morVal);
+                        } else {
+                            VmRecord vm = VmRecord.update(vms.get(morVal), morVal,
+                                            update.getChangeSet());
+                            vms.put(morVal, vm);
+                            changedVms.add(vm);
+                        }
+                    } else if (DatastoreRecord.TYPE.equals(morType)) {
+                        if (leave) {
+                            datastores.remove(morVal);
+                        } else {
+                            datastores.put(morVal, DatastoreRecord.update(datastores.get(morVal),
+                                            morVal, update.getChangeSet()));
+                        }
+                    } else if (NetworkRecord.isNetworkType(morType)) {
+                        if (leave) {
+                            networks.remove(morVal);
+                        } else {
+                            networks.put(morVal, NetworkRecord.update(networks.get(morVal),
+                                            morType, morVal, update.getChangeSet()));
+                        }
+                    }
+                }
+            }
+            return changedVms;
+        }
+    }
+}
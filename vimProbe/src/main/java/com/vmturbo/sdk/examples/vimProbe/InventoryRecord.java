@@ -0,0 +1,189 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Immutable record of the properties of one managed object, decoded once from the property
+ * collector updates. Records are shared, without locking, by the inventory mirror, the DTO
+ * builders and the topology cache.
+ */
+public abstract class InventoryRecord {
+
+    /**
+     * Hash function of the configuration fingerprints.
+     */
+    protected static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+    private final String morVal;
+
+    /**
+     * @param morVal Managed object reference value.
+     */
+    protected InventoryRecord(String morVal) {
+        this.morVal = morVal;
+    }
+
+    /**
+     * @return Managed object reference value.
+     */
+    public String getMorVal() {
+        return morVal;
+    }
+
+    /**
+     * @return Managed object class name.
+     */
+    public abstract String getMorType();
+
+    /**
+     * @return Hash of the configuration properties of the object. Two records with the same
+     *         fingerprint produce the same entity DTO, apart from the commodity used values.
+     */
+    public abstract long getFingerprint();
+
+    /**
+     * @return A new managed object reference to the object.
+     */
+    public ManagedObjectReference getMor() {
+        ManagedObjectReference mor = new ManagedObjectReference();
+        mor.setType(getMorType());
+        mor.setVal(morVal);
+        return mor;
+    }
+
+    /**
+     * @param val Property value, may be null.
+     * @return The value as an int, 0 if null.
+     */
+    protected static int toInt(Object val) {
+        return val != null ? ((Number)val).intValue() : 0;
+    }
+
+    /**
+     * @param val Property value, may be null.
+     * @return The value as a long, 0 if null.
+     */
+    protected static long toLong(Object val) {
+        return val != null ? ((Number)val).longValue() : 0;
+    }
+
+    /**
+     * @param val Property value, may be null.
+     * @return The value of a managed object reference, null if null.
+     */
+    protected static String toMorVal(Object val) {
+        return val != null ? ((ManagedObjectReference)val).getVal() : null;
+    }
+
+    /**
+     * @param val Property value, an array of managed object references, may be null.
+     * @return The values of the managed object references, empty if null.
+     */
+    protected static List<String> toMorVals(Object val) {
+        if (val == null) {
+            return Collections.emptyList();
+        }
+        ManagedObjectReference[] mors = (ManagedObjectReference[])val;
+        List<String> morVals = new ArrayList<String>(mors.length);
+        for (ManagedObjectReference mor : mors) {
+            morVals.add(mor.getVal());
+        }
+        return Collections.unmodifiableList(morVals);
+    }
+
+    /**
+     * Add a string that may be null to a fingerprint.
+     *
+     * @param hasher The fingerprint hasher.
+     * @param value The string, may be null.
+     * @return The hasher.
+     */
+    protected static Hasher putString(Hasher hasher, String value) {
+        hasher.putBoolean(value != null);
+        if (value != null) {
+            hasher.putString(value, StandardCharsets.UTF_8);
+        }
+        return hasher;
+    }
+
+    /**
+     * Add a list of strings to a fingerprint.
+     *
+     * @param hasher The fingerprint hasher.
+     * @param values The strings.
+     * @return The hasher.
+     */
+    protected static Hasher putStrings(Hasher hasher, List<String> values) {
+        hasher.putInt(values.size());
+        for (String value : values) {
+            putString(hasher, value);
+        }
+        return hasher;
+    }
+
+    /**
+     * Write a string that may be null.
+     *
+     * @param out The snapshot output.
+     * @param value The string, may be null.
+     * @throws IOException if writing failed
+     */
+    protected static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Read a string written by {@link #writeString}.
+     *
+     * @param in The snapshot input.
+     * @return The string, may be null.
+     * @throws IOException if reading failed
+     */
+    protected static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Write a list of strings.
+     *
+     * @param out The snapshot output.
+     * @param values The strings.
+     * @throws IOException if writing failed
+     */
+    protected static void writeStrings(DataOutput out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Read a list written by {@link #writeStrings}.
+     *
+     * @param in The snapshot input.
+     * @return The strings, unmodifiable.
+     * @throws IOException if reading failed
+     */
+    protected static List<String> readStrings(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<String> values = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(in.readUTF());
+        }
+        return Collections.unmodifiableList(values);
+    }
+}
@@ -0,0 +1,350 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Local snapshot of the state of a VC target, used to warm start the probe after a restart of
+ * the mediation container.
+ *
+ * The snapshot holds the inventory mirror with the property collector versions, the performance
+ * counter catalogue and the session cookie. When the session is still valid after the restart
+ * the mirror is synced incrementally; otherwise the target is pulled again.
+ *
+ * The session cookie gives access to the target: it is encrypted with a key derived from the
+ * password of the target, so the file gives no more access than the account it was saved with,
+ * and it is only resumed within the session timeout of the save. The file is only readable by
+ * its owner.
+ */
+public class InventorySnapshot {
+
+    private static final int MAGIC = 0x56494d53; // "VIMS"
+    private static final int FORMAT_VERSION = 4;
+
+    private static final String KEY_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int KEY_ITERATIONS = 10000;
+    private static final int SALT_LENGTH = 16;
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static final Logger logger = Logger.getLogger(InventorySnapshot.class);
+
+    /**
+     * @param dir Snapshot directory.
+     * @param targetAddr Name or address of the target.
+     * @return The snapshot file of the target.
+     */
+    public static File getFile(File dir, String targetAddr) {
+        return new File(dir, targetAddr.replaceAll("[^A-Za-z0-9._-]", "_") + ".snapshot");
+    }
+
+    /**
+     * Save the state of a target. The snapshot is written to a temporary file first, and then
+     * moved over the previous one.
+     *
+     * @param file The snapshot file.
+     * @param context The context of the target.
+     * @param password Password of the target, null to leave the session cookie out.
+     * @throws IOException if writing failed
+     */
+    public static void save(File file, TargetContext context, String password) throws IOException {
+        byte[][] sealedCookie = seal(context.getSessionCookie(), password);
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(dir);
+        Path tmp = createOwnerOnlyFile(dir, file.getName());
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new GZIPOutputStream(Files.newOutputStream(tmp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeBoolean(sealedCookie != null);
+            if (sealedCookie != null) {
+                for (byte[] part : sealedCookie) {
+                    writeBytes(out, part);
+                }
+            }
+
+            Map<String, Integer> counters = context.getPerfCounters();
+            out.writeInt(counters.size());
+            for (Map.Entry<String, Integer> counter : counters.entrySet()) {
+                out.writeUTF(counter.getKey());
+                out.writeInt(counter.getValue());
+            }
+
+            List<InventoryMirror.Partition> partitions = context.getInventoryMirror().getPartitions();
+            out.writeInt(partitions.size());
+            for (InventoryMirror.Partition partition : partitions) {
+                writePartition(out, partition);
+            }
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Restore the state of a target from its snapshot, if any.
+     *
+     * @param file The snapshot file.
+     * @param context The context of the target.
+     * @param password Password of the target, to decrypt the session cookie.
+     * @param sessionTimeoutMs Idle timeout of the sessions of the target, in milliseconds: the
+     *            session cookie is dropped if the snapshot is older.
+     * @return true if the snapshot was loaded.
+     */
+    public static boolean load(File file, TargetContext context, String password,
+                    long sessionTimeoutMs) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new GZIPInputStream(Files.newInputStream(file.toPath()))))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                logger.warn("Ignoring snapshot of unknown format: " + file);
+                return false;
+            }
+            long savedAt = in.readLong();
+            String sessionCookie = null;
+            if (in.readBoolean()) {
+                byte[][] sealedCookie = new byte[4][];
+                for (int i = 0; i < sealedCookie.length; i++) {
+                    sealedCookie[i] = readBytes(in);
+                }
+                if (System.currentTimeMillis() - savedAt < sessionTimeoutMs) {
+                    sessionCookie = unseal(sealedCookie, password);
+                } else {
+                    logger.info("Session saved in snapshot " + file + " has expired");
+                }
+            }
+
+            int counterCount = in.readInt();
+            Map<String, Integer> counters = new HashMap<String, Integer>();
+            for (int i = 0; i < counterCount; i++) {
+                counters.put(in.readUTF(), in.readInt());
+            }
+
+            int partitionCount = in.readInt();
+            List<InventoryMirror.Partition> partitions = new ArrayList<InventoryMirror.Partition>(partitionCount);
+            for (int i = 0; i < partitionCount; i++) {
+                partitions.add(readPartition(in));
+            }
+
+            // Only apply a snapshot that was read completely
+            context.setSessionCookie(sessionCookie);
+            context.resetPerfCounters();
+            for (Map.Entry<String, Integer> counter : counters.entrySet()) {
+                context.putPerfCounter(counter.getKey(), counter.getValue());
+            }
+            context.getInventoryMirror().restore(partitions);
+            return true;
+        }
+        catch (IOException e) {
+            logger.error("Failed loading snapshot " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * Encrypt a session cookie, then authenticate it, with keys derived from a password and a
+     * random salt.
+     *
+     * @param cookie The session cookie, null if none.
+     * @param password The password, null if none.
+     * @return The salt, IV, encrypted cookie and MAC, null if there is no cookie or password, or
+     *         if the encryption failed.
+     */
+    private static byte[][] seal(String cookie, String password) {
+        if (cookie == null || password == null) {
+            return null;
+        }
+        try {
+            byte[] salt = new byte[SALT_LENGTH];
+            random.nextBytes(salt);
+            SecretKeySpec[] keys = deriveKeys(password, salt);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, keys[0], random);
+            byte[] iv = cipher.getIV();
+            byte[] encrypted = cipher.doFinal(cookie.getBytes(StandardCharsets.UTF_8));
+            return new byte[][] {salt, iv, encrypted, mac(keys[1], salt, iv, encrypted)};
+        }
+        catch (GeneralSecurityException e) {
+            logger.warn("Failed encrypting the session cookie, leaving it out of the snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Check and decrypt a session cookie sealed by {@link #seal}.
+     *
+     * @param sealed The salt, IV, encrypted cookie and MAC.
+     * @param password The password, null if none.
+     * @return The session cookie, null if the password is not the one it was sealed with.
+     */
+    private static String unseal(byte[][] sealed, String password) {
+        if (password == null) {
+            return null;
+        }
+        try {
+            SecretKeySpec[] keys = deriveKeys(password, sealed[0]);
+            if (!MessageDigest.isEqual(sealed[3], mac(keys[1], sealed[0], sealed[1], sealed[2]))) {
+                logger.info("Session cookie of snapshot not sealed with the current password");
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, keys[0], new IvParameterSpec(sealed[1]));
+            return new String(cipher.doFinal(sealed[2]), StandardCharsets.UTF_8);
+        }
+        catch (GeneralSecurityException e) {
+            logger.warn("Failed decrypting the session cookie of snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return The encryption key and the MAC key derived from a password and a salt.
+     */
+    private static SecretKeySpec[] deriveKeys(String password, byte[] salt)
+                    throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, KEY_ITERATIONS, 256);
+        try {
+            byte[] key = SecretKeyFactory.getInstance(KEY_ALGORITHM).generateSecret(spec)
+                            .getEncoded();
+            return new SecretKeySpec[] {new SecretKeySpec(key, 0, 16, "AES"),
+                            new SecretKeySpec(key, 16, 16, MAC)};
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static byte[] mac(SecretKeySpec key, byte[]... parts) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(key);
+        for (byte[] part : parts) {
+            mac.update(part);
+        }
+        return mac.doFinal();
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writePartition(DataOutput out, InventoryMirror.Partition partition)
+                    throws IOException {
+        out.writeUTF(partition.computeResourceType);
+        out.writeUTF(partition.computeResourceMorVal);
+        InventoryRecord.writeString(out, partition.collectorMorVal);
+        out.writeBoolean(partition.vmFilter);
+        InventoryRecord.writeString(out, partition.version);
+        out.writeInt(partition.hosts.size());
+        for (HostRecord host : partition.hosts.values()) {
+            host.write(out);
+        }
+        out.writeInt(partition.vms.size());
+        for (VmRecord vm : partition.vms.values()) {
+            vm.write(out);
+        }
+        out.writeInt(partition.datastores.size());
+        for (DatastoreRecord datastore : partition.datastores.values()) {
+            datastore.write(out);
+        }
+        out.writeInt(partition.networks.size());
+        for (NetworkRecord network : partition.networks.values()) {
+            network.write(out);
+        }
+    }
+
+    private static InventoryMirror.Partition readPartition(DataInput in) throws IOException {
+        InventoryMirror.Partition partition = new InventoryMirror.Partition(in.readUTF(), in.readUTF());
+        partition.collectorMorVal = InventoryRecord.readString(in);
+        partition.vmFilter = in.readBoolean();
+        partition.version = InventoryRecord.readString(in);
+        int hostCount = in.readInt();
+        for (int i = 0; i < hostCount; i++) {
+            HostRecord host = HostRecord.read(in);
+            partition.hosts.put(host.getMorVal(), host);
+        }
+        int vmCount = in.readInt();
+        for (int i = 0; i < vmCount; i++) {
+            VmRecord vm = VmRecord.read(in);
+            partition.vms.put(vm.getMorVal(), vm);
+        }
+        int datastoreCount = in.readInt();
+        for (int i = 0; i < datastoreCount; i++) {
+            DatastoreRecord datastore = DatastoreRecord.read(in);
+            partition.datastores.put(datastore.getMorVal(), datastore);
+        }
+        int networkCount = in.readInt();
+        for (int i = 0; i < networkCount; i++) {
+            NetworkRecord network = NetworkRecord.read(in);
+            partition.networks.put(network.getMorVal(), network);
+        }
+        return partition;
+    }
+
+    /**
+     * Create a temporary file only readable and writable by its owner.
+     *
+     * @param dir Directory of the file.
+     * @param prefix Prefix of the file name.
+     * @return The temporary file.
+     * @throws IOException if the file could not be created
+     */
+    private static Path createOwnerOnlyFile(Path dir, String prefix) throws IOException {
+        try {
+            return Files.createTempFile(dir, prefix, ".tmp", PosixFilePermissions
+                            .asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+            File tmp = Files.createTempFile(dir, prefix, ".tmp").toFile();
+            tmp.setReadable(false, false);
+            tmp.setWritable(false, false);
+            tmp.setReadable(true, true);
+            tmp.setWritable(true, true);
+            return tmp.toPath();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in milliseconds, with buckets of constant relative width: values under
+ * {@link #SUB_BUCKETS} have a bucket each, and each power of two above is split in
+ * {@link #SUB_BUCKETS} buckets, so a percentile is known within 1/{@link #SUB_BUCKETS} of its
+ * value, from 1 ms to days. Recording a value is a few shifts and one atomic increment, without
+ * lock or allocation; it can be done from any thread.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Buckets per power of two. Must be a power of two.
+     */
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+
+    /**
+     * Enough buckets for any positive long.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Record a latency.
+     *
+     * @param millis The latency, in milliseconds. Negative values count as 0.
+     */
+    public void record(long millis) {
+        counts.incrementAndGet(bucket(Math.max(0, millis)));
+    }
+
+    /**
+     * @return Number of latencies recorded.
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @param percentile Percentile, between 0 and 100.
+     * @return The upper bound of the bucket of the percentile, in milliseconds, 0 if nothing was
+     *         recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] values = snapshot();
+        long count = 0;
+        for (long value : values) {
+            count += value;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(count * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += values[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    /**
+     * @return The upper bound of the bucket of the highest latency recorded, in milliseconds, 0
+     *         if nothing was recorded.
+     */
+    public long getMax() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    private long[] snapshot() {
+        long[] values = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            values[i] = counts.get(i);
+        }
+        return values;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        // Position of the highest bit, from SUB_BUCKET_BITS
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,111 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import com.google.common.hash.Hasher;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+
+/**
+ * Immutable record of the properties of a Network, or of one of its subclasses such as a
+ * distributed virtual port group.
+ */
+public final class NetworkRecord extends InventoryRecord {
+
+    static final String TYPE = "Network";
+
+    static final String PROPERTY_NAME = "name";
+
+    /**
+     * Property paths retrieved for the networks.
+     */
+    static final String[] PROPERTY_PATHS = {PROPERTY_NAME};
+
+    private final String morType;
+    private final String name;
+
+    /**
+     * @param morType Managed object class name, Network or one of its subclasses.
+     * @param morVal Managed object reference value.
+     * @param name Name of the network, null if unknown.
+     */
+    public NetworkRecord(String morType, String morVal, String name) {
+        super(morVal);
+        this.morType = morType;
+        this.name = name;
+    }
+
+    /**
+     * @param morType Managed object class name.
+     * @return true if objects of this class are recorded as networks.
+     */
+    public static boolean isNetworkType(String morType) {
+        return TYPE.equals(morType) || "DistributedVirtualPortgroup".equals(morType)
+                        || "OpaqueNetwork".equals(morType);
+    }
+
+    /**
+     * Apply the property changes reported by the property collector for a network.
+     *
+     * @param previous The current record of the network, null if the network is new.
+     * @param morType Managed object class name of the network.
+     * @param morVal Managed object reference value of the network.
+     * @param changes The property changes.
+     * @return The updated network record.
+     */
+    public static NetworkRecord update(NetworkRecord previous, String morType, String morVal,
+                    PropertyChange[] changes) {
+        String name = previous != null ? previous.name : null;
+        if (changes != null) {
+            for (PropertyChange change : changes) {
+                Object val = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+                if (PROPERTY_NAME.equals(change.getName())) {
+                    name = (String)val;
+                }
+            }
+        }
+        return new NetworkRecord(morType, morVal, name);
+    }
+
+    /**
+     * Write the record to a snapshot.
+     *
+     * @param out The snapshot output.
+     * @throws IOException if writing failed
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(morType);
+        out.writeUTF(getMorVal());
+        writeString(out, name);
+    }
+
+    /**
+     * Read a record written by {@link #write}.
+     *
+     * @param in The snapshot input.
+     * @return The record.
+     * @throws IOException if reading failed
+     */
+    public static NetworkRecord read(DataInput in) throws IOException {
+        return new NetworkRecord(in.readUTF(), in.readUTF(), readString(in));
+    }
+
+    @Override
+    public String getMorType() {
+        return morType;
+    }
+
+    @Override
+    public long getFingerprint() {
+        Hasher hasher = FINGERPRINT.newHasher();
+        putString(hasher, morType);
+        putString(hasher, getMorVal());
+        return putString(hasher, name).hash().asLong();
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,235 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.vmturbo.platform.common.dto.ActionResponseState;
+import com.vmturbo.platform.sdk.probe.IProgressTracker;
+
+/**
+ * Progress tracker of an action that reports to the tracker of the SDK from a background thread.
+ *
+ * Posting an update only records it: the action never waits for the server. The updates are
+ * timed by a scheduler shared by all the reporters, and sent by a bounded pool of sender threads,
+ * so a slow tracker only holds up its own reporter, and the heartbeats of the other actions go out
+ * on time. An update is sent at most every {@code minIntervalMillis}; the updates posted in
+ * between collapse into the latest one. When
+ * nothing is posted for {@code heartbeatMillis}, the latest state is sent again, so the server
+ * hears from the action at least that often however long the action waits for VC. The updates of
+ * one reporter are sent one at a time, in order. The reporter must be closed at the end of the
+ * action.
+ *
+ * The reporter only depends on the SDK, and can wrap the tracker of any {@link
+ * com.vmturbo.platform.sdk.probe.IActionExecutor}.
+ */
+public class ProgressReporter implements IProgressTracker {
+
+    private static final Logger logger = Logger.getLogger(ProgressReporter.class);
+
+    /**
+     * Max number of threads sending the updates of all the reporters to their trackers. A reporter
+     * sends one update at a time, so the updates queued for the senders are at most one per
+     * reporter.
+     */
+    private static final int SENDER_THREADS = 16;
+
+    /**
+     * Times the sends: it only hands them to the senders.
+     */
+    private static final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * Calls the trackers. Its threads stop when idle.
+     */
+    private static final ThreadPoolExecutor senders;
+
+    static {
+        scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                        .setNameFormat("progress-scheduler-%d").setDaemon(true).build());
+        scheduler.setRemoveOnCancelPolicy(true);
+        senders = new ThreadPoolExecutor(SENDER_THREADS, SENDER_THREADS, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                                        .setNameFormat("progress-reporter-%d").setDaemon(true)
+                                        .build());
+        senders.allowCoreThreadTimeOut(true);
+    }
+
+    private final IProgressTracker tracker;
+    private final long minIntervalMillis;
+    private final long heartbeatMillis;
+
+    /**
+     * Hands the latest state to the senders.
+     */
+    private final Runnable dispatcher = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    /**
+     * Latest state posted. Guarded by {@code this}.
+     */
+    private ActionResponseState state;
+    private String description;
+
+    /**
+     * true if the latest state has not been sent. Guarded by {@code this}.
+     */
+    private boolean pending = false;
+
+    /**
+     * true while an update is queued for the senders or being sent. Guarded by {@code this}.
+     */
+    private boolean sending = false;
+
+    /**
+     * true once the reporter is closed. Guarded by {@code this}.
+     */
+    private boolean closed = false;
+
+    /**
+     * Time the last update was sent, or the reporter created, in milliseconds.
+     * Guarded by {@code this}.
+     */
+    private long lastSent;
+
+    /**
+     * Next send, of the pending update or of a heartbeat. Guarded by {@code this}.
+     */
+    private ScheduledFuture<?> next;
+
+    /**
+     * @param tracker The tracker of the SDK to send the updates to.
+     * @param state Initial state, sent as heartbeat until another one is posted.
+     * @param description Description of the initial state.
+     * @param minIntervalMillis Min time between two updates, in milliseconds.
+     * @param heartbeatMillis Max time between two updates, in milliseconds.
+     */
+    public ProgressReporter(IProgressTracker tracker, ActionResponseState state,
+                    String description, long minIntervalMillis, long heartbeatMillis) {
+        this.tracker = tracker;
+        this.state = state;
+        this.description = description;
+        this.minIntervalMillis = minIntervalMillis;
+        this.heartbeatMillis = heartbeatMillis;
+        synchronized (this) {
+            lastSent = System.currentTimeMillis();
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Post a state of the action. It replaces the state posted before if that one is not sent
+     * yet. Does not block.
+     *
+     * @param actionState The state.
+     * @param actionDescription Description of the state.
+     */
+    @Override
+    public synchronized void updateActionProgress(ActionResponseState actionState,
+                    String actionDescription) {
+        if (closed) {
+            return;
+        }
+        state = actionState;
+        description = actionDescription;
+        if (!pending) {
+            pending = true;
+            scheduleNext();
+        }
+    }
+
+    /**
+     * Stop reporting. The state posted and not sent yet is dropped: the result of the action
+     * follows.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+
+    /**
+     * Schedule the send of the pending update, or else of the next heartbeat, unless an update is
+     * being sent: the next send is scheduled once it is done.
+     */
+    private void scheduleNext() {
+        if (closed || sending) {
+            return;
+        }
+        if (next != null) {
+            next.cancel(false);
+        }
+        long delay = lastSent + (pending ? minIntervalMillis : heartbeatMillis)
+                        - System.currentTimeMillis();
+        next = scheduler.schedule(dispatcher, Math.max(0, delay), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Hand the latest state to a sender, from the scheduler thread.
+     */
+    private void dispatch() {
+        final ActionResponseState sentState;
+        final String sentDescription;
+        synchronized (this) {
+            if (closed || sending) {
+                // A send cancelled too late: the next one is scheduled after the current one
+                return;
+            }
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+            sentState = state;
+            sentDescription = description;
+            pending = false;
+            sending = true;
+        }
+        try {
+            senders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(sentState, sentDescription);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            logger.warn("Failed to report the progress of an action: " + sentDescription, e);
+            synchronized (this) {
+                sending = false;
+                scheduleNext();
+            }
+        }
+    }
+
+    /**
+     * Send a state to the tracker, from a sender thread, and schedule the next send.
+     */
+    private void send(ActionResponseState sentState, String sentDescription) {
+        try {
+            tracker.updateActionProgress(sentState, sentDescription);
+        }
+        catch (RuntimeException e) {
+            logger.warn("Failed to report the progress of an action: " + sentDescription, e);
+        }
+        finally {
+            synchronized (this) {
+                sending = false;
+                lastSent = System.currentTimeMillis();
+                scheduleNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.base.Objects;
+
+import com.vmware.vim25.mo.ServiceInstance;
+
+import com.vmturbo.platform.sdk.common.util.AccountDefinitionEntry;
+
+/**
+ * Pool of the logged-in sessions the actions of a VC target run in.
+ *
+ * An action borrows a session for its duration and returns it when done, so consecutive actions
+ * reuse warm sessions instead of logging in and out each time. At most
+ * {@link VimProbeConfig#getMaxActionSessions()} sessions of a target are lent at once, the
+ * following borrowers wait for one to be returned. The pool follows the current configuration of
+ * the target, as the {@link ActionEngine} does: when the max is lowered, the sessions lent above
+ * it are not replaced when returned. The most recently returned session is lent
+ * first. A session idle for longer than {@link VimProbeConfig#getSessionHealthCheckMs()}, or
+ * returned by an action that failed, is checked with a CurrentTime call before it is lent again,
+ * and replaced if it is dead. Sessions idle for longer than
+ * {@link VimProbeConfig#getActionSessionIdleMs()} are logged out, so the pool does not hold VC
+ * sessions between bursts of actions.
+ */
+public class SessionPool {
+
+    /**
+     * Pools indexed by target address.
+     */
+    private static final ConcurrentMap<String, SessionPool> pools = new ConcurrentHashMap<String, SessionPool>();
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final String targetAddr;
+
+    /**
+     * One permit per session that can be lent.
+     */
+    private final ResizableSemaphore permits;
+
+    /**
+     * Max number of sessions lent at once. Guarded by {@code this}.
+     */
+    private int maxSessions;
+
+    /**
+     * Sessions returned to the pool, the most recently returned first.
+     */
+    private final Deque<IdleSession> idle = new ArrayDeque<IdleSession>();
+
+    private URL url;
+    private String username;
+    private String password;
+    private VimProbeConfig config;
+
+    /**
+     * A session waiting in the pool.
+     */
+    private static class IdleSession {
+        private final ServiceInstance si;
+        private final long idleSince = System.currentTimeMillis();
+
+        /**
+         * true if the session must be checked before it is lent again.
+         */
+        private final boolean suspect;
+
+        private IdleSession(ServiceInstance si, boolean suspect) {
+            this.si = si;
+            this.suspect = suspect;
+        }
+    }
+
+    /**
+     * Semaphore whose number of permits can be lowered below the permits already acquired.
+     */
+    private static class ResizableSemaphore extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * @param targetAddr Name or address of the target.
+     * @param maxSessions Max number of sessions lent at once.
+     */
+    private SessionPool(String targetAddr, int maxSessions) {
+        this.targetAddr = targetAddr;
+        this.maxSessions = maxSessions;
+        this.permits = new ResizableSemaphore(maxSessions);
+    }
+
+    /**
+     * Get the pool of a target, with the current account values of the target. Idle sessions of
+     * other credentials are logged out.
+     *
+     * @param accountValues Map of credentials to connect to VCenter.
+     * @return The pool of the target.
+     * @throws MalformedURLException if the address of the target is invalid
+     */
+    public static SessionPool get(Map<String, String> accountValues) throws MalformedURLException {
+        String targetAddr = accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
+        VimProbeConfig config = VimProbeConfig.get(
+                        accountValues.get(AccountDefinitionEntry.TARGET_IDENTIFIER));
+        SessionPool pool = pools.get(targetAddr);
+        if (pool == null) {
+            pools.putIfAbsent(targetAddr, new SessionPool(targetAddr,
+                            config.getMaxActionSessions()));
+            pool = pools.get(targetAddr);
+        }
+        pool.setAccount(new URL("https://" + targetAddr + "/sdk"),
+                        accountValues.get(AccountDefinitionEntry.USERNAME_FIELD),
+                        accountValues.get(AccountDefinitionEntry.PASSWORD_FIELD), config);
+        return pool;
+    }
+
+    private void setAccount(URL url, String username, String password, VimProbeConfig config) {
+        List<IdleSession> stale = new ArrayList<IdleSession>();
+        synchronized (this) {
+            if (!url.equals(this.url) || !Objects.equal(username, this.username)
+                            || !Objects.equal(password, this.password)) {
+                stale.addAll(idle);
+                idle.clear();
+            }
+            this.url = url;
+            this.username = username;
+            this.password = password;
+            this.config = config;
+            int newMax = config.getMaxActionSessions();
+            if (newMax > maxSessions) {
+                permits.release(newMax - maxSessions);
+            } else if (newMax < maxSessions) {
+                permits.reducePermits(maxSessions - newMax);
+            }
+            maxSessions = newMax;
+        }
+        logout(stale);
+    }
+
+    /**
+     * Borrow a logged-in session, waiting for one to be returned if all of them are lent. The
+     * session must be returned with {@link #release}.
+     *
+     * @return The session.
+     * @throws RemoteException if no session was returned in time, or the login failed
+     * @throws InterruptedException if interrupted while waiting for a session
+     */
+    public ServiceInstance borrow() throws RemoteException, InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            waitMs = config.getActionSessionWaitMs();
+        }
+        if (!permits.tryAcquire(waitMs, TimeUnit.MILLISECONDS)) {
+            throw new RemoteException("No session of target " + targetAddr + " available in "
+                            + waitMs / 1000 + " seconds");
+        }
+        boolean lent = false;
+        try {
+            ServiceInstance si = null;
+            while (si == null) {
+                IdleSession session;
+                List<IdleSession> expired;
+                VimTransport transport;
+                URL loginUrl;
+                String loginUser;
+                String loginPassword;
+                long healthCheckMs;
+                synchronized (this) {
+                    expired = evictExpired();
+                    session = idle.pollFirst();
+                    transport = new VimTransport(config);
+                    loginUrl = url;
+                    loginUser = username;
+                    loginPassword = password;
+                    healthCheckMs = config.getSessionHealthCheckMs();
+                }
+                logout(expired);
+                if (session == null) {
+                    si = login(transport, loginUrl, loginUser, loginPassword);
+                } else if (!session.suspect
+                                && System.currentTimeMillis() - session.idleSince < healthCheckMs
+                                || isAlive(session.si)) {
+                    si = session.si;
+                } else {
+                    logger.info("Replacing a dead session of target " + targetAddr);
+                    logout(session.si);
+                }
+            }
+            lent = true;
+            return si;
+        }
+        finally {
+            if (!lent) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Return a borrowed session to the pool.
+     *
+     * @param si The session.
+     * @param suspect true if the session must be checked before it is lent again, because the
+     *            action that used it failed.
+     */
+    public void release(ServiceInstance si, boolean suspect) {
+        List<IdleSession> expired;
+        synchronized (this) {
+            idle.addFirst(new IdleSession(si, suspect));
+            expired = evictExpired();
+        }
+        permits.release();
+        logout(expired);
+    }
+
+    /**
+     * Remove the sessions idle for too long from the pool. Called holding the lock of the pool.
+     *
+     * @return The removed sessions, to log out.
+     */
+    private List<IdleSession> evictExpired() {
+        List<IdleSession> expired = new ArrayList<IdleSession>();
+        long oldest = System.currentTimeMillis() - config.getActionSessionIdleMs();
+        while (!idle.isEmpty() && idle.peekLast().idleSince < oldest) {
+            expired.add(idle.pollLast());
+        }
+        return expired;
+    }
+
+    private ServiceInstance login(VimTransport transport, URL loginUrl, String loginUser,
+                    String loginPassword) throws RemoteException {
+        try {
+            ServiceInstance si = transport.login(loginUrl, loginUser, loginPassword);
+            logger.debug("Logged in a new session of target " + targetAddr);
+            return si;
+        }
+        catch (MalformedURLException e) {
+            throw new RemoteException("Invalid URL of target " + targetAddr, e);
+        }
+    }
+
+    /**
+     * @param si A session.
+     * @return true if the session still answers.
+     */
+    private boolean isAlive(ServiceInstance si) {
+        try {
+            si.currentTime();
+            return true;
+        }
+        catch (Exception e) {
+            logger.debug("Session of target " + targetAddr + " failed its health check", e);
+            return false;
+        }
+    }
+
+    private void logout(List<IdleSession> sessions) {
+        for (IdleSession session : sessions) {
+            logout(session.si);
+        }
+    }
+
+    /**
+     * Log out of a session, ignoring failures: the session may be lost already.
+     *
+     * @param si The session.
+     */
+    private void logout(ServiceInstance si) {
+        try {
+            si.getServerConnection().logout();
+        }
+        catch (Exception e) {
+            logger.debug("Failed logging out a session of target " + targetAddr, e);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * The state the VimProbe keeps for one VC target: its connection, its performance counter
+ * catalogue, its inventory mirror, its cached topology and its discovery metrics. The
+ * connection is kept between discoveries, the property collector of the inventory mirror belongs
+ * to its session.
+ *
+ * A context is only used by one discovery at a time: {@link DiscoveryExecutor} never runs two
+ * discoveries of the same target concurrently, so the context needs no locking. The stages of
+ * the discovery pipeline share the context of their discovery: while they run, the connection
+ * and the counter catalogue are only read, and the deadline and the metrics are thread-safe. The
+ * deadline caps the read timeout of each call in the transport of the connection, so the
+ * settings of the connection shared by the stages never change.
+ */
+public class TargetContext {
+
+    private final String targetAddr;
+
+    private final TopologyCache topologyCache = new TopologyCache();
+
+    private final InventoryMirror inventoryMirror = new InventoryMirror();
+
+    private final DiscoveryMetrics metrics;
+
+    /**
+     * Map of counter IDs indexed by counter name.
+     */
+    private final Map<String, Integer> countersIdMap = new HashMap<String, Integer>();
+
+    /**
+     * Map of counter names indexed by counter ID.
+     */
+    private final Map<Integer, String> countersNameMap = new HashMap<Integer, String>();
+
+    /**
+     * If non-null, the logged-in service instance of the target.
+     */
+    private ServiceInstance si;
+    private PerformanceManager perfMgr;
+
+    /**
+     * If non-null, the transport of the service instance.
+     */
+    private VimTransport transport;
+
+    /**
+     * If non-null, the session cookie of the last session, to resume it.
+     */
+    private String sessionCookie;
+
+    /**
+     * true once the snapshot of the target has been looked for.
+     */
+    private boolean warmStartChecked = false;
+
+    /**
+     * If non-null, the deadline of the discovery in progress.
+     */
+    private DiscoveryDeadline deadline;
+
+    /**
+     * Time the last discovery of the target was submitted, in milliseconds.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * @param targetAddr Name or address of the target.
+     */
+    public TargetContext(String targetAddr) {
+        this.targetAddr = targetAddr;
+        this.metrics = new DiscoveryMetrics(targetAddr);
+    }
+
+    public String getTargetAddr() {
+        return targetAddr;
+    }
+
+    public TopologyCache getTopologyCache() {
+        return topologyCache;
+    }
+
+    public ServiceInstance getServiceInstance() {
+        return si;
+    }
+
+    public VimTransport getTransport() {
+        return transport;
+    }
+
+    public PerformanceManager getPerformanceManager() {
+        return perfMgr;
+    }
+
+    public InventoryMirror getInventoryMirror() {
+        return inventoryMirror;
+    }
+
+    public DiscoveryMetrics getMetrics() {
+        return metrics;
+    }
+
+    public String getSessionCookie() {
+        return sessionCookie;
+    }
+
+    public void setSessionCookie(String sessionCookie) {
+        this.sessionCookie = sessionCookie;
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Record that a discovery of the target was submitted.
+     */
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    public boolean isWarmStartChecked() {
+        return warmStartChecked;
+    }
+
+    public void setWarmStartChecked() {
+        warmStartChecked = true;
+    }
+
+    /**
+     * Set the logged-in service instance of the target.
+     *
+     * @param servInst The service instance.
+     * @param servTransport The transport the service instance was connected with.
+     */
+    public void connected(ServiceInstance servInst, VimTransport servTransport) {
+        si = servInst;
+        transport = servTransport;
+        transport.setDeadline(deadline);
+        perfMgr = servInst.getPerformanceManager();
+        sessionCookie = servInst.getServerConnection().getSessionStr();
+    }
+
+    /**
+     * Forget a session that is no longer valid, without logging out.
+     */
+    public void sessionLost() {
+        if (transport != null) {
+            transport.setDeadline(null);
+        }
+        si = null;
+        transport = null;
+        perfMgr = null;
+        sessionCookie = null;
+    }
+
+    /**
+     * Logout from the target, if logged in.
+     */
+    public void disconnect() {
+        if (si != null) {
+            si.getServerConnection().logout();
+        }
+        sessionLost();
+    }
+
+    public DiscoveryDeadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Set the deadline of the discovery in progress.
+     *
+     * @param deadline The deadline, null when no discovery is in progress.
+     */
+    public void setDeadline(DiscoveryDeadline deadline) {
+        this.deadline = deadline;
+        if (transport != null) {
+            transport.setDeadline(deadline);
+        }
+    }
+
+    /**
+     * Check the deadline before a remote call. The transport lowers the read timeout of the call
+     * to the time left, so a stalled call can not outlive the deadline.
+     *
+     * @return true if the call can be made, false if the deadline has passed.
+     */
+    public boolean checkDeadline() {
+        if (deadline == null) {
+            return true;
+        }
+        return !deadline.isExpired();
+    }
+
+    /**
+     * Record data that was not gathered, because of the deadline or of a failure, so the
+     * discovery returns a partial result and the topology is refreshed again.
+     *
+     * @param what Description of the data.
+     */
+    public void skipped(String what) {
+        if (deadline != null) {
+            deadline.skip(what);
+        }
+    }
+
+    /**
+     * Record a failed remote call as an error of the current phase, and as skipped if it was
+     * cut by the deadline.
+     *
+     * @param what Description of the data the call would have gathered.
+     */
+    public void remoteCallFailed(String what) {
+        DiscoveryMetrics.recordError();
+        if (deadline != null && deadline.isExpired()) {
+            deadline.skip(what);
+        }
+    }
+
+    /**
+     * @return true if some data of the discovery in progress was skipped because of the deadline.
+     */
+    public boolean hasSkipped() {
+        return deadline != null && deadline.hasSkipped();
+    }
+
+    /**
+     * @return true if the performance counters have been loaded.
+     */
+    public boolean hasPerfCounters() {
+        return !countersIdMap.isEmpty();
+    }
+
+    /**
+     * Reset countersInfoMap and countersIdMap.
+     */
+    public void resetPerfCounters() {
+        countersNameMap.clear();
+        countersIdMap.clear();
+    }
+
+    /**
+     * Add a performance counter to the catalogue.
+     *
+     * @param fullCounterName The counter full name.
+     * @param counterId The counter ID.
+     */
+    public void putPerfCounter(String fullCounterName, int counterId) {
+        countersNameMap.put(counterId, fullCounterName);
+        countersIdMap.put(fullCounterName, counterId);
+    }
+
+    /**
+     * @return A copy of the counter IDs, indexed by counter full name.
+     */
+    public Map<String, Integer> getPerfCounters() {
+        return new HashMap<String, Integer>(countersIdMap);
+    }
+
+    /**
+     * @param fullCounterName The counter full name.
+     * @return The ID of the counter, null if it is unknown.
+     */
+    public Integer getCounterId(String fullCounterName) {
+        return countersIdMap.get(fullCounterName);
+    }
+
+    /**
+     * @param counterId The counter ID.
+     * @return The counter full name, null if it is unknown.
+     */
+    public String getCounterName(int counterId) {
+        return countersNameMap.get(counterId);
+    }
+}
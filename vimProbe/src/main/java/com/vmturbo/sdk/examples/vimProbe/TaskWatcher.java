@@ -0,0 +1,602 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.ContainerView;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+import com.vmturbo.platform.sdk.common.util.AccountDefinitionEntry;
+
+/**
+ * Watches the properties of the tasks and VMs the actions of a VC target wait on, with one
+ * property collector and one WaitForUpdatesEx loop for all of them, and keeps the
+ * {@link EntityIndex} of the target current from the same loop.
+ *
+ * Each {@link Watch} is a filter of the collector on one managed object. The watcher thread
+ * applies the update sets to the values of the watches as they arrive and completes the futures
+ * of their followers, so an action sees a change as soon as VC reports it, without polling and
+ * without a thread of its own. A watch destroys its filter when closed. One more filter, on a container
+ * view of all the VMs and hosts, feeds the entity index.
+ *
+ * The watcher has its own session, shared by no action: managed object references are the same
+ * in all the sessions of a target. The watcher thread is started on first use, logs in, and keeps
+ * the session, and the index current, until the watcher has been idle, with no watch and no use
+ * of the index, for {@link #IDLE_TIMEOUT_MS}. If the session is lost, the open watches fail. In
+ * both cases the index is reset and the next use starts over. The login is made by the watcher
+ * thread, without holding the lock of the watcher: asking for the entity index never waits for it.
+ *
+ * The filter of a watch is created without holding the lock of the watcher either, so watches
+ * are created in parallel and never hold up the watcher thread. The updates of a filter reported
+ * before its watch is registered are kept until it is.
+ */
+public class TaskWatcher {
+
+    /**
+     * Max time a WaitForUpdatesEx call waits for changes, in seconds. The watcher thread checks
+     * whether it is idle between calls.
+     */
+    private static final int MAX_WAIT_SECONDS = 10;
+
+    /**
+     * Time after which a watcher without watches, whose index is not used, logs out.
+     */
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Watchers indexed by target address.
+     */
+    private static final ConcurrentMap<String, TaskWatcher> watchers = new ConcurrentHashMap<String, TaskWatcher>();
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final String targetAddr;
+
+    /**
+     * Open watches indexed by property filter MOR value.
+     */
+    private final Map<String, Watch> watches = new HashMap<String, Watch>();
+
+    /**
+     * Number of watch filters being created.
+     */
+    private int creating = 0;
+
+    /**
+     * Object updates of the filters not registered yet, indexed by filter MOR value, kept while
+     * filters are being created.
+     */
+    private final Map<String, List<ObjectUpdate>> early = new HashMap<String, List<ObjectUpdate>>();
+
+    /**
+     * Time of the last use of the watcher, in milliseconds.
+     */
+    private long lastUsed = System.currentTimeMillis();
+
+    private final EntityIndex entityIndex = new EntityIndex();
+
+    private URL url;
+    private String username;
+    private String password;
+    private VimProbeConfig config;
+
+    /**
+     * If non-null, the logged-in session of the watcher.
+     */
+    private ServiceInstance si;
+
+    /**
+     * If non-null, the login of the watcher thread, completed with the property collector of the
+     * session once logged in.
+     */
+    private SettableFuture<PropertyCollector> session;
+
+    /**
+     * MOR value of the filter of the entity index, if logged in.
+     */
+    private String indexFilterVal;
+
+    /**
+     * If non-null, the thread waiting for the updates of the collector.
+     */
+    private Thread thread;
+
+    /**
+     * The properties of one managed object, as last reported by VC.
+     */
+    public class Watch implements AutoCloseable {
+        private final ManagedObjectReference mor;
+        private final PropertyFilter filter;
+        private final Map<String, Object> values = new HashMap<String, Object>();
+
+        /**
+         * Number of update sets applied to the values.
+         */
+        private int changes = 0;
+
+        /**
+         * true once the object is removed from the inventory.
+         */
+        private boolean gone = false;
+
+        /**
+         * If non-null, the failure that stopped the updates of the watch.
+         */
+        private Exception failure;
+
+        /**
+         * If non-null, the future of the next change, completed with the number of changes.
+         */
+        private SettableFuture<Integer> next;
+
+        private Watch(ManagedObjectReference mor, PropertyFilter filter) {
+            this.mor = mor;
+            this.filter = filter;
+        }
+
+        /**
+         * @param path Path of a watched property.
+         * @return The last value of the property, null if not reported yet or unset.
+         */
+        public Object get(String path) {
+            synchronized (TaskWatcher.this) {
+                return values.get(path);
+            }
+        }
+
+        /**
+         * @return true if the object is removed from the inventory.
+         */
+        public boolean isGone() {
+            synchronized (TaskWatcher.this) {
+                return gone;
+            }
+        }
+
+        /**
+         * Get the future of the next change of the values, without blocking. Its listeners must
+         * not run on the watcher thread: they are called holding the lock of the watcher.
+         *
+         * @param seenChanges Number of changes already seen, as completed by the previous future,
+         *            0 for the first one.
+         * @return The future number of changes applied so far, already completed if more than
+         *         {@code seenChanges}, failed with a RemoteException if the updates of the watch
+         *         stopped.
+         */
+        public ListenableFuture<Integer> changed(int seenChanges) {
+            synchronized (TaskWatcher.this) {
+                if (failure != null) {
+                    return Futures.immediateFailedFuture(lost());
+                }
+                if (changes != seenChanges) {
+                    return Futures.immediateFuture(changes);
+                }
+                if (next == null) {
+                    next = SettableFuture.create();
+                }
+                return next;
+            }
+        }
+
+        /**
+         * Apply object updates to the values, and complete the future of the next change.
+         * Called holding the lock of the watcher.
+         *
+         * @param updates The updates of the filter of the watch.
+         */
+        private void apply(List<ObjectUpdate> updates) {
+            for (ObjectUpdate update : updates) {
+                if (update.getKind() == ObjectUpdateKind.leave) {
+                    gone = true;
+                } else if (update.getChangeSet() != null) {
+                    for (PropertyChange change : update.getChangeSet()) {
+                        if (change.getOp() == PropertyChangeOp.remove) {
+                            values.remove(change.getName());
+                        } else {
+                            values.put(change.getName(), change.getVal());
+                        }
+                    }
+                }
+            }
+            changes++;
+            if (next != null) {
+                next.set(changes);
+                next = null;
+            }
+        }
+
+        private RemoteException lost() {
+            return new RemoteException("Lost the updates of " + mor.getVal() + " from "
+                            + targetAddr, failure);
+        }
+
+        /**
+         * Stop watching the object and destroy the filter.
+         */
+        @Override
+        public void close() {
+            boolean open;
+            synchronized (TaskWatcher.this) {
+                open = watches.remove(filter.getMOR().getVal()) != null;
+            }
+            if (open) {
+                try {
+                    filter.destroyPropertyFilter();
+                }
+                catch (Exception e) {
+                    logger.warn("Failed destroying the property filter of " + mor.getVal(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param targetAddr Name or address of the target.
+     */
+    private TaskWatcher(String targetAddr) {
+        this.targetAddr = targetAddr;
+    }
+
+    /**
+     * Get the watcher of a target, with the current account values of the target.
+     *
+     * @param accountValues Map of credentials to connect to VCenter.
+     * @return The watcher of the target.
+     * @throws MalformedURLException if the address of the target is invalid
+     */
+    public static TaskWatcher get(Map<String, String> accountValues) throws MalformedURLException {
+        String targetAddr = accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
+        TaskWatcher watcher = watchers.get(targetAddr);
+        if (watcher == null) {
+            watchers.putIfAbsent(targetAddr, new TaskWatcher(targetAddr));
+            watcher = watchers.get(targetAddr);
+        }
+        watcher.setAccount(new URL("https://" + targetAddr + "/sdk"),
+                        accountValues.get(AccountDefinitionEntry.USERNAME_FIELD),
+                        accountValues.get(AccountDefinitionEntry.PASSWORD_FIELD),
+                        VimProbeConfig.get(accountValues.get(AccountDefinitionEntry.TARGET_IDENTIFIER)));
+        return watcher;
+    }
+
+    private synchronized void setAccount(URL url, String username, String password,
+                    VimProbeConfig config) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.config = config;
+    }
+
+    /**
+     * Start watching properties of a managed object. The first change of the watch reports their
+     * current values.
+     *
+     * @param mor The managed object.
+     * @param paths Paths of the properties to watch.
+     * @return The watch, to close when done.
+     * @throws RemoteException if the watcher could not log in or create the filter
+     */
+    public Watch watch(ManagedObjectReference mor, String... paths) throws RemoteException {
+        ListenableFuture<PropertyCollector> login = start();
+        PropertyCollector collector = awaitSession(login);
+
+        PropertySpec propSpec = new PropertySpec();
+        propSpec.setType(mor.getType());
+        propSpec.setPathSet(paths);
+        ObjectSpec objSpec = new ObjectSpec();
+        objSpec.setObj(mor);
+        objSpec.setSkip(false);
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+        spec.setPropSet(new PropertySpec[] {propSpec});
+        spec.setObjectSet(new ObjectSpec[] {objSpec});
+        synchronized (this) {
+            creating++;
+        }
+        PropertyFilter filter = null;
+        try {
+            // Partial updates: a change set only has the properties that changed
+            filter = collector.createFilter(spec, true);
+        }
+        finally {
+            if (filter == null) {
+                synchronized (this) {
+                    filterCreated(null);
+                }
+            }
+        }
+        synchronized (this) {
+            List<ObjectUpdate> updates = filterCreated(filter.getMOR().getVal());
+            if (session != login) {
+                // The session was lost, and its watches failed, meanwhile
+                throw new RemoteException("Lost the session of target " + targetAddr
+                                + " while watching " + mor.getVal());
+            }
+            Watch watch = new Watch(mor, filter);
+            watches.put(filter.getMOR().getVal(), watch);
+            if (updates != null) {
+                watch.apply(updates);
+            }
+            return watch;
+        }
+    }
+
+    /**
+     * Record the end of the creation of a watch filter. Called holding the lock of the watcher.
+     *
+     * @param filterVal MOR value of the filter, null if its creation failed.
+     * @return The object updates of the filter reported so far, null if none.
+     */
+    private List<ObjectUpdate> filterCreated(String filterVal) {
+        creating--;
+        List<ObjectUpdate> updates = filterVal != null ? early.remove(filterVal) : null;
+        if (creating == 0) {
+            early.clear();
+        }
+        return updates;
+    }
+
+    /**
+     * Get the entity index of the target, starting the watcher if needed, without blocking. The
+     * index may still be filling: lookups should fall back to searching the inventory until it is
+     * ready.
+     *
+     * @return The entity index.
+     */
+    public EntityIndex getEntityIndex() {
+        start();
+        return entityIndex;
+    }
+
+    /**
+     * Start the watcher thread, unless already started.
+     *
+     * @return The login of the watcher thread.
+     */
+    private synchronized ListenableFuture<PropertyCollector> start() {
+        lastUsed = System.currentTimeMillis();
+        if (session == null) {
+            final SettableFuture<PropertyCollector> login = SettableFuture.create();
+            session = login;
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    if (connect(login)) {
+                        waitForUpdates(Futures.getUnchecked(login));
+                    }
+                }
+            }, "task-watcher-" + targetAddr);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return session;
+    }
+
+    /**
+     * Wait until the watcher is logged in.
+     *
+     * @param login The login of the watcher thread.
+     * @return The property collector of the session of the watcher.
+     * @throws RemoteException if the login failed, or the wait was interrupted
+     */
+    private PropertyCollector awaitSession(ListenableFuture<PropertyCollector> login)
+                    throws RemoteException {
+        try {
+            return Futures.getChecked(login, RemoteException.class);
+        }
+        catch (RemoteException e) {
+            // Unwrap the failure of the login
+            throw e.getCause() instanceof RemoteException ? (RemoteException)e.getCause() : e;
+        }
+    }
+
+    /**
+     * Log in and create the filter of the entity index, from the watcher thread.
+     *
+     * @param login Completed with the property collector of the session, or the failure.
+     * @return true if logged in.
+     */
+    private boolean connect(SettableFuture<PropertyCollector> login) {
+        URL loginUrl;
+        String user;
+        String pass;
+        VimProbeConfig loginConfig;
+        synchronized (this) {
+            loginUrl = url;
+            user = username;
+            pass = password;
+            loginConfig = config;
+        }
+        ServiceInstance servInst = null;
+        try {
+            servInst = new VimTransport(loginConfig).login(loginUrl, user, pass);
+            PropertyCollector collector = servInst.getPropertyCollector();
+            ContainerView view = servInst.getViewManager().createContainerView(
+                            servInst.getRootFolder(), new String[] {VmRecord.TYPE, HostRecord.TYPE},
+                            true);
+            entityIndex.reset();
+            String filterVal = collector.createFilter(InventoryMirror.createFilterSpec(
+                            view.getMOR(), new SelectionSpec[] {
+                                InventoryMirror.createTraversalSpec("ContainerView",
+                                                "traverseView", "view")},
+                            EntityIndex.getPropertySpecs()), true).getMOR().getVal();
+            synchronized (this) {
+                si = servInst;
+                indexFilterVal = filterVal;
+            }
+            login.set(collector);
+            return true;
+        }
+        catch (Exception e) {
+            logger.warn("Task watcher failed to log in to target " + targetAddr, e);
+            synchronized (this) {
+                detach();
+            }
+            logout(servInst);
+            login.setException(e instanceof RemoteException ? e
+                            : new RemoteException("Failed logging in to target " + targetAddr, e));
+            return false;
+        }
+    }
+
+    /**
+     * Body of the watcher thread once logged in: apply the update sets of the collector to the
+     * watches and the entity index, until the session is lost or the watcher is idle.
+     *
+     * @param pc The property collector of the session.
+     */
+    private void waitForUpdates(PropertyCollector pc) {
+        WaitOptions options = new WaitOptions();
+        options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+        synchronized (this) {
+            options.setMaxObjectUpdates(config.getPropertyPageSize());
+        }
+        String version = "";
+        while (true) {
+            ServiceInstance idle = null;
+            synchronized (this) {
+                if (watches.isEmpty() && creating == 0
+                                && System.currentTimeMillis() - lastUsed >= IDLE_TIMEOUT_MS) {
+                    entityIndex.reset();
+                    idle = detach();
+                }
+            }
+            if (idle != null) {
+                logger.info("Task watcher of target " + targetAddr + " idle, logging out");
+                logout(idle);
+                return;
+            }
+            try {
+                UpdateSet updates = pc.waitForUpdatesEx(version, options);
+                if (updates != null) {
+                    apply(updates);
+                    version = updates.getVersion();
+                    if (!Boolean.TRUE.equals(updates.getTruncated())) {
+                        entityIndex.setReady();
+                    }
+                }
+            }
+            catch (InvalidCollectorVersion e) {
+                // The next update sets have the current values of all the filters
+                entityIndex.reset();
+                version = "";
+            }
+            catch (Exception e) {
+                logger.warn("Lost the task updates of target " + targetAddr, e);
+                ServiceInstance lost;
+                synchronized (this) {
+                    for (Watch watch : watches.values()) {
+                        watch.failure = e;
+                        if (watch.next != null) {
+                            watch.next.setException(watch.lost());
+                            watch.next = null;
+                        }
+                    }
+                    watches.clear();
+                    entityIndex.reset();
+                    lost = detach();
+                }
+                logout(lost);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Apply an update set to the watches of its filters and the entity index, and complete the
+     * futures of the next changes of the watches.
+     *
+     * @param updates The update set.
+     */
+    private synchronized void apply(UpdateSet updates) {
+        if (updates.getFilterSet() == null) {
+            return;
+        }
+        for (PropertyFilterUpdate filterUpdate : updates.getFilterSet()) {
+            if (filterUpdate.getFilter().getVal().equals(indexFilterVal)) {
+                if (filterUpdate.getObjectSet() != null) {
+                    for (ObjectUpdate update : filterUpdate.getObjectSet()) {
+                        entityIndex.apply(update);
+                    }
+                }
+                continue;
+            }
+            if (filterUpdate.getObjectSet() == null) {
+                continue;
+            }
+            String filterVal = filterUpdate.getFilter().getVal();
+            List<ObjectUpdate> objectUpdates = Arrays.asList(filterUpdate.getObjectSet());
+            Watch watch = watches.get(filterVal);
+            if (watch != null) {
+                watch.apply(objectUpdates);
+            } else if (creating > 0) {
+                // Maybe the filter of a watch not registered yet, else closed since
+                List<ObjectUpdate> pending = early.get(filterVal);
+                if (pending == null) {
+                    pending = new ArrayList<ObjectUpdate>();
+                    early.put(filterVal, pending);
+                }
+                pending.addAll(objectUpdates);
+            }
+        }
+    }
+
+    /**
+     * Forget the session and the watcher thread, so the next use starts over. Called holding the
+     * lock of the watcher.
+     *
+     * @return The session forgotten, null if not logged in.
+     */
+    private ServiceInstance detach() {
+        ServiceInstance session = si;
+        si = null;
+        this.session = null;
+        indexFilterVal = null;
+        thread = null;
+        return session;
+    }
+
+    /**
+     * Log out of a session, ignoring failures: the session may be lost already.
+     *
+     * @param session The session, may be null.
+     */
+    private void logout(ServiceInstance session) {
+        if (session != null) {
+            try {
+                session.getServerConnection().logout();
+            }
+            catch (Exception e) {
+                logger.debug("Failed logging out the task watcher of target " + targetAddr, e);
+            }
+        }
+    }
+}
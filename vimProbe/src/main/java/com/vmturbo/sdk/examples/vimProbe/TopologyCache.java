@@ -0,0 +1,206 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmturbo.platform.common.dto.CommodityDTO;
+import com.vmturbo.platform.common.dto.ModelEnum.Commodity;
+import com.vmturbo.platform.sdk.common.DTO.EntityDTO;
+
+/**
+ * The entities discovered by the last full topology refresh of a VC target.
+ *
+ * Between two topology refreshes the probe only queries performance metrics, and patches the
+ * commodity used values of the cached {@link EntityDTO}s in place. A topology refresh reuses the
+ * cached DTO of an entity whose configuration fingerprint has not changed, patching its used
+ * values the same way, so an unchanged entity keeps the same DTO instance from one discovery to
+ * the next. The cached DTOs were returned by the previous discovery: they are only patched by the
+ * next discovery of the target, once the SDK is done with the previous response.
+ */
+public class TopologyCache {
+
+    /**
+     * Entity DTOs indexed by entity id.
+     */
+    private Map<String, EntityDTO> entities = new HashMap<String, EntityDTO>();
+
+    /**
+     * Inventory records of the VMs and hosts, indexed by entity id. Records are immutable and
+     * shared with the callers.
+     */
+    private Map<String, InventoryRecord> records = new HashMap<String, InventoryRecord>();
+
+    /**
+     * Configuration fingerprints of the entity DTOs, indexed by entity id.
+     */
+    private Map<String, Long> fingerprints = new HashMap<String, Long>();
+
+    private long topologyRefreshedAt = 0;
+    private long metricsRefreshedAt = 0;
+
+    /**
+     * Replace the cached topology with the result of a full topology refresh.
+     *
+     * @param entityDTOs The entities discovered.
+     * @param inventory Inventory records of the entities, indexed by entity id.
+     * @param dtoFingerprints Configuration fingerprints of the entity DTOs, indexed by entity id.
+     * @param now Time of the refresh, in milliseconds.
+     * @param complete false if the refresh was cut short, in which case the topology stays stale
+     *            and the next discovery refreshes it again.
+     */
+    public synchronized void replace(Collection<EntityDTO> entityDTOs,
+                    Map<String, ? extends InventoryRecord> inventory,
+                    Map<String, Long> dtoFingerprints, long now, boolean complete) {
+        Map<String, EntityDTO> newEntities = new HashMap<String, EntityDTO>();
+        for (EntityDTO ed : entityDTOs) {
+            newEntities.put(ed.getId(), ed);
+        }
+        entities = newEntities;
+        records = new HashMap<String, InventoryRecord>(inventory);
+        fingerprints = new HashMap<String, Long>(dtoFingerprints);
+        if (complete) {
+            topologyRefreshedAt = now;
+        }
+        metricsRefreshedAt = now;
+    }
+
+    /**
+     * @return true if no topology refresh has completed yet.
+     */
+    public synchronized boolean isEmpty() {
+        return entities.isEmpty();
+    }
+
+    /**
+     * @param now Current time, in milliseconds.
+     * @param interval Topology refresh interval, in milliseconds.
+     * @return true if a full topology refresh is due.
+     */
+    public synchronized boolean isTopologyStale(long now, long interval) {
+        return entities.isEmpty() || now - topologyRefreshedAt >= interval;
+    }
+
+    /**
+     * @param now Current time, in milliseconds.
+     * @param interval Metrics refresh interval, in milliseconds.
+     * @return true if a metrics-only refresh is due.
+     */
+    public synchronized boolean isMetricsStale(long now, long interval) {
+        return now - metricsRefreshedAt >= interval;
+    }
+
+    /**
+     * Record the completion of a metrics-only refresh.
+     *
+     * @param now Time of the refresh, in milliseconds.
+     */
+    public synchronized void metricsRefreshed(long now) {
+        metricsRefreshedAt = now;
+    }
+
+    /**
+     * @return A copy of the cached entities.
+     */
+    public synchronized Set<EntityDTO> getEntities() {
+        return new HashSet<EntityDTO>(entities.values());
+    }
+
+    /**
+     * @param id Entity id.
+     * @return The cached entity, or null if it is not in the cache.
+     */
+    public synchronized EntityDTO getEntity(String id) {
+        return entities.get(id);
+    }
+
+    /**
+     * @param id Entity id.
+     * @param fingerprint Configuration fingerprint of the entity.
+     * @return The cached DTO of the entity if it was built from the same configuration, null
+     *         otherwise.
+     */
+    public synchronized EntityDTO getReusable(String id, long fingerprint) {
+        Long cached = fingerprints.get(id);
+        return cached != null && cached == fingerprint ? entities.get(id) : null;
+    }
+
+    /**
+     * @return A copy of the inventory records of the cached entities, indexed by entity id.
+     */
+    public synchronized Map<String, InventoryRecord> getRecords() {
+        return new HashMap<String, InventoryRecord>(records);
+    }
+
+    /**
+     * @return The host MOR value of each cached VM, indexed by VM MOR value.
+     */
+    public synchronized Map<String, String> getVmHosts() {
+        return getVmHosts(records.values());
+    }
+
+    /**
+     * @param inventory Inventory records.
+     * @return The host MOR value of each VM of the records, indexed by VM MOR value.
+     */
+    public static Map<String, String> getVmHosts(Collection<? extends InventoryRecord> inventory) {
+        Map<String, String> vmHosts = new HashMap<String, String>();
+        for (InventoryRecord record : inventory) {
+            if (record instanceof VmRecord && ((VmRecord)record).getHostMorVal() != null) {
+                vmHosts.put(record.getMorVal(), ((VmRecord)record).getHostMorVal());
+            }
+        }
+        return vmHosts;
+    }
+
+    /**
+     * Set the used value of the sold commodities of a given type.
+     *
+     * @param ed The entity.
+     * @param type Commodity type.
+     * @param used New used value.
+     */
+    public static void patchSoldUsed(EntityDTO ed, Commodity type, float used) {
+        patchUsed(ed.getCommoditiesSold(), type, used);
+    }
+
+    /**
+     * Set the used value of the bought commodities of a given type, from all providers.
+     *
+     * @param ed The entity.
+     * @param type Commodity type.
+     * @param used New used value.
+     */
+    public static void patchBoughtUsed(EntityDTO ed, Commodity type, float used) {
+        for (List<CommodityDTO> bought : ed.getCommoditiesBought().values()) {
+            patchUsed(bought, type, used);
+        }
+    }
+
+    /**
+     * Set the used value of the commodities of a given type bought from one provider.
+     *
+     * @param ed The entity.
+     * @param providerId Id of the provider.
+     * @param type Commodity type.
+     * @param used New used value.
+     */
+    public static void patchBoughtUsed(EntityDTO ed, String providerId, Commodity type,
+                    float used) {
+        patchUsed(ed.getCommoditiesBought().get(providerId), type, used);
+    }
+
+    private static void patchUsed(List<CommodityDTO> comms, Commodity type, float used) {
+        if (comms == null) {
+            return;
+        }
+        for (CommodityDTO comm : comms) {
+            if (comm.getCommodityType() == type) {
+                comm.setUsed(used);
+            }
+        }
+    }
+}
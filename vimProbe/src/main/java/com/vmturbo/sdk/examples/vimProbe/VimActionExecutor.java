@@ -2,40 +2,48 @@ package com.vmturbo.sdk.examples.vimProbe;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.net.URL;
 import java.rmi.RemoteException;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 
 import akka.japi.Pair;
 
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.util.concurrent.AsyncCallable;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 import com.vmware.vim25.InvalidPowerState;
-import com.vmware.vim25.ObjectSpec;
-import com.vmware.vim25.ObjectUpdate;
-import com.vmware.vim25.PropertyChange;
-import com.vmware.vim25.PropertyFilterSpec;
-import com.vmware.vim25.PropertyFilterUpdate;
-import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ResourceAllocationInfo;
 import com.vmware.vim25.TaskInfoState;
-import com.vmware.vim25.UpdateSet;
 import com.vmware.vim25.VirtualMachineConfigSpec;
 import com.vmware.vim25.VirtualMachineMovePriority;
 import com.vmware.vim25.VirtualMachinePowerState;
-import com.vmware.vim25.WaitOptions;
 import com.vmware.vim25.mo.HostSystem;
 import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ManagedEntity;
-import com.vmware.vim25.mo.PropertyCollector;
 import com.vmware.vim25.mo.ResourcePool;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 import com.vmware.vim25.mo.VirtualMachine;
-import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+import com.vmware.vim25.mo.util.MorUtil;
 
 import com.vmturbo.platform.common.dto.ActionResponseState;
 import com.vmturbo.platform.common.dto.ActionType;
 import com.vmturbo.platform.common.dto.CommodityDTO;
+import com.vmturbo.platform.common.dto.ModelEnum.Commodity;
 import com.vmturbo.platform.common.dto.ModelEnum.CommodityAttribute;
 import com.vmturbo.platform.sdk.common.DTO.ActionItemDTO;
 import com.vmturbo.platform.sdk.common.DTO.EntityDTO;
@@ -55,167 +63,508 @@ public class VimActionExecutor implements IActionExecutor {
     private static final Logger logger = Logger.getLogger("com.vmturbo.platform.container.mediation");
 
     /**
-     * These two variables are used by {@code terminateAction} when sending final action response.
-     * They are set in function {@code finalizeResponse}
+     * Engine running the actions of all the targets.
      */
-    private ActionResponseState finalActionState;
-    private String finalDescription;
+    private static final ActionEngine actionEngine;
 
     /**
-     * If non-null, the service instance (VCenter) that will be the target of actions.
-     *
-     * if null, there is currently no logged-in service instance/
+     * Queue of the actions of each entity, in front of the engine.
      */
-    private ServiceInstance servInst = null;
+    private static final EntityActionQueue entityQueue = new EntityActionQueue();
 
     /**
-     * VIM Task, if any, to run at the end of the action.
+     * Latency histograms of the actions, per action type and stage.
      */
-    private Task task = null;
+    private static final ActionMetrics actionMetrics = new ActionMetrics();
+
+    /**
+     * Min and max time between two progress updates of an action, in milliseconds.
+     */
+    private static final long progressIntervalMs;
+    private static final long progressHeartbeatMs;
+
+    static {
+        VimProbeConfig defaults = VimProbeConfig.get(null);
+        progressIntervalMs = defaults.getProgressIntervalMs();
+        progressHeartbeatMs = defaults.getProgressHeartbeatMs();
+        actionMetrics.register();
+        actionEngine = new ActionEngine(defaults.getActionThreads(),
+                        defaults.getMaxConcurrentActions(),
+                        defaults.getMaxActionsPerHost(), defaults.getMaxActionsPerCluster(),
+                        defaults.getMaxMigrationsPerHost(), defaults.getMaxMigrationsPerTarget());
+    }
 
     //description for not implemented response
     private static final String notImplementedDesc = "NOT IMPLEMENTED";
     /**
-     * Base time to sleep after an "odd" failure before trying again, in milliseconds. On the n'th
-     * try, we will sleep n times this long - so the total time until we give up is
-     * {@code
-     * (maxOddFailureTries*(maxOddFailureTries+11)) / 2)*oddFailureSleep_ms
-     * } milliseconds. (With the values as initially set, that works out to 27.5 seconds.)
+     * Base time to wait after an "odd" failure before trying again, in milliseconds. After the
+     * n'th try, we will wait between half and all of {@code 2^(n-1)} times this long, up to
+     * {@code maxOddFailureSleep_ms} - so the total time until we give up is at most 32.5 seconds
+     * with the values as initially set. The waits hold no thread.
      */
     private static final long oddFailureSleep_ms = 500;
 
+    /**
+     * Max time to wait after an "odd" failure before trying again, in milliseconds.
+     */
+    private static final long maxOddFailureSleep_ms = 5000;
+
     /**
      * Maximum number of times we try a remote action if it keeps failing in some "impossible" way.
      * This is a protection against looping when the remote results don't match expected behavior.
      */
     private static final int maxOddFailureTries = 10;
 
-    // Max number of times we try to get the statue of a task
-    private static final int maxTryGetTaskUpdate = 3;
-
     private static final int VM_PROGRESS_SHUTDOWN = 20;
     private static final int VM_PROGRESS_RECONFIG = 50;
     private static final int VM_PROGRESS_START = 30;
 
+    /**
+     * Max time to wait for a VC task to complete, or a VM to reach a power state, in seconds.
+     */
+    private static final int TASK_TIMEOUT_SEC = 300;
+
+    /**
+     * Format of the BIOS UUIDs of the VMs and the hardware UUIDs of the hosts.
+     */
+    private static final Pattern UUID_PATTERN = Pattern.compile(
+                    "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+    private static final String TASK_STATE = "info.state";
+    private static final String TASK_PROGRESS = "info.progress";
+    private static final String POWER_STATE = VmPreflight.PROPERTY_POWER_STATE;
+
+    private static final ListenableFuture<Void> DONE = Futures.immediateFuture(null);
+
     /**
      * Implement the abstract method. This method is to execute Vim probe actions.
+     * The action runs in its own {@link ActionContext} on the {@link ActionEngine}, so the
+     * concurrent calls of the SDK, typically the moves of a rebalancing plan, run in parallel
+     * within the limits of the engine, and all their VC tasks are followed by the one task
+     * watcher of the target. The actions of one entity run one at a time, through its
+     * {@link EntityActionQueue}.
      */
     @Override
     public ActionResult executeAction(ActionItemDTO actionItem, Map<String, String> accountValues,
                     IProgressTracker progressTracker) {
-        // Switch on service entity type
-        switch(actionItem.getTargetSE().getEntity()){
-            case VirtualMachine:
-                executeVMTask(actionItem,accountValues, progressTracker);
-                break;
-            default:
-                finalizeResponse(ActionResponseState.FAILED, notImplementedDesc);
-                break;
-        }
+        return await(actionItem, submit(actionItem, accountValues, progressTracker));
+    }
 
-        // Monitor the Task object in the VC target for the action
-        // progressRange means the partition of the current task in the progress of the whole action.
-        int progressRange = 100 - actionItem.getProgress();
-        progressRange = progressRange == 0 ? 100 : progressRange;
+    /**
+     * Submit an action to the queue of its entity.
+     * @param actionItem The action.
+     * @param accountValues Map of credentials to connect to VCenter.
+     * @param progressTracker Progress tracker of the action.
+     * @return The future result of the action.
+     */
+    private ListenableFuture<ActionResult> submit(ActionItemDTO actionItem,
+                    Map<String, String> accountValues, IProgressTracker progressTracker) {
+        // Progress is reported from the background, with heartbeats while the action waits
+        final ProgressReporter reporter = new ProgressReporter(progressTracker,
+                        ActionResponseState.QUEUED, String.format("%s: %s queued",
+                                        actionItem.getTargetSE().getDisplayName(),
+                                        actionItem.getActionType()),
+                        progressIntervalMs, progressHeartbeatMs);
+        ListenableFuture<ActionResult> result = entityQueue.submit(
+                        accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD),
+                        actionItem, accountValues, reporter,
+                        new AsyncFunction<EntityActionQueue.Group, ActionResult>() {
+                            @Override
+                            public ListenableFuture<ActionResult> apply(
+                                            EntityActionQueue.Group group) {
+                                return start(group);
+                            }
+                        });
+        // The result of the action is the final report
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                reporter.close();
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    /**
+     * Submit actions of an entity, merged by its queue, to the engine. They run as the latest of
+     * them, with the latest value of each resized commodity.
+     * @param group The actions.
+     * @return The future result of the actions.
+     */
+    private ListenableFuture<ActionResult> start(EntityActionQueue.Group group) {
+        ActionItemDTO actionItem = group.getActionItem();
+        final ActionContext ctx = new ActionContext(actionItem, group.getAccountValues(),
+                        group.getProgressTracker());
+        ctx.setNewComms(group.getNewComms());
+        final long submitNanos = group.getSubmitNanos();
+        if (group.size() > 1) {
+            logger.info("Running " + group.size() + " merged actions on "
+                            + actionItem.getTargetSE().getDisplayName() + " as "
+                            + actionItem.getUuid());
+        }
+        Set<String> hosts = getHosts(actionItem);
+        int maxTargetSessions = VimProbeConfig.get(ctx.getAccountValues().get(
+                        AccountDefinitionEntry.TARGET_IDENTIFIER)).getMaxActionSessions();
+        return actionEngine.submit(ctx.getTargetAddr(), maxTargetSessions, hosts,
+                        getClusters(ctx, hosts), actionItem.getActionType() == ActionType.MOVE,
+                        new AsyncFunction<Runnable, ActionResult>() {
+                            @Override
+                            public ListenableFuture<ActionResult> apply(Runnable sessionReleased) {
+                                ctx.addStageMillis(ActionMetrics.Stage.QUEUE,
+                                                ActionMetrics.millisSince(submitNanos));
+                                return execute(ctx, sessionReleased);
+                            }
+                        });
+    }
 
-        ActionResponsePair actionResult = monitorTask(task, actionItem, progressRange, 60,
-                        progressTracker);
-        finalizeResponse(actionResult.getActionResponseState(), actionResult.getDescription());
+    /**
+     * Wait for the result of an action. If interrupted, the action is cancelled.
+     * @param actionItem The action.
+     * @param result The future result of the action.
+     * @return The result of the action.
+     */
+    private static ActionResult await(ActionItemDTO actionItem, Future<ActionResult> result) {
+        try {
+            return result.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+            return new ActionResult(ActionResponseState.FAILED, "Interrupted while executing "
+                            + actionItem.getActionType());
+        }
+        catch (ExecutionException e) {
+            logger.error("Exception during executing action " + actionItem.getActionType(),
+                            e.getCause());
+            return new ActionResult(ActionResponseState.FAILED, e.getCause().getMessage());
+        }
+    }
 
-        // Logout Server Connection
-        if(servInst!=null){
-            servInst.getServerConnection().logout();
+    /**
+     * Execute an action, on a thread of the engine. The thread is released whenever the action
+     * waits: the following steps run as continuations, on the threads of the engine. The session
+     * of the action is returned once its last VC task is submitted, while the task is followed.
+     * @param ctx The context of the action.
+     * @param sessionReleased Gives back the place of the action in the session limit of its
+     *            target.
+     * @return The future result of the action.
+     */
+    private ListenableFuture<ActionResult> execute(final ActionContext ctx,
+                    final Runnable sessionReleased) {
+        final long startNanos = System.nanoTime();
+        final ActionItemDTO actionItem = ctx.getActionItem();
+        ctx.getProgressTracker().updateActionProgress(ActionResponseState.IN_PROGRESS,
+                        String.format("%s: %s in progress", actionItem.getTargetSE().getDisplayName(),
+                                        actionItem.getActionType()));
+        ListenableFuture<Void> done;
+        try {
+            // Switch on service entity type
+            switch(actionItem.getTargetSE().getEntity()){
+                case VirtualMachine:
+                    done = executeVMTask(ctx);
+                    break;
+                default:
+                    ctx.finalizeResponse(ActionResponseState.FAILED, notImplementedDesc);
+                    done = DONE;
+                    break;
+            }
+        }
+        catch (RuntimeException e) {
+            done = Futures.immediateFailedFuture(e);
         }
 
-        // Ready to terminate the action.
-        return new ActionResult(finalActionState, finalDescription);
+        ListenableFuture<ActionResponsePair> monitored = then(done,
+                        new AsyncFunction<Void, ActionResponsePair>() {
+                            @Override
+                            public ListenableFuture<ActionResponsePair> apply(Void input) {
+                                if (ctx.isFailed()) {
+                                    // Keep the failure, the task if any is not waited for
+                                    return Futures.immediateFuture(makeResponsePair(
+                                                    ActionResponseState.FAILED,
+                                                    ctx.getFinalDescription()));
+                                }
+                                // The task is followed on the session of the task watcher
+                                ctx.taskSubmitted();
+                                sessionReleased.run();
+                                // Monitor the Task object in the VC target for the action
+                                // progressRange means the partition of the current task in the progress of the whole action.
+                                int progressRange = 100 - actionItem.getProgress();
+                                progressRange = progressRange == 0 ? 100 : progressRange;
+                                ListenableFuture<ActionResponsePair> outcome = monitorTask(ctx,
+                                                ctx.getTask(), progressRange, TASK_TIMEOUT_SEC);
+                                return ctx.getTask() != null ? timed(ctx,
+                                                ActionMetrics.Stage.MONITOR, System.nanoTime(),
+                                                outcome) : outcome;
+                            }
+                        });
+        ListenableFuture<ActionResult> result = Futures.transform(monitored,
+                        new Function<ActionResponsePair, ActionResult>() {
+                            @Override
+                            public ActionResult apply(ActionResponsePair actionResult) {
+                                // Record the latencies of the stages, and report them with
+                                // their usual values
+                                ctx.addStageMillis(ActionMetrics.Stage.TOTAL,
+                                                ActionMetrics.millisSince(startNanos));
+                                String actionType = String.valueOf(actionItem.getActionType());
+                                long[] stageMillis = ctx.getStageMillis();
+                                actionMetrics.record(actionType, stageMillis);
+                                ctx.finalizeResponse(actionResult.getActionResponseState(),
+                                                actionResult.getDescription() + " ["
+                                                                + actionMetrics.describe(
+                                                                                actionType,
+                                                                                stageMillis)
+                                                                + "]");
+                                // Ready to terminate the action.
+                                return ctx.getResult();
+                            }
+                        }, actionEngine.getExecutor());
+
+        // Return the session to the pool, whatever the outcome.
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ctx.release();
+            }
+        }, actionEngine.getExecutor());
+        return result;
     }
 
+    /**
+     * Get the hosts an action runs on: the host of the VM, and its destination host for a move.
+     * @param actionItem The action.
+     * @return The names of the hosts.
+     */
+    private static Set<String> getHosts(ActionItemDTO actionItem) {
+        Set<String> hosts = new HashSet<String>();
+        if (actionItem.hasHostedBySE()) {
+            hosts.add(actionItem.getHostedBySE().getDisplayName());
+        }
+        if (actionItem.getActionType() == ActionType.MOVE && actionItem.hasNewSE()) {
+            hosts.add(actionItem.getNewSE().getDisplayName());
+        }
+        return hosts;
+    }
 
+    /**
+     * Get the clusters of hosts from the entity index of the target. Hosts that are not in the
+     * index, or all of them if the index is not ready yet, are left out.
+     * @param ctx The context of the action.
+     * @param hosts The names of the hosts.
+     * @return The MOR values of the clusters.
+     */
+    private static Set<String> getClusters(ActionContext ctx, Set<String> hosts) {
+        Set<String> clusters = new HashSet<String>();
+        if (hosts.isEmpty()) {
+            return clusters;
+        }
+        try {
+            EntityIndex index = TaskWatcher.get(ctx.getAccountValues()).getEntityIndex();
+            if (index.isReady()) {
+                for (String host : hosts) {
+                    String cluster = index.findClusterOfHost(host);
+                    if (cluster != null) {
+                        clusters.add(cluster);
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            logger.warn("Clusters of " + hosts + " unknown, running without cluster limit", e);
+        }
+        return clusters;
+    }
 
     /**
      * Monitoring the VC task states and return progress information
      * If the state is in progress, then progress message will be sent back to server
      * Otherwise, the result(Succeed/Failed) will be returned in a {@link Pair} object.
+     * The task is watched with the {@link TaskWatcher} of the target, so each change of its state
+     * or progress is reported as soon as VC publishes it.
+     * @param ctx: the context of the action
      * @param task: the {@link Task} to monitor
-     * @param actionItem: the {@link ActionItemDTO} based on which the task is running
      * @param taskProgressRange: the partition of this task in progress of total action execution,
      *                          if the total progress of the whole action is 100
      * @param timeout: timeout for the task, in SECONDS
-     * @return: {@link Pair}, the first element is {@link ActionResponseState}, the second element is a description for
-     *          for the action state.
-     */
-    private ActionResponsePair monitorTask(Task vcTask, ActionItemDTO actionItem,
-                    int taskProgressRange, int timeout, IProgressTracker progressTracker) {
-        if (vcTask != null){
-            String targetSEName = actionItem.getTargetSE().getDisplayName();
-
-            // logger.info(task.getTaskInfo()+" task is on. "+"The task target is " + targetName);
-            TaskInfoState state = TaskInfoState.error;
-            // interval (in second) to check the task status
-            int interval = 5;
-            // number of times have been tried to get task status
-            int count =0;
-
-            // get start point of the action progress
-            int startProgress = actionItem.getProgress();
-
-            // total percentage for the current task in progress of whole action
-            double fraction = taskProgressRange/100;
-
-            while (timeout-- > 0) { //todo: add some timeout to exit the loop
-                sleep(interval * 1000);
-                if (servInst == null) {
-                    logger.error("Don't have a logged-in connection to VC");
-                    finalizeResponse(ActionResponseState.FAILED, ("Don't have a logged-in connection to VC"));
+     * @return: the future {@link ActionResponsePair}, the first element is {@link ActionResponseState}, the second
+     *          element is a description for the action state.
+     */
+    private ListenableFuture<ActionResponsePair> monitorTask(final ActionContext ctx, Task vcTask,
+                    final int taskProgressRange, final int timeout) {
+        ctx.setTaskState(null);
+        if (vcTask == null) {
+            return Futures.immediateFuture(makeResponsePair(ActionResponseState.FAILED,
+                            "Cannot find the valid VC Task"));
+        }
+        TaskWatcher taskWatcher = ctx.getTaskWatcher();
+        if (taskWatcher == null) {
+            logger.error("Don't have a logged-in connection to VC");
+            return Futures.immediateFuture(makeResponsePair(ActionResponseState.FAILED,
+                            "Don't have a logged-in connection to VC"));
+        }
+        final ActionItemDTO actionItem = ctx.getActionItem();
+        final ProgressReporter progressTracker = ctx.getProgressTracker();
+        final String targetSEName = actionItem.getTargetSE().getDisplayName();
+
+        // get start point of the action progress
+        final int startProgress = actionItem.getProgress();
+
+        // total percentage for the current task in progress of whole action
+        final double fraction = taskProgressRange / 100.0;
+
+        TaskWatcher.Watch watch;
+        try {
+            watch = taskWatcher.watch(vcTask.getMOR(), TASK_STATE, TASK_PROGRESS);
+        }
+        catch (RemoteException e) {
+            logger.error("Exception caught during monitoring task: ", e);
+            return Futures.immediateFuture(makeResponsePair(ActionResponseState.FAILED,
+                            e.getMessage()));
+        }
+        ListenableFuture<ActionResponsePair> outcome = follow(watch,
+                        new Function<TaskWatcher.Watch, ActionResponsePair>() {
+            @Override
+            public ActionResponsePair apply(TaskWatcher.Watch watch) {
+                if (watch.isGone()) {
+                    return makeResponsePair(ActionResponseState.FAILED, String.format(
+                                    "%s: %s task no longer exists", targetSEName,
+                                    actionItem.getActionType()));
                 }
-                try {
-                    state = (TaskInfoState)vcTask.getPropertyByPath("info.state");
-                    String responseMessage;
-                    int actionProgress;
-
-                    switch (state) {
-                        case queued:
-                            actionItem.setProgress(startProgress);
-                            progressTracker.updateActionProgress(
-                                            ActionResponseState.QUEUED,
-                                            String.format("%s: %s in status %s", targetSEName,
-                                                            actionItem.getActionType(), state) + startProgress
-                                                            + "%");
-                            break;
-                        case success:
-                            actionProgress = startProgress + taskProgressRange;
-                            actionItem.setProgress(actionProgress);
-                            responseMessage = String.format("%s: %s in status %s", targetSEName, actionItem.getActionType(),state) + " - 100%";
-                            return new ActionResponsePair(ActionResponseState.SUCCEEDED, responseMessage);
-                        case running:
-                            Object progress = task.getPropertyByPath("info.progress");
-                            actionProgress = ((Double)((Integer)progress * fraction)).intValue() + startProgress;
-                            actionItem.setProgress(actionProgress);
-                            progressTracker.updateActionProgress(ActionResponseState.IN_PROGRESS,
-                                            String.format("%s: %s in status %s - %s", targetSEName,
-                                                            actionItem.getActionType(), state,
-                                                            actionProgress + "%"));
-                            break;
-                        default:
-                            responseMessage = String.format("%s: %s in status %s", targetSEName,actionItem.getActionType(),state);
-                            return new ActionResponsePair(ActionResponseState.FAILED, responseMessage);
+                TaskInfoState state = (TaskInfoState)watch.get(TASK_STATE);
+                if (state == null) {
+                    // Not reported yet
+                    return null;
+                }
+                int actionProgress;
+                switch (state) {
+                    case queued:
+                        actionItem.setProgress(startProgress);
+                        progressTracker.updateActionProgress(ActionResponseState.QUEUED,
+                                        String.format("%s: %s in status %s - %s", targetSEName,
+                                                        actionItem.getActionType(), state,
+                                                        startProgress + "%"));
+                        return null;
+                    case success:
+                        ctx.setTaskState(state);
+                        actionProgress = startProgress + taskProgressRange;
+                        actionItem.setProgress(actionProgress);
+                        return makeResponsePair(ActionResponseState.SUCCEEDED, String.format(
+                                        "%s: %s in status %s - 100%%", targetSEName,
+                                        actionItem.getActionType(), state));
+                    case running:
+                        Integer progress = (Integer)watch.get(TASK_PROGRESS);
+                        actionProgress = (int)((progress != null ? progress : 0) * fraction)
+                                        + startProgress;
+                        actionItem.setProgress(actionProgress);
+                        progressTracker.updateActionProgress(ActionResponseState.IN_PROGRESS,
+                                        String.format("%s: %s in status %s - %s", targetSEName,
+                                                        actionItem.getActionType(), state,
+                                                        actionProgress + "%"));
+                        return null;
+                    default:
+                        ctx.setTaskState(state);
+                        return makeResponsePair(ActionResponseState.FAILED, String.format(
+                                        "%s: %s in status %s", targetSEName,
+                                        actionItem.getActionType(), state));
+                }
+            }
+        }, timeout, makeResponsePair(ActionResponseState.FAILED, String.format(
+                        "%s: %s timed out after %d seconds", targetSEName,
+                        actionItem.getActionType(), timeout)));
+        return Futures.catching(outcome, RemoteException.class,
+                        new Function<RemoteException, ActionResponsePair>() {
+                            @Override
+                            public ActionResponsePair apply(RemoteException e) {
+                                logger.error("Exception caught during monitoring task: ", e);
+                                return makeResponsePair(ActionResponseState.FAILED,
+                                                e.getMessage());
+                            }
+                        }, actionEngine.getExecutor());
+    }
 
-                    }
-                    // After getting the task status, set it to zero.
-                    // The count get incremented when there are exceptions
-                    count = 0;
+    /**
+     * Follow the changes of a watch, without holding a thread, until a check of its values gives
+     * an outcome or the time is out. The watch is closed once done.
+     * @param watch The watch.
+     * @param check Called with the watch on each change, returns the outcome, or null to keep
+     *            following.
+     * @param timeout Max time to follow, in seconds.
+     * @param timedOut Outcome on timeout.
+     * @return The future outcome, failed with a RemoteException if the updates of the watch
+     *         stopped.
+     */
+    private static <T> ListenableFuture<T> follow(final TaskWatcher.Watch watch,
+                    Function<TaskWatcher.Watch, T> check, int timeout, T timedOut) {
+        SettableFuture<T> outcome = SettableFuture.create();
+        actionEngine.expire(outcome, timedOut, timeout * 1000L);
+        outcome.addListener(new Runnable() {
+            @Override
+            public void run() {
+                watch.close();
+            }
+        }, actionEngine.getExecutor());
+        follow(watch, check, outcome, 0);
+        return outcome;
+    }
+
+    private static <T> void follow(final TaskWatcher.Watch watch,
+                    final Function<TaskWatcher.Watch, T> check, final SettableFuture<T> outcome,
+                    int seenChanges) {
+        final ListenableFuture<Integer> changed = watch.changed(seenChanges);
+        changed.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (outcome.isDone()) {
+                    return;
                 }
-                catch (Exception e) {
-                    if(++count >= maxTryGetTaskUpdate){
-                        logger.error("Exception caught during monitoring task: ", e);
-                        finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-                        return makeResponsePair(ActionResponseState.FAILED, e.getMessage());
+                try {
+                    int changes = Futures.getDone(changed);
+                    T result = check.apply(watch);
+                    if (result != null) {
+                        outcome.set(result);
+                    } else {
+                        follow(watch, check, outcome, changes);
                     }
                 }
+                catch (ExecutionException e) {
+                    outcome.setException(e.getCause());
+                }
+                catch (RuntimeException e) {
+                    outcome.setException(e);
+                }
             }
-        }
-        return makeResponsePair(ActionResponseState.FAILED, "Cannot find the valid VC Task");
+        }, actionEngine.getExecutor());
+    }
+
+    /**
+     * Add the time a step of an action takes to a stage of the action, once the step is done,
+     * whatever its outcome.
+     * @param ctx The context of the action.
+     * @param stage The stage.
+     * @param startNanos Start of the step, from {@link System#nanoTime}.
+     * @param step The future outcome of the step.
+     * @return The step.
+     */
+    private static <T> ListenableFuture<T> timed(final ActionContext ctx,
+                    final ActionMetrics.Stage stage, final long startNanos,
+                    ListenableFuture<T> step) {
+        step.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ctx.addStageMillis(stage, ActionMetrics.millisSince(startNanos));
+            }
+        }, MoreExecutors.directExecutor());
+        return step;
+    }
+
+    /**
+     * Chain a step of an action after another, on the threads of the engine.
+     * @param input The future outcome of the previous step.
+     * @param next The next step.
+     * @return The future outcome of the next step.
+     */
+    private static <I, O> ListenableFuture<O> then(ListenableFuture<I> input,
+                    AsyncFunction<? super I, ? extends O> next) {
+        return Futures.transformAsync(input, next, actionEngine.getExecutor());
     }
 
     private ActionResponsePair makeResponsePair(ActionResponseState state, String responseMessage) {
@@ -224,222 +573,428 @@ public class VimActionExecutor implements IActionExecutor {
 
     /**
      * Execute tasks for Virtual Machine entities.
-     * @param actionItem    {@link ActionItemDTO} for the VM.
-     * @param accountValues     Map of credentials to connect to VCenter.
-     * @param progressTracker action progress tracker
+     * @param ctx The context of the action.
+     * @return The future end of the tasks, but the last one, monitored by executeAction method.
      */
-    private void executeVMTask(ActionItemDTO actionItem, Map<String, String> accountValues,
-                    IProgressTracker progressTracker) {
+    private ListenableFuture<Void> executeVMTask(ActionContext ctx) {
+        ActionItemDTO actionItem = ctx.getActionItem();
         String vmName = actionItem.getTargetSE().getDisplayName();
         logger.info("running executeVMTask for vmName: "+ vmName);
         // Connect to VC.
-        connectVC(actionItem,accountValues);
-        if(servInst==null) {
-            return;
+        long connectStart = System.nanoTime();
+        connectVC(ctx);
+        ctx.addStageMillis(ActionMetrics.Stage.CONNECT, ActionMetrics.millisSince(connectStart));
+        if(ctx.getServiceInstance()==null) {
+            return DONE;
         }
 
         // Get handle to the VM object in the VCenter
         VirtualMachine vm = null;
+        long lookupStart = System.nanoTime();
         try {
-            vm = findManagedEntity(com.vmware.vim25.mo.VirtualMachine.class.getSimpleName(), vmName);
-            if (vm == null){
-                logger.error("Can not find VM  : " + vmName);
-                finalizeResponse(ActionResponseState.FAILED, ("NOT Found VM  : " + vmName));
-                return;
+            try {
+                vm = findManagedEntity(ctx, VmRecord.TYPE, actionItem.getTargetSE());
+                if (vm == null){
+                    logger.error("Can not find VM  : " + vmName);
+                    ctx.finalizeResponse(ActionResponseState.FAILED, ("NOT Found VM  : " + vmName));
+                    return DONE;
+                }
+            }
+            catch (RemoteException e) {
+                logger.error("Exception during executing VM Task: ", e);
+                ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+                return DONE;
+            }
+            // Read all the properties the pre-flight checks of the action need at once.
+            try {
+                ctx.setPreflight(VmPreflight.retrieve(ctx.getServiceInstance(), vm));
+            }
+            catch (RemoteException e) {
+                logger.error("Remote exception reading the properties of VM " + vmName, e);
+                ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+                return DONE;
             }
         }
-        catch (RemoteException e) {
-            logger.error("Exception during executing VM Task: ", e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-            return;
+        finally {
+            ctx.addStageMillis(ActionMetrics.Stage.LOOKUP, ActionMetrics.millisSince(lookupStart));
         }
         // Switch based on action type.
         switch(actionItem.getActionType()){
             case START:
-                vmStart(vm, actionItem);
-                break;
+                return timed(ctx, ActionMetrics.Stage.POWER_ON, System.nanoTime(),
+                                vmStart(ctx, vm, ctx.getPreflight().getPowerState()));
             case MOVE:
-                vmMove(vm, actionItem);
-                break;
+                vmMove(ctx, vm);
+                return DONE;
             case RECONFIGURE:
-                vmReconfigure(vm, actionItem, progressTracker);
-                break;
+                return vmReconfigure(ctx, vm);
             case RIGHT_SIZE:
-                vmRightSize(vm, actionItem, progressTracker);
+                return vmRightSize(ctx, vm);
             default:
                 // send not implemented error message
-                finalizeResponse(ActionResponseState.FAILED, notImplementedDesc);
-                break;
+                ctx.finalizeResponse(ActionResponseState.FAILED, notImplementedDesc);
+                return DONE;
         }
     }
 
     /**
      * Start(Power on) a VM.
+     * @param ctx The context of the action.
      * @param vm The Virtual Machine to be started (powered on).
-     * @param actionItem    {@link ActionItemDTO} for the VM.
+     * @param powerState The current power state of the VM, read again on retries.
+     * @return The future start of the power on task, or end of the tries.
      */
-    private void vmStart(VirtualMachine vm, ActionItemDTO actionItem) {
+    private ListenableFuture<Void> vmStart(ActionContext ctx, VirtualMachine vm,
+                    VirtualMachinePowerState powerState) {
         checkNotNull(vm);
+        ActionItemDTO actionItem = ctx.getActionItem();
         String hostName = actionItem.getHostedBySE().getDisplayName();
         // Get handle to the host of the VM.
         HostSystem host = null;
         try {
-            host = findManagedEntity(com.vmware.vim25.mo.HostSystem.class.getSimpleName(), hostName);
+            host = findManagedEntity(ctx, HostRecord.TYPE, actionItem.getHostedBySE());
         }
         catch (RemoteException e) {
             logger.error("Remote exception during start VM " + vm.getName(), e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-            return;
+            ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+            return DONE;
         }
         if (host == null){
             logger.error("Did not find host  : " + hostName);
-            finalizeResponse(ActionResponseState.FAILED, ("NOT Found PM  : " + hostName));
-            return;
+            ctx.finalizeResponse(ActionResponseState.FAILED, ("NOT Found PM  : " + hostName));
+            return DONE;
         }
 
         // Try for few times
-        for (int tries = 1; tries <= maxOddFailureTries; tries++) {
-            // If the VM is already powered on, we're done.
-            if (vmPowerState(vm) == VirtualMachinePowerState.poweredOn) {
-                logger.info(vm.getName() + " is already powered on");
-                finalizeResponse(ActionResponseState.SUCCEEDED, (vm.getName() + " is already powered on"));
-                return;
-            }
+        return vmPowerOn(ctx, vm, host, powerState, 1);
+    }
 
-            try {
-                // This is the task object that will be monitored for action progress
-                task = vm.powerOnVM_Task(host);
-                logger.info(vm.getName() + " power on task is on");
-                // The task to start the VM has been started and will be monitored in the executeAction method
-                return;
-            } catch (InvalidPowerState e) {
-                logger.warn(vm.getName() + " invalid power state " + vmPowerState(vm));
-                // If the VM somehow powered on, we'll get this exception.
-                // Go back around and check again.
-                sleep(tries * oddFailureSleep_ms);
-                continue;
-            } catch (Exception e) {
-                logger.error("Exception during start VM " + vm.getName(), e);
-                finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-                return;
+    /**
+     * Power on a VM on a host. If the VM is in an invalid power state, try again later, after a
+     * backoff that holds no thread.
+     * @param ctx The context of the action.
+     * @param vm The Virtual Machine to be started (powered on).
+     * @param host The host to power on the VM on.
+     * @param powerState The current power state of the VM.
+     * @param tries Number of this try, from 1.
+     * @return The future start of the power on task, or end of the tries.
+     */
+    private ListenableFuture<Void> vmPowerOn(final ActionContext ctx, final VirtualMachine vm,
+                    final HostSystem host, VirtualMachinePowerState powerState,
+                    final int tries) {
+        // If the VM is already powered on, we're done.
+        if (powerState == VirtualMachinePowerState.poweredOn) {
+            logger.info(vm.getName() + " is already powered on");
+            ctx.finalizeResponse(ActionResponseState.SUCCEEDED, (vm.getName() + " is already powered on"));
+            return DONE;
+        }
+
+        try {
+            // This is the task object that will be monitored for action progress
+            ctx.setTask(vm.powerOnVM_Task(host));
+            logger.info(vm.getName() + " power on task is on");
+            // The task to start the VM has been started and will be monitored in the executeAction method
+            return DONE;
+        } catch (InvalidPowerState e) {
+            logger.warn(vm.getName() + " invalid power state, try " + tries);
+            if (tries >= maxOddFailureTries) {
+                // if you came here means you could not execute action, task object is null.
+                // Thus executeVMTask will send action failure response.
+                return DONE;
             }
+            // If the VM somehow powered on, we'll get this exception.
+            // Go back around and check again, later.
+            return actionEngine.schedule(new AsyncCallable<Void>() {
+                @Override
+                public ListenableFuture<Void> call() {
+                    return vmPowerOn(ctx, vm, host, vmPowerState(vm), tries + 1);
+                }
+            }, ActionEngine.backoffMillis(tries, oddFailureSleep_ms, maxOddFailureSleep_ms));
+        } catch (Exception e) {
+            logger.error("Exception during start VM " + vm.getName(), e);
+            ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+            return DONE;
         }
-        // if you came here means you could not execute action, task object is null.
-        // Thus executeVMTask will send action failure response.
     }
 
     /**
      * Move a VM from one host to the other host.
+     * @param ctx The context of the action.
      * @param vm The Virtual Machine to be moved.
-     * @param actionItem    {@link ActionItemDTO} for the VM.
      */
-    private void vmMove(VirtualMachine vm,ActionItemDTO actionItem)  {
-        if ((Boolean)vm.getPropertyByPath("summary.config.template")) {
-            finalizeResponse(ActionResponseState.FAILED, String.format(vm.getName(),
-                                                                       "is a template and can't be moved"));
+    private void vmMove(ActionContext ctx, VirtualMachine vm)  {
+        ActionItemDTO actionItem = ctx.getActionItem();
+        VmPreflight preflight = ctx.getPreflight();
+        if (preflight.isTemplate()) {
+            ctx.finalizeResponse(ActionResponseState.FAILED,
+                            vm.getName() + " is a template and can't be moved");
             return;
         }
         // Get the handle for the host that the VM will be moved to.
         String newHostName = actionItem.getNewSE().getDisplayName();
         HostSystem targetHost = null;
         try {
-            targetHost = findManagedEntity(com.vmware.vim25.mo.HostSystem.class.getSimpleName(), newHostName);
+            targetHost = findManagedEntity(ctx, HostRecord.TYPE, actionItem.getNewSE());
         }
         catch (RemoteException e) {
             logger.error("Remote exception while finding target host ", e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+            ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
             return;
         }
-        // TODO need to check all datastores of target VM are accessible on the target host where VM is to be moved to
-
-        // Get VM resource poll
-        ResourcePool vmRp = null;
-        try {
-            vmRp = vm.getResourcePool();
+        if (targetHost == null) {
+            logger.error("Did not find host  : " + newHostName);
+            ctx.finalizeResponse(ActionResponseState.FAILED, ("NOT Found PM  : " + newHostName));
+            return;
         }
-        catch (RemoteException e) {
-            logger.error("Remote exception during finding resource pool ", e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+        // Check all datastores of the VM are accessible on the target host
+        String datastore = preflight.findInaccessibleDatastore(targetHost.getMOR());
+        if (datastore != null) {
+            logger.error("Datastore " + datastore + " of VM " + vm.getName()
+                            + " is not accessible from host " + newHostName);
+            ctx.finalizeResponse(ActionResponseState.FAILED, "Datastore " + datastore
+                            + " not accessible from PM  : " + newHostName);
             return;
         }
 
-        VirtualMachinePowerState state = vm.getRuntime().getPowerState();
+        // Get VM resource pool
+        ResourcePool vmRp = new ResourcePool(vm.getServerConnection(),
+                        preflight.getResourcePool());
+        VirtualMachinePowerState state = preflight.getPowerState();
 
         try {
-            task = vm.migrateVM_Task(vmRp, targetHost, VirtualMachineMovePriority.defaultPriority, state);
+            ctx.setTask(vm.migrateVM_Task(vmRp, targetHost,
+                            VirtualMachineMovePriority.defaultPriority, state));
         }
         catch ( RemoteException e) {
             logger.error("Remote exception when move VM " + vm.getName(), e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+            ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
             return;
         }
     }
 
 
     /**
-     * Change the number of VCPUs a virtual machine uses.
-     * First shutdown the VM through guest OS. Wait for the VM power status change to powered off.
-     * Then do CPU reconfiguration task. Wait for the task to finish.
-     * Power on the VM. Power on task will be traced by executeAction method.
+     * Change the number of VCPUs, or the memory, a virtual machine uses.
+     * See {@link #vmRightSizeCapacity}.
+     * @param ctx The context of the action.
      * @param vm The Virtual Machine whose VCPU count is to be changed
-     * @param actionItem    {@link ActionItemDTO} for the VM.
+     * @return The future end of the tasks, but the last one.
      */
-    private void vmReconfigure(VirtualMachine vm, ActionItemDTO actionItem,
-                    IProgressTracker progressTracker) {
-        vmRightSizeCpu(vm, actionItem, true, progressTracker);
+    private ListenableFuture<Void> vmReconfigure(ActionContext ctx, VirtualMachine vm) {
+        return vmRightSizeCapacity(ctx, vm);
     }
 
     /**
-     * change number of VCPU and capacity of Memory for the VM
+     * Change the number of VCPUs, or the memory in MB, of a VM to the capacity of the new
+     * commodities of the action: VMem for the memory, the number of VCPUs otherwise. The
+     * commodities of the resizes merged into the action are changed together.
+     * An increase on a running VM with CPU or memory hot add enabled is applied live, without
+     * downtime. Otherwise, or if the live reconfiguration fails, the VM is shut down through its
+     * guest OS, reconfigured and powered on again. A VM that is not running is only reconfigured.
+     * The last task will be traced by executeAction method.
+     * @param ctx: the context of the action, whose {@link ActionItemDTO} contains necessary
+     *             information for resizing
      * @param vm: the VM to resize
-     * @param actionItem: {@link ActionItemDTO} which contains necessary information for resizing
-     * @param isCpu: notifying if the method is caled to change number of VCPUs or memory capacity
+     * @return the future end of the tasks, but the last one
      */
-    private void vmRightSizeCpu(VirtualMachine vm, ActionItemDTO actionItem, boolean isCpu,
-                    IProgressTracker progressTracker) {
-        if (isCpu) {
-            int numCpu = (int)actionItem.getNewComm().getCapacity();
-            VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
-            spec.setNumCPUs(numCpu);
-            // Need to shutdown VM first before doing reconfigure.
-            try {
-                // Send progress message while checking power state loop
-                vmShutdownGuest(vm, actionItem, progressTracker);
-                actionItem.setProgress(VM_PROGRESS_SHUTDOWN);
+    private ListenableFuture<Void> vmRightSizeCapacity(final ActionContext ctx,
+                    final VirtualMachine vm) {
+        List<CommodityDTO> newComms = ctx.getNewComms();
+        if (newComms.isEmpty()) {
+            ctx.finalizeResponse(ActionResponseState.FAILED, "No new capacity for VM " + vm.getName());
+            return DONE;
+        }
+        VmPreflight preflight = ctx.getPreflight();
 
-                task = vm.reconfigVM_Task(spec);
-                ActionResponsePair responsePair = monitorTask(task, actionItem,
-                                VM_PROGRESS_RECONFIG, 60, progressTracker);
-                if(responsePair.getActionResponseState() == ActionResponseState.FAILED) {
-                    finalizeResponse(responsePair.getActionResponseState(), responsePair.getDescription());
-                    return;
-                }
+        final VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
+        // Hot add only if all the changes can be hot added
+        boolean hotAdd = true;
+        for (CommodityDTO newComm : newComms) {
+            long newCapacity = (long)newComm.getCapacity();
+            if (newComm.getCommodityType() == Commodity.VMem) {
+                spec.setMemoryMB(newCapacity);
+                Integer memoryMB = preflight.getMemoryMB();
+                hotAdd &= preflight.isMemoryHotAddEnabled() && memoryMB != null
+                                && newCapacity > memoryMB;
+            } else {
+                spec.setNumCPUs((int)newCapacity);
+                Integer numCpu = preflight.getNumCpu();
+                Integer coresPerSocket = preflight.getNumCoresPerSocket();
+                // VCPUs are added by whole sockets
+                hotAdd &= preflight.isCpuHotAddEnabled() && numCpu != null && newCapacity > numCpu
+                                && (coresPerSocket == null || newCapacity % coresPerSocket == 0);
             }
-            catch (RemoteException e) {
-                logger.error("Remote exception right size CPU for VM " + vm.getName(), e);
-                finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-                return;
+        }
+        boolean poweredOn = preflight.getPowerState() == VirtualMachinePowerState.poweredOn;
+
+        if (poweredOn && hotAdd) {
+            return then(vmReconfigureSpec(ctx, vm, spec, VM_PROGRESS_RECONFIG),
+                            new AsyncFunction<ActionResponsePair, Void>() {
+                                @Override
+                                public ListenableFuture<Void> apply(
+                                                ActionResponsePair responsePair) {
+                                    if (responsePair.getActionResponseState()
+                                                    != ActionResponseState.FAILED) {
+                                        return DONE;
+                                    }
+                                    if (ctx.getTaskState() != TaskInfoState.error) {
+                                        // Timed out, or the updates were lost: the task may still
+                                        // succeed, leave the VM running
+                                        logger.error("Hot add on VM " + vm.getName()
+                                                        + " not confirmed: "
+                                                        + responsePair.getDescription());
+                                        ctx.finalizeResponse(ActionResponseState.FAILED,
+                                                        responsePair.getDescription());
+                                        return DONE;
+                                    }
+                                    logger.warn("Hot add failed on VM " + vm.getName() + ": "
+                                                    + responsePair.getDescription()
+                                                    + ", resizing it powered off");
+                                    return vmReconfigureOffline(ctx, vm, spec, true);
+                                }
+                            });
+        }
+        return vmReconfigureOffline(ctx, vm, spec, poweredOn);
+    }
+
+    /**
+     * Reconfigure a VM while it is powered off.
+     * First shutdown the VM through guest OS, if it is running. Wait for the VM power status
+     * change to powered off. Then do the reconfiguration task. Wait for the task to finish.
+     * Power on the VM if it was running. Power on task will be traced by executeAction method.
+     * @param ctx The context of the action.
+     * @param vm The Virtual Machine to reconfigure.
+     * @param spec The new configuration.
+     * @param poweredOn true if the VM is running.
+     * @return The future end of the tasks, but the power on task.
+     */
+    private ListenableFuture<Void> vmReconfigureOffline(final ActionContext ctx,
+                    final VirtualMachine vm, final VirtualMachineConfigSpec spec,
+                    final boolean poweredOn) {
+        final ActionItemDTO actionItem = ctx.getActionItem();
+        ListenableFuture<Boolean> poweredOff = Futures.immediateFuture(true);
+        if (poweredOn) {
+            // Send progress message while checking power state loop
+            poweredOff = timed(ctx, ActionMetrics.Stage.SHUTDOWN, System.nanoTime(),
+                            vmShutdownGuest(ctx, vm));
+        }
+
+        return then(poweredOff, new AsyncFunction<Boolean, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Boolean off) {
+                if (!off) {
+                    return DONE;
+                }
+                if (poweredOn) {
+                    actionItem.setProgress(VM_PROGRESS_SHUTDOWN);
+                }
+                return then(vmReconfigureSpec(ctx, vm, spec, VM_PROGRESS_RECONFIG),
+                                new AsyncFunction<ActionResponsePair, Void>() {
+                                    @Override
+                                    public ListenableFuture<Void> apply(
+                                                    ActionResponsePair responsePair) {
+                                        if(responsePair.getActionResponseState() == ActionResponseState.FAILED) {
+                                            ctx.finalizeResponse(responsePair.getActionResponseState(), responsePair.getDescription());
+                                            return DONE;
+                                        }
+                                        if (!poweredOn) {
+                                            return DONE;
+                                        }
+                                        // This function will change task to point to vmStart task.
+                                        long powerOnStart = System.nanoTime();
+                                        return timed(ctx, ActionMetrics.Stage.POWER_ON,
+                                                        powerOnStart, then(vmStart(ctx, vm,
+                                                        VirtualMachinePowerState.poweredOff),
+                                                        new AsyncFunction<Void, Void>() {
+                                                            @Override
+                                                            public ListenableFuture<Void> apply(
+                                                                            Void input) {
+                                                                return finalizeIfFailed(ctx,
+                                                                                monitorTask(ctx, ctx.getTask(),
+                                                                                                VM_PROGRESS_START,
+                                                                                                TASK_TIMEOUT_SEC));
+                                                            }
+                                                        }));
+                                    }
+                                });
             }
+        });
+    }
 
-            // This function will change task to point to vmStart task.
-            vmStart(vm, actionItem);
-            ActionResponsePair responsePair = monitorTask(task, actionItem, VM_PROGRESS_START, 60,
-                            progressTracker);
-            if(responsePair.getActionResponseState() == ActionResponseState.FAILED) {
-                finalizeResponse(responsePair.getActionResponseState(), responsePair.getDescription());
-                return;
+    /**
+     * Change the limit of the VCPUs, in MHz, or of the memory, in MB, of a VM to the capacity of
+     * the new commodities of the action: VMem for the memory, the VCPUs otherwise. A limit is
+     * changed live, whatever the power state of the VM.
+     * @param ctx The context of the action.
+     * @param vm The Virtual Machine to resize.
+     * @return The future end of the task.
+     */
+    private ListenableFuture<Void> vmRightSizeLimit(ActionContext ctx, VirtualMachine vm) {
+        VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
+        for (CommodityDTO newComm : ctx.getNewComms()) {
+            ResourceAllocationInfo allocation = new ResourceAllocationInfo();
+            allocation.setLimit((long)newComm.getCapacity());
+            if (newComm.getCommodityType() == Commodity.VMem) {
+                spec.setMemoryAllocation(allocation);
+            } else {
+                spec.setCpuAllocation(allocation);
             }
         }
+
+        return finalizeIfFailed(ctx, vmReconfigureSpec(ctx, vm, spec, VM_PROGRESS_RECONFIG));
+    }
+
+    /**
+     * Run a reconfiguration task of a VM and follow it until it finishes.
+     * @param ctx The context of the action, whose task is set to the reconfiguration task.
+     * @param vm The Virtual Machine to reconfigure.
+     * @param spec The new configuration.
+     * @param progressRange Part of the progress of the action the task accounts for.
+     * @return The future outcome of the task.
+     */
+    private ListenableFuture<ActionResponsePair> vmReconfigureSpec(ActionContext ctx,
+                    VirtualMachine vm, VirtualMachineConfigSpec spec, int progressRange) {
+        long reconfigureStart = System.nanoTime();
+        try {
+            ctx.setTask(vm.reconfigVM_Task(spec));
+        }
+        catch (RemoteException e) {
+            logger.error("Remote exception reconfiguring VM " + vm.getName(), e);
+            return Futures.immediateFuture(makeResponsePair(ActionResponseState.FAILED,
+                            e.getMessage()));
+        }
+        return timed(ctx, ActionMetrics.Stage.RECONFIGURE, reconfigureStart,
+                        monitorTask(ctx, ctx.getTask(), progressRange, TASK_TIMEOUT_SEC));
+    }
+
+    /**
+     * Finalize the response of an action as failed if a task of the action fails.
+     * @param ctx The context of the action.
+     * @param outcome The future outcome of the task.
+     * @return The future end of the task.
+     */
+    private ListenableFuture<Void> finalizeIfFailed(final ActionContext ctx,
+                    ListenableFuture<ActionResponsePair> outcome) {
+        return Futures.transform(outcome, new Function<ActionResponsePair, Void>() {
+            @Override
+            public Void apply(ActionResponsePair responsePair) {
+                if(responsePair.getActionResponseState() == ActionResponseState.FAILED) {
+                    ctx.finalizeResponse(responsePair.getActionResponseState(), responsePair.getDescription());
+                }
+                return null;
+            }
+        }, actionEngine.getExecutor());
     }
 
     /**
      * Rightsize VM by changing its commodity capacity or limit.
      * Triggered by {@link ActionType} MOVE action.
+     * @param ctx
      * @param vm
-     * @param actionItemDto
+     * @return the future end of the tasks, but the last one
      */
-    private void vmRightSize(VirtualMachine vm, ActionItemDTO actionItemDto,
-                    IProgressTracker progressTracker) {
+    private ListenableFuture<Void> vmRightSize(ActionContext ctx, VirtualMachine vm) {
+        ActionItemDTO actionItemDto = ctx.getActionItem();
         EntityDTO newSE = actionItemDto.getNewSE();
         CommodityDTO newComm = actionItemDto.getNewComm();
 
@@ -453,25 +1008,27 @@ public class VimActionExecutor implements IActionExecutor {
 
         if (newComm != null) {
             if (attrType == CommodityAttribute.Capacity) {
-                vmRightSizeCpu(vm, actionItemDto, true, progressTracker);
+                return vmRightSizeCapacity(ctx, vm);
             }
             else if (attrType == CommodityAttribute.Limit) {
-                // TODO(tian): implement it later after test capacity
+                return vmRightSizeLimit(ctx, vm);
             } else {
                 logger.error("Unhandled Attribute Type " + attrType.toString()
                                  + " for VM RightSize on VM " + vm.getName());
             }
         }
+        return DONE;
     }
 
     /**
      * Shut down the virtual machine using the guest OS. This fails if the VM is suspended or is not
      * running, or if it isn't running the VMware guest tools.
+     * @param ctx The context of the action.
      * @param vm The Virtual Machine whose guest is to be shut down.
-     * @param actionItem    {@link ActionItemDTO} for the VM.
+     * @return The future true if the VM is powered off, false if the shutdown failed.
      */
-    private void vmShutdownGuest(VirtualMachine vm, ActionItemDTO actionItem,
-                    IProgressTracker progressTracker) {
+    private ListenableFuture<Boolean> vmShutdownGuest(final ActionContext ctx,
+                    final VirtualMachine vm) {
         // TODO deal with the situation where VM is already powered off or suspended
         checkNotNull(vm);
         try {
@@ -479,64 +1036,102 @@ public class VimActionExecutor implements IActionExecutor {
         }
         catch (RemoteException e) {
             logger.error("Exception when shutdown guest for VM " + vm.getName(), e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-            return;
+            ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+            return Futures.immediateFuture(false);
         }
         // We can not trace task status here, because once the shutdown task is initiated the task
         // status will be updated to succeed. So we need to check if the VM has been poweredOff.
+        ListenableFuture<Void> poweredOff;
         try {
-            waitForPowerState(vm, VirtualMachinePowerState.poweredOff, actionItem, progressTracker);
+            poweredOff = waitForPowerState(ctx, vm, VirtualMachinePowerState.poweredOff,
+                            TASK_TIMEOUT_SEC);
         }
         catch (RemoteException e) {
-            logger.error("Remote exception when wait for power state change for VM " + vm.getName(), e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
-            return;
+            poweredOff = Futures.immediateFailedFuture(e);
         }
+        return Futures.catching(Futures.transform(poweredOff, Functions.constant(true),
+                        MoreExecutors.directExecutor()), RemoteException.class,
+                        new Function<RemoteException, Boolean>() {
+                            @Override
+                            public Boolean apply(RemoteException e) {
+                                logger.error("Remote exception when wait for power state change for VM " + vm.getName(), e);
+                                ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+                                return false;
+                            }
+                        }, actionEngine.getExecutor());
     }
 
     /**
      * Initialize a connection to the VCenter that the target service entity is associated with.
-     * On normal return, {@code servInst} -  which must initially be null - is the logged in
-     * connection and is non-null. Otherwise {@code servInst} remains null and
-     * @param actionItem    {@link ActionItemDTO} for the VM.
-     * @param accountValues     Map of credentials to connect to VCenter.
-     */
-    protected void connectVC(ActionItemDTO actionItem,Map<String, String> accountValues) {
-        final String targetAddr = accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
-        final String username = accountValues.get(AccountDefinitionEntry.USERNAME_FIELD);
-        final String password = accountValues.get(AccountDefinitionEntry.PASSWORD_FIELD);
-        final String url = "https://" + targetAddr + "/sdk";
-        int timeout = 60 * 1000; // 60sec timeout for connection
-        String namespace = ServiceInstance.VIM25_NAMESPACE;
+     * The logged in session is borrowed from the {@link SessionPool} of the target, and returned
+     * to it at the end of the action.
+     * On normal return, the service instance of the context - which must initially be null - is
+     * the logged in connection and is non-null. Otherwise it remains null and the context is
+     * finalized as failed.
+     * @param ctx The context of the action.
+     */
+    protected void connectVC(ActionContext ctx) {
+        Map<String, String> accountValues = ctx.getAccountValues();
+        final String targetAddr = ctx.getTargetAddr();
 
         try {
-            servInst = new ServiceInstance(new URL(url), username, password, true, namespace);
-            servInst.getServerConnection().getVimService().getWsc().setConnectTimeout(timeout);
+            SessionPool sessionPool = SessionPool.get(accountValues);
+            ServiceInstance servInst = sessionPool.borrow();
+            ctx.connected(sessionPool, servInst, TaskWatcher.get(accountValues));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.error("Interrupted while waiting for a session of VC " + targetAddr);
+            ctx.finalizeResponse(ActionResponseState.FAILED, "Interrupted while connecting to VC");
         }
         catch (Exception e) {
             logger.error("Exception when connect to VC ", e);
-            finalizeResponse(ActionResponseState.FAILED, e.getMessage());
+            ctx.finalizeResponse(ActionResponseState.FAILED, e.getMessage());
         }
 
-        if (servInst == null){
+        if (ctx.getServiceInstance() == null){
             logger.error("Cannot Connected to VC : " + targetAddr);
-            finalizeResponse(ActionResponseState.FAILED, ("Cannot Connected to VC : " + targetAddr));
+            ctx.finalizeResponse(ActionResponseState.FAILED, ("Cannot Connected to VC : " + targetAddr));
         }
     }
 
     /**
-     * Find the managed entity named {@code name}, which is assumed to have class {@code clazz}.
-     * @param clazz Class object for the returned entity
-     * @param name Name of the object to find
+     * Find the managed entity of the service entity {@code se}, which is assumed to have class
+     * {@code clazz}. The entity is looked up in the {@link EntityIndex} of the target: by UUID if
+     * the ID of the service entity is one, else by display name. Until the index is ready, the
+     * entity is found with SearchIndex.findByUuid, or by name with an inventory search.
+     * @param ctx The context of the action
+     * @param clazz Managed object class name of the entity
+     * @param se The service entity
      * @return The object found, null otherwise
      * @throws RemoteException it will occur if there is a problem with that communication
      */
-    private <T> T findManagedEntity(String clazz, String name)
+    private <T> T findManagedEntity(ActionContext ctx, String clazz, EntityDTO se)
                     throws RemoteException {
-        InventoryNavigator invNav = new InventoryNavigator(servInst.getRootFolder());
+        ServiceInstance servInst = ctx.getServiceInstance();
+        String id = se.getId();
+        String name = se.getDisplayName();
+        boolean byUuid = id != null && UUID_PATTERN.matcher(id).matches();
+        EntityIndex index = ctx.getTaskWatcher().getEntityIndex();
+        if (index.isReady()) {
+            ManagedObjectReference mor = byUuid ? index.findByUuid(clazz, id)
+                            : index.findByName(clazz, name);
+            @SuppressWarnings("unchecked")
+            T result = mor != null ? (T)MorUtil.createExactManagedEntity(
+                            servInst.getServerConnection(), mor) : null;
+            return result;
+        }
+        logger.info("Entity index not ready, searching the inventory for " + name);
 
+        ManagedEntity entity;
+        if (byUuid) {
+            entity = servInst.getSearchIndex().findByUuid(null, id, VmRecord.TYPE.equals(clazz));
+        } else {
+            entity = new InventoryNavigator(servInst.getRootFolder()).searchManagedEntity(clazz,
+                            name);
+        }
         @SuppressWarnings("unchecked")
-        T result = (T)invNav.searchManagedEntity(clazz, name);
+        T result = (T)entity;
         return result;
     }
 
@@ -549,85 +1144,63 @@ public class VimActionExecutor implements IActionExecutor {
     private VirtualMachinePowerState vmPowerState(VirtualMachine vm) {
         checkNotNull(vm);
 
-        return (VirtualMachinePowerState)vm.getPropertyByPath("runtime.powerState");
+        return (VirtualMachinePowerState)vm.getPropertyByPath(POWER_STATE);
     }
 
     /**
-     * Wait until a "machine" is in the given power state.
+     * Wait until a "machine" is in the given power state, without holding a thread. A progress
+     * message is sent on each change of the state.
+     * @param ctx The context of the action
      * @param m The machine
      * @param state State to wait for
-     * @throws RemoteException if there is a communications problem
+     * @param timeout Max time to wait, in seconds
+     * @return The future end of the wait, failed with a RemoteException if there is a
+     *         communications problem, or the machine did not reach the state in time
+     * @throws RemoteException if the machine can not be watched
      */
-    // TODO send heart beat messages
-    private <M extends ManagedEntity, S> void waitForPowerState(M m, S state,
-                    ActionItemDTO actionItem, IProgressTracker progressTracker)
-                throws RemoteException {
+    private <M extends ManagedEntity, S> ListenableFuture<Void> waitForPowerState(
+                    final ActionContext ctx, M m, final S state, final int timeout)
+                    throws RemoteException {
         checkNotNull(m);
         checkNotNull(state);
-        PropertyCollector propCol = servInst.getPropertyCollector();
-        PropertySpec pSpec = PropertyCollectorUtil
-                        .createPropertySpec(m.getClass().getSimpleName(), false,
-                                            new String[] {"runtime.powerState"});
-        ObjectSpec oss = new ObjectSpec();
-        oss.setObj(m.getMOR());
-        PropertyFilterSpec pfs = new PropertyFilterSpec();
-        pfs.setObjectSet(new ObjectSpec[] {oss});
-        pfs.setPropSet(new PropertySpec[] {pSpec});
-        propCol.createFilter(pfs, false);
-        S curState = null;
-        String version = "";
-
-        while (!state.equals(curState)) {
-            progressTracker.updateActionProgress(ActionResponseState.IN_PROGRESS,
-                            "Action in progress - " + actionItem.getProgress() + "%");
-
-            WaitOptions options = new WaitOptions();
-            UpdateSet update = propCol.waitForUpdatesEx(version, options);
-            try {
-                PropertyFilterUpdate pfu = update.getFilterSet()[0];
-                ObjectUpdate ou = pfu.getObjectSet()[0];
-                PropertyChange pch = ou.getChangeSet()[0];
-                @SuppressWarnings("unchecked")
-                S val = (S)pch.getVal();
-                curState = val;
-                if (state.equals(curState)) {
-                    actionItem.setProgress(actionItem.getProgress() + VM_PROGRESS_SHUTDOWN);
-                }
-            }
-            catch (NullPointerException | ArrayIndexOutOfBoundsException e) {
-                logger.error("Exception caught during waitting for power state: ", e);
-            }
-            finally {
-                version = update.getVersion();
-            }
+        final ActionItemDTO actionItem = ctx.getActionItem();
+        TaskWatcher taskWatcher = ctx.getTaskWatcher();
+        if (taskWatcher == null) {
+            throw new RemoteException("Don't have a logged-in connection to VC");
         }
-    }
+        final String name = m.getName();
+        ListenableFuture<Boolean> reached = follow(taskWatcher.watch(m.getMOR(), POWER_STATE),
+                        new Function<TaskWatcher.Watch, Boolean>() {
+                            private boolean first = true;
 
-    /**
-     * Helper function to send either succeed or fail response. Need to disconnect from VC before
-     * sending out the response. Because otherwise, the actor will be killed and have no chance to
-     * disconnect.
-     * @param actionState Value of ActionResponseState for the final response.
-     * @param description A string the describes detail of the response.
-     * is responding to
-     */
-    private void finalizeResponse(ActionResponseState actionState, String description){
-         finalActionState = actionState;
-         finalDescription = description;
-    }
-
-    /**
-     * Sleep and discard {@code InterruptedException}. This little function also avoids writing
-     * pointless try/empty catch blocks all over the place.
-     * @param millis Number of milliseconds to sleep.
-     */
-    private static void sleep(long millis) {
-        try {
-            Thread.sleep(millis);
-        }
-        catch (InterruptedException e) {
-            logger.error("Exception during thread sleep", e);
-        }
+                            @Override
+                            public Boolean apply(TaskWatcher.Watch watch) {
+                                if (state.equals(watch.get(POWER_STATE))) {
+                                    return true;
+                                }
+                                if (watch.isGone()) {
+                                    return false;
+                                }
+                                if (!first) {
+                                    ctx.getProgressTracker().updateActionProgress(ActionResponseState.IN_PROGRESS,
+                                                    "Action in progress - " + actionItem.getProgress() + "%");
+                                }
+                                first = false;
+                                return null;
+                            }
+                        }, timeout, false);
+        return then(reached, new AsyncFunction<Boolean, Void>() {
+            @Override
+            public ListenableFuture<Void> apply(Boolean reached) {
+                if (!reached) {
+                    return Futures.immediateFailedFuture(new RemoteException(name
+                                    + " did not reach power state " + state + " in " + timeout
+                                    + " seconds"));
+                }
+                actionItem.setProgress(actionItem.getProgress() + VM_PROGRESS_SHUTDOWN);
+                return DONE;
+            }
+        });
     }
 
 }//end class
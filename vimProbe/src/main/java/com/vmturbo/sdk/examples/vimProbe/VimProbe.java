@@ -1,18 +1,31 @@
 package com.vmturbo.sdk.examples.vimProbe;
 
+import java.io.File;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfCompositeMetric;
 import com.vmware.vim25.PerfCounterInfo;
 import com.vmware.vim25.PerfEntityMetric;
 import com.vmware.vim25.PerfEntityMetricBase;
@@ -20,11 +33,7 @@ import com.vmware.vim25.PerfMetricId;
 import com.vmware.vim25.PerfMetricIntSeries;
 import com.vmware.vim25.PerfMetricSeries;
 import com.vmware.vim25.PerfQuerySpec;
-import com.vmware.vim25.mo.InventoryNavigator;
-import com.vmware.vim25.mo.ManagedObject;
-import com.vmware.vim25.mo.PerformanceManager;
 import com.vmware.vim25.mo.ServiceInstance;
-import com.vmware.vim25.mo.util.PropertyCollectorUtil;
 
 import com.vmturbo.platform.common.dto.ErrorDTO;
 import com.vmturbo.platform.common.dto.ErrorSeverity;
@@ -33,6 +42,7 @@ import com.vmturbo.platform.common.dto.ModelEnum.Entity;
 import com.vmturbo.platform.sdk.common.DTO.EntityDTO;
 import com.vmturbo.platform.sdk.common.DTO.ProviderType;
 import com.vmturbo.platform.sdk.common.DTO.TemplateDTO;
+import com.vmturbo.platform.sdk.common.supplychain.EntityBuilder;
 import com.vmturbo.platform.sdk.common.supplychain.EntityLink;
 import com.vmturbo.platform.sdk.common.supplychain.SupplyChainBuilder;
 import com.vmturbo.platform.sdk.common.supplychain.SupplyChainLinkBuilder;
@@ -44,6 +54,7 @@ import com.vmturbo.platform.sdk.common.util.TargetValidationResponse;
 import com.vmturbo.platform.sdk.probe.IProbe;
 import com.vmturbo.platform.sdk.probe.builder.DatacenterBuilder;
 import com.vmturbo.platform.sdk.probe.builder.PhysicalMachineBuilder;
+import com.vmturbo.platform.sdk.probe.builder.StorageBuilder;
 import com.vmturbo.platform.sdk.probe.builder.VirtualMachineBuilder;
 
 
@@ -54,22 +65,12 @@ public class VimProbe implements IProbe {
 
     private static final String METRIC_CPU_USED = "cpu.usagemhz.average";
     private static final String METRIC_MEM_USED = "mem.consumed.average";
-    private static final String PROPERTY_VM_UUID = "config.uuid";
-    private static final String PROPERTY_VM_NAME = "name";
-    private static final String PROPERTY_VM_HOST = "runtime.host";
-    private static final String PROPERTY_VM_NUM_CPU = "config.hardware.numCPU";
-    private static final String PROPERTY_VM_MEM_SIZE = "config.hardware.memoryMB";
-    private static final String PROPERTY_HOST_UUID = "summary.hardware.uuid";
-    private static final String PROPERTY_HOST_NAME = "name";
-    private static final String PROPERTY_HOST_MEM_SIZE = "summary.hardware.memorySize";
-    private static final String PROPERTY_HOST_CPU_MHZ = "summary.hardware.cpuMhz";
-    private static final String PROPERTY_HOST_NUM_CPU_THREADS = "summary.hardware.numCpuThreads";
 
     private static final String SE_DC = "Datacenter";
     private static final String SE_DC_DISP_NAME = "Datacenter-VC";
     private static final String SE_DC_ID = "Datacenter-VC-ID";
-    private static final String SE_HOST = "HostSystem";
-    private static final String SE_VM = "VirtualMachine";
+    private static final String SE_HOST = HostRecord.TYPE;
+    private static final String SE_VM = VmRecord.TYPE;
 
     private static final String USERNAME = "username";
     private static final String PASSWORD = "password";
@@ -98,26 +99,56 @@ public class VimProbe implements IProbe {
                                                    "Password", "password for the account",
                                                    AccountDefinitionEntryType.Mandatory, ".*"));
 
-    private ServiceInstance si;
-    private PerformanceManager perfMgr;
+    /**
+     * Executor shared by the discoveries of all the targets.
+     */
+    private static final DiscoveryExecutor discoveryExecutor;
 
-    private final Logger logger = Logger.getLogger(getClass());
+    /**
+     * Time after which the context of a target that is no longer discovered is dropped, in
+     * milliseconds.
+     */
+    private static final long targetIdleMs;
 
     /**
-     * Map of counter IDs indexed by counter name.
+     * Delay between two checks for idle target contexts, in milliseconds.
      */
-    private final Map<String, Integer> countersIdMap = new HashMap<String, Integer>();
+    private static final long EVICTION_PERIOD_MS = 60000;
+
+    static {
+        VimProbeConfig defaults = VimProbeConfig.get(null);
+        discoveryExecutor = new DiscoveryExecutor(defaults.getMaxConcurrentDiscoveries());
+        targetIdleMs = defaults.getTargetIdleMs();
+        VimTransport.setMaxKeepAliveConnections(defaults.getMaxKeepAliveConnections());
+        // Targets are removed without notice, the check can not wait for the next discovery
+        discoveryExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleTargetContexts();
+            }
+        }, EVICTION_PERIOD_MS);
+    }
 
     /**
-     * Map of performance counter data (PerfCounterInfo) indexed by counter ID.
+     * Threads running the stages of the discovery pipelines and the inventory traversals.
      */
-    private final Map<Integer, PerfCounterInfo> countersInfoMap = new HashMap<Integer, PerfCounterInfo>();
+    private static final ExecutorService pipelineExecutor = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("vim-pipeline-%d").setDaemon(true)
+                                    .build());
 
     /**
-     * Map of entity data map indexed by the entity uuid. This map is used in parsing VM to get the
-     * CPU information of its Host.
+     * Pool used to build the entity DTOs of all the targets in parallel.
      */
-    private final Map<String, Map<String, Object>> entityInfoMap = new HashMap<String, Map<String, Object>>();
+    private static final ForkJoinPool dtoBuildPool = new ForkJoinPool();
+
+    /**
+     * Per-target state, indexed by target address. The SDK does not tell when a target is
+     * removed: the context of a target that is not discovered for {@link #targetIdleMs} is
+     * dropped. Guarded by {@code targetContexts}.
+     */
+    private static final Map<String, TargetContext> targetContexts = new HashMap<String, TargetContext>();
+
+    private final Logger logger = Logger.getLogger(getClass());
 
     /**
      * Discover Target
@@ -128,55 +159,618 @@ public class VimProbe implements IProbe {
      *
      */
     @Override
-    public TargetDiscoveryResponse discoverTarget(Map<String, String> accountValues) {
+    public TargetDiscoveryResponse discoverTarget(final Map<String, String> accountValues) {
         logger.info("Discover Target");
-        logger.info("Connecting to target: " + accountValues
-                        .get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD));
+        final String targetAddr = accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
+        final TargetContext context = getTargetContext(targetAddr);
+
+        // Discoveries of different targets run concurrently on the shared executor, each one
+        // with its own context.
+        Future<TargetDiscoveryResponse> discovery = discoveryExecutor.submit(targetAddr,
+                        new Callable<TargetDiscoveryResponse>() {
+                            @Override
+                            public TargetDiscoveryResponse call() {
+                                return discoverTarget(context, accountValues);
+                            }
+                        });
+        try {
+            return discovery.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            final String message = "Interrupted while discovering target: " + targetAddr;
+            logger.warn(message);
+            return new TargetDiscoveryResponse(new ErrorDTO(ErrorSeverity.CRITICAL, message));
+        }
+        catch (ExecutionException e) {
+            final String message = "Failed discovering target: " + targetAddr;
+            logger.error(message, e.getCause());
+            return new TargetDiscoveryResponse(new ErrorDTO(ErrorSeverity.CRITICAL, message));
+        }
+    }
 
-        Set<EntityDTO> entityDTOSet = new HashSet<EntityDTO>();
+    /**
+     * Discover a target, using and updating its context.
+     *
+     * @param context The context of the target.
+     * @param accountValues Map representing the values for the fields in the AccountDefintion
+     *            required for discovering the target
+     * @return Entities discovered by the probe as a set of EntityDTO
+     */
+    protected TargetDiscoveryResponse discoverTarget(TargetContext context,
+                    Map<String, String> accountValues) {
+        final String targetAddr = context.getTargetAddr();
+        final VimProbeConfig config = VimProbeConfig.get(
+                        accountValues.get(AccountDefinitionEntry.TARGET_IDENTIFIER));
+        final TopologyCache cache = context.getTopologyCache();
+
+        // After a restart, resume from the snapshot of the target
+        if (!context.isWarmStartChecked()) {
+            context.setWarmStartChecked();
+            File snapshotDir = config.getSnapshotDir();
+            if (snapshotDir != null && InventorySnapshot.load(
+                            InventorySnapshot.getFile(snapshotDir, targetAddr), context,
+                            accountValues.get(PASSWORD), config.getSessionTimeoutMs())) {
+                logger.info("Loaded snapshot of target: " + targetAddr);
+            }
+        }
+
+        // Topology changes rarely: between two full refreshes only the metrics are refreshed,
+        // and in between two metrics refreshes the cached entities are returned as they are.
+        long now = System.currentTimeMillis();
+        boolean topologyDue = cache.isTopologyStale(now, config.getTopologyRefreshIntervalMs());
+        if (!topologyDue && !cache.isMetricsStale(now, config.getMetricsRefreshIntervalMs())) {
+            logger.info("Returning cached topology of target: " + targetAddr);
+            return new TargetDiscoveryResponse(cache.getEntities());
+        }
+
+        logger.info("Connecting to target: " + targetAddr);
+        DiscoveryDeadline deadline = new DiscoveryDeadline(config.getDiscoveryDeadlineMs());
+        DiscoveryMetrics metrics = context.getMetrics();
+        metrics.startCycle();
+
+        // Connect to target, the session stays open for the next discoveries. The deadline
+        // caps the login as well as the discovery.
+        context.setDeadline(deadline);
+        try {
+            boolean connected;
+            try (DiscoveryMetrics.Scope scope = metrics.begin(DiscoveryMetrics.Phase.LOGIN)) {
+                connected = connect(context, accountValues, config) != null;
+                if (!connected) {
+                    DiscoveryMetrics.recordError();
+                }
+            }
+            if (!connected) {
+                final String message = "Failed connecting to target: " + targetAddr;
+                logger.warn(message);
+                logger.info(metrics.endCycle());
+                return new TargetDiscoveryResponse(new ErrorDTO(ErrorSeverity.CRITICAL, message));
+            }
+
+            if (topologyDue) {
+                refreshTopology(context, config);
+            } else {
+                refreshMetrics(context, config);
+            }
+        }
+        finally {
+            context.setDeadline(null);
+        }
+        if (topologyDue) {
+            saveSnapshot(context, accountValues, config);
+        }
+        logger.info(metrics.endCycle());
 
-        // Connect to target
-        si = connectVC(accountValues);
-        if (si == null) {
-            final String message = "Failed connecting to target: "
-                            + accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
+        return createResponse(cache.getEntities(), deadline);
+    }
+
+    /**
+     * Connect to a target, reusing its current session, or the session saved in its snapshot,
+     * when it is still valid. When a new session has to be opened, the old one is logged out, in
+     * case only its check failed, and the property collector of the inventory mirror is lost with
+     * it.
+     *
+     * @param context The context of the target.
+     * @param accountValues Map representing the values for the fields in the AccountDefintion
+     *            required for discovering the target
+     * @param config The configuration of the target.
+     * @return A service instance of the target, null if the connection failed.
+     */
+    protected ServiceInstance connect(TargetContext context, Map<String, String> accountValues,
+                    VimProbeConfig config) {
+        ServiceInstance si = context.getServiceInstance();
+        VimTransport transport = context.getTransport();
+        if (si == null && context.getSessionCookie() != null) {
+            transport = new VimTransport(config);
+            transport.setDeadline(context.getDeadline());
+            si = resumeVC(accountValues, context.getSessionCookie(), transport);
+        }
+        if (si != null && isSessionValid(si)) {
+            context.connected(si, transport);
+            return si;
+        }
+
+        if (si != null) {
+            logout(si);
+        }
+        context.sessionLost();
+        context.getInventoryMirror().clear();
+        transport = new VimTransport(config);
+        transport.setDeadline(context.getDeadline());
+        si = connectVC(accountValues, transport);
+        if (si != null) {
+            context.connected(si, transport);
+        }
+        return si;
+    }
+
+    /**
+     * @param si A service instance.
+     * @return true if the session of the service instance is logged in.
+     */
+    protected boolean isSessionValid(ServiceInstance si) {
+        try {
+            return si.getSessionManager().getCurrentSession() != null;
+        }
+        catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Log out of a session, ignoring failures: the session may be lost already.
+     *
+     * @param si The session.
+     */
+    protected void logout(ServiceInstance si) {
+        try {
+            si.getServerConnection().logout();
+        }
+        catch (Exception e) {
+            logger.debug("Failed logging out a replaced session", e);
+        }
+    }
+
+    /**
+     * Save the snapshot of a target, if snapshots are enabled.
+     *
+     * @param context The context of the target.
+     * @param accountValues Map representing the values for the fields in the AccountDefintion
+     *            required for discovering the target
+     * @param config The configuration of the target.
+     */
+    protected void saveSnapshot(TargetContext context, Map<String, String> accountValues,
+                    VimProbeConfig config) {
+        File snapshotDir = config.getSnapshotDir();
+        if (snapshotDir == null) {
+            return;
+        }
+        try {
+            InventorySnapshot.save(InventorySnapshot.getFile(snapshotDir, context.getTargetAddr()),
+                            context, accountValues.get(PASSWORD));
+        }
+        catch (Exception e) {
+            logger.error("Failed saving snapshot of target: " + context.getTargetAddr(), e);
+        }
+    }
+
+    /**
+     * Create the discovery response. If the deadline or a failure cut the discovery short, the
+     * response holds the entities gathered so far and an error listing what was skipped.
+     *
+     * @param entities The discovered entities.
+     * @param deadline The deadline of the discovery.
+     * @return The discovery response.
+     */
+    protected TargetDiscoveryResponse createResponse(Set<EntityDTO> entities,
+                    DiscoveryDeadline deadline) {
+        final TargetDiscoveryResponse response = new TargetDiscoveryResponse();
+        response.setEntities(entities);
+        if (deadline.hasSkipped()) {
+            final String message = (deadline.isExpired() ? "Discovery deadline of "
+                            + deadline.getBudgetMs() / 1000 + "s exceeded" : "Discovery incomplete")
+                            + ", skipped: " + Joiner.on(", ").join(deadline.getSkipped());
             logger.warn(message);
-            return new TargetDiscoveryResponse(new ErrorDTO(ErrorSeverity.CRITICAL, message));
+            response.getErrors().add(new ErrorDTO(ErrorSeverity.WARNING, message));
+        }
+        return response;
+    }
+
+    /**
+     * Get the context of a target, creating it if needed, and record that it is used.
+     *
+     * @param targetAddr Name or address of the target.
+     * @return The context of the target.
+     */
+    protected TargetContext getTargetContext(String targetAddr) {
+        synchronized (targetContexts) {
+            TargetContext context = targetContexts.get(targetAddr);
+            if (context == null) {
+                context = new TargetContext(targetAddr);
+                targetContexts.put(targetAddr, context);
+                context.getMetrics().register();
+            }
+            context.touch();
+            return context;
+        }
+    }
+
+    /**
+     * Drop the contexts of the targets not discovered for {@link #targetIdleMs}: their metrics
+     * are unregistered, and their sessions logged out once the discoveries of the target still
+     * pending are done. Run periodically by the discovery executor.
+     */
+    private static void evictIdleTargetContexts() {
+        final List<TargetContext> evicted = new ArrayList<TargetContext>();
+        long now = System.currentTimeMillis();
+        synchronized (targetContexts) {
+            for (TargetContext context : targetContexts.values()) {
+                if (now - context.getLastUsed() > targetIdleMs) {
+                    evicted.add(context);
+                }
+            }
+            for (TargetContext context : evicted) {
+                targetContexts.remove(context.getTargetAddr());
+                // Under the lock, so it can not unregister the metrics of a new context
+                context.getMetrics().unregister();
+            }
+        }
+        for (final TargetContext context : evicted) {
+            Logger.getLogger(VimProbe.class).info("Dropping the state of target no longer discovered: "
+                            + context.getTargetAddr());
+            discoveryExecutor.submit(context.getTargetAddr(), new Callable<Void>() {
+                @Override
+                public Void call() {
+                    context.disconnect();
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Full topology refresh: sync the inventory mirror, query the performance metrics of all the
+     * managed objects, and replace the content of the cache. The mirror is partitioned by compute
+     * resource, and the partitions are traversed concurrently. A partition is synced incrementally
+     * when its property collector version is still valid, and pulled again otherwise.
+     *
+     * @param context The context of the target.
+     * @param config The configuration of the target.
+     */
+    protected void refreshTopology(TargetContext context, VimProbeConfig config) {
+        logger.info("Refreshing topology");
+        Set<EntityDTO> entityDTOSet = new HashSet<EntityDTO>();
+        Map<String, InventoryRecord> inventory = new HashMap<String, InventoryRecord>();
+
+        InventoryMirror mirror = context.getInventoryMirror();
+        int pageSize = config.getPropertyPageSize();
+        int maxConcurrent = config.getMaxConcurrentPartitions();
+        try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(
+                        DiscoveryMetrics.Phase.TRAVERSAL)) {
+            mirror.updatePartitions(context, pageSize);
+        }
+        boolean synced = mirror.isTracking();
+        if (!synced) {
+            logger.info("Pulling inventory of target: " + context.getTargetAddr());
+        }
+
+        // Load the performance counters of the target
+        if (!synced || !context.hasPerfCounters()) {
+            loadPerfCounterMaps(context);
+        }
+
+        // Create a data center
+        try {
+            entityDTOSet.add(parseDatacenter(null, null));
+        }
+        catch (Exception e) {
+            logger.error("Failed parsing data center.");
+        }
+
+        // Hosts are few: sync them first and index the host attributes the VMs depend on.
+        try {
+            mirror.syncHosts(context, pageSize, pipelineExecutor, maxConcurrent);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while discovering hosts of target: " + context.getTargetAddr());
+            return;
+        }
+        List<HostRecord> hosts = mirror.getHosts();
+        HostIndex hostIndex = buildHostIndex(hosts);
+
+        // VMs stream through the discovery pipeline
+        List<EntityDTO> vmDTOs = new ArrayList<EntityDTO>();
+        Map<String, Map<String, Object>> vmPerfMaps = new HashMap<String, Map<String, Object>>();
+        AtomicInteger reused = new AtomicInteger();
+        discoverVMs(context, config, hostIndex, vmDTOs, inventory, vmPerfMaps, reused);
+        // A topology cut short by the deadline is returned, but is refreshed again next time
+        boolean complete = !context.hasSkipped();
+
+        // The used values of the hosts are the sums of the samples of their VMs. Datastores and
+        // networks come with the hosts, and have no performance metrics.
+        Map<String, String> vmHosts = TopologyCache.getVmHosts(inventory.values());
+        List<InventoryRecord> records = new ArrayList<InventoryRecord>(hosts);
+        records.addAll(mirror.getDatastores());
+        records.addAll(mirror.getNetworks());
+        List<EntityDTO> recordDTOs;
+        try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(
+                        DiscoveryMetrics.Phase.DTO_BUILD)) {
+            recordDTOs = dtoBuildPool.invoke(new BuildEntityDTOsTask(records, 0, records.size(),
+                            hostIndex, sumPerfByHost(vmPerfMaps, vmHosts),
+                            context.getTopologyCache(), reused));
+            DiscoveryMetrics.recordObjects(recordDTOs.size());
+        }
+        for (int i = 0; i < recordDTOs.size(); i++) {
+            entityDTOSet.add(recordDTOs.get(i));
+            inventory.put(recordDTOs.get(i).getId(), records.get(i));
+        }
+        entityDTOSet.addAll(vmDTOs);
+
+        // Fingerprint the configuration of the entities, for the next refresh to reuse their DTOs
+        TopologyCache cache = context.getTopologyCache();
+        Map<String, Long> fingerprints = new HashMap<String, Long>();
+        for (Map.Entry<String, InventoryRecord> entry : inventory.entrySet()) {
+            fingerprints.put(entry.getKey(), getDtoFingerprint(entry.getValue(), hostIndex));
+        }
+        logger.info("Reused " + reused.get() + " of " + inventory.size() + " entity DTOs");
+
+        cache.replace(entityDTOSet, inventory, fingerprints, System.currentTimeMillis(), complete);
+        if (config.useCompositePerfQuery()) {
+            refreshUsage(context, config);
+        }
+    }
+
+    /**
+     * Discover the VMs through a pipeline of concurrent stages: the partitions of the inventory
+     * mirror pull their VMs, or read them from the mirror when they are already synced, and the
+     * next stages assemble them into performance query batches, query their metrics and build
+     * their entity DTOs. The stages are connected by bounded queues, so pulling is throttled to
+     * the pace of the slowest stage.
+     *
+     * In composite query mode the metrics are queried per host after the pipeline, and the
+     * performance stage passes the batches through.
+     *
+     * The batches dropped by a stage, and a failure of the whole pipeline, are recorded as skipped,
+     * so the topology is not cached as complete without their VMs.
+     *
+     * @param context The context of the target.
+     * @param config The configuration of the target.
+     * @param hostIndex Attributes of the hosts.
+     * @param vmDTOs Receives the VM entity DTOs.
+     * @param inventory Receives the VM records, indexed by entity ID.
+     * @param vmPerfMaps Receives the performance maps of the VMs, indexed by VM MOR value.
+     * @param reused Counts the VM entity DTOs reused from the cached topology.
+     */
+    protected void discoverVMs(final TargetContext context, final VimProbeConfig config,
+                    final HostIndex hostIndex, final List<EntityDTO> vmDTOs,
+                    final Map<String, InventoryRecord> inventory,
+                    final Map<String, Map<String, Object>> vmPerfMaps,
+                    final AtomicInteger reused) {
+        final int batchSize = config.getPerfQueryBatchSize();
+        final String[] counterNames = new String[] {METRIC_CPU_USED, METRIC_MEM_USED};
+        if (!config.useCompositePerfQuery() && !context.hasPerfCounters()) {
+            context.skipped("performance metrics");
+        }
+
+        List<DiscoveryPipeline.Stage<PipelineBatch>> stages = new ArrayList<DiscoveryPipeline.Stage<PipelineBatch>>();
+        // Assemble the pages of VM records into batches of the performance query size
+        stages.add(new DiscoveryPipeline.Stage<PipelineBatch>() {
+            private List<VmRecord> pending = new ArrayList<VmRecord>(batchSize);
+
+            @Override
+            public void process(PipelineBatch page, DiscoveryPipeline.Sink<PipelineBatch> out)
+                            throws InterruptedException {
+                for (VmRecord vm : page.vms) {
+                    pending.add(vm);
+                    if (pending.size() == batchSize) {
+                        out.put(new PipelineBatch(pending));
+                        pending = new ArrayList<VmRecord>(batchSize);
+                    }
+                }
+            }
+
+            @Override
+            public void flush(DiscoveryPipeline.Sink<PipelineBatch> out)
+                            throws InterruptedException {
+                if (!pending.isEmpty()) {
+                    out.put(new PipelineBatch(pending));
+                }
+            }
+        });
+        // Query the metrics of each batch
+        stages.add(new DiscoveryPipeline.Stage<PipelineBatch>() {
+            @Override
+            public void process(PipelineBatch batch, DiscoveryPipeline.Sink<PipelineBatch> out)
+                            throws InterruptedException {
+                if (!config.useCompositePerfQuery() && context.hasPerfCounters()) {
+                    List<ManagedObjectReference> mors = new ArrayList<ManagedObjectReference>();
+                    for (VmRecord vm : batch.vms) {
+                        mors.add(vm.getMor());
+                    }
+                    try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(
+                                    DiscoveryMetrics.Phase.PERF)) {
+                        batch.perfMaps = queryPerf(context, mors, counterNames, batchSize);
+                    }
+                }
+                out.put(batch);
+            }
+
+            @Override
+            public void flush(DiscoveryPipeline.Sink<PipelineBatch> out) {
+            }
+        });
+        // Build the entity DTOs of each batch. The results are only touched by this stage until
+        // the pipeline is closed.
+        stages.add(new DiscoveryPipeline.Stage<PipelineBatch>() {
+            @Override
+            public void process(PipelineBatch batch, DiscoveryPipeline.Sink<PipelineBatch> out) {
+                List<EntityDTO> edList;
+                try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(
+                                DiscoveryMetrics.Phase.DTO_BUILD)) {
+                    edList = dtoBuildPool.invoke(new BuildEntityDTOsTask(batch.vms, 0,
+                                    batch.vms.size(), hostIndex, batch.perfMaps,
+                                    context.getTopologyCache(), reused));
+                    DiscoveryMetrics.recordObjects(edList.size());
+                }
+                for (int i = 0; i < edList.size(); i++) {
+                    vmDTOs.add(edList.get(i));
+                    inventory.put(edList.get(i).getId(), batch.vms.get(i));
+                }
+                vmPerfMaps.putAll(batch.perfMaps);
+            }
+
+            @Override
+            public void flush(DiscoveryPipeline.Sink<PipelineBatch> out) {
+            }
+        });
+
+        final DiscoveryPipeline<PipelineBatch> pipeline = new DiscoveryPipeline<PipelineBatch>(
+                        pipelineExecutor, config.getPipelineQueueCapacity(), stages);
+        // The stages are stopped unless they all completed
+        boolean closed = false;
+        try {
+            context.getInventoryMirror().syncVms(context, config.getPropertyPageSize(),
+                            pipelineExecutor, config.getMaxConcurrentPartitions(),
+                            new DiscoveryPipeline.Sink<List<VmRecord>>() {
+                                @Override
+                                public void put(List<VmRecord> page) throws InterruptedException {
+                                    pipeline.put(new PipelineBatch(page));
+                                }
+                            });
+            pipeline.close();
+            closed = true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while discovering VMs of target: " + context.getTargetAddr());
+        }
+        catch (ExecutionException e) {
+            logger.error("Discovery pipeline failed.", e.getCause());
+        }
+        finally {
+            if (!closed) {
+                pipeline.cancel();
+                context.skipped("VMs not processed by the discovery pipeline");
+            }
+        }
+        int dropped = pipeline.getDropped();
+        if (dropped > 0) {
+            context.skipped(dropped + " VM batches dropped by the discovery pipeline");
+        }
+    }
+
+    /**
+     * Metrics-only refresh: query the performance metrics of the cached entities and patch the
+     * commodity used values of the cached entity DTOs.
+     *
+     * @param context The context of the target.
+     * @param config The configuration of the target.
+     */
+    protected void refreshMetrics(TargetContext context, VimProbeConfig config) {
+        logger.info("Refreshing metrics");
+        // The counter IDs do not change between two topology refreshes
+        if (!context.hasPerfCounters()) {
+            loadPerfCounterMaps(context);
         }
-        perfMgr = si.getPerformanceManager();
+        refreshUsage(context, config);
+        context.getTopologyCache().metricsRefreshed(System.currentTimeMillis());
+    }
 
-        // Create property map
-        String[] moClsNames = {SE_DC, SE_HOST, SE_VM};
-        Map<String, String[]> propsMap = new HashMap<String, String[]>();
-        String[] dcProps = {"", ""};
-        String[] vmProps = {PROPERTY_VM_UUID,
-                            PROPERTY_VM_NAME,
-                            PROPERTY_VM_HOST,
-                            PROPERTY_VM_NUM_CPU,
-                            PROPERTY_VM_MEM_SIZE};
-        String[] pmProps = {PROPERTY_HOST_UUID,
-                            PROPERTY_HOST_NAME,
-                            PROPERTY_HOST_MEM_SIZE,
-                            PROPERTY_HOST_CPU_MHZ,
-                            PROPERTY_HOST_NUM_CPU_THREADS};
-        propsMap.put(moClsNames[0], dcProps);
-        propsMap.put(moClsNames[1], pmProps);
-        propsMap.put(moClsNames[2], vmProps);
+    /**
+     * Query the CPU and memory used by the cached VMs and hosts, and patch the commodity used
+     * values of their entity DTOs in place. VMs buy CPU and Mem from their host, hosts sell them.
+     *
+     * @param context The context of the target.
+     * @param config The configuration of the target.
+     */
+    protected void refreshUsage(TargetContext context, VimProbeConfig config) {
+        TopologyCache cache = context.getTopologyCache();
+        if (!context.hasPerfCounters()) {
+            context.skipped("performance metrics");
+            return;
+        }
+        List<ManagedObjectReference> vmMors = new ArrayList<ManagedObjectReference>();
+        List<ManagedObjectReference> hostMors = new ArrayList<ManagedObjectReference>();
+        Map<String, String> idsByMor = new HashMap<String, String>();
+        for (Map.Entry<String, InventoryRecord> entry : cache.getRecords().entrySet()) {
+            InventoryRecord record = entry.getValue();
+            if (record instanceof VmRecord) {
+                vmMors.add(record.getMor());
+            } else if (record instanceof HostRecord) {
+                hostMors.add(record.getMor());
+            }
+            idsByMor.put(record.getMorVal(), entry.getKey());
+        }
 
-        // Load countersIdMap and countersInfoMap
-        resetPerfCounterMaps();
-        loadPerfCounterMaps(perfMgr);
+        String[] counterNames = new String[] {METRIC_CPU_USED, METRIC_MEM_USED};
+        Map<String, Map<String, Object>> perfMaps;
+        try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(
+                        DiscoveryMetrics.Phase.PERF)) {
+            if (config.useCompositePerfQuery()) {
+                perfMaps = queryPerfComposite(context, hostMors, counterNames);
+            } else {
+                perfMaps = queryPerf(context, vmMors, counterNames,
+                                config.getPerfQueryBatchSize());
+                perfMaps.putAll(sumPerfByHost(perfMaps, cache.getVmHosts()));
+            }
+        }
 
-        // Iterate over the managed entities to generate entity DTOs.
-        for (String moCls : moClsNames) {
-            logger.info("Processing managed object class: " + moCls);
-            entityDTOSet.addAll(processManagedObject(moCls, propsMap.get(moCls)));
+        for (Map.Entry<String, Map<String, Object>> entry : perfMaps.entrySet()) {
+            String id = idsByMor.get(entry.getKey());
+            EntityDTO ed = cache.getEntity(id);
+            if (ed != null) {
+                patchUsed(ed, entry.getValue());
+            }
         }
+    }
 
-        // Logout from target
-        si.getServerConnection().logout();
+    /**
+     * Patch the CPU and Mem used values of an entity DTO. VMs buy CPU and Mem from their host,
+     * hosts sell them.
+     *
+     * @param ed The entity DTO.
+     * @param perfMap The performance map of the entity, indexed by counter names.
+     */
+    protected void patchUsed(EntityDTO ed, Map<String, Object> perfMap) {
+        float cpuUsed = getPerfValue(perfMap, METRIC_CPU_USED);
+        float memUsed = getPerfValue(perfMap, METRIC_MEM_USED) / 1024; // in MB
+        if (ed.getEntity() == Entity.VirtualMachine) {
+            TopologyCache.patchBoughtUsed(ed, Commodity.CPU, cpuUsed);
+            TopologyCache.patchBoughtUsed(ed, Commodity.Mem, memUsed);
+        } else if (ed.getEntity() == Entity.PhysicalMachine) {
+            TopologyCache.patchSoldUsed(ed, Commodity.CPU, cpuUsed);
+            TopologyCache.patchSoldUsed(ed, Commodity.Mem, memUsed);
+        }
+    }
 
-        return new TargetDiscoveryResponse(entityDTOSet);
+    /**
+     * Compute the performance metrics of the hosts by summing the samples of their VMs.
+     *
+     * @param vmPerfMaps The performance maps of the VMs, indexed by VM MOR value.
+     * @param vmHosts Host MOR value of each VM, indexed by VM MOR value.
+     * @return The performance maps of the hosts, indexed by host MOR value.
+     */
+    protected Map<String, Map<String, Object>> sumPerfByHost(
+                    Map<String, Map<String, Object>> vmPerfMaps, Map<String, String> vmHosts) {
+        Map<String, Map<String, Object>> hostPerfMaps = new HashMap<String, Map<String, Object>>();
+        for (Map.Entry<String, Map<String, Object>> entry : vmPerfMaps.entrySet()) {
+            String host = vmHosts.get(entry.getKey());
+            if (host == null) {
+                continue;
+            }
+            Map<String, Object> hostPerfMap = hostPerfMaps.get(host);
+            if (hostPerfMap == null) {
+                hostPerfMap = new HashMap<String, Object>();
+                hostPerfMaps.put(host, hostPerfMap);
+            }
+            for (Map.Entry<String, Object> perf : entry.getValue().entrySet()) {
+                float sum = getPerfValue(hostPerfMap, perf.getKey())
+                                + Float.parseFloat(perf.getValue().toString());
+                hostPerfMap.put(perf.getKey(), sum);
+            }
+        }
+        return hostPerfMaps;
     }
 
     /**
@@ -184,145 +778,194 @@ public class VimProbe implements IProbe {
      *
      * @param accountValues Map representing the values for the fields in the AccountDefintion
      *            required for discovering the target
+     * @param transport The transport of the connection.
      * @return A service instance of the target.
      */
-    protected ServiceInstance connectVC(Map<String, String> accountValues) {
+    protected ServiceInstance connectVC(Map<String, String> accountValues, VimTransport transport) {
         final String targetAddr = accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
         final String username = accountValues.get(USERNAME);
         final String password = accountValues.get(PASSWORD);
         final String url = "https://" + targetAddr + "/sdk";
-        int timeout = 60 * 1000; // 60sec timeout for connection
-        String namespace = ServiceInstance.VIM25_NAMESPACE;
-
-        ServiceInstance servInst = null;
 
         try {
-            servInst = new ServiceInstance(new URL(url), username, password, true, namespace);
-            servInst.getServerConnection().getVimService().getWsc().setConnectTimeout(timeout);
+            return transport.login(new URL(url), username, password);
         }
         catch (Exception e) {
             return null;
         }
-
-        return servInst;
     }
 
     /**
-     * Retrieve properties from VC and generate entity DTOs.
+     * Resume a session of a VC target.
      *
-     * @param moCls Managed object class name
-     * @param propPaths property paths for the managed object class
-     * @return An EntityDTO set representing the service entities for the managed object class.
+     * @param accountValues Map representing the values for the fields in the AccountDefintion
+     *            required for discovering the target
+     * @param sessionCookie The session cookie.
+     * @param transport The transport of the connection.
+     * @return A service instance of the target, not necessarily logged in.
      */
-    @SuppressWarnings("unchecked")
-    protected Set<EntityDTO> processManagedObject(String moCls, String[] propPaths) {
-        Set<EntityDTO> edSet = new HashSet<EntityDTO>();
-
-        // Create a data center
-        if (moCls.equals(SE_DC)) {
-            EntityDTO ed = null;
-            try {
-                ed = parseDatacenter(null, null);
-            }
-            catch (Exception e) {
-                logger.error("Failed parsing data center.");
-            }
-            edSet.add(ed);
-            return edSet;
-        }
+    protected ServiceInstance resumeVC(Map<String, String> accountValues, String sessionCookie,
+                    VimTransport transport) {
+        final String targetAddr = accountValues.get(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD);
+        final String url = "https://" + targetAddr + "/sdk";
 
-        // Get the managed object instances from the root node for class as specified
-        // in the first part of the class string (top level).
-        ManagedObject[] mos = null;
         try {
-            mos = new InventoryNavigator(si.getRootFolder()).searchManagedEntities(moCls);
+            return transport.resume(new URL(url), sessionCookie);
         }
         catch (Exception e) {
-            logger.error("Failed searching managed entitties.", e);
+            return null;
         }
-        if (mos.length == 0) {
-            return edSet;
+    }
+
+    /**
+     * Index the attributes of the hosts needed to parse the VMs.
+     *
+     * @param hosts The host records.
+     * @return The immutable host index.
+     */
+    protected HostIndex buildHostIndex(List<HostRecord> hosts) {
+        Map<String, Integer> cpuMhzMap = new HashMap<String, Integer>();
+        for (HostRecord host : hosts) {
+            if (host.getCpuMhz() > 0) {
+                cpuMhzMap.put(host.getMorVal(), host.getCpuMhz());
+            }
         }
+        return new HostIndex(cpuMhzMap);
+    }
 
-        // Retrieve properties from VC for the given list of managed entity instances
-        Hashtable<String, Object>[] pTables = null;
-        try {
-            pTables = PropertyCollectorUtil.retrieveProperties(mos, moCls, propPaths);
+    /**
+     * Build the entity DTO of an inventory record, reusing the cached DTO when the configuration
+     * of the entity has not changed since the last refresh. Only the used values of the reused
+     * DTO are patched, in place.
+     *
+     * @param record The inventory record
+     * @param hostIndex Attributes of the hosts
+     * @param perfMap Performance metrics of the object, null if not queried yet
+     * @param previous The cached topology
+     * @param reused Counts the reused DTOs.
+     * @return An EntityDTO representing the service entity.
+     */
+    private EntityDTO buildEntityDTO(InventoryRecord record, HostIndex hostIndex,
+                    Map<String, Object> perfMap, TopologyCache previous, AtomicInteger reused) {
+        EntityDTO ed = previous.getReusable(getEntityId(record),
+                        getDtoFingerprint(record, hostIndex));
+        if (ed == null) {
+            return generateEntityDTO(record, hostIndex, perfMap);
         }
-        catch (Exception e) {
-            logger.error("Failed retrieving properties.", e);
+        reused.incrementAndGet();
+        if (perfMap != null) {
+            patchUsed(ed, perfMap);
         }
+        patchStorageUsed(ed, record);
+        return ed;
+    }
 
-        // Generate Entity DTOs from the managed object references
-        int pTableLen = pTables.length;
-        for (int i = 0; i < pTableLen; i++) {
-            ManagedObjectReference mor = mos[i].getMOR();
-            EntityDTO ed = generateEntityDTO(mor, pTables[i]);
-            edSet.add(ed);
+    /**
+     * Patch the storage used values of an entity DTO from its inventory record. VMs buy
+     * StorageAmount and StorageProvisioned from each datastore they have files on, datastores
+     * sell them.
+     *
+     * @param ed The entity DTO.
+     * @param record The inventory record of the entity.
+     */
+    protected void patchStorageUsed(EntityDTO ed, InventoryRecord record) {
+        if (record instanceof VmRecord) {
+            for (VmRecord.DatastoreUsage usage : ((VmRecord)record).getDatastoreUsages()) {
+                float committed = (float)usage.getCommitted() / 1024 / 1024;
+                float uncommitted = (float)usage.getUncommitted() / 1024 / 1024;
+                TopologyCache.patchBoughtUsed(ed, usage.getDatastoreMorVal(),
+                                Commodity.StorageAmount, committed);
+                TopologyCache.patchBoughtUsed(ed, usage.getDatastoreMorVal(),
+                                Commodity.StorageProvisioned, committed + uncommitted);
+            }
+        } else if (record instanceof DatastoreRecord) {
+            DatastoreRecord datastore = (DatastoreRecord)record;
+            float used = (float)(datastore.getCapacity() - datastore.getFreeSpace()) / 1024 / 1024;
+            float provisioned = used + (float)datastore.getUncommitted() / 1024 / 1024;
+            TopologyCache.patchSoldUsed(ed, Commodity.StorageAmount, used);
+            TopologyCache.patchSoldUsed(ed, Commodity.StorageProvisioned, provisioned);
         }
+    }
 
-        return edSet;
+    /**
+     * @param record The inventory record
+     * @return The id of the entity DTO built from the record.
+     */
+    protected String getEntityId(InventoryRecord record) {
+        return record instanceof VmRecord ? ((VmRecord)record).getName() : record.getMorVal();
     }
 
     /**
-     * Parse ManagedObjectReference retrieved from VC. Now, only consider service entities:
-     * Datacenter, HostSystem, and VirtualMachine.
+     * Fingerprint of everything an entity DTO is built from, apart from the performance metrics.
+     * The DTO of a VM also depends on the CPU speed of its host.
      *
-     * @param mor ManagedObjectReference
-     * @param props Map of property and value for the mos object
+     * @param record The inventory record
+     * @param hostIndex Attributes of the hosts
+     * @return The configuration fingerprint of the entity DTO.
+     */
+    protected long getDtoFingerprint(InventoryRecord record, HostIndex hostIndex) {
+        if (!(record instanceof VmRecord)) {
+            return record.getFingerprint();
+        }
+        Integer coreMhz = hostIndex.getCpuMhz(((VmRecord)record).getHostMorVal());
+        return InventoryRecord.FINGERPRINT.newHasher().putLong(record.getFingerprint())
+                        .putInt(coreMhz != null ? coreMhz : 0).hash().asLong();
+    }
+
+    /**
+     * Parse an inventory record retrieved from VC. Now, only consider service entities:
+     * HostSystem, VirtualMachine, Datastore and Network.
+     *
+     * @param record The inventory record
+     * @param hostIndex Attributes of the hosts
+     * @param perfMap Performance metrics of the object, null if not queried yet
      * @return An EntityDTO representing the service entity.
      */
-    private EntityDTO
-                    generateEntityDTO(ManagedObjectReference mor, Hashtable<String, Object> props) {
+    private EntityDTO generateEntityDTO(InventoryRecord record, HostIndex hostIndex,
+                    Map<String, Object> perfMap) {
         EntityDTO ed = null;
-        String morType = mor.getType();
-        if (SE_VM.equals(morType)) {
-            ed = parseVM(mor, props);
-        } else if (SE_HOST.equals(morType)) {
-            ed = parseHost(mor, props);
-        } else if (SE_DC.equals(morType)) {
-            ed = parseDatacenter(mor, props);
+        if (record instanceof VmRecord) {
+            ed = parseVM((VmRecord)record, hostIndex, perfMap);
+        } else if (record instanceof HostRecord) {
+            ed = parseHost((HostRecord)record, perfMap);
+        } else if (record instanceof DatastoreRecord) {
+            ed = parseDatastore((DatastoreRecord)record);
+        } else if (record instanceof NetworkRecord) {
+            ed = parseNetwork((NetworkRecord)record);
         }
 
         return ed;
     }
 
     /**
-     * Parse VM ManagedObjectReference retrieved from VC
+     * Parse the record of a VM retrieved from VC
      *
-     * @param mor Managed object reference for the VM
-     * @param props Map of property and value for the mos object
+     * @param record The VM record
+     * @param hostIndex Attributes of the hosts
+     * @param perfMap Performance metrics of the VM, null if not queried yet
      * @return An EntityDTO representing the service entity of VM.
      */
-    public EntityDTO parseVM(ManagedObjectReference mor, Hashtable<String, Object> props) {
-        String vmName = props.get(PROPERTY_VM_NAME).toString();
-        Integer numCPU = (Integer)props.get(PROPERTY_VM_NUM_CPU);
-        Integer memory = (Integer)props.get(PROPERTY_VM_MEM_SIZE);
-        ManagedObjectReference hostMor = (ManagedObjectReference)props.get(PROPERTY_VM_HOST);
-        String hostName = hostMor.getVal();
-
-        // Query performance for "used" data of CPU and Memory
-        float cpuUsed = 0;
-        float memUsed = 0;
-        String[] counterNames = new String[] {METRIC_CPU_USED, METRIC_MEM_USED};
-        try {
-            Map<String, Object> perfMap = queryPerf(mor, counterNames);
-            if (perfMap != null && perfMap.size() > 0) {
-                cpuUsed = Float.parseFloat(perfMap.get(METRIC_CPU_USED).toString());
-                memUsed = Float.parseFloat(perfMap.get(METRIC_MEM_USED).toString()) / 1024; // in MB
-            }
-        }
-        catch (Exception e) {
-            logger.error("Error while parsing usage in VM: ", e);
-        }
+    public EntityDTO parseVM(VmRecord record, HostIndex hostIndex, Map<String, Object> perfMap) {
+        String vmName = record.getName();
+        int numCPU = record.getNumCpu();
+        int memory = record.getMemoryMB();
+        String hostName = record.getHostMorVal();
 
         // VCPU commodity
-        float coreMhz = (Integer)entityInfoMap.get(hostName).get(PROPERTY_HOST_CPU_MHZ);
+        Integer coreMhz = hostIndex.getCpuMhz(hostName);
+        if (coreMhz == null) {
+            logger.warn("CPU speed is not available for host " + hostName + " of VM " + vmName);
+            coreMhz = 0;
+        }
         float cpuCapacity = coreMhz * numCPU;
 
         // VMem commodity
         float memCapacity = memory;
 
+        // CPU and Mem used, refreshed by refreshUsage between topology refreshes
+        float cpuUsed = perfMap != null ? getPerfValue(perfMap, METRIC_CPU_USED) : 0;
+        float memUsed = perfMap != null ? getPerfValue(perfMap, METRIC_MEM_USED) / 1024 : 0; // in MB
+
         VirtualMachineBuilder vmb = new VirtualMachineBuilder(vmName);
         vmb.displayName(vmName)
         .vcpu(cpuCapacity, 1f, null)
@@ -331,54 +974,52 @@ public class VimProbe implements IProbe {
         .cpuBought(null, cpuUsed)
         .memBought(null, memUsed);
 
+        // Storage bought from each datastore the VM has files on
+        for (VmRecord.DatastoreUsage usage : record.getDatastoreUsages()) {
+            float committed = (float)usage.getCommitted() / 1024 / 1024;
+            float uncommitted = (float)usage.getUncommitted() / 1024 / 1024;
+            vmb.storage(usage.getDatastoreMorVal())
+            .storageAmountBought(null, committed)
+            .storageProvisionedBought(null, committed + uncommitted);
+        }
+
         EntityDTO vm = vmb.configure();
         return vm;
     }
 
     /**
-     * Parse the properties table for the Host managed object reference instance.
+     * Parse the record of a host retrieved from VC.
      *
-     * @param mor Managed object reference for Host
-     * @param props Map of property and value for the mos object
+     * @param host The host record
+     * @param perfMap Performance metrics of the host, null if not queried yet
      * @return An EntityDTO representing the service entity of host.
      */
-    public EntityDTO parseHost(ManagedObjectReference mor, Hashtable<String, Object> props) {
-        String name = mor.get_value();
-        Integer cpuMhz = (Integer)props.get(PROPERTY_HOST_CPU_MHZ);
-        Short numCpuThreads = (Short)props.get(PROPERTY_HOST_NUM_CPU_THREADS);
-        Long mem = (Long)props.get(PROPERTY_HOST_MEM_SIZE);
-        // Add the "summary.hardware.cpuMhz" information to the map
-        Map<String, Object> pmChildMap = new HashMap<String, Object>();
-        entityInfoMap.put(name, pmChildMap);
-        pmChildMap.put(PROPERTY_HOST_CPU_MHZ, cpuMhz);
-        String[] counterNames = new String[] {METRIC_CPU_USED, METRIC_MEM_USED};
+    public EntityDTO parseHost(HostRecord host, Map<String, Object> perfMap) {
+        String name = host.getMorVal();
+        int cpuMhz = host.getCpuMhz();
+        int numCpuThreads = host.getNumCpuThreads();
+        long mem = host.getMemorySize();
 
         final String displayName;
-        if(props.containsKey("name")) {
-            displayName = props.get("name").toString();
+        if (host.getName() != null) {
+            displayName = host.getName();
         } else {
             logger.warn("Display name is not available for host " + name);
             displayName = name;
         }
 
-        try {
-            Map<String, Object> perfMap = queryPerf(mor, counterNames);
-            if (perfMap != null && perfMap.size() > 0) {
-            }
-        }
-        catch (NumberFormatException e) {
-            logger.error("Error while parsing usage in PM: " + e.toString());
-        }
-
         // CPU commodity
         float cpuCapacity = cpuMhz * numCpuThreads;
         // Mem commodity
         float memCapacity = (float)mem / 1024 / 1024;
+        // CPU and Mem used, refreshed by refreshUsage between topology refreshes
+        float cpuUsed = perfMap != null ? getPerfValue(perfMap, METRIC_CPU_USED) : 0;
+        float memUsed = perfMap != null ? getPerfValue(perfMap, METRIC_MEM_USED) / 1024 : 0; // in MB
 
         PhysicalMachineBuilder pmb = new PhysicalMachineBuilder(name);
         pmb.displayName(displayName)
-        .mem(memCapacity, 1f, null)
-        .cpu(cpuCapacity, 1f, null)
+        .mem(memCapacity, memUsed, null)
+        .cpu(cpuCapacity, cpuUsed, null)
         // TODO DataCenter ID is hard coded
         .datacenter(SE_DC_ID)
         // TODO cooling,power,space capacity is still hard coded, see how to query these
@@ -391,6 +1032,47 @@ public class VimProbe implements IProbe {
         return pm;
     }//end parseHost
 
+    /**
+     * Parse the record of a datastore retrieved from VC.
+     *
+     * @param datastore The datastore record
+     * @return An EntityDTO representing the service entity of storage.
+     */
+    public EntityDTO parseDatastore(DatastoreRecord datastore) {
+        String name = datastore.getMorVal();
+        String displayName = datastore.getName() != null ? datastore.getName() : name;
+
+        // StorageAmount and StorageProvisioned commodities, in MB
+        float capacity = (float)datastore.getCapacity() / 1024 / 1024;
+        float used = (float)(datastore.getCapacity() - datastore.getFreeSpace()) / 1024 / 1024;
+        float provisioned = used + (float)datastore.getUncommitted() / 1024 / 1024;
+
+        StorageBuilder stb = new StorageBuilder(name);
+        stb.displayName(displayName)
+        .storageAmount(capacity, used, null)
+        .storageProvisioned(capacity, provisioned, null);
+
+        EntityDTO st = stb.configure();
+        return st;
+    }//end parseDatastore
+
+    /**
+     * Parse the record of a network retrieved from VC.
+     *
+     * @param network The network record
+     * @return An EntityDTO representing the service entity of network.
+     */
+    public EntityDTO parseNetwork(NetworkRecord network) {
+        String name = network.getMorVal();
+        String displayName = network.getName() != null ? network.getName() : name;
+
+        EntityDTO nt = new EntityBuilder()
+        .entity(Entity.Network, name)
+        .displayName(displayName)
+        .configure();
+        return nt;
+    }//end parseNetwork
+
     /**
      * Parse the properties table for the DataCenter managed object reference instance.
      *
@@ -412,27 +1094,23 @@ public class VimProbe implements IProbe {
     }//end parseDatacenter
 
     /**
-     * Reset countersInfoMap and countersIdMap.
-     */
-    protected void resetPerfCounterMaps() {
-        countersInfoMap.clear();
-        countersIdMap.clear();
-    }
-
-    /**
-     * Load countersInfoMap and countersIdMap.
+     * Reload the performance counter catalogue of a target.
      *
-     * @param perfMgr the Performance Manager for the VC target.
+     * @param context The context of the target.
      */
-    protected void loadPerfCounterMaps(PerformanceManager perfMgr) {
-        PerfCounterInfo[] perfCounters = perfMgr.getPerfCounter();
-        // Cycle through the PerfCounterInfo objects and load the maps.
-        for (PerfCounterInfo perfCounter : perfCounters) {
-            Integer counterId = new Integer(perfCounter.getKey());
-            countersInfoMap.put(counterId, perfCounter);
-
-            String fullCounterName = getCounterName(perfCounter);
-            countersIdMap.put(fullCounterName, counterId);
+    protected void loadPerfCounterMaps(TargetContext context) {
+        context.resetPerfCounters();
+        if (!context.checkDeadline()) {
+            context.skipped("performance counters");
+            return;
+        }
+        try (DiscoveryMetrics.Scope scope = context.getMetrics().begin(
+                        DiscoveryMetrics.Phase.PERF)) {
+            PerfCounterInfo[] perfCounters = context.getPerformanceManager().getPerfCounter();
+            // Cycle through the PerfCounterInfo objects and load the maps.
+            for (PerfCounterInfo perfCounter : perfCounters) {
+                context.putPerfCounter(getCounterName(perfCounter), perfCounter.getKey());
+            }
         }
     }
 
@@ -452,25 +1130,26 @@ public class VimProbe implements IProbe {
     }
 
     /**
-     * Get the counter full name from a counter ID. countersInfoMap is used to get the corresponding
-     * PerfCounterInfo object.
+     * Get the counter full name from a counter ID, from the counter catalogue of the target.
      *
+     * @param context The context of the target.
      * @param counterId Counter ID.
      * @return The counter full name.
      */
-    protected String getCounterName(int counterId) {
-        PerfCounterInfo perfCounter = countersInfoMap.get(counterId);
-        return getCounterName(perfCounter);
+    protected String getCounterName(TargetContext context, int counterId) {
+        return context.getCounterName(counterId);
     }
 
     /**
      * Create a performance query specification.
      *
+     * @param context The context of the target.
      * @param mor Managed object reference.
      * @param counterNames The name list of performance metrics.
      * @return The performance query specification.
      */
-    protected PerfQuerySpec createPerfQuerySpec(ManagedObjectReference mor, String[] counterNames) {
+    protected PerfQuerySpec createPerfQuerySpec(TargetContext context, ManagedObjectReference mor,
+                    String[] counterNames) {
         // Create PerfMetricIds for each counter.
         PerfMetricId[] perfMetricIds = new PerfMetricId[counterNames.length];
 
@@ -480,7 +1159,7 @@ public class VimProbe implements IProbe {
             PerfMetricId metricId = new PerfMetricId();
 
             // Get the ID for this counter.
-            int counterId = countersIdMap.get(counterNames[i]);
+            int counterId = context.getCounterId(counterNames[i]);
             metricId.setCounterId(counterId);
             metricId.setInstance("*");
             perfMetricIds[i] = metricId;
@@ -490,6 +1169,7 @@ public class VimProbe implements IProbe {
         PerfQuerySpec pqs = new PerfQuerySpec();
         pqs.setEntity(mor);
         pqs.setIntervalId(300); // Set sampling period as 300 seconds
+        pqs.setMaxSample(1); // Only the latest sample is used
         pqs.setFormat("normal");
         pqs.setMetricId(perfMetricIds);
 
@@ -499,64 +1179,171 @@ public class VimProbe implements IProbe {
     /**
      * Retrieve the performance metrics.
      *
+     * @param context The context of the target.
      * @param mor Managed object reference.
      * @param counterNames The name list of performance metrics.
      * @return The performance map of values of performance metrics, indexed by counter names.
      */
-    public Map<String, Object> queryPerf(ManagedObjectReference mor, String[] counterNames) {
-        // The performance map.
-        Map<String, Object> perfMap = new HashMap<String, Object>();
+    public Map<String, Object> queryPerf(TargetContext context, ManagedObjectReference mor,
+                    String[] counterNames) {
+        Map<String, Object> perfMap = queryPerf(context, Collections.singletonList(mor),
+                        counterNames, 1).get(mor.getVal());
+        return perfMap != null ? perfMap : new HashMap<String, Object>();
+    }
 
-        // Create the performance query specification for this MOR.
-        PerfQuerySpec querySpec = createPerfQuerySpec(mor, counterNames);
-        PerfQuerySpec[] pqs = new PerfQuerySpec[] {querySpec};
+    /**
+     * Retrieve the performance metrics of several managed objects, querying at most
+     * {@code batchSize} of them in a single call to the performance manager.
+     *
+     * @param context The context of the target.
+     * @param mors Managed object references.
+     * @param counterNames The name list of performance metrics.
+     * @param batchSize Max number of managed objects per query.
+     * @return The performance maps of values of performance metrics, indexed by counter names,
+     *         indexed by managed object reference value.
+     */
+    public Map<String, Map<String, Object>> queryPerf(TargetContext context,
+                    List<ManagedObjectReference> mors, String[] counterNames, int batchSize) {
+        Map<String, Map<String, Object>> perfMaps = new HashMap<String, Map<String, Object>>();
 
         List<PerfEntityMetricBase[]> pems_list = new ArrayList<PerfEntityMetricBase[]>();
+        int skipped = 0;
+        for (int start = 0; start < mors.size(); start += batchSize) {
+            // Create the performance query specifications for this batch of MORs.
+            List<ManagedObjectReference> batch = mors.subList(start,
+                            Math.min(start + batchSize, mors.size()));
+            if (!context.checkDeadline()) {
+                skipped += batch.size();
+                continue;
+            }
+            PerfQuerySpec[] pqs = new PerfQuerySpec[batch.size()];
+            for (int i = 0; i < pqs.length; i++) {
+                pqs[i] = createPerfQuerySpec(context, batch.get(i), counterNames);
+            }
 
-        try {
-            // Performance query with the performance manager.
-            PerfEntityMetricBase[] pems = perfMgr.queryPerf(pqs);
-            if (pems != null) {
-                pems_list.add(pems);
+            try {
+                // Performance query with the performance manager.
+                PerfEntityMetricBase[] pems = context.getPerformanceManager().queryPerf(pqs);
+                if (pems != null) {
+                    pems_list.add(pems);
+                }
+            }
+            catch (Exception e) {
+                logger.error("Performance query error: ", e);
+                context.remoteCallFailed("performance metrics of " + batch.size() + " entities");
             }
         }
-        catch (Exception e) {
-            logger.error("Performance query error: ", e);
+        if (skipped > 0) {
+            context.skipped("performance metrics of " + skipped + " entities");
         }
 
         // Retrieve the values of performance metrics from the query results.
         for (PerfEntityMetricBase[] pems : pems_list) {
             for (PerfEntityMetricBase pemb : pems) {
-                PerfEntityMetric pem1 = (PerfEntityMetric)pemb;
-                PerfMetricSeries[] pmsList = pem1.getValue();
-                if (pmsList == null)
-                 {
-                    continue; // No data available
+                putPerfMap(context, perfMaps, pemb);
+            }
+        }
+        return perfMaps;
+    }
+
+    /**
+     * Retrieve the performance metrics of hosts and of their VMs, with one QueryPerfComposite call
+     * per host.
+     *
+     * @param context The context of the target.
+     * @param hostMors Managed object references of the hosts.
+     * @param counterNames The name list of performance metrics.
+     * @return The performance maps of values of performance metrics, indexed by counter names,
+     *         indexed by managed object reference value of the hosts and VMs.
+     */
+    public Map<String, Map<String, Object>> queryPerfComposite(TargetContext context,
+                    List<ManagedObjectReference> hostMors, String[] counterNames) {
+        Map<String, Map<String, Object>> perfMaps = new HashMap<String, Map<String, Object>>();
+        int skipped = 0;
+        for (ManagedObjectReference hostMor : hostMors) {
+            if (!context.checkDeadline()) {
+                skipped++;
+                continue;
+            }
+            try {
+                PerfCompositeMetric pcm = context.getPerformanceManager().queryPerfComposite(
+                                createPerfQuerySpec(context, hostMor, counterNames));
+                if (pcm == null) {
+                    continue;
                 }
-                for (PerfMetricSeries pms : pmsList) {
-                    PerfMetricIntSeries pmis = (PerfMetricIntSeries)pms;
+                if (pcm.getEntity() != null) {
+                    putPerfMap(context, perfMaps, pcm.getEntity());
+                }
+                if (pcm.getChildEntity() != null) {
+                    for (PerfEntityMetricBase child : pcm.getChildEntity()) {
+                        putPerfMap(context, perfMaps, child);
+                    }
+                }
+            }
+            catch (Exception e) {
+                logger.error("Composite performance query error for host " + hostMor.getVal(), e);
+                context.remoteCallFailed("performance metrics of host " + hostMor.getVal());
+            }
+        }
+        if (skipped > 0) {
+            context.skipped("performance metrics of " + skipped + " hosts and their VMs");
+        }
+        return perfMaps;
+    }
 
-                    // Get the counter name.
-                    Integer counterId = pmis.getId().getCounterId();
-                    String fullCounterName = getCounterName(counterId);
+    /**
+     * Add the latest values of an entity's performance metrics to a set of performance maps.
+     *
+     * @param context The context of the target.
+     * @param perfMaps The performance maps, indexed by managed object reference value.
+     * @param pemb The performance metrics of the entity.
+     */
+    private void putPerfMap(TargetContext context, Map<String, Map<String, Object>> perfMaps,
+                    PerfEntityMetricBase pemb) {
+        PerfEntityMetric pem1 = (PerfEntityMetric)pemb;
+        PerfMetricSeries[] pmsList = pem1.getValue();
+        if (pmsList == null) {
+            return; // No data available
+        }
+        Map<String, Object> perfMap = new HashMap<String, Object>();
+        perfMaps.put(pem1.getEntity().getVal(), perfMap);
+        DiscoveryMetrics.recordObjects(1);
+        for (PerfMetricSeries pms : pmsList) {
+            PerfMetricIntSeries pmis = (PerfMetricIntSeries)pms;
+            DiscoveryMetrics.recordSamples(pmis.getValue().length);
 
-                    // Get the performance value
-                    Object perf = pmis.getValue()[pmis.getValue().length - 1];
+            // Get the counter name.
+            Integer counterId = pmis.getId().getCounterId();
+            String fullCounterName = getCounterName(context, counterId);
 
-                    perfMap.put(fullCounterName, perf);
-                }
-            }
+            // Get the performance value
+            Object perf = pmis.getValue()[pmis.getValue().length - 1];
+
+            perfMap.put(fullCounterName, perf);
         }
-        return perfMap;
+    }
+
+    /**
+     * Get the value of a performance metric from a performance map.
+     *
+     * @param perfMap The performance map, indexed by counter names.
+     * @param counterName The name of the performance metric.
+     * @return The value of the metric, 0 if it is not in the map.
+     */
+    protected float getPerfValue(Map<String, Object> perfMap, String counterName) {
+        Object perf = perfMap.get(counterName);
+        return perf != null ? Float.parseFloat(perf.toString()) : 0;
     }
 
     /**
      * Get the supply chain for this probe.
      *
-     * The probe creates a Datacenter contains multiple PMs with multiple VMs hosted on them.
+     * The probe creates a Datacenter contains multiple PMs with multiple VMs hosted on them, and
+     * the storages and networks the PMs are connected to.
      *
      * Buying / Selling relationship between service entities: Data centers sell commodities to
-     * hosts. Hosts sell commodities to virtual machines.
+     * hosts. Hosts sell commodities to virtual machines. Storages sell commodities to virtual
+     * machines.
      *
      * @return A set of template DTOs for this probe.
      */
@@ -584,6 +1371,16 @@ public class VimProbe implements IProbe {
         .selling(Commodity.Power)
         .selling(Commodity.Cooling);
 
+        // Storage
+        SupplyChainNodeBuilder stNode = new SupplyChainNodeBuilder()
+        .entity(Entity.Storage)
+        .selling(Commodity.StorageAmount)
+        .selling(Commodity.StorageProvisioned);
+
+        // Network
+        SupplyChainNodeBuilder ntNode = new SupplyChainNodeBuilder()
+        .entity(Entity.Network);
+
      // Link from VM to PM
         SupplyChainLinkBuilder vm2pm = new SupplyChainLinkBuilder();
         vm2pm.link(Entity.VirtualMachine, Entity.PhysicalMachine, ProviderType.HOSTING)
@@ -591,6 +1388,13 @@ public class VimProbe implements IProbe {
             .commodity(Commodity.Mem);
         EntityLink top2pmLink = vm2pm.build();
 
+     // Link from VM to ST
+        SupplyChainLinkBuilder vm2st = new SupplyChainLinkBuilder();
+        vm2st.link(Entity.VirtualMachine, Entity.Storage, ProviderType.LAYEREDOVER)
+            .commodity(Commodity.StorageAmount)
+            .commodity(Commodity.StorageProvisioned);
+        EntityLink top2stLink = vm2st.build();
+
      // Link from PM to DC
         SupplyChainLinkBuilder pm2dc = new SupplyChainLinkBuilder();
         pm2dc.link(Entity.PhysicalMachine, Entity.DataCenter,ProviderType.HOSTING)
@@ -602,9 +1406,13 @@ public class VimProbe implements IProbe {
         // Top Node - Connect VM to PM
         scb.top(top)
         .connectsTo(pmNode, top2pmLink)
+        .connectsTo(stNode, top2stLink)
         // Next Node - Connect PM to DC
         .entity(pmNode)
         .connectsTo(dcNode, pm2dcLink)
+        // Next Nodes - no more connections
+        .entity(stNode)
+        .entity(ntNode)
         // Last Node
         .entity(dcNode);
 
@@ -633,11 +1441,82 @@ public class VimProbe implements IProbe {
     @Override
     public TargetValidationResponse validateTarget(Map<String, String> accountValues) {
         logger.info("Validate Target");
-        if (connectVC(accountValues) != null) {
+        if (connectVC(accountValues, new VimTransport(VimProbeConfig.get(
+                        accountValues.get(AccountDefinitionEntry.TARGET_IDENTIFIER)))) != null) {
             return TargetValidationResponse.createOkResponse();
         } else {
             return TargetValidationResponse.createFailedResponse(new ErrorDTO(
                             ErrorSeverity.CRITICAL, "Connection Failed"));
         }
     }
+
+    /**
+     * Item passed between the stages of the VM discovery pipeline: a page, then a batch of VM
+     * records and, once queried, their performance metrics.
+     */
+    protected static class PipelineBatch {
+        final List<VmRecord> vms;
+        Map<String, Map<String, Object>> perfMaps = Collections.emptyMap();
+
+        PipelineBatch(List<VmRecord> vms) {
+            this.vms = vms;
+        }
+    }
+
+    /**
+     * Build the entity DTOs of a range of inventory records, splitting the range among the workers
+     * of the fork-join pool. The DTOs are returned in the order of the records. Cached DTOs are
+     * reused when their configuration fingerprint matches.
+     */
+    private class BuildEntityDTOsTask extends RecursiveTask<List<EntityDTO>> {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Number of managed objects under which a range is built by a single worker.
+         */
+        private static final int THRESHOLD = 100;
+
+        private final List<? extends InventoryRecord> records;
+        private final int from;
+        private final int to;
+        private final HostIndex hostIndex;
+        private final Map<String, Map<String, Object>> perfMaps;
+        private final TopologyCache previous;
+        private final AtomicInteger reused;
+
+        BuildEntityDTOsTask(List<? extends InventoryRecord> records, int from, int to,
+                        HostIndex hostIndex, Map<String, Map<String, Object>> perfMaps,
+                        TopologyCache previous, AtomicInteger reused) {
+            this.records = records;
+            this.from = from;
+            this.to = to;
+            this.hostIndex = hostIndex;
+            this.perfMaps = perfMaps;
+            this.previous = previous;
+            this.reused = reused;
+        }
+
+        @Override
+        protected List<EntityDTO> compute() {
+            if (to - from <= THRESHOLD) {
+                List<EntityDTO> edList = new ArrayList<EntityDTO>(to - from);
+                for (int i = from; i < to; i++) {
+                    InventoryRecord record = records.get(i);
+                    edList.add(buildEntityDTO(record, hostIndex, perfMaps.get(record.getMorVal()),
+                                    previous, reused));
+                }
+                return edList;
+            }
+            int middle = (from + to) >>> 1;
+            BuildEntityDTOsTask left = new BuildEntityDTOsTask(records, from, middle, hostIndex,
+                            perfMaps, previous, reused);
+            BuildEntityDTOsTask right = new BuildEntityDTOsTask(records, middle, to, hostIndex,
+                            perfMaps, previous, reused);
+            left.fork();
+            List<EntityDTO> edList = right.compute();
+            edList.addAll(0, left.join());
+            return edList;
+        }
+    }
 }
@@ -0,0 +1,384 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tuning properties of the VimProbe.
+ *
+ * The values are loaded from the default.properties file on the probe class path. A target can
+ * override any of them with a Properties file named after its target identifier, for example
+ * "exampleTarget.properties", located under $catalinaBase/webapps/MediationContainer/probe-jars.
+ *
+ * The configuration of each target is cached by {@link #get}, and loaded again only when the
+ * Properties file of the target is created, changed or removed.
+ */
+public class VimProbeConfig {
+
+    static final String TOPOLOGY_REFRESH_INTERVAL_SEC = "topologyRefreshIntervalSec";
+    static final String METRICS_REFRESH_INTERVAL_SEC = "metricsRefreshIntervalSec";
+    static final String PERF_QUERY_BATCH_SIZE = "perfQueryBatchSize";
+    static final String USE_COMPOSITE_PERF_QUERY = "useCompositePerfQuery";
+    static final String MAX_CONCURRENT_DISCOVERIES = "maxConcurrentDiscoveries";
+    static final String TARGET_IDLE_SEC = "targetIdleSec";
+    static final String DISCOVERY_DEADLINE_SEC = "discoveryDeadlineSec";
+    static final String PROPERTY_PAGE_SIZE = "propertyPageSize";
+    static final String PIPELINE_QUEUE_CAPACITY = "pipelineQueueCapacity";
+    static final String SNAPSHOT_DIR = "snapshotDir";
+    static final String SESSION_TIMEOUT_SEC = "sessionTimeoutSec";
+    static final String MAX_CONCURRENT_PARTITIONS = "maxConcurrentPartitions";
+    static final String CONNECT_TIMEOUT_SEC = "connectTimeoutSec";
+    static final String READ_TIMEOUT_SEC = "readTimeoutSec";
+    static final String COMPRESS_RESPONSES = "compressResponses";
+    static final String TRANSPORT_BUFFER_SIZE = "transportBufferSize";
+    static final String MAX_KEEP_ALIVE_CONNECTIONS = "maxKeepAliveConnections";
+    static final String MAX_ACTION_SESSIONS = "maxActionSessions";
+    static final String ACTION_SESSION_WAIT_SEC = "actionSessionWaitSec";
+    static final String SESSION_HEALTH_CHECK_SEC = "sessionHealthCheckSec";
+    static final String ACTION_SESSION_IDLE_SEC = "actionSessionIdleSec";
+    static final String ACTION_THREADS = "actionThreads";
+    static final String MAX_CONCURRENT_ACTIONS = "maxConcurrentActions";
+    static final String MAX_ACTIONS_PER_HOST = "maxActionsPerHost";
+    static final String MAX_ACTIONS_PER_CLUSTER = "maxActionsPerCluster";
+    static final String MAX_MIGRATIONS_PER_HOST = "maxMigrationsPerHost";
+    static final String MAX_MIGRATIONS_PER_TARGET = "maxMigrationsPerTarget";
+    static final String PROGRESS_INTERVAL_SEC = "progressIntervalSec";
+    static final String PROGRESS_HEARTBEAT_SEC = "progressHeartbeatSec";
+
+    private static final String DEFAULT_PROPERTIES = "default.properties";
+
+    private static final Logger logger = Logger.getLogger(VimProbeConfig.class);
+
+    /**
+     * Key of the configuration of no target in {@link #cache}.
+     */
+    private static final String NO_TARGET = "";
+
+    /**
+     * Configurations loaded, indexed by target identifier.
+     */
+    private static final ConcurrentMap<String, VimProbeConfig> cache = new ConcurrentHashMap<String, VimProbeConfig>();
+
+    private final Properties props;
+
+    /**
+     * Last modification time of the Properties file of the target when it was loaded, 0 if there
+     * was none.
+     */
+    private final long modified;
+
+    VimProbeConfig(Properties props) {
+        this(props, 0);
+    }
+
+    private VimProbeConfig(Properties props, long modified) {
+        this.props = props;
+        this.modified = modified;
+    }
+
+    /**
+     * Get the configuration for a target, loading it only if it is not cached, or its Properties
+     * file changed since it was.
+     *
+     * @param targetID the unique identifier given to the target, may be null
+     * @return The configuration of the target.
+     */
+    public static VimProbeConfig get(String targetID) {
+        String key = targetID != null ? targetID.trim() : NO_TARGET;
+        File file = getTargetFile(targetID);
+        long modified = file != null ? file.lastModified() : 0;
+        VimProbeConfig config = cache.get(key);
+        if (config == null || config.modified != modified) {
+            config = load(targetID);
+            cache.put(key, config);
+        }
+        return config;
+    }
+
+    /**
+     * Load the configuration for a target. The target specific Properties file, if any, overrides
+     * the values of the default Properties file.
+     *
+     * @param targetID the unique identifier given to the target, may be null
+     * @return The configuration of the target.
+     */
+    public static VimProbeConfig load(String targetID) {
+        Properties defaults = new Properties();
+        try (InputStream inputStream = VimProbeConfig.class.getClassLoader()
+                        .getResourceAsStream(DEFAULT_PROPERTIES)) {
+            if (inputStream == null) {
+                logger.error("Property file '" + DEFAULT_PROPERTIES + "' not found in the classpath");
+            } else {
+                defaults.load(inputStream);
+            }
+        }
+        catch (Exception e) {
+            logger.error("Exception while loading " + DEFAULT_PROPERTIES, e);
+        }
+
+        Properties props = new Properties(defaults);
+        File file = getTargetFile(targetID);
+        long modified = file != null ? file.lastModified() : 0;
+        if (file != null && file.exists()) {
+            try (InputStream inputStream = new FileInputStream(file)) {
+                props.load(inputStream);
+            }
+            catch (Exception e) {
+                logger.error("Exception while loading " + file, e);
+            }
+        }
+        return new VimProbeConfig(props, modified);
+    }
+
+    /**
+     * @param targetID the unique identifier given to the target, may be null
+     * @return The Properties file of the target, which may not exist, null if there is none.
+     */
+    private static File getTargetFile(String targetID) {
+        String catalinaBase = System.getProperty("catalina.base");
+        if (targetID == null || catalinaBase == null) {
+            return null;
+        }
+        return new File(new File(catalinaBase).getAbsoluteFile(),
+                        "webapps/MediationContainer/probe-jars/" + targetID.trim() + ".properties");
+    }
+
+    /**
+     * @return Interval between two full topology refreshes, in milliseconds.
+     */
+    public long getTopologyRefreshIntervalMs() {
+        return getLong(TOPOLOGY_REFRESH_INTERVAL_SEC, 600) * 1000;
+    }
+
+    /**
+     * @return Interval between two metrics-only refreshes, in milliseconds.
+     */
+    public long getMetricsRefreshIntervalMs() {
+        return getLong(METRICS_REFRESH_INTERVAL_SEC, 60) * 1000;
+    }
+
+    /**
+     * @return Max number of entities queried in a single QueryPerf call.
+     */
+    public int getPerfQueryBatchSize() {
+        return (int)Math.max(1, getLong(PERF_QUERY_BATCH_SIZE, 100));
+    }
+
+    /**
+     * @return true to query the metrics of each host and its VMs with a single QueryPerfComposite
+     *         call, false to query the VMs in batches and sum their samples per host.
+     */
+    public boolean useCompositePerfQuery() {
+        return Boolean.parseBoolean(props.getProperty(USE_COMPOSITE_PERF_QUERY, "false").trim());
+    }
+
+    /**
+     * @return Max number of targets discovered at the same time by the probe.
+     */
+    public int getMaxConcurrentDiscoveries() {
+        return (int)Math.max(1, getLong(MAX_CONCURRENT_DISCOVERIES, 8));
+    }
+
+    /**
+     * @return Time after which the state kept for a target that is no longer discovered is
+     *         dropped, in milliseconds.
+     */
+    public long getTargetIdleMs() {
+        return Math.max(60, getLong(TARGET_IDLE_SEC, 3600)) * 1000;
+    }
+
+    /**
+     * @return Time budget of a discovery, in milliseconds.
+     */
+    public long getDiscoveryDeadlineMs() {
+        return getLong(DISCOVERY_DEADLINE_SEC, 540) * 1000;
+    }
+
+    /**
+     * @return Max number of managed objects returned by one page of RetrievePropertiesEx.
+     */
+    public int getPropertyPageSize() {
+        return (int)Math.max(1, getLong(PROPERTY_PAGE_SIZE, 500));
+    }
+
+    /**
+     * @return Number of items queued in front of each stage of the discovery pipeline.
+     */
+    public int getPipelineQueueCapacity() {
+        return (int)Math.max(1, getLong(PIPELINE_QUEUE_CAPACITY, 4));
+    }
+
+    /**
+     * @return Max number of compute resources of a target traversed at the same time.
+     */
+    public int getMaxConcurrentPartitions() {
+        return (int)Math.max(1, getLong(MAX_CONCURRENT_PARTITIONS, 4));
+    }
+
+    /**
+     * @return Connect timeout of the SOAP calls, in milliseconds.
+     */
+    public int getConnectTimeoutMs() {
+        return (int)Math.max(1, getLong(CONNECT_TIMEOUT_SEC, 60)) * 1000;
+    }
+
+    /**
+     * @return Read timeout of each SOAP call, in milliseconds, 0 for none.
+     */
+    public int getReadTimeoutMs() {
+        return (int)Math.max(0, getLong(READ_TIMEOUT_SEC, 300)) * 1000;
+    }
+
+    /**
+     * @return true to ask the target for gzip compressed SOAP responses.
+     */
+    public boolean isCompressResponses() {
+        return Boolean.parseBoolean(props.getProperty(COMPRESS_RESPONSES, "true").trim());
+    }
+
+    /**
+     * @return Size of the buffers reading the SOAP responses, in bytes.
+     */
+    public int getTransportBufferSize() {
+        return (int)Math.max(1024, getLong(TRANSPORT_BUFFER_SIZE, 65536));
+    }
+
+    /**
+     * @return Max number of idle keep-alive connections kept per target.
+     */
+    public int getMaxKeepAliveConnections() {
+        return (int)Math.max(1, getLong(MAX_KEEP_ALIVE_CONNECTIONS, 8));
+    }
+
+    /**
+     * @return Max number of sessions the actions of a target run in at the same time.
+     */
+    public int getMaxActionSessions() {
+        return (int)Math.max(1, getLong(MAX_ACTION_SESSIONS, 4));
+    }
+
+    /**
+     * @return Max time an action waits for a session of its target, in milliseconds.
+     */
+    public long getActionSessionWaitMs() {
+        return Math.max(0, getLong(ACTION_SESSION_WAIT_SEC, 300)) * 1000;
+    }
+
+    /**
+     * @return Idle time after which a pooled session is checked before it is reused, in
+     *         milliseconds, 0 to check it every time.
+     */
+    public long getSessionHealthCheckMs() {
+        return Math.max(0, getLong(SESSION_HEALTH_CHECK_SEC, 60)) * 1000;
+    }
+
+    /**
+     * @return Idle time after which a pooled session is logged out, in milliseconds.
+     */
+    public long getActionSessionIdleMs() {
+        return Math.max(1, getLong(ACTION_SESSION_IDLE_SEC, 600)) * 1000;
+    }
+
+    /**
+     * @return Number of threads running the actions.
+     */
+    public int getActionThreads() {
+        return (int)Math.max(1, getLong(ACTION_THREADS, 4));
+    }
+
+    /**
+     * @return Max number of actions run at the same time by the probe.
+     */
+    public int getMaxConcurrentActions() {
+        return (int)Math.max(1, getLong(MAX_CONCURRENT_ACTIONS, 16));
+    }
+
+    /**
+     * @return Max number of actions run at the same time on one host.
+     */
+    public int getMaxActionsPerHost() {
+        return (int)Math.max(1, getLong(MAX_ACTIONS_PER_HOST, 4));
+    }
+
+    /**
+     * @return Max number of actions run at the same time in one cluster.
+     */
+    public int getMaxActionsPerCluster() {
+        return (int)Math.max(1, getLong(MAX_ACTIONS_PER_CLUSTER, 8));
+    }
+
+    /**
+     * @return Max number of vMotions run at the same time on one host, as source or destination.
+     */
+    public int getMaxMigrationsPerHost() {
+        return (int)Math.max(1, getLong(MAX_MIGRATIONS_PER_HOST, 8));
+    }
+
+    /**
+     * @return Max number of vMotions run at the same time on one target.
+     */
+    public int getMaxMigrationsPerTarget() {
+        return (int)Math.max(1, getLong(MAX_MIGRATIONS_PER_TARGET, 32));
+    }
+
+    /**
+     * @return Min time between two progress updates of an action, in milliseconds.
+     */
+    public long getProgressIntervalMs() {
+        return Math.max(0, getLong(PROGRESS_INTERVAL_SEC, 1)) * 1000;
+    }
+
+    /**
+     * @return Max time between two progress updates of an action, in milliseconds. The server
+     *         expects an update at least every 30 seconds.
+     */
+    public long getProgressHeartbeatMs() {
+        return Math.min(29, Math.max(1, getLong(PROGRESS_HEARTBEAT_SEC, 20))) * 1000;
+    }
+
+    /**
+     * @return Directory of the warm-start snapshots, null if snapshots are disabled.
+     */
+    public File getSnapshotDir() {
+        String dir = props.getProperty(SNAPSHOT_DIR, "").trim();
+        if (!dir.isEmpty()) {
+            return new File(dir);
+        }
+        String catalinaBase = System.getProperty("catalina.base");
+        return catalinaBase != null ? new File(catalinaBase, "work/vimProbe") : null;
+    }
+
+    /**
+     * @return Idle timeout of the sessions of the target, in milliseconds.
+     */
+    public long getSessionTimeoutMs() {
+        return Math.max(1, getLong(SESSION_TIMEOUT_SEC, 1800)) * 1000;
+    }
+
+    /**
+     * Get a numeric property.
+     *
+     * @param key Name of the property.
+     * @param defaultValue Value used if the property is missing or can not be parsed.
+     * @return The value of the property.
+     */
+    protected long getLong(String key, long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            logger.error(key + " value can NOT be parsed to a number: " + value);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,607 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.log4j.Logger;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.ws.WSClient;
+
+/**
+ * SOAP transport settings of the connections to a VC target.
+ *
+ * vijava posts each call with a new {@link HttpURLConnection} to the base URL of its web-service
+ * client. The transport sets the timeouts of the client and replaces its base URL by one whose
+ * connections count the calls and the bytes on the wire in the {@link DiscoveryMetrics} of the
+ * current phase and, when compression is on, ask for gzip responses and inflate them as vijava
+ * parses them. When vijava closes a response, the rest of it is drained, so the JDK returns the
+ * connection to its keep-alive cache, which keeps up to {@code http.maxConnections} idle
+ * connections per host.
+ *
+ * While a discovery is in progress, the read timeout of each call is lowered to the time left
+ * before the deadline of the discovery, without changing the timeout of the web-service client
+ * shared by the threads of the discovery.
+ *
+ * The login call is made by the ServiceInstance constructor, before the transport is applied, so
+ * it is never compressed, and is counted without its bytes; it is small. The constructor runs on
+ * a login thread, which is waited for until the deadline of the discovery, if any: a login that
+ * completes after it is logged out.
+ */
+public class VimTransport {
+
+    private static final String KEEP_ALIVE_CONNECTIONS_PROPERTY = "http.maxConnections";
+
+    private static final Logger logger = Logger.getLogger(VimTransport.class);
+
+    /**
+     * true once a transport has opened a connection: the JDK has read
+     * {@code http.maxConnections} by then, or will at the first connection returned to its cache.
+     */
+    private static final AtomicBoolean connectionOpened = new AtomicBoolean(false);
+
+    /**
+     * Runs the logins and session resumes made while a deadline is set.
+     */
+    private static final ListeningExecutorService loginExecutor = MoreExecutors.listeningDecorator(
+                    Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+                                    .setNameFormat("vim-login-%d").setDaemon(true).build()));
+
+    private final boolean compress;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+    private final int bufferSize;
+
+    /**
+     * If non-null, the deadline of the discovery in progress.
+     */
+    private volatile DiscoveryDeadline deadline;
+
+    /**
+     * @param config The configuration of the target.
+     */
+    public VimTransport(VimProbeConfig config) {
+        this(config.isCompressResponses(), config.getConnectTimeoutMs(),
+                        config.getReadTimeoutMs(), config.getTransportBufferSize());
+    }
+
+    /**
+     * @param compress true to ask for gzip compressed responses.
+     * @param connectTimeoutMs Connect timeout, in milliseconds.
+     * @param readTimeoutMs Read timeout of each call, in milliseconds, 0 for none.
+     * @param bufferSize Size of the buffers reading the responses, in bytes.
+     */
+    public VimTransport(boolean compress, int connectTimeoutMs, int readTimeoutMs, int bufferSize) {
+        this.compress = compress;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Set the number of idle keep-alive connections the JDK keeps per host, unless it is set on
+     * the command line. The JDK reads it once, when its keep-alive cache is first used: it has no
+     * effect after the first HTTP connection of the JVM, which is logged if it was made by a
+     * transport. A connection made by another component of the JVM can not be detected.
+     *
+     * @param maxConnections Max number of idle connections per host.
+     */
+    public static void setMaxKeepAliveConnections(int maxConnections) {
+        String current = System.getProperty(KEEP_ALIVE_CONNECTIONS_PROPERTY);
+        if (current != null) {
+            logger.info("Keeping " + KEEP_ALIVE_CONNECTIONS_PROPERTY + "=" + current
+                            + " set on the command line");
+        } else if (connectionOpened.get()) {
+            logger.warn("Can not keep " + maxConnections + " idle connections per host: the JDK "
+                            + "read " + KEEP_ALIVE_CONNECTIONS_PROPERTY
+                            + " at the first connection already");
+        } else {
+            System.setProperty(KEEP_ALIVE_CONNECTIONS_PROPERTY, String.valueOf(maxConnections));
+        }
+    }
+
+    /**
+     * Log in to a VC target.
+     *
+     * @param url URL of the SDK of the target.
+     * @param username User name.
+     * @param password Password.
+     * @return The logged in service instance.
+     * @throws RemoteException if the login failed
+     * @throws MalformedURLException if the URL is invalid
+     */
+    public ServiceInstance login(final URL url, final String username, final String password)
+                    throws RemoteException, MalformedURLException {
+        return open(url, new Callable<ServiceInstance>() {
+            @Override
+            public ServiceInstance call() throws RemoteException, MalformedURLException {
+                return new ServiceInstance(url, username, password, true,
+                                ServiceInstance.VIM25_NAMESPACE);
+            }
+        });
+    }
+
+    /**
+     * Resume a session of a VC target.
+     *
+     * @param url URL of the SDK of the target.
+     * @param sessionCookie The session cookie.
+     * @return The service instance, not necessarily logged in.
+     * @throws RemoteException if the service content could not be retrieved
+     * @throws MalformedURLException if the URL is invalid
+     */
+    public ServiceInstance resume(final URL url, final String sessionCookie)
+                    throws RemoteException, MalformedURLException {
+        return open(url, new Callable<ServiceInstance>() {
+            @Override
+            public ServiceInstance call() throws RemoteException, MalformedURLException {
+                return new ServiceInstance(url, sessionCookie, true,
+                                ServiceInstance.VIM25_NAMESPACE);
+            }
+        });
+    }
+
+    /**
+     * Construct a service instance on a login thread, waiting for it until the deadline, if any,
+     * and apply the transport to it.
+     *
+     * @param url URL of the SDK of the target.
+     * @param constructor Constructs the service instance.
+     * @return The service instance.
+     * @throws RemoteException if the construction failed or did not complete before the deadline
+     * @throws MalformedURLException if the URL is invalid
+     */
+    private ServiceInstance open(final URL url, Callable<ServiceInstance> constructor)
+                    throws RemoteException, MalformedURLException {
+        connectionOpened.set(true);
+        ServiceInstance si = await(url, loginExecutor.submit(constructor), deadline);
+        DiscoveryMetrics.recordCall(0);
+        apply(si);
+        return si;
+    }
+
+    /**
+     * Wait for a service instance until the deadline, if any. A service instance constructed
+     * after the deadline is logged out.
+     *
+     * @param url URL of the SDK of the target.
+     * @param future The service instance being constructed.
+     * @param current The deadline, null to wait without limit.
+     * @return The service instance.
+     * @throws RemoteException if the construction failed or did not complete before the deadline
+     * @throws MalformedURLException if the URL is invalid
+     */
+    private static ServiceInstance await(final URL url, ListenableFuture<ServiceInstance> future,
+                    DiscoveryDeadline current) throws RemoteException, MalformedURLException {
+        try {
+            if (current == null) {
+                return future.get();
+            }
+            return future.get(Math.max(1, current.remainingMs()), TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException)cause;
+            }
+            if (cause instanceof MalformedURLException) {
+                throw (MalformedURLException)cause;
+            }
+            throw new RemoteException("Failed connecting to " + url, cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted connecting to " + url, e);
+        }
+        catch (TimeoutException e) {
+            Futures.addCallback(future, new FutureCallback<ServiceInstance>() {
+                @Override
+                public void onSuccess(ServiceInstance late) {
+                    logger.info("Logging out of " + url + ", connected after the deadline");
+                    try {
+                        late.getServerConnection().logout();
+                    }
+                    catch (Exception e) {
+                        logger.debug("Failed logging out of " + url, e);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.debug("Failed connecting to " + url + " after the deadline", t);
+                }
+            }, MoreExecutors.directExecutor());
+            throw new RemoteException("Connection to " + url
+                            + " not completed before the discovery deadline", e);
+        }
+    }
+
+    /**
+     * Set the deadline of the discovery in progress, which caps the read timeout of the calls.
+     *
+     * @param deadline The deadline, null when no discovery is in progress.
+     */
+    public void setDeadline(DiscoveryDeadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param timeout Read timeout of a call, in milliseconds, 0 for none.
+     * @return The read timeout, lowered to the time left before the deadline, if any.
+     */
+    private int capReadTimeout(int timeout) {
+        DiscoveryDeadline current = deadline;
+        if (current == null) {
+            return timeout;
+        }
+        // 0 would mean no timeout: a call past the deadline times out at once
+        long remaining = Math.max(1, current.remainingMs());
+        return (int)Math.min(timeout > 0 ? Math.min(timeout, remaining) : remaining,
+                        Integer.MAX_VALUE);
+    }
+
+    /**
+     * Apply the transport settings to the web-service client of a service instance.
+     *
+     * @param si The service instance.
+     * @throws MalformedURLException if the base URL can not be rebuilt
+     */
+    public void apply(ServiceInstance si) throws MalformedURLException {
+        WSClient wsc = si.getServerConnection().getVimService().getWsc();
+        wsc.setConnectTimeout(connectTimeoutMs);
+        wsc.setReadTimeout(readTimeoutMs);
+        URL baseUrl = wsc.getBaseUrl();
+        wsc.setBaseUrl(new URL(null, baseUrl.toExternalForm(), new MeteringHandler()));
+    }
+
+    /**
+     * Opens the connections of the base URL with the default handler of its protocol, wrapped
+     * to count them, to cap their read timeout by the deadline and, if compression is on, to ask
+     * for compressed responses.
+     */
+    private class MeteringHandler extends URLStreamHandler {
+        @Override
+        protected URLConnection openConnection(URL u) throws IOException {
+            URLConnection conn = new URL(u.toExternalForm()).openConnection();
+            if (!(conn instanceof HttpURLConnection)) {
+                return conn;
+            }
+            MeteredConnection metered = new MeteredConnection((HttpURLConnection)conn, compress,
+                            bufferSize) {
+                @Override
+                public void setReadTimeout(int timeout) {
+                    super.setReadTimeout(capReadTimeout(timeout));
+                }
+            };
+            // vijava only sets a read timeout when one is configured
+            metered.setReadTimeout(readTimeoutMs);
+            return metered;
+        }
+    }
+
+    /**
+     * HTTP connection counting the bytes it sends and receives, optionally asking for a gzip
+     * response. The response and error streams are inflated as they are read if the server
+     * compressed them, and drained when closed.
+     */
+    static class MeteredConnection extends HttpURLConnection {
+
+        private final HttpURLConnection delegate;
+        private final int bufferSize;
+        private CountingOutputStream requestBody;
+
+        MeteredConnection(HttpURLConnection delegate, boolean compress, int bufferSize) {
+            super(delegate.getURL());
+            this.delegate = delegate;
+            this.bufferSize = bufferSize;
+            if (compress) {
+                delegate.setRequestProperty("Accept-Encoding", "gzip");
+            }
+        }
+
+        /**
+         * Wrap a response stream to inflate it, if compressed, and count it.
+         *
+         * @param in The response stream, may be null.
+         * @return The inflated response, null if the stream is null.
+         * @throws IOException if the gzip header could not be read
+         */
+        private InputStream open(InputStream in) throws IOException {
+            if (in == null) {
+                return null;
+            }
+            CountingInputStream wire = new CountingInputStream(in);
+            boolean gzip = "gzip".equalsIgnoreCase(delegate.getContentEncoding());
+            InputStream body = wire;
+            if (gzip) {
+                try {
+                    body = new GZIPInputStream(wire, bufferSize);
+                }
+                catch (IOException e) {
+                    wire.close();
+                    throw e;
+                }
+            }
+            return new ResponseStream(body, wire, gzip);
+        }
+
+        /**
+         * A response read by vijava. The call is counted once the response is read to the end or
+         * closed, and the rest of the response is drained on close, so the connection can be
+         * reused.
+         */
+        private class ResponseStream extends FilterInputStream {
+            private final CountingInputStream wire;
+            private final boolean gzip;
+            private long inflated = 0;
+            private boolean counted = false;
+
+            ResponseStream(InputStream body, CountingInputStream wire, boolean gzip) {
+                super(body);
+                this.wire = wire;
+                this.gzip = gzip;
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) {
+                    count();
+                } else {
+                    inflated++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0) {
+                    count();
+                } else {
+                    inflated += n;
+                }
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    // The rest of the wire, without inflating it
+                    ByteStreams.exhaust(wire);
+                }
+                finally {
+                    super.close();
+                    count();
+                }
+            }
+
+            private void count() {
+                if (counted) {
+                    return;
+                }
+                counted = true;
+                DiscoveryMetrics.recordCall(wire.getCount()
+                                + (requestBody != null ? requestBody.getCount() : 0));
+                if (gzip && logger.isTraceEnabled()) {
+                    logger.trace("Inflated response of " + delegate.getURL() + " from "
+                                    + wire.getCount() + " to " + inflated + " bytes");
+                }
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return open(delegate.getInputStream());
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            try {
+                return open(delegate.getErrorStream());
+            }
+            catch (IOException e) {
+                logger.warn("Failed reading the error response of " + delegate.getURL(), e);
+                return null;
+            }
+        }
+
+        @Override
+        public String getContentEncoding() {
+            // The streams are inflated
+            return null;
+        }
+
+        @Override
+        public int getContentLength() {
+            return "gzip".equalsIgnoreCase(delegate.getContentEncoding()) ? -1
+                            : delegate.getContentLength();
+        }
+
+        @Override
+        public void connect() throws IOException {
+            delegate.connect();
+        }
+
+        @Override
+        public void disconnect() {
+            delegate.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return delegate.usingProxy();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (requestBody == null) {
+                requestBody = new CountingOutputStream(delegate.getOutputStream());
+            }
+            return requestBody;
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return delegate.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            return delegate.getResponseMessage();
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws ProtocolException {
+            delegate.setRequestMethod(method);
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return delegate.getRequestMethod();
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            delegate.setRequestProperty(key, value);
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            delegate.addRequestProperty(key, value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return delegate.getRequestProperty(key);
+        }
+
+        @Override
+        public Map<String, List<String>> getRequestProperties() {
+            return delegate.getRequestProperties();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return delegate.getHeaderField(name);
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            return delegate.getHeaderField(n);
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            return delegate.getHeaderFieldKey(n);
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return delegate.getHeaderFields();
+        }
+
+        @Override
+        public String getContentType() {
+            return delegate.getContentType();
+        }
+
+        @Override
+        public void setConnectTimeout(int timeout) {
+            delegate.setConnectTimeout(timeout);
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return delegate.getConnectTimeout();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            delegate.setReadTimeout(timeout);
+        }
+
+        @Override
+        public int getReadTimeout() {
+            return delegate.getReadTimeout();
+        }
+
+        @Override
+        public void setDoInput(boolean doInput) {
+            delegate.setDoInput(doInput);
+        }
+
+        @Override
+        public boolean getDoInput() {
+            return delegate.getDoInput();
+        }
+
+        @Override
+        public void setDoOutput(boolean doOutput) {
+            delegate.setDoOutput(doOutput);
+        }
+
+        @Override
+        public boolean getDoOutput() {
+            return delegate.getDoOutput();
+        }
+
+        @Override
+        public void setUseCaches(boolean useCaches) {
+            delegate.setUseCaches(useCaches);
+        }
+
+        @Override
+        public boolean getUseCaches() {
+            return delegate.getUseCaches();
+        }
+
+        @Override
+        public void setInstanceFollowRedirects(boolean followRedirects) {
+            delegate.setInstanceFollowRedirects(followRedirects);
+        }
+
+        @Override
+        public boolean getInstanceFollowRedirects() {
+            return delegate.getInstanceFollowRedirects();
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunklen) {
+            delegate.setChunkedStreamingMode(chunklen);
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(int contentLength) {
+            delegate.setFixedLengthStreamingMode(contentLength);
+        }
+    }
+}
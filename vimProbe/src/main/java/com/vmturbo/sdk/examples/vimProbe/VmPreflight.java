@@ -0,0 +1,221 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DatastoreHostMount;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.VirtualMachine;
+
+/**
+ * The properties of a VM, and of the datastores it has files on, read in one property collector
+ * call before an action on the VM. The pre-flight checks of the action use them instead of reading
+ * each property remotely, so an action that would fail is rejected before a task is submitted.
+ * The snapshot is not refreshed: properties changed by the action itself, like the power state,
+ * must be read again.
+ */
+public final class VmPreflight {
+
+    static final String PROPERTY_TEMPLATE = "summary.config.template";
+    static final String PROPERTY_RESOURCE_POOL = "resourcePool";
+    static final String PROPERTY_POWER_STATE = "runtime.powerState";
+    static final String PROPERTY_CPU_HOT_ADD = "config.cpuHotAddEnabled";
+    static final String PROPERTY_MEM_HOT_ADD = "config.memoryHotAddEnabled";
+    static final String PROPERTY_NUM_CPU = "config.hardware.numCPU";
+    static final String PROPERTY_NUM_CORES_PER_SOCKET = "config.hardware.numCoresPerSocket";
+    static final String PROPERTY_MEMORY_MB = "config.hardware.memoryMB";
+    static final String PROPERTY_DATASTORE = "datastore";
+
+    static final String PROPERTY_DATASTORE_NAME = "name";
+    static final String PROPERTY_DATASTORE_ACCESSIBLE = "summary.accessible";
+    static final String PROPERTY_DATASTORE_HOST = "host";
+
+    /**
+     * Property paths retrieved for the VM.
+     */
+    static final String[] PROPERTY_PATHS = {PROPERTY_TEMPLATE,
+                                            PROPERTY_RESOURCE_POOL,
+                                            PROPERTY_POWER_STATE,
+                                            PROPERTY_CPU_HOT_ADD,
+                                            PROPERTY_MEM_HOT_ADD,
+                                            PROPERTY_NUM_CPU,
+                                            PROPERTY_NUM_CORES_PER_SOCKET,
+                                            PROPERTY_MEMORY_MB};
+
+    /**
+     * Property paths retrieved for the datastores of the VM.
+     */
+    static final String[] DATASTORE_PROPERTY_PATHS = {PROPERTY_DATASTORE_NAME,
+                                                      PROPERTY_DATASTORE_ACCESSIBLE,
+                                                      PROPERTY_DATASTORE_HOST};
+
+    /**
+     * Properties of the VM, indexed by path. Unset properties are missing.
+     */
+    private final Map<String, Object> properties;
+
+    /**
+     * Properties of each datastore of the VM, indexed by path.
+     */
+    private final List<Map<String, Object>> datastores;
+
+    private VmPreflight(Map<String, Object> properties, List<Map<String, Object>> datastores) {
+        this.properties = properties;
+        this.datastores = datastores;
+    }
+
+    /**
+     * Read the properties of a VM and of its datastores.
+     *
+     * @param si The service instance the VM belongs to.
+     * @param vm The VM.
+     * @return The snapshot.
+     * @throws RemoteException if the properties could not be read
+     */
+    public static VmPreflight retrieve(ServiceInstance si, VirtualMachine vm)
+                    throws RemoteException {
+        // The VM itself is selected, with the datastores reached from it
+        ObjectSpec objectSpec = new ObjectSpec();
+        objectSpec.setObj(vm.getMOR());
+        objectSpec.setSkip(false);
+        objectSpec.setSelectSet(new SelectionSpec[] {InventoryMirror.createTraversalSpec(
+                        VmRecord.TYPE, "vmToDatastore", PROPERTY_DATASTORE)});
+
+        PropertyFilterSpec filterSpec = new PropertyFilterSpec();
+        filterSpec.setObjectSet(new ObjectSpec[] {objectSpec});
+        filterSpec.setPropSet(new PropertySpec[] {
+            InventoryMirror.createPropertySpec(VmRecord.TYPE, PROPERTY_PATHS),
+            InventoryMirror.createPropertySpec(DatastoreRecord.TYPE, DATASTORE_PROPERTY_PATHS)});
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        List<Map<String, Object>> datastores = new ArrayList<Map<String, Object>>();
+        PropertyCollector propCol = si.getPropertyCollector();
+        RetrieveResult result = propCol.retrievePropertiesEx(new PropertyFilterSpec[] {filterSpec},
+                        new RetrieveOptions());
+        while (result != null) {
+            if (result.getObjects() != null) {
+                for (ObjectContent oc : result.getObjects()) {
+                    Map<String, Object> props = toMap(oc.getPropSet());
+                    if (DatastoreRecord.TYPE.equals(oc.getObj().getType())) {
+                        datastores.add(props);
+                    } else {
+                        properties.putAll(props);
+                    }
+                }
+            }
+            if (result.getToken() == null) {
+                break;
+            }
+            result = propCol.continueRetrievePropertiesEx(result.getToken());
+        }
+        return new VmPreflight(properties, datastores);
+    }
+
+    private static Map<String, Object> toMap(DynamicProperty[] propSet) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        if (propSet != null) {
+            for (DynamicProperty prop : propSet) {
+                props.put(prop.getName(), prop.getVal());
+            }
+        }
+        return props;
+    }
+
+    /**
+     * @return true if the VM is a template.
+     */
+    public boolean isTemplate() {
+        return Boolean.TRUE.equals(properties.get(PROPERTY_TEMPLATE));
+    }
+
+    /**
+     * @return The resource pool of the VM, null if it has none (templates).
+     */
+    public ManagedObjectReference getResourcePool() {
+        return (ManagedObjectReference)properties.get(PROPERTY_RESOURCE_POOL);
+    }
+
+    /**
+     * @return The power state of the VM when the snapshot was taken.
+     */
+    public VirtualMachinePowerState getPowerState() {
+        return (VirtualMachinePowerState)properties.get(PROPERTY_POWER_STATE);
+    }
+
+    public boolean isCpuHotAddEnabled() {
+        return Boolean.TRUE.equals(properties.get(PROPERTY_CPU_HOT_ADD));
+    }
+
+    public boolean isMemoryHotAddEnabled() {
+        return Boolean.TRUE.equals(properties.get(PROPERTY_MEM_HOT_ADD));
+    }
+
+    /**
+     * @return Number of VCPUs of the VM, null if unknown.
+     */
+    public Integer getNumCpu() {
+        return (Integer)properties.get(PROPERTY_NUM_CPU);
+    }
+
+    /**
+     * @return Number of cores per socket of the VM, null if unknown.
+     */
+    public Integer getNumCoresPerSocket() {
+        return (Integer)properties.get(PROPERTY_NUM_CORES_PER_SOCKET);
+    }
+
+    /**
+     * @return Memory of the VM in MB, null if unknown.
+     */
+    public Integer getMemoryMB() {
+        return (Integer)properties.get(PROPERTY_MEMORY_MB);
+    }
+
+    /**
+     * Find a datastore of the VM the host can not use: not accessible, or not mounted on the host.
+     * A datastore whose mounts were not retrieved is assumed mounted on the host.
+     *
+     * @param host The host.
+     * @return The name of the datastore, null if the host can access all the datastores of the VM.
+     */
+    public String findInaccessibleDatastore(ManagedObjectReference host) {
+        for (Map<String, Object> datastore : datastores) {
+            if (!Boolean.TRUE.equals(datastore.get(PROPERTY_DATASTORE_ACCESSIBLE))
+                            || !isMountedOn(datastore, host)) {
+                return (String)datastore.get(PROPERTY_DATASTORE_NAME);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isMountedOn(Map<String, Object> datastore,
+                    ManagedObjectReference host) {
+        DatastoreHostMount[] mounts = (DatastoreHostMount[])datastore.get(PROPERTY_DATASTORE_HOST);
+        if (mounts == null) {
+            // Unknown: VC decides
+            return true;
+        }
+        for (DatastoreHostMount mount : mounts) {
+            if (host.getVal().equals(mount.getKey().getVal())) {
+                // accessible and mounted are unset on old hosts
+                return !Boolean.FALSE.equals(mount.getMountInfo().getAccessible())
+                                && !Boolean.FALSE.equals(mount.getMountInfo().getMounted());
+            }
+        }
+        return false;
+    }
+}
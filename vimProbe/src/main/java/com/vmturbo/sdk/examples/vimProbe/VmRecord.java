@@ -0,0 +1,243 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.hash.Hasher;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.VirtualMachineUsageOnDatastore;
+
+/**
+ * Immutable record of the properties of a VirtualMachine.
+ */
+public final class VmRecord extends InventoryRecord {
+
+    static final String TYPE = "VirtualMachine";
+
+    static final String PROPERTY_UUID = "config.uuid";
+    static final String PROPERTY_NAME = "name";
+    static final String PROPERTY_HOST = "runtime.host";
+    static final String PROPERTY_NUM_CPU = "config.hardware.numCPU";
+    static final String PROPERTY_MEM_SIZE = "config.hardware.memoryMB";
+    static final String PROPERTY_DATASTORE_USAGE = "storage.perDatastoreUsage";
+
+    /**
+     * Property paths retrieved for the VMs.
+     */
+    static final String[] PROPERTY_PATHS = {PROPERTY_UUID,
+                                            PROPERTY_NAME,
+                                            PROPERTY_HOST,
+                                            PROPERTY_NUM_CPU,
+                                            PROPERTY_MEM_SIZE,
+                                            PROPERTY_DATASTORE_USAGE};
+
+    private final String uuid;
+    private final String name;
+    private final String hostMorVal;
+    private final int numCpu;
+    private final int memoryMB;
+    private final List<DatastoreUsage> datastoreUsages;
+
+    /**
+     * Storage used by a VM on one datastore.
+     */
+    public static final class DatastoreUsage {
+
+        private final String datastoreMorVal;
+        private final long committed;
+        private final long uncommitted;
+
+        /**
+         * @param datastoreMorVal MOR value of the datastore.
+         * @param committed Storage committed on the datastore, in bytes.
+         * @param uncommitted Additional storage the VM may use on the datastore, in bytes.
+         */
+        public DatastoreUsage(String datastoreMorVal, long committed, long uncommitted) {
+            this.datastoreMorVal = datastoreMorVal;
+            this.committed = committed;
+            this.uncommitted = uncommitted;
+        }
+
+        public String getDatastoreMorVal() {
+            return datastoreMorVal;
+        }
+
+        public long getCommitted() {
+            return committed;
+        }
+
+        public long getUncommitted() {
+            return uncommitted;
+        }
+    }
+
+    /**
+     * @param morVal Managed object reference value.
+     * @param uuid BIOS UUID of the VM, may be null.
+     * @param name Name of the VM.
+     * @param hostMorVal MOR value of the host running the VM, null if unknown.
+     * @param numCpu Number of virtual CPUs.
+     * @param memoryMB Memory size, in MB.
+     * @param datastoreUsages Storage used on each datastore, unmodifiable.
+     */
+    public VmRecord(String morVal, String uuid, String name, String hostMorVal, int numCpu,
+                    int memoryMB, List<DatastoreUsage> datastoreUsages) {
+        super(morVal);
+        this.uuid = uuid;
+        this.name = name;
+        this.hostMorVal = hostMorVal;
+        this.numCpu = numCpu;
+        this.memoryMB = memoryMB;
+        this.datastoreUsages = datastoreUsages;
+    }
+
+    /**
+     * Apply the property changes reported by the property collector for a VM.
+     *
+     * @param previous The current record of the VM, null if the VM is new.
+     * @param morVal Managed object reference value of the VM.
+     * @param changes The property changes.
+     * @return The updated VM record.
+     */
+    public static VmRecord update(VmRecord previous, String morVal, PropertyChange[] changes) {
+        String uuid = previous != null ? previous.uuid : null;
+        String name = previous != null ? previous.name : null;
+        String hostMorVal = previous != null ? previous.hostMorVal : null;
+        int numCpu = previous != null ? previous.numCpu : 0;
+        int memoryMB = previous != null ? previous.memoryMB : 0;
+        List<DatastoreUsage> datastoreUsages = previous != null ? previous.datastoreUsages
+                        : Collections.<DatastoreUsage>emptyList();
+        if (changes != null) {
+            for (PropertyChange change : changes) {
+                Object val = change.getOp() == PropertyChangeOp.remove ? null : change.getVal();
+                switch (change.getName()) {
+                    case PROPERTY_UUID:
+                        uuid = (String)val;
+                        break;
+                    case PROPERTY_NAME:
+                        name = (String)val;
+                        break;
+                    case PROPERTY_HOST:
+                        hostMorVal = toMorVal(val);
+                        break;
+                    case PROPERTY_NUM_CPU:
+                        numCpu = toInt(val);
+                        break;
+                    case PROPERTY_MEM_SIZE:
+                        memoryMB = toInt(val);
+                        break;
+                    case PROPERTY_DATASTORE_USAGE:
+                        datastoreUsages = toDatastoreUsages(val);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return new VmRecord(morVal, uuid, name, hostMorVal, numCpu, memoryMB, datastoreUsages);
+    }
+
+    private static List<DatastoreUsage> toDatastoreUsages(Object val) {
+        if (val == null) {
+            return Collections.emptyList();
+        }
+        VirtualMachineUsageOnDatastore[] usages = (VirtualMachineUsageOnDatastore[])val;
+        List<DatastoreUsage> datastoreUsages = new ArrayList<DatastoreUsage>(usages.length);
+        for (VirtualMachineUsageOnDatastore usage : usages) {
+            datastoreUsages.add(new DatastoreUsage(usage.getDatastore().getVal(),
+                            usage.getCommitted(), usage.getUncommitted()));
+        }
+        return Collections.unmodifiableList(datastoreUsages);
+    }
+
+    /**
+     * Write the record to a snapshot.
+     *
+     * @param out The snapshot output.
+     * @throws IOException if writing failed
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(getMorVal());
+        writeString(out, uuid);
+        writeString(out, name);
+        writeString(out, hostMorVal);
+        out.writeInt(numCpu);
+        out.writeInt(memoryMB);
+        out.writeInt(datastoreUsages.size());
+        for (DatastoreUsage usage : datastoreUsages) {
+            out.writeUTF(usage.datastoreMorVal);
+            out.writeLong(usage.committed);
+            out.writeLong(usage.uncommitted);
+        }
+    }
+
+    /**
+     * Read a record written by {@link #write}.
+     *
+     * @param in The snapshot input.
+     * @return The record.
+     * @throws IOException if reading failed
+     */
+    public static VmRecord read(DataInput in) throws IOException {
+        String morVal = in.readUTF();
+        String uuid = readString(in);
+        String name = readString(in);
+        String hostMorVal = readString(in);
+        int numCpu = in.readInt();
+        int memoryMB = in.readInt();
+        int usageCount = in.readInt();
+        List<DatastoreUsage> datastoreUsages = new ArrayList<DatastoreUsage>(usageCount);
+        for (int i = 0; i < usageCount; i++) {
+            datastoreUsages.add(new DatastoreUsage(in.readUTF(), in.readLong(), in.readLong()));
+        }
+        return new VmRecord(morVal, uuid, name, hostMorVal, numCpu, memoryMB,
+                        Collections.unmodifiableList(datastoreUsages));
+    }
+
+    @Override
+    public String getMorType() {
+        return TYPE;
+    }
+
+    @Override
+    public long getFingerprint() {
+        Hasher hasher = FINGERPRINT.newHasher();
+        putString(hasher, getMorVal());
+        putString(hasher, uuid);
+        putString(hasher, name);
+        putString(hasher, hostMorVal);
+        for (DatastoreUsage usage : datastoreUsages) {
+            putString(hasher, usage.datastoreMorVal);
+        }
+        return hasher.putInt(numCpu).putInt(memoryMB).hash().asLong();
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHostMorVal() {
+        return hostMorVal;
+    }
+
+    public int getNumCpu() {
+        return numCpu;
+    }
+
+    public int getMemoryMB() {
+        return memoryMB;
+    }
+
+    public List<DatastoreUsage> getDatastoreUsages() {
+        return datastoreUsages;
+    }
+}
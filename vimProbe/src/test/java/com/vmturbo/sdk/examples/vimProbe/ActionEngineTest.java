@@ -0,0 +1,272 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tests of the limits of {@link ActionEngine}.
+ */
+public class ActionEngineTest {
+
+    private static final String TARGET = "vc";
+    private static final long WAIT_MS = 2000;
+    private static final long NOT_STARTED_MS = 200;
+
+    private static final Collection<String> NO_CLUSTER = Collections.emptySet();
+
+    /**
+     * Names of the actions started, in order.
+     */
+    private final BlockingQueue<String> started = new LinkedBlockingQueue<String>();
+
+    /**
+     * Outcomes of the running actions, by name.
+     */
+    private final Map<String, SettableFuture<String>> outcomes = new ConcurrentHashMap<String, SettableFuture<String>>();
+
+    /**
+     * Session release callbacks of the running actions, by name.
+     */
+    private final Map<String, Runnable> releases = new ConcurrentHashMap<String, Runnable>();
+
+    @Test
+    public void testMaxConcurrentActions() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 2, 10, 10, 10, 10);
+        ListenableFuture<String> a = submit(engine, TARGET, 10, "a", hosts("h1"), NO_CLUSTER,
+                        false);
+        submit(engine, TARGET, 10, "b", hosts("h2"), NO_CLUSTER, false);
+        submit(engine, TARGET, 10, "c", hosts("h3"), NO_CLUSTER, false);
+        assertStarted("a", "b");
+        assertNoneStarted();
+        finish("a");
+        assertEquals("a", a.get(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertStarted("c");
+    }
+
+    @Test
+    public void testMaxActionsPerHost() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 10, 1, 10, 10, 10);
+        submit(engine, TARGET, 10, "a", hosts("h1"), NO_CLUSTER, false);
+        submit(engine, TARGET, 10, "b", hosts("h1"), NO_CLUSTER, false);
+        submit(engine, TARGET, 10, "c", hosts("h2"), NO_CLUSTER, false);
+        // The action waiting for h1 does not hold back the action on h2
+        assertStarted("a", "c");
+        assertNoneStarted();
+        finish("a");
+        assertStarted("b");
+    }
+
+    @Test
+    public void testHostsAreQualifiedByTarget() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 10, 1, 10, 10, 10);
+        submit(engine, "vc1", 10, "a", hosts("h1"), NO_CLUSTER, false);
+        submit(engine, "vc2", 10, "b", hosts("h1"), NO_CLUSTER, false);
+        assertStarted("a", "b");
+    }
+
+    @Test
+    public void testMaxActionsPerCluster() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 10, 10, 2, 10, 10);
+        submit(engine, TARGET, 10, "a", hosts("h1"), hosts("c1"), false);
+        submit(engine, TARGET, 10, "b", hosts("h2"), hosts("c1"), false);
+        submit(engine, TARGET, 10, "c", hosts("h3"), hosts("c1"), false);
+        submit(engine, TARGET, 10, "d", hosts("h4"), hosts("c2"), false);
+        assertStarted("a", "b", "d");
+        assertNoneStarted();
+        finish("b");
+        assertStarted("c");
+    }
+
+    @Test
+    public void testMigrationLimits() throws Exception {
+        ActionEngine engine = new ActionEngine(8, 10, 1, 10, 2, 3);
+        // Migrations are not limited by maxActionsPerHost
+        submit(engine, TARGET, 10, "m1", hosts("h1", "h2"), NO_CLUSTER, true);
+        submit(engine, TARGET, 10, "m2", hosts("h1", "h3"), NO_CLUSTER, true);
+        // h1 has two migrations already
+        submit(engine, TARGET, 10, "m3", hosts("h1", "h4"), NO_CLUSTER, true);
+        submit(engine, TARGET, 10, "m4", hosts("h5", "h6"), NO_CLUSTER, true);
+        // The target has three migrations already
+        submit(engine, TARGET, 10, "m5", hosts("h7", "h8"), NO_CLUSTER, true);
+        assertStarted("m1", "m2", "m4");
+        assertNoneStarted();
+        finish("m4");
+        assertStarted("m5");
+        finish("m1");
+        assertStarted("m3");
+    }
+
+    @Test
+    public void testMigrationCountsOnItsHosts() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 10, 1, 10, 2, 3);
+        submit(engine, TARGET, 10, "m1", hosts("h1", "h2"), NO_CLUSTER, true);
+        submit(engine, TARGET, 10, "a", hosts("h2"), NO_CLUSTER, false);
+        assertStarted("m1");
+        assertNoneStarted();
+        finish("m1");
+        assertStarted("a");
+    }
+
+    @Test
+    public void testSessionLimit() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 10, 10, 10, 10, 10);
+        submit(engine, TARGET, 1, "a", hosts("h1"), NO_CLUSTER, false);
+        submit(engine, TARGET, 1, "b", hosts("h2"), NO_CLUSTER, false);
+        submit(engine, TARGET, 1, "c", hosts("h3"), NO_CLUSTER, false);
+        assertStarted("a");
+        assertNoneStarted();
+        // Once its task is submitted, a gives its session back but keeps running
+        releases.get("a").run();
+        assertStarted("b");
+        assertNoneStarted();
+        // Releasing twice does not give two places
+        releases.get("a").run();
+        assertNoneStarted();
+        // b finishes without releasing its session first
+        finish("b");
+        assertStarted("c");
+        finish("a");
+        finish("c");
+    }
+
+    @Test
+    public void testSessionLimitReachesMigrationLimits() throws Exception {
+        ActionEngine engine = new ActionEngine(8, 10, 1, 10, 2, 4);
+        for (int i = 1; i <= 5; i++) {
+            submit(engine, TARGET, 2, "m" + i, hosts("src" + i, "dst" + i), NO_CLUSTER, true);
+        }
+        assertStarted("m1", "m2");
+        // The moves release their sessions while vCenter migrates the VMs
+        releases.get("m1").run();
+        releases.get("m2").run();
+        assertStarted("m3", "m4");
+        releases.get("m3").run();
+        releases.get("m4").run();
+        // Four migrations on the target already
+        assertNoneStarted();
+        finish("m1");
+        assertStarted("m5");
+    }
+
+    @Test
+    public void testTargetsAreServedInTurn() throws Exception {
+        ActionEngine engine = new ActionEngine(1, 1, 10, 10, 10, 10);
+        // Holds the only place while the other targets submit their actions
+        submit(engine, "vc0", 10, "x", hosts("h1"), NO_CLUSTER, false);
+        assertStarted("x");
+        submit(engine, "vc1", 10, "a1", hosts("h1"), NO_CLUSTER, false);
+        submit(engine, "vc1", 10, "a2", hosts("h2"), NO_CLUSTER, false);
+        submit(engine, "vc1", 10, "a3", hosts("h3"), NO_CLUSTER, false);
+        submit(engine, "vc2", 10, "b1", hosts("h1"), NO_CLUSTER, false);
+        submit(engine, "vc2", 10, "b2", hosts("h2"), NO_CLUSTER, false);
+        assertNoneStarted();
+        finish("x");
+        assertStarted("a1");
+        finish("a1");
+        assertStarted("b1");
+        finish("b1");
+        assertStarted("a2");
+        finish("a2");
+        assertStarted("b2");
+        finish("b2");
+        assertStarted("a3");
+    }
+
+    @Test
+    public void testFailedActionFreesItsPlace() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 1, 10, 10, 10, 10);
+        ListenableFuture<String> failing = engine.submit(TARGET, 1, hosts("h1"), NO_CLUSTER,
+                        false, new AsyncFunction<Runnable, String>() {
+                            @Override
+                            public ListenableFuture<String> apply(Runnable sessionReleased) {
+                                throw new IllegalStateException("failed");
+                            }
+                        });
+        submit(engine, TARGET, 1, "a", hosts("h1"), NO_CLUSTER, false);
+        assertStarted("a");
+        assertTrue(failing.isDone());
+    }
+
+    @Test
+    public void testCancelledPendingActionIsNotStarted() throws Exception {
+        ActionEngine engine = new ActionEngine(4, 1, 10, 10, 10, 10);
+        submit(engine, TARGET, 10, "a", hosts("h1"), NO_CLUSTER, false);
+        ListenableFuture<String> b = submit(engine, TARGET, 10, "b", hosts("h2"), NO_CLUSTER,
+                        false);
+        submit(engine, TARGET, 10, "c", hosts("h3"), NO_CLUSTER, false);
+        assertStarted("a");
+        b.cancel(true);
+        finish("a");
+        assertStarted("c");
+    }
+
+    @Test
+    public void testBackoff() {
+        for (int attempt = 1; attempt <= 70; attempt++) {
+            long delay = ActionEngine.backoffMillis(attempt, 500, 5000);
+            long full = attempt <= 4 ? 500L << (attempt - 1) : 5000;
+            assertTrue(attempt + ": " + delay, delay >= full / 2 && delay <= full);
+        }
+    }
+
+    private ListenableFuture<String> submit(ActionEngine engine, String targetAddr,
+                    int maxTargetSessions, final String name, Collection<String> hosts,
+                    Collection<String> clusters, boolean migration) {
+        return engine.submit(targetAddr, maxTargetSessions, hosts, clusters, migration,
+                        new AsyncFunction<Runnable, String>() {
+                            @Override
+                            public ListenableFuture<String> apply(Runnable sessionReleased) {
+                                SettableFuture<String> outcome = SettableFuture.create();
+                                outcomes.put(name, outcome);
+                                releases.put(name, sessionReleased);
+                                started.add(name);
+                                return outcome;
+                            }
+                        });
+    }
+
+    private void finish(String name) {
+        outcomes.get(name).set(name);
+    }
+
+    /**
+     * Assert the next actions started, in any order.
+     */
+    private void assertStarted(String... names) throws InterruptedException {
+        Set<String> actual = new HashSet<String>();
+        for (int i = 0; i < names.length; i++) {
+            String name = started.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+            if (name == null) {
+                break;
+            }
+            actual.add(name);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(names)), actual);
+    }
+
+    private void assertNoneStarted() throws InterruptedException {
+        assertNull(started.poll(NOT_STARTED_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private static Collection<String> hosts(String... names) {
+        return Arrays.asList(names);
+    }
+}
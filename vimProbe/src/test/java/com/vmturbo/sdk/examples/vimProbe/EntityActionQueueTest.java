@@ -0,0 +1,219 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import com.vmturbo.platform.common.dto.ActionResponseState;
+import com.vmturbo.platform.common.dto.CommodityDTO;
+import com.vmturbo.platform.common.dto.ModelEnum.Commodity;
+import com.vmturbo.platform.sdk.common.DTO.ActionItemDTO;
+import com.vmturbo.platform.sdk.probe.ActionResult;
+import com.vmturbo.platform.sdk.probe.IProgressTracker;
+
+/**
+ * Tests of the ordering, merging and superseding of the actions of an entity by
+ * {@link EntityActionQueue}.
+ */
+public class EntityActionQueueTest {
+
+    private static final String TARGET = "vc";
+    private static final String HOST = "host-1";
+
+    private static final ActionResult SUCCEEDED = new ActionResult(ActionResponseState.SUCCEEDED,
+                    "done");
+
+    private final EntityActionQueue queue = new EntityActionQueue();
+
+    /**
+     * Groups started, in order.
+     */
+    private final List<EntityActionQueue.Group> started = new ArrayList<EntityActionQueue.Group>();
+
+    /**
+     * Results of the groups started, in order.
+     */
+    private final List<SettableFuture<ActionResult>> results = new ArrayList<SettableFuture<ActionResult>>();
+
+    private final List<ProgressReporter> reporters = new ArrayList<ProgressReporter>();
+
+    private final AsyncFunction<EntityActionQueue.Group, ActionResult> starter =
+                    new AsyncFunction<EntityActionQueue.Group, ActionResult>() {
+                        @Override
+                        public ListenableFuture<ActionResult> apply(
+                                        EntityActionQueue.Group group) {
+                            SettableFuture<ActionResult> result = SettableFuture.create();
+                            started.add(group);
+                            results.add(result);
+                            return result;
+                        }
+                    };
+
+    @After
+    public void closeReporters() {
+        for (ProgressReporter reporter : reporters) {
+            reporter.close();
+        }
+    }
+
+    @Test
+    public void testEntitiesRunInParallel() {
+        submit(TestActionItems.start("a1", "vm-a", HOST));
+        submit(TestActionItems.start("b1", "vm-b", HOST));
+        assertStarted("a1", "b1");
+    }
+
+    @Test
+    public void testActionsOfAnEntityRunInOrder() throws Exception {
+        ListenableFuture<ActionResult> first = submit(TestActionItems.start("s1", "vm-a", HOST));
+        ListenableFuture<ActionResult> second = submit(TestActionItems.move("m1", "vm-a", HOST,
+                        "host-2"));
+        assertStarted("s1");
+        results.get(0).set(SUCCEEDED);
+        assertSame(SUCCEEDED, first.get());
+        assertFalse(second.isDone());
+        assertStarted("s1", "m1");
+        results.get(1).set(SUCCEEDED);
+        assertSame(SUCCEEDED, second.get());
+    }
+
+    @Test
+    public void testResizesMerge() throws Exception {
+        submit(TestActionItems.start("s1", "vm-a", HOST));
+        ListenableFuture<ActionResult> cpu = submit(TestActionItems.rightSize("r1", "vm-a", HOST,
+                        Commodity.VCPU, 4));
+        ListenableFuture<ActionResult> mem = submit(TestActionItems.rightSize("r2", "vm-a", HOST,
+                        Commodity.VMem, 8192));
+        ListenableFuture<ActionResult> cpuAgain = submit(TestActionItems.rightSize("r3", "vm-a",
+                        HOST, Commodity.VCPU, 8));
+        results.get(0).set(SUCCEEDED);
+
+        // One resize, run as the latest action, with the latest value of each commodity
+        assertStarted("s1", "r3");
+        EntityActionQueue.Group group = started.get(1);
+        assertEquals(3, group.size());
+        List<CommodityDTO> newComms = group.getNewComms();
+        assertEquals(2, newComms.size());
+        assertEquals(Commodity.VMem, newComms.get(0).getCommodityType());
+        assertEquals(8192f, newComms.get(0).getCapacity(), 0f);
+        assertEquals(Commodity.VCPU, newComms.get(1).getCommodityType());
+        assertEquals(8f, newComms.get(1).getCapacity(), 0f);
+
+        assertFalse(cpu.isDone());
+        results.get(1).set(SUCCEEDED);
+        assertSame(SUCCEEDED, cpu.get());
+        assertSame(SUCCEEDED, mem.get());
+        assertSame(SUCCEEDED, cpuAgain.get());
+    }
+
+    @Test
+    public void testRunningActionIsNotMergedWith() {
+        submit(TestActionItems.rightSize("r1", "vm-a", HOST, Commodity.VCPU, 4));
+        submit(TestActionItems.rightSize("r2", "vm-a", HOST, Commodity.VMem, 8192));
+        assertStarted("r1");
+        assertEquals(1, started.get(0).size());
+        results.get(0).set(SUCCEEDED);
+        assertStarted("r1", "r2");
+        assertEquals(1, started.get(1).size());
+    }
+
+    @Test
+    public void testMergeDoesNotPassAConflictingAction() {
+        submit(TestActionItems.start("s1", "vm-a", HOST));
+        submit(TestActionItems.rightSize("r1", "vm-a", HOST, Commodity.VCPU, 4));
+        submit(TestActionItems.move("m1", "vm-a", HOST, "host-2"));
+        submit(TestActionItems.rightSize("r2", "vm-a", HOST, Commodity.VMem, 8192));
+        for (int i = 0; i < 4; i++) {
+            results.get(i).set(SUCCEEDED);
+        }
+        assertStarted("s1", "r1", "m1", "r2");
+    }
+
+    @Test
+    public void testMoveSupersedesTheWaitingMove() throws Exception {
+        submit(TestActionItems.start("s1", "vm-a", HOST));
+        ListenableFuture<ActionResult> older = submit(TestActionItems.move("m1", "vm-a", HOST,
+                        "host-2"));
+        ListenableFuture<ActionResult> newer = submit(TestActionItems.move("m2", "vm-a", HOST,
+                        "host-3"));
+
+        assertTrue(older.isDone());
+        assertEquals(ActionResponseState.FAILED, older.get().getState());
+        assertTrue(older.get().getDescription(), older.get().getDescription()
+                        .contains("superseded"));
+
+        results.get(0).set(SUCCEEDED);
+        assertStarted("s1", "m2");
+        assertEquals(1, started.get(1).size());
+        assertEquals("host-3", started.get(1).getActionItem().getNewSE().getDisplayName());
+        results.get(1).set(SUCCEEDED);
+        assertSame(SUCCEEDED, newer.get());
+    }
+
+    @Test
+    public void testCancelledWaitingActionIsDropped() throws Exception {
+        submit(TestActionItems.start("s1", "vm-a", HOST));
+        ListenableFuture<ActionResult> move = submit(TestActionItems.move("m1", "vm-a", HOST,
+                        "host-2"));
+        ListenableFuture<ActionResult> resize = submit(TestActionItems.rightSize("r1", "vm-a",
+                        HOST, Commodity.VCPU, 4));
+        move.cancel(true);
+        results.get(0).set(SUCCEEDED);
+        assertStarted("s1", "r1");
+        results.get(1).set(SUCCEEDED);
+        assertSame(SUCCEEDED, resize.get());
+    }
+
+    @Test
+    public void testFailureIsPropagated() throws Exception {
+        ListenableFuture<ActionResult> start = submit(TestActionItems.start("s1", "vm-a", HOST));
+        ListenableFuture<ActionResult> move = submit(TestActionItems.move("m1", "vm-a", HOST,
+                        "host-2"));
+        IllegalStateException failure = new IllegalStateException("lost");
+        results.get(0).setException(failure);
+        try {
+            start.get();
+            fail("The action did not fail");
+        }
+        catch (ExecutionException e) {
+            assertSame(failure, e.getCause());
+        }
+        // The next action of the entity still runs
+        assertStarted("s1", "m1");
+        results.get(1).set(SUCCEEDED);
+        assertSame(SUCCEEDED, move.get());
+    }
+
+    private ListenableFuture<ActionResult> submit(ActionItemDTO actionItem) {
+        ProgressReporter reporter = new ProgressReporter(new IProgressTracker() {
+            @Override
+            public void updateActionProgress(ActionResponseState state, String description) {
+                // Not checked
+            }
+        }, ActionResponseState.QUEUED, "queued", 1000, 60000);
+        reporters.add(reporter);
+        return queue.submit(TARGET, actionItem, null, reporter, starter);
+    }
+
+    private void assertStarted(String... uuids) {
+        List<String> startedUuids = new ArrayList<String>();
+        for (EntityActionQueue.Group group : started) {
+            startedUuids.add(group.getActionItem().getUuid());
+        }
+        assertEquals(Arrays.asList(uuids), startedUuids);
+    }
+}
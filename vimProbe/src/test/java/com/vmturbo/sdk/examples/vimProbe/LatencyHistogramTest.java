@@ -0,0 +1,102 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests of the buckets and percentiles of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 0; millis < 8; millis++) {
+            histogram.record(millis);
+        }
+        assertEquals(8, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(3, histogram.getPercentile(50));
+        assertEquals(7, histogram.getPercentile(100));
+        assertEquals(7, histogram.getMax());
+    }
+
+    @Test
+    public void testNegativeCountsAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+    }
+
+    @Test
+    public void testBucketWidth() {
+        // The upper bound of the bucket of a value is within 1/8 of it
+        for (long millis = 1; millis > 0 && millis < Long.MAX_VALUE / 3; millis = millis * 3 + 1) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(millis);
+            long bound = histogram.getMax();
+            assertTrue(millis + " in bucket up to " + bound, bound >= millis);
+            assertTrue(millis + " in bucket up to " + bound, bound - millis <= millis / 8);
+        }
+    }
+
+    @Test
+    public void testBucketBoundaries() {
+        assertMax(8, 8);
+        assertMax(15, 15);
+        assertMax(17, 16);
+        assertMax(1023, 1000);
+        assertMax(Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int millis = 1; millis <= 1000; millis++) {
+            histogram.record(millis);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(900, histogram.getPercentile(90));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(histogram.getMax(), histogram.getPercentile(100));
+        assertWithin(1000, histogram.getMax());
+    }
+
+    @Test
+    public void testPercentileOfSkewedLatencies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10);
+        }
+        histogram.record(60000);
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(10, histogram.getPercentile(99));
+        assertWithin(60000, histogram.getPercentile(99.5));
+    }
+
+    private static void assertMax(long expected, long millis) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(millis);
+        assertEquals(expected, histogram.getMax());
+    }
+
+    /**
+     * Assert a percentile is the upper bound of the bucket of a value.
+     */
+    private static void assertWithin(long millis, long percentile) {
+        assertTrue(millis + " reported as " + percentile,
+                        percentile >= millis && percentile - millis <= millis / 8);
+    }
+}
@@ -0,0 +1,138 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.vmturbo.platform.common.dto.ActionResponseState;
+import com.vmturbo.platform.sdk.probe.IProgressTracker;
+
+/**
+ * Tests of the coalescing and heartbeats of {@link ProgressReporter}.
+ */
+public class ProgressReporterTest {
+
+    private final RecordingTracker tracker = new RecordingTracker();
+
+    private ProgressReporter reporter;
+
+    @After
+    public void close() {
+        if (reporter != null) {
+            reporter.close();
+        }
+    }
+
+    @Test
+    public void testUpdatesCollapseIntoTheLatest() throws InterruptedException {
+        reporter = new ProgressReporter(tracker, ActionResponseState.QUEUED, "queued", 300, 60000);
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 1");
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 2");
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 3");
+        assertEquals("step 3", tracker.next(2000));
+        assertNull(tracker.next(500));
+    }
+
+    @Test
+    public void testMinInterval() throws InterruptedException {
+        reporter = new ProgressReporter(tracker, ActionResponseState.QUEUED, "queued", 200, 60000);
+        long start = System.nanoTime();
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 1");
+        assertEquals("step 1", tracker.next(2000));
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 2");
+        assertEquals("step 2", tracker.next(2000));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Two updates sent in " + elapsedMs + " ms", elapsedMs >= 400);
+    }
+
+    @Test
+    public void testHeartbeats() throws InterruptedException {
+        reporter = new ProgressReporter(tracker, ActionResponseState.QUEUED, "queued", 10, 100);
+        assertEquals("queued", tracker.next(2000));
+        assertEquals("queued", tracker.next(2000));
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "waiting for VC");
+        assertEquals("waiting for VC", tracker.next(2000));
+        // The latest state is sent again when nothing is posted
+        assertEquals("waiting for VC", tracker.next(2000));
+        assertEquals("waiting for VC", tracker.next(2000));
+    }
+
+    @Test
+    public void testCloseDropsThePendingUpdate() throws InterruptedException {
+        reporter = new ProgressReporter(tracker, ActionResponseState.QUEUED, "queued", 200, 200);
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 1");
+        reporter.close();
+        assertNull(tracker.next(500));
+    }
+
+    @Test
+    public void testSlowTrackerDoesNotBlockTheAction() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        BlockingTracker slow = new BlockingTracker(release);
+        reporter = new ProgressReporter(slow, ActionResponseState.QUEUED, "queued", 0, 60000);
+        reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step 1");
+        assertEquals("step 1", slow.next(2000));
+        // The tracker is stuck in the first update: the next ones only replace each other
+        long start = System.nanoTime();
+        for (int i = 2; i <= 100; i++) {
+            reporter.updateActionProgress(ActionResponseState.IN_PROGRESS, "step " + i);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertNull(slow.next(200));
+        release.countDown();
+        assertEquals("step 100", slow.next(2000));
+        assertNull(slow.next(300));
+    }
+
+    /**
+     * Records the descriptions of the updates it receives.
+     */
+    private static class RecordingTracker implements IProgressTracker {
+        private final BlockingQueue<String> updates = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void updateActionProgress(ActionResponseState state, String description) {
+            assertNotNull(state);
+            updates.add(description);
+        }
+
+        /**
+         * @param timeoutMs Max time to wait, in milliseconds.
+         * @return The next update received, null if none within the timeout.
+         */
+        String next(long timeoutMs) throws InterruptedException {
+            return updates.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Blocks in each update until released.
+     */
+    private static class BlockingTracker extends RecordingTracker {
+        private final CountDownLatch release;
+
+        BlockingTracker(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void updateActionProgress(ActionResponseState state, String description) {
+            super.updateActionProgress(state, description);
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
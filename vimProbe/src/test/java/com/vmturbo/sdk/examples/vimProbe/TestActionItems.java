@@ -0,0 +1,143 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import com.vmturbo.platform.common.dto.ActionType;
+import com.vmturbo.platform.common.dto.CommodityDTO;
+import com.vmturbo.platform.common.dto.ModelEnum.Commodity;
+import com.vmturbo.platform.common.dto.ModelEnum.CommodityAttribute;
+import com.vmturbo.platform.common.dto.ModelEnum.Entity;
+import com.vmturbo.platform.sdk.common.DTO.ActionItemDTO;
+import com.vmturbo.platform.sdk.common.DTO.EntityDTO;
+import com.vmturbo.platform.sdk.common.supplychain.EntityBuilder;
+
+/**
+ * Action items and service entities of the tests, as the server sends them.
+ */
+final class TestActionItems {
+
+    private TestActionItems() {
+    }
+
+    /**
+     * @param name Display name of the VM.
+     * @return A VM service entity, without UUID: it is looked up by name.
+     */
+    static EntityDTO vm(String name) {
+        return new EntityBuilder().entity(Entity.VirtualMachine, name).displayName(name)
+                        .configure();
+    }
+
+    /**
+     * @param name Display name of the host.
+     * @return A host service entity, without UUID: it is looked up by name.
+     */
+    static EntityDTO host(String name) {
+        return new EntityBuilder().entity(Entity.PhysicalMachine, name).displayName(name)
+                        .configure();
+    }
+
+    /**
+     * @param type Type of the commodity.
+     * @param capacity New capacity.
+     * @return The new commodity of a resize.
+     */
+    static CommodityDTO commodity(final Commodity type, final float capacity) {
+        return new CommodityDTO(null, null, 0f, 0f) {
+            @Override
+            public Commodity getCommodityType() {
+                return type;
+            }
+
+            @Override
+            public float getCapacity() {
+                return capacity;
+            }
+        };
+    }
+
+    /**
+     * @param uuid UUID of the action.
+     * @param vmName Name of the VM the action is on.
+     * @param hostName Name of the host of the VM.
+     * @return A start of the VM.
+     */
+    static ActionItemDTO start(String uuid, String vmName, String hostName) {
+        return action(uuid, ActionType.START, vm(vmName), host(hostName), null, null, null);
+    }
+
+    /**
+     * @param uuid UUID of the action.
+     * @param vmName Name of the VM to move.
+     * @param hostName Name of the host of the VM.
+     * @param newHostName Name of the destination host.
+     * @return A move of the VM.
+     */
+    static ActionItemDTO move(String uuid, String vmName, String hostName, String newHostName) {
+        return action(uuid, ActionType.MOVE, vm(vmName), host(hostName), host(newHostName), null,
+                        null);
+    }
+
+    /**
+     * @param uuid UUID of the action.
+     * @param vmName Name of the VM to resize.
+     * @param hostName Name of the host of the VM.
+     * @param type Commodity resized, VCPU or VMem.
+     * @param capacity New capacity: number of CPUs, or memory size in MB.
+     * @return A capacity resize of the VM.
+     */
+    static ActionItemDTO rightSize(String uuid, String vmName, String hostName, Commodity type,
+                    float capacity) {
+        return action(uuid, ActionType.RIGHT_SIZE, vm(vmName), host(hostName), null,
+                        commodity(type, capacity), CommodityAttribute.Capacity);
+    }
+
+    private static ActionItemDTO action(final String uuid, final ActionType type,
+                    final EntityDTO targetSE, final EntityDTO hostedBySE, final EntityDTO newSE,
+                    final CommodityDTO newComm, final CommodityAttribute attribute) {
+        return new ActionItemDTO() {
+            @Override
+            public String getUuid() {
+                return uuid;
+            }
+
+            @Override
+            public ActionType getActionType() {
+                return type;
+            }
+
+            @Override
+            public EntityDTO getTargetSE() {
+                return targetSE;
+            }
+
+            @Override
+            public boolean hasHostedBySE() {
+                return hostedBySE != null;
+            }
+
+            @Override
+            public EntityDTO getHostedBySE() {
+                return hostedBySE;
+            }
+
+            @Override
+            public boolean hasNewSE() {
+                return newSE != null;
+            }
+
+            @Override
+            public EntityDTO getNewSE() {
+                return newSE;
+            }
+
+            @Override
+            public CommodityDTO getNewComm() {
+                return newComm;
+            }
+
+            @Override
+            public CommodityAttribute getCommodityAttribute() {
+                return attribute;
+            }
+        };
+    }
+}
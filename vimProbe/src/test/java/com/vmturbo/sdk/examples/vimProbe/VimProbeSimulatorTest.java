@@ -0,0 +1,139 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.vmturbo.platform.common.dto.ActionResponseState;
+import com.vmturbo.platform.common.dto.ModelEnum.Commodity;
+import com.vmturbo.platform.common.dto.ModelEnum.Entity;
+import com.vmturbo.platform.sdk.common.DTO.EntityDTO;
+import com.vmturbo.platform.sdk.common.util.AccountDefinitionEntry;
+import com.vmturbo.platform.sdk.common.util.TargetDiscoveryResponse;
+import com.vmturbo.platform.sdk.probe.ActionResult;
+import com.vmturbo.platform.sdk.probe.IProgressTracker;
+import com.vmturbo.sdk.examples.vimProbe.sim.SimInventory;
+import com.vmturbo.sdk.examples.vimProbe.sim.SimObject;
+import com.vmturbo.sdk.examples.vimProbe.sim.VimSimulator;
+
+/**
+ * Discovery and actions of the probe against an in-process {@link VimSimulator}.
+ *
+ * The inventory has one cluster of two hosts, sim-host-1.sim.local and sim-host-2.sim.local,
+ * sharing one datastore, with the VMs sim-vm-1 and sim-vm-2 on the first host and sim-vm-3 and
+ * sim-vm-4 on the second one.
+ */
+public class VimProbeSimulatorTest {
+
+    private static final String KEY_STORE_PASSWORD = "simulator";
+
+    private static final String HOST_1 = "sim-host-1.sim.local";
+    private static final String HOST_2 = "sim-host-2.sim.local";
+
+    private static File keyStore;
+    private static SimInventory inventory;
+    private static VimSimulator simulator;
+    private static Map<String, String> accountValues;
+
+    private static final IProgressTracker IGNORED_PROGRESS = new IProgressTracker() {
+        @Override
+        public void updateActionProgress(ActionResponseState state, String description) {
+            // Not checked
+        }
+    };
+
+    @BeforeClass
+    public static void startSimulator() throws IOException, InterruptedException {
+        // The probe only connects with HTTPS: serve it with a self-signed certificate
+        if (System.getProperty("javax.net.ssl.keyStore") == null) {
+            keyStore = File.createTempFile("vimSimulator", ".jks");
+            // keytool does not write to an existing empty file
+            keyStore.delete();
+            String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "simulator",
+                            "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                            "-dname", "CN=localhost", "-storetype", "JKS",
+                            "-keystore", keyStore.getPath(),
+                            "-storepass", KEY_STORE_PASSWORD, "-keypass", KEY_STORE_PASSWORD)
+                            .redirectErrorStream(true).start();
+            assertEquals("keytool exit code", 0, process.waitFor());
+            System.setProperty("javax.net.ssl.keyStore", keyStore.getPath());
+            System.setProperty("javax.net.ssl.keyStorePassword", KEY_STORE_PASSWORD);
+        }
+        inventory = SimInventory.generate(1, 2, 2, 1, 1);
+        simulator = new VimSimulator(inventory, 0, 8);
+        simulator.setTaskDuration(50);
+        simulator.start();
+
+        accountValues = new HashMap<String, String>();
+        accountValues.put(AccountDefinitionEntry.TARGET_IDENTIFIER, "simulator");
+        accountValues.put(AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD,
+                        "localhost:" + simulator.getPort());
+        accountValues.put(AccountDefinitionEntry.USERNAME_FIELD, "user");
+        accountValues.put(AccountDefinitionEntry.PASSWORD_FIELD, "password");
+    }
+
+    @AfterClass
+    public static void stopSimulator() {
+        if (simulator != null) {
+            simulator.stop();
+        }
+        if (keyStore != null) {
+            keyStore.delete();
+        }
+    }
+
+    @Test
+    public void testDiscovery() {
+        VimProbe probe = new VimProbe();
+        TargetDiscoveryResponse response = probe.discoverTarget(accountValues);
+        assertTrue(String.valueOf(response.getErrors()), response.getErrors().isEmpty());
+
+        Map<Entity, Integer> counts = new EnumMap<Entity, Integer>(Entity.class);
+        for (EntityDTO entity : probe.getTargetContext(accountValues.get(
+                        AccountDefinitionEntry.NAME_OR_ADDRESS_FIELD)).getTopologyCache()
+                        .getEntities()) {
+            Integer count = counts.get(entity.getEntity());
+            counts.put(entity.getEntity(), count != null ? count + 1 : 1);
+        }
+        assertEquals(Integer.valueOf(4), counts.get(Entity.VirtualMachine));
+        assertEquals(Integer.valueOf(2), counts.get(Entity.PhysicalMachine));
+        assertEquals(Integer.valueOf(1), counts.get(Entity.Storage));
+        assertEquals(Integer.valueOf(1), counts.get(Entity.DataCenter));
+    }
+
+    @Test
+    public void testMove() {
+        SimObject.Ref vm = inventory.getRef("vm-1");
+        ActionResult result = new VimActionExecutor().executeAction(
+                        TestActionItems.move("move-1", "sim-vm-1", HOST_1, HOST_2),
+                        accountValues, IGNORED_PROGRESS);
+        assertEquals(result.getDescription(), ActionResponseState.SUCCEEDED, result.getState());
+        assertEquals("host-2",
+                        ((SimObject.Ref)inventory.getProperty(vm, "runtime.host")).getVal());
+    }
+
+    @Test
+    public void testRightSize() {
+        SimObject.Ref vm = inventory.getRef("vm-3");
+        int memoryMB = (Integer)inventory.getProperty(vm, "config.hardware.memoryMB");
+        ActionResult result = new VimActionExecutor().executeAction(
+                        TestActionItems.rightSize("resize-1", "sim-vm-3", HOST_2, Commodity.VMem,
+                                        memoryMB * 2),
+                        accountValues, IGNORED_PROGRESS);
+        assertEquals(result.getDescription(), ActionResponseState.SUCCEEDED, result.getState());
+        assertEquals(memoryMB * 2, inventory.getProperty(vm, "config.hardware.memoryMB"));
+        // Resized with hot add, or powered off and on again
+        assertEquals("poweredOn", ((SimObject.EnumValue)inventory.getProperty(vm,
+                        "runtime.powerState")).getValue());
+    }
+}
@@ -0,0 +1,132 @@
+package com.vmturbo.sdk.examples.vimProbe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+
+/**
+ * Tests of the configuration fingerprints of {@link VmRecord}.
+ */
+public class VmRecordTest {
+
+    private static final String UUID = "4210a2b5-5b6e-1c3b-3f5a-6a5d7ad0a001";
+
+    private static final List<VmRecord.DatastoreUsage> USAGES = Arrays.asList(
+                    new VmRecord.DatastoreUsage("datastore-1", 10L << 30, 2L << 30),
+                    new VmRecord.DatastoreUsage("datastore-2", 20L << 30, 0));
+
+    private static VmRecord record() {
+        return new VmRecord("vm-1", UUID, "vm one", "host-1", 2, 4096, USAGES);
+    }
+
+    @Test
+    public void testSameConfigurationSameFingerprint() {
+        assertEquals(record().getFingerprint(), record().getFingerprint());
+    }
+
+    @Test
+    public void testConfigurationChangesChangeTheFingerprint() {
+        long fingerprint = record().getFingerprint();
+        assertNotEquals(fingerprint, new VmRecord("vm-2", UUID, "vm one", "host-1", 2, 4096,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", null, "vm one", "host-1", 2, 4096,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm two", "host-1", 2, 4096,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm one", "host-2", 2, 4096,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm one", null, 2, 4096,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm one", "host-1", 4, 4096,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm one", "host-1", 2, 8192,
+                        USAGES).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm one", "host-1", 2, 4096,
+                        USAGES.subList(0, 1)).getFingerprint());
+        assertNotEquals(fingerprint, new VmRecord("vm-1", UUID, "vm one", "host-1", 2, 4096,
+                        Collections.singletonList(new VmRecord.DatastoreUsage("datastore-3",
+                                        10L << 30, 2L << 30))).getFingerprint());
+    }
+
+    @Test
+    public void testFieldsDoNotShiftIntoEachOther() {
+        // A null and an empty string, or the same characters split differently, differ
+        assertNotEquals(new VmRecord("vm-1", null, "ab", "c", 2, 4096, USAGES).getFingerprint(),
+                        new VmRecord("vm-1", "", "ab", "c", 2, 4096, USAGES).getFingerprint());
+        assertNotEquals(new VmRecord("vm-1", UUID, "ab", "c", 2, 4096, USAGES).getFingerprint(),
+                        new VmRecord("vm-1", UUID, "a", "bc", 2, 4096, USAGES).getFingerprint());
+    }
+
+    @Test
+    public void testStorageUsageIsNotPartOfTheFingerprint() {
+        // The storage used is a metric, refreshed without rebuilding the entity
+        List<VmRecord.DatastoreUsage> grown = Arrays.asList(
+                        new VmRecord.DatastoreUsage("datastore-1", 50L << 30, 0),
+                        new VmRecord.DatastoreUsage("datastore-2", 30L << 30, 1L << 30));
+        assertEquals(record().getFingerprint(), new VmRecord("vm-1", UUID, "vm one", "host-1", 2,
+                        4096, grown).getFingerprint());
+    }
+
+    @Test
+    public void testUpdate() {
+        VmRecord previous = record();
+        assertEquals(previous.getFingerprint(),
+                        VmRecord.update(previous, "vm-1", null).getFingerprint());
+        assertEquals(previous.getFingerprint(), VmRecord.update(previous, "vm-1",
+                        new PropertyChange[] {change(VmRecord.PROPERTY_NAME, "vm one")})
+                        .getFingerprint());
+
+        VmRecord renamed = VmRecord.update(previous, "vm-1",
+                        new PropertyChange[] {change(VmRecord.PROPERTY_NAME, "vm two")});
+        assertEquals("vm two", renamed.getName());
+        assertEquals(previous.getHostMorVal(), renamed.getHostMorVal());
+        assertEquals(previous.getDatastoreUsages(), renamed.getDatastoreUsages());
+        assertEquals(new VmRecord("vm-1", UUID, "vm two", "host-1", 2, 4096, USAGES)
+                        .getFingerprint(), renamed.getFingerprint());
+
+        PropertyChange removed = change(VmRecord.PROPERTY_UUID, null);
+        removed.setOp(PropertyChangeOp.remove);
+        assertEquals(new VmRecord("vm-1", null, "vm one", "host-1", 2, 4096, USAGES)
+                        .getFingerprint(), VmRecord.update(previous, "vm-1",
+                        new PropertyChange[] {removed}).getFingerprint());
+    }
+
+    @Test
+    public void testSnapshotKeepsTheFingerprint() throws IOException {
+        VmRecord record = record();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            record.write(out);
+        }
+        VmRecord read;
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                        bytes.toByteArray()))) {
+            read = VmRecord.read(in);
+        }
+        assertEquals(record.getFingerprint(), read.getFingerprint());
+        assertEquals(record.getDatastoreUsages().size(), read.getDatastoreUsages().size());
+        assertEquals(record.getDatastoreUsages().get(0).getCommitted(),
+                        read.getDatastoreUsages().get(0).getCommitted());
+    }
+
+    private static PropertyChange change(String name, Object val) {
+        PropertyChange change = new PropertyChange();
+        change.setName(name);
+        change.setOp(PropertyChangeOp.assign);
+        change.setVal(val);
+        return change;
+    }
+}
@@ -0,0 +1,52 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A VIM fault returned by the simulator as a SOAP fault.
+ */
+public class SimFault extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String faultType;
+    private final Map<String, Object> fields;
+
+    /**
+     * @param faultType Fault type name of the VIM API, for example {@code NotAuthenticated}.
+     * @param message Fault string.
+     */
+    public SimFault(String faultType, String message) {
+        this(faultType, message, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * @param faultType Fault type name of the VIM API.
+     * @param message Fault string.
+     * @param fields Fields of the fault, written like the fields of a data object.
+     */
+    public SimFault(String faultType, String message, Map<String, Object> fields) {
+        super(message);
+        this.faultType = faultType;
+        this.fields = fields;
+    }
+
+    /**
+     * @param obj The missing object.
+     * @return A ManagedObjectNotFound fault.
+     */
+    public static SimFault notFound(SimObject.Ref obj) {
+        return new SimFault("ManagedObjectNotFound", "The object has already been deleted or "
+                        + "has not been completely created", Collections.<String, Object>singletonMap(
+                                        "obj", obj));
+    }
+
+    public String getFaultType() {
+        return faultType;
+    }
+
+    public Map<String, Object> getFields() {
+        return fields;
+    }
+}
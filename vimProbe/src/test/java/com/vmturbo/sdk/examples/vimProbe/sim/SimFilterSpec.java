@@ -0,0 +1,108 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.w3c.dom.Element;
+
+/**
+ * A PropertyFilterSpec decoded from a request: the objects to start from, the traversals from
+ * them, and the properties selected for each managed object class.
+ */
+public class SimFilterSpec {
+
+    /**
+     * Properties selected for a managed object class and its subclasses.
+     */
+    public static final class PropSpec {
+        final String type;
+        final boolean all;
+        final List<String> pathSet;
+
+        PropSpec(String type, boolean all, List<String> pathSet) {
+            this.type = type;
+            this.all = all;
+            this.pathSet = pathSet;
+        }
+    }
+
+    /**
+     * A traversal, or a reference by name to a traversal of the same filter when {@code type}
+     * is null.
+     */
+    public static final class SelectionSpec {
+        final String name;
+        final String type;
+        final String path;
+        final boolean skip;
+        final List<SelectionSpec> selectSet;
+
+        SelectionSpec(String name, String type, String path, boolean skip,
+                        List<SelectionSpec> selectSet) {
+            this.name = name;
+            this.type = type;
+            this.path = path;
+            this.skip = skip;
+            this.selectSet = selectSet;
+        }
+    }
+
+    /**
+     * A starting object and the traversals applied to it.
+     */
+    public static final class ObjectSpec {
+        final SimObject.Ref obj;
+        final boolean skip;
+        final List<SelectionSpec> selectSet;
+
+        ObjectSpec(SimObject.Ref obj, boolean skip, List<SelectionSpec> selectSet) {
+            this.obj = obj;
+            this.skip = skip;
+            this.selectSet = selectSet;
+        }
+    }
+
+    final List<PropSpec> propSet;
+    final List<ObjectSpec> objectSet;
+
+    SimFilterSpec(List<PropSpec> propSet, List<ObjectSpec> objectSet) {
+        this.propSet = propSet;
+        this.objectSet = objectSet;
+    }
+
+    /**
+     * @param spec A PropertyFilterSpec element.
+     * @return The decoded filter specification.
+     */
+    public static SimFilterSpec parse(Element spec) {
+        List<PropSpec> propSet = new ArrayList<PropSpec>();
+        for (Element ps : SoapRequest.children(spec, "propSet")) {
+            propSet.add(new PropSpec(SoapRequest.text(ps, "type"),
+                            Boolean.parseBoolean(SoapRequest.text(ps, "all")),
+                            SoapRequest.texts(ps, "pathSet")));
+        }
+        List<ObjectSpec> objectSet = new ArrayList<ObjectSpec>();
+        for (Element os : SoapRequest.children(spec, "objectSet")) {
+            objectSet.add(new ObjectSpec(SoapRequest.ref(SoapRequest.child(os, "obj")),
+                            Boolean.parseBoolean(SoapRequest.text(os, "skip")),
+                            parseSelectSet(os)));
+        }
+        return new SimFilterSpec(propSet, objectSet);
+    }
+
+    private static List<SelectionSpec> parseSelectSet(Element parent) {
+        List<Element> elements = SoapRequest.children(parent, "selectSet");
+        if (elements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<SelectionSpec> selectSet = new ArrayList<SelectionSpec>(elements.size());
+        for (Element ss : elements) {
+            selectSet.add(new SelectionSpec(SoapRequest.text(ss, "name"),
+                            SoapRequest.text(ss, "type"), SoapRequest.text(ss, "path"),
+                            Boolean.parseBoolean(SoapRequest.text(ss, "skip")),
+                            parseSelectSet(ss)));
+        }
+        return selectSet;
+    }
+}
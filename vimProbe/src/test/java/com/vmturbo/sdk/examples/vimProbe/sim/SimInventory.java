@@ -0,0 +1,1078 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Synthetic vCenter inventory: a data center with clusters of hosts, their VMs, datastores and
+ * networks, the performance counters, and the tasks started by the clients.
+ *
+ * The inventory evaluates property filter specifications the way the property collector does,
+ * and counts its changes with a generation number, which lets the property collectors wait for
+ * changes and compute the updates of their filters.
+ */
+public class SimInventory {
+
+    public static final String SERVICE_INSTANCE = "ServiceInstance";
+    public static final String ROOT_FOLDER = "group-d1";
+    public static final String PROPERTY_COLLECTOR = "propertyCollector";
+    public static final String VIEW_MANAGER = "ViewManager";
+    public static final String SESSION_MANAGER = "SessionManager";
+    public static final String PERF_MANAGER = "PerfMgr";
+    public static final String SEARCH_INDEX = "SearchIndex";
+    public static final String TASK_MANAGER = "TaskManager";
+
+    static final String COUNTER_CPU_USAGE = "cpu.usage.average";
+    static final String COUNTER_CPU_USAGE_MHZ = "cpu.usagemhz.average";
+    static final String COUNTER_MEM_USAGE = "mem.usage.average";
+    static final String COUNTER_MEM_CONSUMED = "mem.consumed.average";
+
+    private static final int HOST_CPU_MHZ = 2600;
+    private static final int HOST_CPU_THREADS = 32;
+    private static final long HOST_MEMORY_BYTES = 256L << 30;
+    private static final long DATASTORE_CAPACITY_BYTES = 8L << 40;
+
+    /**
+     * Super class of each managed object class of the simulated inventory.
+     */
+    private static final Map<String, String> SUPER_TYPES = new HashMap<String, String>();
+
+    /**
+     * Data object type of each property that is not a leaf, by managed object class and path.
+     */
+    private static final Map<String, String> DATA_TYPES = new HashMap<String, String>();
+
+    /**
+     * Properties followed by a recursive container view.
+     */
+    private static final List<String> CONTAINMENT_PATHS = Arrays.asList("childEntity",
+                    "hostFolder", "vmFolder", "datastoreFolder", "networkFolder", "host",
+                    "resourcePool");
+
+    static {
+        for (String type : new String[] {"Folder", "Datacenter", "ComputeResource", "HostSystem",
+                        "VirtualMachine", "Datastore", "Network", "ResourcePool"}) {
+            SUPER_TYPES.put(type, "ManagedEntity");
+        }
+        SUPER_TYPES.put("ClusterComputeResource", "ComputeResource");
+        SUPER_TYPES.put("DistributedVirtualPortgroup", "Network");
+        SUPER_TYPES.put("ContainerView", "ManagedObjectView");
+        SUPER_TYPES.put("ManagedObjectView", "View");
+
+        DATA_TYPES.put("VirtualMachine.config", "VirtualMachineConfigInfo");
+        DATA_TYPES.put("VirtualMachine.config.hardware", "VirtualHardware");
+        DATA_TYPES.put("VirtualMachine.config.cpuAllocation", "ResourceAllocationInfo");
+        DATA_TYPES.put("VirtualMachine.config.memoryAllocation", "ResourceAllocationInfo");
+        DATA_TYPES.put("VirtualMachine.runtime", "VirtualMachineRuntimeInfo");
+        DATA_TYPES.put("VirtualMachine.summary", "VirtualMachineSummary");
+        DATA_TYPES.put("VirtualMachine.summary.config", "VirtualMachineConfigSummary");
+        DATA_TYPES.put("VirtualMachine.summary.runtime", "VirtualMachineRuntimeInfo");
+        DATA_TYPES.put("VirtualMachine.storage", "VirtualMachineStorageInfo");
+        DATA_TYPES.put("HostSystem.summary", "HostListSummary");
+        DATA_TYPES.put("HostSystem.summary.hardware", "HostHardwareSummary");
+        DATA_TYPES.put("HostSystem.runtime", "HostRuntimeInfo");
+        DATA_TYPES.put("Datastore.summary", "DatastoreSummary");
+        DATA_TYPES.put("Task.info", "TaskInfo");
+    }
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Managed objects indexed by MOR value.
+     */
+    private final Map<String, SimObject> objects = new HashMap<String, SimObject>();
+
+    /**
+     * Number of changes so far, guarded by {@link #changeMonitor}.
+     */
+    private long generation = 0;
+    private final Object changeMonitor = new Object();
+
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * Counter IDs by full counter name.
+     */
+    private final Map<String, Integer> counterIds = new HashMap<String, Integer>();
+
+    private final Random random = new Random(42);
+
+    private SimInventory() {
+    }
+
+    /**
+     * Generate an inventory. Each cluster has its own hosts, datastores and networks, and its VMs
+     * are spread evenly on its hosts.
+     *
+     * @param clusters Number of clusters.
+     * @param hostsPerCluster Number of hosts of each cluster.
+     * @param vmsPerHost Number of VMs of each host.
+     * @param datastoresPerCluster Number of datastores of each cluster.
+     * @param networksPerCluster Number of networks of each cluster.
+     * @return The inventory.
+     */
+    public static SimInventory generate(int clusters, int hostsPerCluster, int vmsPerHost,
+                    int datastoresPerCluster, int networksPerCluster) {
+        SimInventory inv = new SimInventory();
+        inv.populate(clusters, hostsPerCluster, vmsPerHost, datastoresPerCluster,
+                        networksPerCluster);
+        return inv;
+    }
+
+    private void populate(int clusters, int hostsPerCluster, int vmsPerHost,
+                    int datastoresPerCluster, int networksPerCluster) {
+        SimObject root = add("Folder", ROOT_FOLDER, "Datacenters");
+        SimObject dc = add("Datacenter", "datacenter-2", "SimDatacenter");
+        SimObject hostFolder = add("Folder", "group-h3", "host");
+        SimObject vmFolder = add("Folder", "group-v4", "vm");
+        SimObject dsFolder = add("Folder", "group-s5", "datastore");
+        SimObject netFolder = add("Folder", "group-n6", "network");
+        root.set("childEntity", SimObject.list(Collections.singletonList(dc.getRef())));
+        dc.set("hostFolder", hostFolder.getRef());
+        dc.set("vmFolder", vmFolder.getRef());
+        dc.set("datastoreFolder", dsFolder.getRef());
+        dc.set("networkFolder", netFolder.getRef());
+        add("PerformanceManager", PERF_MANAGER, null).set("perfCounter", createPerfCounters());
+
+        List<SimObject.Ref> allClusters = new ArrayList<SimObject.Ref>();
+        List<SimObject.Ref> allVms = new ArrayList<SimObject.Ref>();
+        List<SimObject.Ref> allDatastores = new ArrayList<SimObject.Ref>();
+        List<SimObject.Ref> allNetworks = new ArrayList<SimObject.Ref>();
+        int hostCount = 0;
+        int vmCount = 0;
+        int dsCount = 0;
+        int netCount = 0;
+        for (int c = 1; c <= clusters; c++) {
+            SimObject cluster = add("ClusterComputeResource", "domain-c" + c, "SimCluster-" + c);
+            SimObject pool = add("ResourcePool", "resgroup-" + c, "Resources");
+            pool.set("owner", cluster.getRef());
+            pool.set("resourcePool", SimObject.list(Collections.<SimObject.Ref>emptyList()));
+            allClusters.add(cluster.getRef());
+
+            List<SimObject.Ref> datastores = new ArrayList<SimObject.Ref>();
+            for (int d = 0; d < datastoresPerCluster; d++) {
+                SimObject ds = add("Datastore", "datastore-" + (++dsCount), "SimDatastore-" + dsCount);
+                ds.set("summary.name", ds.getLeaf("name"));
+                ds.set("summary.datastore", ds.getRef());
+                ds.set("summary.type", "VMFS");
+                ds.set("summary.accessible", true);
+                ds.set("summary.capacity", DATASTORE_CAPACITY_BYTES);
+                ds.set("summary.freeSpace", DATASTORE_CAPACITY_BYTES);
+                ds.set("summary.uncommitted", 0L);
+                datastores.add(ds.getRef());
+            }
+            List<SimObject.Ref> networks = new ArrayList<SimObject.Ref>();
+            for (int n = 0; n < networksPerCluster; n++) {
+                SimObject net = add("Network", "network-" + (++netCount), "SimNetwork-" + netCount);
+                networks.add(net.getRef());
+            }
+
+            List<SimObject.Ref> hosts = new ArrayList<SimObject.Ref>();
+            List<SimObject.Ref> poolVms = new ArrayList<SimObject.Ref>();
+            for (int h = 0; h < hostsPerCluster; h++) {
+                SimObject host = add("HostSystem", "host-" + (++hostCount),
+                                "sim-host-" + hostCount + ".sim.local");
+                host.set("parent", cluster.getRef());
+                host.set("summary.hardware.uuid", UUID.nameUUIDFromBytes(
+                                host.getMorVal().getBytes()).toString());
+                host.set("summary.hardware.memorySize", HOST_MEMORY_BYTES);
+                host.set("summary.hardware.cpuMhz", HOST_CPU_MHZ);
+                host.set("summary.hardware.numCpuThreads", (short)HOST_CPU_THREADS);
+                host.set("summary.hardware.numCpuCores", (short)(HOST_CPU_THREADS / 2));
+                host.set("runtime.connectionState", new SimObject.EnumValue(
+                                "HostSystemConnectionState", "connected"));
+                host.set("runtime.powerState", new SimObject.EnumValue("HostSystemPowerState",
+                                "poweredOn"));
+                host.set("datastore", SimObject.list(datastores));
+                host.set("network", SimObject.list(networks));
+
+                List<SimObject.Ref> hostVms = new ArrayList<SimObject.Ref>();
+                for (int v = 0; v < vmsPerHost; v++) {
+                    SimObject.Ref ds = datastores.isEmpty() ? null
+                                    : datastores.get(vmCount % datastores.size());
+                    SimObject.Ref net = networks.isEmpty() ? null
+                                    : networks.get(vmCount % networks.size());
+                    SimObject vm = addVm(++vmCount, host.getRef(), pool.getRef(), ds, net);
+                    hostVms.add(vm.getRef());
+                }
+                host.set("vm", SimObject.list(hostVms));
+                hosts.add(host.getRef());
+                poolVms.addAll(hostVms);
+            }
+            for (SimObject.Ref ds : datastores) {
+                objects.get(ds.getVal()).set("host", createHostMounts(ds, hosts));
+            }
+            cluster.set("host", SimObject.list(hosts));
+            cluster.set("datastore", SimObject.list(datastores));
+            cluster.set("network", SimObject.list(networks));
+            cluster.set("resourcePool", pool.getRef());
+            pool.set("vm", SimObject.list(poolVms));
+            allVms.addAll(poolVms);
+            allDatastores.addAll(datastores);
+            allNetworks.addAll(networks);
+        }
+        hostFolder.set("childEntity", SimObject.list(allClusters));
+        vmFolder.set("childEntity", SimObject.list(allVms));
+        dsFolder.set("childEntity", SimObject.list(allDatastores));
+        netFolder.set("childEntity", SimObject.list(allNetworks));
+        dc.set("datastore", SimObject.list(allDatastores));
+        dc.set("network", SimObject.list(allNetworks));
+
+        // Committed storage of the datastores
+        Set<SimObject> datastoreObjs = new HashSet<SimObject>();
+        for (SimObject.Ref dsRef : allDatastores) {
+            datastoreObjs.add(objects.get(dsRef.getVal()));
+        }
+        updateDatastoreUsage(datastoreObjs);
+        logger.info("Generated inventory with " + clusters + " clusters, " + hostCount
+                        + " hosts, " + vmCount + " VMs, " + dsCount + " datastores and " + netCount
+                        + " networks");
+    }
+
+    private SimObject addVm(int index, SimObject.Ref host, SimObject.Ref pool, SimObject.Ref ds,
+                    SimObject.Ref net) {
+        SimObject vm = add("VirtualMachine", "vm-" + index, "sim-vm-" + index);
+        int numCpu = 1 << random.nextInt(3);
+        int memoryMB = 1024 << random.nextInt(4);
+        vm.set("parent", new SimObject.Ref("Folder", "group-v4"));
+        vm.set("resourcePool", pool);
+        vm.set("config.uuid", UUID.nameUUIDFromBytes(vm.getMorVal().getBytes()).toString());
+        vm.set("config.instanceUuid", UUID.nameUUIDFromBytes(
+                        ("instance-" + vm.getMorVal()).getBytes()).toString());
+        vm.set("config.template", false);
+        vm.set("config.cpuHotAddEnabled", random.nextBoolean());
+        vm.set("config.memoryHotAddEnabled", random.nextBoolean());
+        vm.set("config.hardware.numCoresPerSocket", 1);
+        vm.set("summary.config.template", false);
+        vm.set("runtime.host", host);
+        vm.set("runtime.powerState", new SimObject.EnumValue("VirtualMachinePowerState",
+                        "poweredOn"));
+        vm.set("summary.runtime.host", host);
+        vm.set("summary.runtime.powerState", vm.getLeaf("runtime.powerState"));
+        setHardware(vm, numCpu, memoryMB);
+        vm.set("datastore", SimObject.list(ds != null ? Collections.singletonList(ds)
+                        : Collections.<SimObject.Ref>emptyList()));
+        vm.set("network", SimObject.list(net != null ? Collections.singletonList(net)
+                        : Collections.<SimObject.Ref>emptyList()));
+        if (ds != null) {
+            long committed = (long)(16 + random.nextInt(240)) << 30;
+            long uncommitted = (long)random.nextInt(64) << 30;
+            setDatastoreUsage(vm, ds, committed, uncommitted);
+        }
+        return vm;
+    }
+
+    /**
+     * @param ds A datastore.
+     * @param hosts The hosts of the cluster of the datastore.
+     * @return The mounts of the datastore, one accessible mount on each host.
+     */
+    private static List<SimObject.Data> createHostMounts(SimObject.Ref ds,
+                    List<SimObject.Ref> hosts) {
+        List<SimObject.Data> mounts = new ArrayList<SimObject.Data>();
+        for (SimObject.Ref host : hosts) {
+            mounts.add(new SimObject.DataBuilder("DatastoreHostMount")
+                            .field("key", host)
+                            .field("mountInfo", new SimObject.DataBuilder("HostMountInfo")
+                                            .field("path", "/vmfs/volumes/" + ds.getVal())
+                                            .field("accessMode", "readWrite")
+                                            .field("mounted", true)
+                                            .field("accessible", true)
+                                            .build())
+                            .build());
+        }
+        return SimObject.list(mounts);
+    }
+
+    private static void setHardware(SimObject vm, int numCpu, int memoryMB) {
+        vm.set("config.hardware.numCPU", numCpu);
+        vm.set("config.hardware.memoryMB", memoryMB);
+        vm.set("summary.config.numCpu", numCpu);
+        vm.set("summary.config.memorySizeMB", memoryMB);
+    }
+
+    private static void setDatastoreUsage(SimObject vm, SimObject.Ref ds, long committed,
+                    long uncommitted) {
+        vm.set("storage.perDatastoreUsage", SimObject.list(Collections.singletonList(
+                        new SimObject.DataBuilder("VirtualMachineUsageOnDatastore")
+                                        .field("datastore", ds)
+                                        .field("committed", committed)
+                                        .field("uncommitted", uncommitted)
+                                        .field("unshared", committed)
+                                        .build())));
+        vm.set("storage.timestamp", Calendar.getInstance());
+    }
+
+    private SimObject add(String type, String morVal, String name) {
+        SimObject obj = new SimObject(type, morVal);
+        if (name != null) {
+            obj.set("name", name);
+        }
+        objects.put(morVal, obj);
+        return obj;
+    }
+
+    private List<SimObject.Data> createPerfCounters() {
+        List<SimObject.Data> counters = new ArrayList<SimObject.Data>();
+        counters.add(createPerfCounter(2, "cpu", "usage", "average", "percent", "rate"));
+        counters.add(createPerfCounter(6, "cpu", "usagemhz", "average", "megaHertz", "rate"));
+        counters.add(createPerfCounter(24, "mem", "usage", "average", "percent", "absolute"));
+        counters.add(createPerfCounter(98, "mem", "consumed", "average", "kiloBytes", "absolute"));
+        return SimObject.list(counters);
+    }
+
+    private SimObject.Data createPerfCounter(int key, String group, String name, String rollup,
+                    String unit, String statsType) {
+        counterIds.put(group + "." + name + "." + rollup, key);
+        return new SimObject.DataBuilder("PerfCounterInfo")
+                        .field("key", key)
+                        .field("nameInfo", createDescription(name))
+                        .field("groupInfo", createDescription(group))
+                        .field("unitInfo", createDescription(unit))
+                        .field("rollupType", new SimObject.EnumValue("PerfSummaryType", rollup))
+                        .field("statsType", new SimObject.EnumValue("PerfStatsType", statsType))
+                        .field("level", 1)
+                        .field("perDeviceLevel", 3)
+                        .build();
+    }
+
+    private static SimObject.Data createDescription(String key) {
+        return new SimObject.DataBuilder("ElementDescription")
+                        .field("label", key)
+                        .field("summary", key)
+                        .field("key", key)
+                        .build();
+    }
+
+    /**
+     * @return The number of changes so far.
+     */
+    public long getGeneration() {
+        synchronized (changeMonitor) {
+            return generation;
+        }
+    }
+
+    /**
+     * Wait until the inventory changes.
+     *
+     * @param since Generation already seen.
+     * @param timeoutMillis Max time to wait, in milliseconds.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitChange(long since, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (changeMonitor) {
+            long remaining = timeoutMillis;
+            while (generation == since && remaining > 0) {
+                changeMonitor.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void changed() {
+        synchronized (changeMonitor) {
+            generation++;
+            changeMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * @param morVal MOR value.
+     * @return A reference to the object, null if there is no such object.
+     */
+    public SimObject.Ref getRef(String morVal) {
+        lock.readLock().lock();
+        try {
+            SimObject obj = objects.get(morVal);
+            return obj != null ? obj.getRef() : null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param ref Object reference.
+     * @param path Property path.
+     * @return The value of the property, null if it is not set or the object does not exist.
+     */
+    public Object getProperty(SimObject.Ref ref, String path) {
+        lock.readLock().lock();
+        try {
+            SimObject obj = objects.get(ref.getVal());
+            return obj != null ? getProperty(obj, path) : null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param type Managed object class name.
+     * @param base Managed object class name.
+     * @return true if {@code type} is {@code base} or one of its subclasses.
+     */
+    public static boolean isA(String type, String base) {
+        for (String t = type; t != null; t = SUPER_TYPES.get(t)) {
+            if (t.equals(base)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluate a filter specification.
+     *
+     * @param spec The filter specification.
+     * @return The selected objects and their selected properties that are set, in traversal
+     *         order.
+     */
+    public Map<SimObject.Ref, Map<String, Object>> select(SimFilterSpec spec) {
+        lock.readLock().lock();
+        try {
+            Map<String, SimFilterSpec.SelectionSpec> named = new HashMap<String, SimFilterSpec.SelectionSpec>();
+            for (SimFilterSpec.ObjectSpec os : spec.objectSet) {
+                collectNamed(os.selectSet, named);
+            }
+            Map<String, SimObject> selected = new LinkedHashMap<String, SimObject>();
+            for (SimFilterSpec.ObjectSpec os : spec.objectSet) {
+                SimObject obj = os.obj != null ? objects.get(os.obj.getVal()) : null;
+                if (obj == null) {
+                    continue;
+                }
+                if (!os.skip) {
+                    selected.put(obj.getMorVal(), obj);
+                }
+                traverse(obj, os.selectSet, named, selected, new HashSet<String>());
+            }
+
+            Map<SimObject.Ref, Map<String, Object>> result = new LinkedHashMap<SimObject.Ref, Map<String, Object>>();
+            for (SimObject obj : selected.values()) {
+                Map<String, Object> props = new LinkedHashMap<String, Object>();
+                for (SimFilterSpec.PropSpec ps : spec.propSet) {
+                    if (!isA(obj.getType(), ps.type)) {
+                        continue;
+                    }
+                    for (String path : ps.all ? getTopLevelPaths(obj) : ps.pathSet) {
+                        Object value = getProperty(obj, path);
+                        if (value != null) {
+                            props.put(path, value);
+                        }
+                    }
+                }
+                result.put(obj.getRef(), props);
+            }
+            return result;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void collectNamed(List<SimFilterSpec.SelectionSpec> selectSet,
+                    Map<String, SimFilterSpec.SelectionSpec> named) {
+        for (SimFilterSpec.SelectionSpec ss : selectSet) {
+            if (ss.type != null && ss.name != null && !named.containsKey(ss.name)) {
+                named.put(ss.name, ss);
+                collectNamed(ss.selectSet, named);
+            }
+        }
+    }
+
+    private void traverse(SimObject obj, List<SimFilterSpec.SelectionSpec> selectSet,
+                    Map<String, SimFilterSpec.SelectionSpec> named, Map<String, SimObject> selected,
+                    Set<String> visited) {
+        for (SimFilterSpec.SelectionSpec spec : selectSet) {
+            SimFilterSpec.SelectionSpec ts = spec.type != null ? spec : named.get(spec.name);
+            if (ts == null || ts.path == null || !isA(obj.getType(), ts.type)) {
+                continue;
+            }
+            // Each traversal is followed once from each object, which ends recursive traversals
+            if (!visited.add(System.identityHashCode(ts) + "|" + obj.getMorVal())) {
+                continue;
+            }
+            for (SimObject.Ref ref : refs(getProperty(obj, ts.path))) {
+                SimObject next = objects.get(ref.getVal());
+                if (next == null) {
+                    continue;
+                }
+                if (!ts.skip) {
+                    selected.put(next.getMorVal(), next);
+                }
+                traverse(next, ts.selectSet, named, selected, visited);
+            }
+        }
+    }
+
+    private static List<SimObject.Ref> refs(Object value) {
+        if (value instanceof SimObject.Ref) {
+            return Collections.singletonList((SimObject.Ref)value);
+        }
+        List<SimObject.Ref> refs = new ArrayList<SimObject.Ref>();
+        if (value instanceof List) {
+            for (Object item : (List<?>)value) {
+                if (item instanceof SimObject.Ref) {
+                    refs.add((SimObject.Ref)item);
+                }
+            }
+        }
+        return refs;
+    }
+
+    private static List<String> getTopLevelPaths(SimObject obj) {
+        Set<String> paths = new LinkedHashSet<String>();
+        for (String leaf : obj.getLeaves().keySet()) {
+            int dot = leaf.indexOf('.');
+            paths.add(dot < 0 ? leaf : leaf.substring(0, dot));
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    /**
+     * Read a property, the lock being held. A path that is not a leaf reads as a data object.
+     */
+    private Object getProperty(SimObject obj, String path) {
+        if ("ContainerView".equals(obj.getType()) && "view".equals(path)) {
+            return getViewContent(obj);
+        }
+        Object leaf = obj.getLeaf(path);
+        if (leaf != null) {
+            return leaf;
+        }
+        Map<String, Object> leaves = obj.getLeavesUnder(path);
+        return leaves.isEmpty() ? null : buildData(obj, path, leaves);
+    }
+
+    private SimObject.Data buildData(SimObject obj, String path, Map<String, Object> leaves) {
+        String type = DATA_TYPES.get(obj.getType() + "." + path);
+        Map<String, Object> fields = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Object> leaf : leaves.entrySet()) {
+            String relative = leaf.getKey().substring(path.length() + 1);
+            int dot = relative.indexOf('.');
+            if (dot < 0) {
+                fields.put(relative, leaf.getValue());
+            } else {
+                String field = relative.substring(0, dot);
+                if (!fields.containsKey(field)) {
+                    String fieldPath = path + "." + field;
+                    fields.put(field, buildData(obj, fieldPath, obj.getLeavesUnder(fieldPath)));
+                }
+            }
+        }
+        return new SimObject.Data(type != null ? type : "DynamicData", fields);
+    }
+
+    private List<SimObject.Ref> getViewContent(SimObject view) {
+        SimObject container = objects.get(((SimObject.Ref)view.getLeaf("container")).getVal());
+        List<SimObject.Ref> content = new ArrayList<SimObject.Ref>();
+        if (container == null) {
+            return SimObject.list(content);
+        }
+        @SuppressWarnings("unchecked")
+        List<String> types = (List<String>)view.getLeaf("type");
+        boolean recursive = Boolean.TRUE.equals(view.getLeaf("recursive"));
+        Set<String> visited = new HashSet<String>();
+        Deque<SimObject> queue = new ArrayDeque<SimObject>();
+        queue.add(container);
+        visited.add(container.getMorVal());
+        while (!queue.isEmpty()) {
+            SimObject obj = queue.poll();
+            for (String path : CONTAINMENT_PATHS) {
+                for (SimObject.Ref ref : refs(obj.getLeaf(path))) {
+                    SimObject child = objects.get(ref.getVal());
+                    if (child == null || !visited.add(child.getMorVal())) {
+                        continue;
+                    }
+                    if (types == null || types.isEmpty() || isAny(child.getType(), types)) {
+                        content.add(child.getRef());
+                    }
+                    if (recursive) {
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+        return SimObject.list(content);
+    }
+
+    private static boolean isAny(String type, List<String> bases) {
+        for (String base : bases) {
+            if (isA(type, base)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param container The container of the view.
+     * @param types Managed object classes listed by the view, all if empty.
+     * @param recursive true to list the whole hierarchy under the container.
+     * @return The new container view.
+     * @throws SimFault if the container does not exist
+     */
+    public SimObject.Ref createContainerView(SimObject.Ref container, List<String> types,
+                    boolean recursive) throws SimFault {
+        lock.writeLock().lock();
+        try {
+            if (!objects.containsKey(container.getVal())) {
+                throw SimFault.notFound(container);
+            }
+            SimObject view = add("ContainerView", "session[sim]view-" + nextId.getAndIncrement(),
+                            null);
+            view.set("container", container);
+            view.set("type", SimObject.list(types));
+            view.set("recursive", recursive);
+            return view.getRef();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an object created by a client, such as a view.
+     *
+     * @param ref The object.
+     * @throws SimFault if the object does not exist
+     */
+    public void remove(SimObject.Ref ref) throws SimFault {
+        lock.writeLock().lock();
+        try {
+            if (objects.remove(ref.getVal()) == null) {
+                throw SimFault.notFound(ref);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+    }
+
+    /**
+     * Find a VM or host by UUID.
+     *
+     * @param uuid BIOS UUID of a VM, instance UUID of a VM, or hardware UUID of a host.
+     * @param vmSearch true to search the VMs, false to search the hosts.
+     * @param instanceUuid true if the UUID of a VM is its instance UUID.
+     * @return The object found, null if none.
+     */
+    public SimObject.Ref findByUuid(String uuid, boolean vmSearch, boolean instanceUuid) {
+        String type = vmSearch ? "VirtualMachine" : "HostSystem";
+        String path = vmSearch ? (instanceUuid ? "config.instanceUuid" : "config.uuid")
+                        : "summary.hardware.uuid";
+        lock.readLock().lock();
+        try {
+            for (SimObject obj : objects.values()) {
+                if (obj.getType().equals(type) && uuid.equalsIgnoreCase((String)obj.getLeaf(path))) {
+                    return obj.getRef();
+                }
+            }
+            return null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param name Full name of a counter, for example {@code cpu.usagemhz.average}.
+     * @return The counter ID, null if there is no such counter.
+     */
+    Integer getCounterId(String name) {
+        return counterIds.get(name);
+    }
+
+    /**
+     * Latest sample of a performance counter. The values are synthetic, stable over a 5 minute
+     * interval; the samples of a host are the sums of the samples of its VMs.
+     *
+     * @param entity A VM or a host.
+     * @param counterId Counter ID.
+     * @return The sample, null if the entity does not exist or the counter is not supported.
+     */
+    public Long getPerfSample(SimObject.Ref entity, int counterId) {
+        lock.readLock().lock();
+        try {
+            SimObject obj = objects.get(entity.getVal());
+            return obj != null ? getPerfSample(obj, counterId) : null;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Long getPerfSample(SimObject obj, int counterId) {
+        if ("HostSystem".equals(obj.getType())) {
+            List<SimObject.Ref> vms = refs(obj.getLeaf("vm"));
+            long sum = 0;
+            for (SimObject.Ref vm : vms) {
+                SimObject vmObj = objects.get(vm.getVal());
+                Long sample = vmObj != null ? getPerfSample(vmObj, counterId) : null;
+                sum += sample != null ? sample : 0;
+            }
+            // Percentages are averaged over the VMs, amounts are summed
+            boolean percent = counterId == counterIds.get(COUNTER_CPU_USAGE)
+                            || counterId == counterIds.get(COUNTER_MEM_USAGE);
+            return percent ? sum / Math.max(1, vms.size()) : sum;
+        }
+        if (!"VirtualMachine".equals(obj.getType())) {
+            return null;
+        }
+        boolean poweredOn = "poweredOn".equals(String.valueOf(obj.getLeaf("runtime.powerState")));
+        if (!poweredOn) {
+            return 0L;
+        }
+        // Utilization between 5 and 85%, changing every 5 minutes
+        long slot = System.currentTimeMillis() / TimeUnit.MINUTES.toMillis(5);
+        int percent = 5 + (int)(((obj.getMorVal().hashCode() * 31L + slot) & 0x7fffffff) % 80);
+        int numCpu = (Integer)obj.getLeaf("config.hardware.numCPU");
+        int memoryMB = (Integer)obj.getLeaf("config.hardware.memoryMB");
+        if (counterId == counterIds.get(COUNTER_CPU_USAGE_MHZ)) {
+            return (long)numCpu * HOST_CPU_MHZ * percent / 100;
+        } else if (counterId == counterIds.get(COUNTER_MEM_CONSUMED)) {
+            return (long)memoryMB * 1024 * percent / 100;
+        } else if (counterId == counterIds.get(COUNTER_CPU_USAGE)
+                        || counterId == counterIds.get(COUNTER_MEM_USAGE)) {
+            return (long)percent * 100; // In hundredths of a percent
+        }
+        return null;
+    }
+
+    /**
+     * Change properties of an object.
+     *
+     * @param ref The object.
+     * @param changes New values by leaf property path, null values unset the properties.
+     * @throws SimFault if the object does not exist
+     */
+    public void update(SimObject.Ref ref, Map<String, Object> changes) throws SimFault {
+        lock.writeLock().lock();
+        try {
+            SimObject obj = objects.get(ref.getVal());
+            if (obj == null) {
+                throw SimFault.notFound(ref);
+            }
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                obj.set(change.getKey(), change.getValue());
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+    }
+
+    /**
+     * @param vm A VM.
+     * @param state New power state: poweredOn, poweredOff or suspended.
+     * @throws SimFault if the VM does not exist
+     */
+    public void setPowerState(SimObject.Ref vm, String state) throws SimFault {
+        SimObject.EnumValue value = new SimObject.EnumValue("VirtualMachinePowerState", state);
+        Map<String, Object> changes = new HashMap<String, Object>();
+        changes.put("runtime.powerState", value);
+        changes.put("summary.runtime.powerState", value);
+        update(vm, changes);
+    }
+
+    /**
+     * Move a VM to another host and resource pool.
+     *
+     * @param vm The VM.
+     * @param host The new host, null to stay on the current one.
+     * @param pool The new resource pool, null to stay in the current one.
+     * @throws SimFault if an object does not exist
+     */
+    public void migrate(SimObject.Ref vm, SimObject.Ref host, SimObject.Ref pool)
+                    throws SimFault {
+        lock.writeLock().lock();
+        try {
+            SimObject vmObj = getExisting(vm);
+            if (host != null) {
+                SimObject newHost = getExisting(host);
+                SimObject oldHost = objects.get(((SimObject.Ref)vmObj.getLeaf("runtime.host"))
+                                .getVal());
+                if (oldHost != null) {
+                    List<SimObject.Ref> vms = new ArrayList<SimObject.Ref>(refs(oldHost.getLeaf("vm")));
+                    vms.remove(vm);
+                    oldHost.set("vm", SimObject.list(vms));
+                }
+                List<SimObject.Ref> vms = new ArrayList<SimObject.Ref>(refs(newHost.getLeaf("vm")));
+                vms.add(vmObj.getRef());
+                newHost.set("vm", SimObject.list(vms));
+                vmObj.set("runtime.host", newHost.getRef());
+                vmObj.set("summary.runtime.host", newHost.getRef());
+            }
+            if (pool != null) {
+                SimObject newPool = getExisting(pool);
+                SimObject oldPool = objects.get(((SimObject.Ref)vmObj.getLeaf("resourcePool"))
+                                .getVal());
+                if (oldPool != null) {
+                    List<SimObject.Ref> vms = new ArrayList<SimObject.Ref>(refs(oldPool.getLeaf("vm")));
+                    vms.remove(vm);
+                    oldPool.set("vm", SimObject.list(vms));
+                }
+                List<SimObject.Ref> vms = new ArrayList<SimObject.Ref>(refs(newPool.getLeaf("vm")));
+                vms.add(vmObj.getRef());
+                newPool.set("vm", SimObject.list(vms));
+                vmObj.set("resourcePool", newPool.getRef());
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+    }
+
+    /**
+     * Change the hardware and the resource limits of a VM.
+     *
+     * @param vm The VM.
+     * @param numCpu New number of virtual CPUs, null to leave unchanged.
+     * @param memoryMB New memory size, null to leave unchanged.
+     * @param cpuLimit New CPU limit in MHz, -1 for unlimited, null to leave unchanged.
+     * @param memoryLimit New memory limit in MB, -1 for unlimited, null to leave unchanged.
+     * @throws SimFault if the VM does not exist, or is powered on and the CPU or memory change
+     *             can not be hot added
+     */
+    public void reconfigure(SimObject.Ref vm, Integer numCpu, Integer memoryMB, Long cpuLimit,
+                    Long memoryLimit) throws SimFault {
+        lock.writeLock().lock();
+        try {
+            SimObject vmObj = getExisting(vm);
+            if ("poweredOn".equals(String.valueOf(vmObj.getLeaf("runtime.powerState")))) {
+                checkHotAdd(vmObj, numCpu, memoryMB);
+            }
+            setHardware(vmObj,
+                            numCpu != null ? numCpu : (Integer)vmObj.getLeaf("config.hardware.numCPU"),
+                            memoryMB != null ? memoryMB : (Integer)vmObj.getLeaf("config.hardware.memoryMB"));
+            if (cpuLimit != null) {
+                vmObj.set("config.cpuAllocation.limit", cpuLimit);
+            }
+            if (memoryLimit != null) {
+                vmObj.set("config.memoryAllocation.limit", memoryLimit);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+    }
+
+    /**
+     * Check that CPU and memory changes can be hot added to a running VM: hot add is enabled,
+     * the value grows, and VCPUs are added by whole sockets.
+     *
+     * @throws SimFault if a change can not be hot added
+     */
+    private static void checkHotAdd(SimObject vmObj, Integer numCpu, Integer memoryMB)
+                    throws SimFault {
+        if (numCpu != null) {
+            int current = (Integer)vmObj.getLeaf("config.hardware.numCPU");
+            int coresPerSocket = (Integer)vmObj.getLeaf("config.hardware.numCoresPerSocket");
+            if (!Boolean.TRUE.equals(vmObj.getLeaf("config.cpuHotAddEnabled"))
+                            || numCpu < current || numCpu % coresPerSocket != 0) {
+                throw new SimFault("InvalidState", "CPU hot add from " + current + " to "
+                                + numCpu + " VCPUs is not supported by " + vmObj.getMorVal());
+            }
+        }
+        if (memoryMB != null) {
+            int current = (Integer)vmObj.getLeaf("config.hardware.memoryMB");
+            if (!Boolean.TRUE.equals(vmObj.getLeaf("config.memoryHotAddEnabled"))
+                            || memoryMB < current) {
+                throw new SimFault("InvalidState", "Memory hot add from " + current + " to "
+                                + memoryMB + " MB is not supported by " + vmObj.getMorVal());
+            }
+        }
+    }
+
+    /**
+     * Grow the committed storage of random VMs, to exercise incremental discovery.
+     *
+     * @param count Number of VMs changed.
+     */
+    public void churn(int count) {
+        lock.writeLock().lock();
+        try {
+            List<SimObject> vms = new ArrayList<SimObject>();
+            for (SimObject obj : objects.values()) {
+                if ("VirtualMachine".equals(obj.getType())) {
+                    vms.add(obj);
+                }
+            }
+            Set<SimObject> datastores = new HashSet<SimObject>();
+            for (int i = 0; i < count && !vms.isEmpty(); i++) {
+                SimObject vm = vms.get(random.nextInt(vms.size()));
+                @SuppressWarnings("unchecked")
+                List<SimObject.Data> usages = (List<SimObject.Data>)vm.getLeaf(
+                                "storage.perDatastoreUsage");
+                if (usages == null || usages.isEmpty()) {
+                    continue;
+                }
+                SimObject.Data usage = usages.get(0);
+                SimObject.Ref ds = (SimObject.Ref)usage.getFields().get("datastore");
+                setDatastoreUsage(vm, ds, (Long)usage.getFields().get("committed") + (1L << 30),
+                                (Long)usage.getFields().get("uncommitted"));
+                datastores.add(objects.get(ds.getVal()));
+            }
+            updateDatastoreUsage(datastores);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+    }
+
+    /**
+     * Recompute the free space of datastores from the storage committed by their VMs, the write
+     * lock being held.
+     */
+    private void updateDatastoreUsage(Set<SimObject> datastores) {
+        Map<SimObject.Ref, long[]> usageByDs = new HashMap<SimObject.Ref, long[]>();
+        for (SimObject ds : datastores) {
+            usageByDs.put(ds.getRef(), new long[2]);
+        }
+        for (SimObject obj : objects.values()) {
+            Object usages = obj.getLeaf("storage.perDatastoreUsage");
+            if (usages == null) {
+                continue;
+            }
+            for (Object item : (List<?>)usages) {
+                Map<String, Object> usage = ((SimObject.Data)item).getFields();
+                long[] sums = usageByDs.get(usage.get("datastore"));
+                if (sums != null) {
+                    sums[0] += (Long)usage.get("committed");
+                    sums[1] += (Long)usage.get("uncommitted");
+                }
+            }
+        }
+        for (SimObject ds : datastores) {
+            long[] sums = usageByDs.get(ds.getRef());
+            ds.set("summary.freeSpace", Math.max(0, DATASTORE_CAPACITY_BYTES - sums[0]));
+            ds.set("summary.uncommitted", sums[1]);
+        }
+    }
+
+    /**
+     * Body of a simulated task, run when the task completes.
+     */
+    public interface TaskAction {
+        /**
+         * @throws SimFault if the task fails
+         */
+        void run() throws SimFault;
+    }
+
+    /**
+     * Start a task. The task is queued, then runs with its progress going up in four steps over
+     * its duration, then runs its action and completes.
+     *
+     * @param entity The entity the task operates on.
+     * @param descriptionId Identifier of the operation, for example
+     *            {@code VirtualMachine.powerOn}.
+     * @param durationMillis Duration of the task, in milliseconds.
+     * @param scheduler Scheduler running the task steps.
+     * @param action Action run when the task completes.
+     * @return The task.
+     */
+    public SimObject.Ref startTask(SimObject.Ref entity, String descriptionId,
+                    final long durationMillis, final ScheduledExecutorService scheduler,
+                    final TaskAction action) {
+        final SimObject.Ref task;
+        lock.writeLock().lock();
+        try {
+            SimObject entityObj = objects.get(entity.getVal());
+            long id = nextId.getAndIncrement();
+            SimObject taskObj = add("Task", "task-" + id, null);
+            task = taskObj.getRef();
+            taskObj.set("info.key", task.getVal());
+            taskObj.set("info.task", task);
+            taskObj.set("info.descriptionId", descriptionId);
+            taskObj.set("info.entity", entity);
+            taskObj.set("info.entityName", entityObj != null ? entityObj.getLeaf("name") : null);
+            taskObj.set("info.state", new SimObject.EnumValue("TaskInfoState", "queued"));
+            taskObj.set("info.cancelled", false);
+            taskObj.set("info.cancelable", false);
+            taskObj.set("info.queueTime", Calendar.getInstance());
+            taskObj.set("info.eventChainId", (int)id);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+        changed();
+
+        final long step = Math.max(1, durationMillis / 4);
+        scheduler.schedule(new Runnable() {
+            private int progress = 0;
+
+            @Override
+            public void run() {
+                try {
+                    Map<String, Object> changes = new HashMap<String, Object>();
+                    if (progress < 75) {
+                        if (progress == 0) {
+                            changes.put("info.state", new SimObject.EnumValue("TaskInfoState", "running"));
+                            changes.put("info.startTime", Calendar.getInstance());
+                        }
+                        progress += 25;
+                        changes.put("info.progress", progress);
+                        update(task, changes);
+                        scheduler.schedule(this, step, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    try {
+                        action.run();
+                        changes.put("info.state", new SimObject.EnumValue("TaskInfoState", "success"));
+                        changes.put("info.progress", 100);
+                    }
+                    catch (SimFault e) {
+                        changes.put("info.state", new SimObject.EnumValue("TaskInfoState", "error"));
+                        changes.put("info.error", new SimObject.DataBuilder("LocalizedMethodFault")
+                                        .field("fault", new SimObject.Data(e.getFaultType(), e.getFields()))
+                                        .field("localizedMessage", e.getMessage())
+                                        .build());
+                    }
+                    changes.put("info.completeTime", Calendar.getInstance());
+                    update(task, changes);
+                }
+                catch (Exception e) {
+                    logger.error("Simulated task " + task.getVal() + " failed", e);
+                }
+            }
+        }, step, TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    private SimObject getExisting(SimObject.Ref ref) throws SimFault {
+        SimObject obj = objects.get(ref.getVal());
+        if (obj == null) {
+            throw SimFault.notFound(ref);
+        }
+        return obj;
+    }
+}
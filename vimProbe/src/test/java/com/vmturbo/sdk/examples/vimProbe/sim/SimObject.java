@@ -0,0 +1,253 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * A managed object of the simulated inventory.
+ *
+ * Properties are stored by leaf property path, for example {@code runtime.powerState}. A path
+ * that is a prefix of stored paths, for example {@code runtime}, reads as a data object built from
+ * the leaf properties. Property values are immutable: {@link String}, boxed primitives,
+ * {@link java.util.Calendar} (not modified once stored), {@link Ref}, {@link EnumValue},
+ * {@link Data}, or unmodifiable lists of those.
+ *
+ * Objects are only read and modified under the lock of their {@link SimInventory}.
+ */
+public class SimObject {
+
+    private final String type;
+    private final String morVal;
+
+    /**
+     * Leaf properties, sorted by path so that the properties of a data object are adjacent.
+     */
+    private final TreeMap<String, Object> props = new TreeMap<String, Object>();
+
+    /**
+     * @param type Managed object class name.
+     * @param morVal Managed object reference value.
+     */
+    public SimObject(String type, String morVal) {
+        this.type = type;
+        this.morVal = morVal;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getMorVal() {
+        return morVal;
+    }
+
+    /**
+     * @return A reference to the object.
+     */
+    public Ref getRef() {
+        return new Ref(type, morVal);
+    }
+
+    /**
+     * @param path Leaf property path.
+     * @param value New value, null to unset the property.
+     */
+    void set(String path, Object value) {
+        if (value == null) {
+            props.remove(path);
+        } else {
+            props.put(path, value);
+        }
+    }
+
+    /**
+     * @param path Leaf property path.
+     * @return The value of the leaf property, null if it is not set.
+     */
+    Object getLeaf(String path) {
+        return props.get(path);
+    }
+
+    /**
+     * @return The leaf properties, sorted by path.
+     */
+    Map<String, Object> getLeaves() {
+        return Collections.unmodifiableMap(props);
+    }
+
+    /**
+     * @param path Property path.
+     * @return The leaf properties under a path, sorted by path. Empty if the path is a leaf or
+     *         is not set.
+     */
+    Map<String, Object> getLeavesUnder(String path) {
+        // '/' sorts right after '.'
+        return props.subMap(path + ".", path + "/");
+    }
+
+    /**
+     * Reference to a managed object.
+     */
+    public static final class Ref {
+        private final String type;
+        private final String val;
+
+        public Ref(String type, String val) {
+            this.type = type;
+            this.val = val;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getVal() {
+            return val;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Ref && type.equals(((Ref)o).type) && val.equals(((Ref)o).val);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + val.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return type + ":" + val;
+        }
+    }
+
+    /**
+     * Value of an enumeration of the VIM API.
+     */
+    public static final class EnumValue {
+        private final String type;
+        private final String value;
+
+        public EnumValue(String type, String value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof EnumValue && type.equals(((EnumValue)o).type)
+                            && value.equals(((EnumValue)o).value);
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    /**
+     * Data object of the VIM API: a type name and its fields, in order.
+     */
+    public static final class Data {
+        private final String type;
+        private final Map<String, Object> fields;
+
+        /**
+         * @param type Data object type name.
+         * @param fields Fields by name, in the order they are written.
+         */
+        public Data(String type, Map<String, Object> fields) {
+            this.type = type;
+            this.fields = Collections.unmodifiableMap(new LinkedHashMap<String, Object>(fields));
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public Map<String, Object> getFields() {
+            return fields;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Data && type.equals(((Data)o).type)
+                            && fields.equals(((Data)o).fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(type, fields);
+        }
+    }
+
+    /**
+     * Value of a field declared as any type, such as the value of a property: it is written with
+     * its type.
+     */
+    public static final class Any {
+        private final Object value;
+
+        public Any(Object value) {
+            this.value = value;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    /**
+     * Builds a {@link Data} field by field.
+     */
+    public static final class DataBuilder {
+        private final String type;
+        private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+        public DataBuilder(String type) {
+            this.type = type;
+        }
+
+        /**
+         * @param name Field name.
+         * @param value Field value, ignored if null.
+         * @return This builder.
+         */
+        public DataBuilder field(String name, Object value) {
+            if (value != null) {
+                fields.put(name, value);
+            }
+            return this;
+        }
+
+        public Data build() {
+            return new Data(type, fields);
+        }
+    }
+
+    /**
+     * @param items List items.
+     * @return An unmodifiable copy of the list.
+     */
+    static <T> List<T> list(List<T> items) {
+        return Collections.unmodifiableList(new ArrayList<T>(items));
+    }
+}
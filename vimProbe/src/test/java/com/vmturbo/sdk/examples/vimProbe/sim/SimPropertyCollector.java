@@ -0,0 +1,262 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A simulated property collector: its filters and the incremental updates of their results.
+ *
+ * Each filter remembers the properties last reported to the client. An update set reports the
+ * differences between those and the current inventory, at most a given number of objects at a
+ * time, and the version it returns is the only one accepted by the next call.
+ */
+public class SimPropertyCollector {
+
+    private static final AtomicLong nextFilterId = new AtomicLong(1);
+
+    private final SimObject.Ref ref;
+    private final SimInventory inventory;
+
+    /**
+     * Filters indexed by MOR value.
+     */
+    private final Map<String, Filter> filters = new LinkedHashMap<String, Filter>();
+
+    /**
+     * Version of the last update set returned, 0 before the first one.
+     */
+    private int version = 0;
+
+    private static final class Filter {
+        final SimObject.Ref ref;
+        final SimFilterSpec spec;
+
+        /**
+         * Properties reported to the client so far, by object.
+         */
+        final Map<SimObject.Ref, Map<String, Object>> reported = new HashMap<SimObject.Ref, Map<String, Object>>();
+
+        Filter(SimObject.Ref ref, SimFilterSpec spec) {
+            this.ref = ref;
+            this.spec = spec;
+        }
+    }
+
+    /**
+     * @param morVal MOR value of the collector.
+     * @param inventory The inventory.
+     */
+    public SimPropertyCollector(String morVal, SimInventory inventory) {
+        this.ref = new SimObject.Ref("PropertyCollector", morVal);
+        this.inventory = inventory;
+    }
+
+    public SimObject.Ref getRef() {
+        return ref;
+    }
+
+    /**
+     * @param spec Filter specification.
+     * @return The new filter.
+     */
+    public synchronized SimObject.Ref createFilter(SimFilterSpec spec) {
+        SimObject.Ref filterRef = new SimObject.Ref("PropertyFilter", "session[sim]filter-"
+                        + nextFilterId.getAndIncrement());
+        filters.put(filterRef.getVal(), new Filter(filterRef, spec));
+        return filterRef;
+    }
+
+    /**
+     * @param filterRef The filter.
+     * @throws SimFault if the filter does not exist
+     */
+    public synchronized void destroyFilter(SimObject.Ref filterRef) throws SimFault {
+        if (filters.remove(filterRef.getVal()) == null) {
+            throw SimFault.notFound(filterRef);
+        }
+    }
+
+    /**
+     * Retrieve the properties selected by filter specifications.
+     *
+     * @param inventory The inventory.
+     * @param specs The filter specifications.
+     * @return ObjectContent data objects, in traversal order.
+     */
+    public static List<SimObject.Data> retrieve(SimInventory inventory, List<SimFilterSpec> specs) {
+        Map<SimObject.Ref, List<SimObject.Data>> contents = new LinkedHashMap<SimObject.Ref, List<SimObject.Data>>();
+        for (SimFilterSpec spec : specs) {
+            for (Map.Entry<SimObject.Ref, Map<String, Object>> selected : inventory.select(spec)
+                            .entrySet()) {
+                List<SimObject.Data> propSet = contents.get(selected.getKey());
+                if (propSet == null) {
+                    propSet = new ArrayList<SimObject.Data>();
+                    contents.put(selected.getKey(), propSet);
+                }
+                for (Map.Entry<String, Object> prop : selected.getValue().entrySet()) {
+                    propSet.add(new SimObject.DataBuilder("DynamicProperty")
+                                    .field("name", prop.getKey())
+                                    .field("val", new SimObject.Any(prop.getValue()))
+                                    .build());
+                }
+            }
+        }
+        List<SimObject.Data> result = new ArrayList<SimObject.Data>(contents.size());
+        for (Map.Entry<SimObject.Ref, List<SimObject.Data>> content : contents.entrySet()) {
+            result.add(new SimObject.DataBuilder("ObjectContent")
+                            .field("obj", content.getKey())
+                            .field("propSet", content.getValue())
+                            .build());
+        }
+        return result;
+    }
+
+    /**
+     * Wait for changes of the results of the filters.
+     *
+     * @param clientVersion Version of the last update set received by the client, empty or null
+     *            to get the full results of the filters.
+     * @param maxWaitSeconds Max time to wait for changes, null to wait until a change.
+     * @param maxObjectUpdates Max number of objects reported, null for no limit.
+     * @return UpdateSet data object, null if nothing changed within the max time.
+     * @throws SimFault if the version is not the last one returned
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized SimObject.Data waitForUpdates(String clientVersion, Integer maxWaitSeconds,
+                    Integer maxObjectUpdates) throws SimFault, InterruptedException {
+        boolean initial = clientVersion == null || clientVersion.isEmpty();
+        if (initial) {
+            for (Filter filter : filters.values()) {
+                filter.reported.clear();
+            }
+        } else if (!clientVersion.equals(String.valueOf(version))) {
+            throw new SimFault("InvalidCollectorVersion", "Collector version " + clientVersion
+                            + " is not " + version);
+        }
+        long deadline = maxWaitSeconds != null
+                        ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(maxWaitSeconds)
+                        : Long.MAX_VALUE;
+        int limit = maxObjectUpdates != null && maxObjectUpdates > 0 ? maxObjectUpdates
+                        : Integer.MAX_VALUE;
+        while (true) {
+            long generation = inventory.getGeneration();
+            SimObject.Data updates = computeUpdates(limit, initial);
+            if (updates != null) {
+                return updates;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return null;
+            }
+            // Releases the monitor of the inventory only, the collector serves one call at a time
+            inventory.awaitChange(generation, Math.min(remaining, TimeUnit.MINUTES.toMillis(1)));
+        }
+    }
+
+    /**
+     * Compute the next update set and record it as reported.
+     *
+     * @param limit Max number of objects reported.
+     * @param always true to return an update set even if nothing changed.
+     * @return The update set, null if nothing changed.
+     */
+    private SimObject.Data computeUpdates(int limit, boolean always) {
+        List<SimObject.Data> filterSet = new ArrayList<SimObject.Data>();
+        int count = 0;
+        boolean truncated = false;
+        for (Filter filter : filters.values()) {
+            List<SimObject.Data> objectSet = new ArrayList<SimObject.Data>();
+            Map<SimObject.Ref, Map<String, Object>> current = inventory.select(filter.spec);
+            for (Map.Entry<SimObject.Ref, Map<String, Object>> entry : current.entrySet()) {
+                Map<String, Object> previous = filter.reported.get(entry.getKey());
+                List<SimObject.Data> changeSet = diff(previous, entry.getValue());
+                if (previous != null && changeSet.isEmpty()) {
+                    continue;
+                }
+                if (count == limit) {
+                    truncated = true;
+                    break;
+                }
+                objectSet.add(createObjectUpdate(previous == null ? "enter" : "modify",
+                                entry.getKey(), changeSet));
+                filter.reported.put(entry.getKey(), entry.getValue());
+                count++;
+            }
+            for (Iterator<SimObject.Ref> it = filter.reported.keySet().iterator(); it.hasNext()
+                            && !truncated;) {
+                SimObject.Ref obj = it.next();
+                if (current.containsKey(obj)) {
+                    continue;
+                }
+                if (count == limit) {
+                    truncated = true;
+                    break;
+                }
+                objectSet.add(createObjectUpdate("leave", obj,
+                                Collections.<SimObject.Data>emptyList()));
+                it.remove();
+                count++;
+            }
+            if (!objectSet.isEmpty()) {
+                filterSet.add(new SimObject.DataBuilder("PropertyFilterUpdate")
+                                .field("filter", filter.ref)
+                                .field("objectSet", objectSet)
+                                .build());
+            }
+            if (truncated) {
+                break;
+            }
+        }
+        if (filterSet.isEmpty() && !always) {
+            return null;
+        }
+        version++;
+        return new SimObject.DataBuilder("UpdateSet")
+                        .field("version", String.valueOf(version))
+                        .field("filterSet", filterSet)
+                        .field("truncated", truncated ? Boolean.TRUE : null)
+                        .build();
+    }
+
+    private static List<SimObject.Data> diff(Map<String, Object> previous,
+                    Map<String, Object> current) {
+        List<SimObject.Data> changeSet = new ArrayList<SimObject.Data>();
+        for (Map.Entry<String, Object> prop : current.entrySet()) {
+            if (previous == null || !prop.getValue().equals(previous.get(prop.getKey()))) {
+                changeSet.add(createPropertyChange(prop.getKey(), "assign", prop.getValue()));
+            }
+        }
+        if (previous != null) {
+            for (String path : previous.keySet()) {
+                if (!current.containsKey(path)) {
+                    changeSet.add(createPropertyChange(path, "remove", null));
+                }
+            }
+        }
+        return changeSet;
+    }
+
+    private static SimObject.Data createObjectUpdate(String kind, SimObject.Ref obj,
+                    List<SimObject.Data> changeSet) {
+        return new SimObject.DataBuilder("ObjectUpdate")
+                        .field("kind", new SimObject.EnumValue("ObjectUpdateKind", kind))
+                        .field("obj", obj)
+                        .field("changeSet", changeSet)
+                        .build();
+    }
+
+    private static SimObject.Data createPropertyChange(String name, String op, Object value) {
+        return new SimObject.DataBuilder("PropertyChange")
+                        .field("name", name)
+                        .field("op", new SimObject.EnumValue("PropertyChangeOp", op))
+                        .field("val", value != null ? new SimObject.Any(value) : null)
+                        .build();
+    }
+}
@@ -0,0 +1,192 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+/**
+ * A VIM SOAP request: the operation element of the SOAP body, and helpers to read its
+ * parameters. Elements are matched by local name, whatever their namespace.
+ */
+public class SoapRequest {
+
+    private static final DocumentBuilderFactory factory = createFactory();
+
+    private final Element operation;
+
+    private SoapRequest(Element operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * @param in The SOAP envelope.
+     * @return The request.
+     * @throws IOException if the envelope could not be read or parsed
+     */
+    public static SoapRequest parse(InputStream in) throws IOException {
+        Document doc;
+        try {
+            DocumentBuilder builder;
+            synchronized (factory) {
+                builder = factory.newDocumentBuilder();
+            }
+            doc = builder.parse(in);
+        }
+        catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Invalid SOAP request", e);
+        }
+        Element body = child(doc.getDocumentElement(), "Body");
+        Element operation = body != null ? firstChild(body) : null;
+        if (operation == null) {
+            throw new IOException("SOAP request without an operation");
+        }
+        return new SoapRequest(operation);
+    }
+
+    /**
+     * @return Name of the operation, for example {@code RetrievePropertiesEx}.
+     */
+    public String getName() {
+        return operation.getLocalName();
+    }
+
+    /**
+     * @return The operation element, whose children are the parameters.
+     */
+    public Element getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return The managed object the operation is invoked on.
+     */
+    public SimObject.Ref getThis() {
+        return ref(child(operation, "_this"));
+    }
+
+    /**
+     * @param name Parameter name.
+     * @return The parameter element, null if absent.
+     */
+    public Element param(String name) {
+        return child(operation, name);
+    }
+
+    /**
+     * @param name Parameter name.
+     * @return The text of the parameter, null if absent.
+     */
+    public String paramText(String name) {
+        return text(operation, name);
+    }
+
+    /**
+     * @param parent Parent element.
+     * @param name Local name of the children.
+     * @return The direct children with that name, in order.
+     */
+    public static List<Element> children(Element parent, String name) {
+        List<Element> children = new ArrayList<Element>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && name.equals(localName(n))) {
+                children.add((Element)n);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * @param parent Parent element.
+     * @param name Local name of the child.
+     * @return The first direct child with that name, null if none.
+     */
+    public static Element child(Element parent, String name) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element && name.equals(localName(n))) {
+                return (Element)n;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param parent Parent element.
+     * @param name Local name of the child.
+     * @return The text of the first child with that name, null if none.
+     */
+    public static String text(Element parent, String name) {
+        Element child = child(parent, name);
+        return child != null ? child.getTextContent() : null;
+    }
+
+    /**
+     * @param parent Parent element.
+     * @param name Local name of the children.
+     * @return The texts of the children with that name, in order.
+     */
+    public static List<String> texts(Element parent, String name) {
+        List<String> texts = new ArrayList<String>();
+        for (Element child : children(parent, name)) {
+            texts.add(child.getTextContent());
+        }
+        return texts;
+    }
+
+    /**
+     * @param parent Parent element.
+     * @param name Local name of the child.
+     * @param defaultValue Value if the child is absent.
+     * @return The text of the child as an int.
+     */
+    public static int intValue(Element parent, String name, int defaultValue) {
+        String text = text(parent, name);
+        return text != null ? Integer.parseInt(text.trim()) : defaultValue;
+    }
+
+    /**
+     * @param element A ManagedObjectReference element, may be null.
+     * @return The reference, null if the element is null.
+     */
+    public static SimObject.Ref ref(Element element) {
+        return element != null ? new SimObject.Ref(element.getAttribute("type"),
+                        element.getTextContent()) : null;
+    }
+
+    private static Element firstChild(Element parent) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n instanceof Element) {
+                return (Element)n;
+            }
+        }
+        return null;
+    }
+
+    private static String localName(Node n) {
+        return n.getLocalName() != null ? n.getLocalName() : n.getNodeName();
+    }
+
+    private static DocumentBuilderFactory createFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        try {
+            // Requests never carry a DTD
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        }
+        catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
+        }
+        return factory;
+    }
+}
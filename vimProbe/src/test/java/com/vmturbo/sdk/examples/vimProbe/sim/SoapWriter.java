@@ -0,0 +1,188 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Writes VIM SOAP responses and faults.
+ *
+ * Values are written the way the VIM API encodes them: a field declared as a plain object, such
+ * as the value of a property, carries its type in {@code xsi:type} and wraps arrays in an
+ * {@code ArrayOf} element; a field of a known type repeats the element for each array item. Data
+ * objects always carry {@code xsi:type}, since many fields are declared with a base type.
+ */
+public class SoapWriter {
+
+    private static final String ENVELOPE_START = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\""
+                    + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\""
+                    + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">"
+                    + "<soapenv:Body>";
+    private static final String ENVELOPE_END = "</soapenv:Body></soapenv:Envelope>";
+
+    private final StringBuilder sb = new StringBuilder(256);
+
+    /**
+     * @param operation Name of the operation.
+     * @param returnval Value returned by the operation, null for none. A list is returned as
+     *            repeated {@code returnval} elements.
+     * @return The SOAP response.
+     */
+    public static String response(String operation, Object returnval) {
+        SoapWriter w = new SoapWriter();
+        w.sb.append(ENVELOPE_START).append('<').append(operation)
+                        .append("Response xmlns=\"urn:vim25\">");
+        w.value("returnval", returnval, false);
+        w.sb.append("</").append(operation).append("Response>").append(ENVELOPE_END);
+        return w.sb.toString();
+    }
+
+    /**
+     * @param fault The fault.
+     * @return The SOAP fault response.
+     */
+    public static String fault(SimFault fault) {
+        SoapWriter w = new SoapWriter();
+        w.sb.append(ENVELOPE_START).append("<soapenv:Fault><faultcode>ServerFaultCode</faultcode>")
+                        .append("<faultstring>");
+        w.escape(fault.getMessage() != null ? fault.getMessage() : "");
+        w.sb.append("</faultstring><detail><").append(fault.getFaultType())
+                        .append("Fault xmlns=\"urn:vim25\" xsi:type=\"").append(fault.getFaultType())
+                        .append("\">");
+        for (Map.Entry<String, Object> field : fault.getFields().entrySet()) {
+            w.value(field.getKey(), field.getValue(), false);
+        }
+        w.sb.append("</").append(fault.getFaultType()).append("Fault></detail></soapenv:Fault>")
+                        .append(ENVELOPE_END);
+        return w.sb.toString();
+    }
+
+    /**
+     * Write a value.
+     *
+     * @param name Element name.
+     * @param value The value, nothing is written if null.
+     * @param typed true if the field is declared as a plain object, and the value must carry its
+     *            type.
+     */
+    private void value(String name, Object value, boolean typed) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof SimObject.Any) {
+            value(name, ((SimObject.Any)value).getValue(), true);
+        } else if (value instanceof List) {
+            List<?> items = (List<?>)value;
+            if (!typed) {
+                for (Object item : items) {
+                    value(name, item, false);
+                }
+                return;
+            }
+            String itemType = items.isEmpty() ? "ManagedObjectReference" : typeName(items.get(0));
+            String itemName = itemType.startsWith("xsd:") ? itemType.substring(4) : itemType;
+            String arrayType = "ArrayOf" + Character.toUpperCase(itemName.charAt(0))
+                            + itemName.substring(1);
+            open(name, arrayType, null);
+            for (Object item : items) {
+                value(itemName, item, true);
+            }
+            close(name);
+        } else if (value instanceof SimObject.Ref) {
+            SimObject.Ref ref = (SimObject.Ref)value;
+            open(name, typed ? "ManagedObjectReference" : null, ref.getType());
+            escape(ref.getVal());
+            close(name);
+        } else if (value instanceof SimObject.Data) {
+            SimObject.Data data = (SimObject.Data)value;
+            open(name, data.getType(), null);
+            for (Map.Entry<String, Object> field : data.getFields().entrySet()) {
+                value(field.getKey(), field.getValue(), false);
+            }
+            close(name);
+        } else {
+            open(name, typed ? typeName(value) : null, null);
+            if (value instanceof Calendar) {
+                sb.append(formatDateTime((Calendar)value));
+            } else {
+                escape(value.toString());
+            }
+            close(name);
+        }
+    }
+
+    private static String typeName(Object value) {
+        if (value instanceof SimObject.Ref) {
+            return "ManagedObjectReference";
+        } else if (value instanceof SimObject.Data) {
+            return ((SimObject.Data)value).getType();
+        } else if (value instanceof SimObject.EnumValue) {
+            return ((SimObject.EnumValue)value).getType();
+        } else if (value instanceof Integer) {
+            return "xsd:int";
+        } else if (value instanceof Long) {
+            return "xsd:long";
+        } else if (value instanceof Short) {
+            return "xsd:short";
+        } else if (value instanceof Boolean) {
+            return "xsd:boolean";
+        } else if (value instanceof Double) {
+            return "xsd:double";
+        } else if (value instanceof Float) {
+            return "xsd:float";
+        } else if (value instanceof Calendar) {
+            return "xsd:dateTime";
+        }
+        return "xsd:string";
+    }
+
+    private void open(String name, String xsiType, String morType) {
+        sb.append('<').append(name);
+        if (morType != null) {
+            sb.append(" type=\"");
+            escape(morType);
+            sb.append('"');
+        }
+        if (xsiType != null) {
+            sb.append(" xsi:type=\"").append(xsiType).append('"');
+        }
+        sb.append('>');
+    }
+
+    private void close(String name) {
+        sb.append("</").append(name).append('>');
+    }
+
+    private void escape(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+    }
+
+    private static String formatDateTime(Calendar cal) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(cal.getTime());
+    }
+}
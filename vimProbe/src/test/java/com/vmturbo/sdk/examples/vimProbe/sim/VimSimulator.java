@@ -0,0 +1,740 @@
+package com.vmturbo.sdk.examples.vimProbe.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Element;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+/**
+ * In-process stand-in for a vCenter server, serving the VIM SOAP calls made by the VimProbe and
+ * the VimActionExecutor against a synthetic inventory, to measure discovery and actions at scale
+ * without a lab.
+ *
+ * Supported calls: RetrieveServiceContent, Login, Logout, CurrentTime, RetrieveProperties,
+ * RetrievePropertiesEx, ContinueRetrievePropertiesEx, CancelRetrievePropertiesEx,
+ * CreatePropertyCollector, DestroyPropertyCollector, CreateFilter, DestroyPropertyFilter,
+ * WaitForUpdates, WaitForUpdatesEx, CreateContainerView, DestroyView, QueryPerf,
+ * QueryPerfComposite, FindByUuid, PowerOnVM_Task, PowerOffVM_Task, ShutdownGuest, MigrateVM_Task
+ * and ReconfigVM_Task. Any user name and password are accepted.
+ *
+ * Half of the VMs, at random, have CPU hot add enabled, and half memory hot add: a reconfigure of
+ * a running VM fails unless its changes can be hot added, as in VC. The datastores of a cluster
+ * are mounted on all its hosts.
+ *
+ * Each call is delayed by a configurable latency plus a random jitter, and tasks complete after
+ * a configurable duration. Responses are gzip compressed when the client accepts it, and
+ * connections are kept alive between calls. The simulator serves HTTPS when the {@code javax.net.ssl.keyStore}
+ * system property names a key store, plain HTTP otherwise; the probe ignores certificates, so a
+ * self-signed key store made with keytool is enough.
+ */
+public class VimSimulator {
+
+    private static final String SESSION_COOKIE = "vmware_soap_session";
+    private static final Pattern SESSION_COOKIE_PATTERN = Pattern.compile(SESSION_COOKIE
+                    + "=\"?([^\";]+)\"?");
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final SimInventory inventory;
+    private final HttpServer server;
+    private final ExecutorService requestPool;
+    private final ScheduledExecutorService taskScheduler;
+
+    /**
+     * Sessions indexed by session key.
+     */
+    private final Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile long taskDurationMillis = 2000;
+
+    /**
+     * A login session: its property collectors and the pending results of paged retrievals.
+     */
+    private static final class Session {
+        final String key;
+        final SimObject.Data userSession;
+        final Map<String, SimPropertyCollector> collectors = new ConcurrentHashMap<String, SimPropertyCollector>();
+        final Map<String, PendingResults> pendingResults = new ConcurrentHashMap<String, PendingResults>();
+
+        Session(String key, SimObject.Data userSession) {
+            this.key = key;
+            this.userSession = userSession;
+        }
+    }
+
+    /**
+     * Objects of a paged retrieval not returned yet.
+     */
+    private static final class PendingResults {
+        final List<SimObject.Data> objects;
+        final int pageSize;
+        int next = 0;
+
+        PendingResults(List<SimObject.Data> objects, int pageSize) {
+            this.objects = objects;
+            this.pageSize = pageSize;
+        }
+    }
+
+    /**
+     * @param inventory The inventory served.
+     * @param port TCP port, 0 for any free port.
+     * @param threads Number of requests served concurrently.
+     * @throws IOException if the server could not be bound
+     */
+    public VimSimulator(SimInventory inventory, int port, int threads) throws IOException {
+        this.inventory = inventory;
+        InetSocketAddress address = new InetSocketAddress(port);
+        if (System.getProperty("javax.net.ssl.keyStore") != null) {
+            HttpsServer httpsServer = HttpsServer.create(address, 0);
+            try {
+                httpsServer.setHttpsConfigurator(new HttpsConfigurator(SSLContext.getDefault()));
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IOException("Cannot create the SSL context", e);
+            }
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(address, 0);
+        }
+        requestPool = Executors.newFixedThreadPool(threads);
+        taskScheduler = Executors.newScheduledThreadPool(2);
+        server.setExecutor(requestPool);
+        server.createContext("/sdk", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+    }
+
+    public void start() {
+        server.start();
+        logger.info("vCenter simulator listening on port " + getPort());
+    }
+
+    public void stop() {
+        server.stop(0);
+        requestPool.shutdownNow();
+        taskScheduler.shutdownNow();
+    }
+
+    /**
+     * @return The TCP port the simulator listens on.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public SimInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * @param latencyMillis Delay added to each call, in milliseconds.
+     * @param jitterMillis Max random delay added on top of the latency, in milliseconds.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * @param taskDurationMillis Time tasks take to complete, in milliseconds.
+     */
+    public void setTaskDuration(long taskDurationMillis) {
+        this.taskDurationMillis = taskDurationMillis;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int status = 200;
+        String response;
+        String operation = null;
+        try (InputStream in = exchange.getRequestBody()) {
+            SoapRequest request = SoapRequest.parse(in);
+            operation = request.getName();
+            long delay = latencyMillis + (jitterMillis > 0
+                            ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0);
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+            response = SoapWriter.response(operation, dispatch(request, exchange));
+        }
+        catch (SimFault e) {
+            status = 500;
+            response = SoapWriter.fault(e);
+        }
+        catch (IOException e) {
+            status = 500;
+            response = SoapWriter.fault(new SimFault("InvalidRequest", e.getMessage()));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            status = 500;
+            response = SoapWriter.fault(new SimFault("RequestCanceled", "Simulator stopping"));
+        }
+        catch (RuntimeException e) {
+            logger.error("Failed serving " + operation, e);
+            status = 500;
+            response = SoapWriter.fault(new SimFault("SystemError", String.valueOf(e)));
+        }
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        if (acceptsGzip(exchange)) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                gzip.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static boolean acceptsGzip(HttpExchange exchange) {
+        List<String> encodings = exchange.getRequestHeaders().get("Accept-Encoding");
+        if (encodings != null) {
+            for (String encoding : encodings) {
+                if (encoding.toLowerCase().contains("gzip")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private Object dispatch(SoapRequest request, HttpExchange exchange) throws SimFault,
+                    InterruptedException {
+        String operation = request.getName();
+        Session session = getSession(exchange);
+        switch (operation) {
+            case "RetrieveServiceContent":
+                return createServiceContent();
+            case "CurrentTime":
+                return Calendar.getInstance();
+            case "Login":
+                return login(request, exchange);
+            default:
+                break;
+        }
+        if (session == null) {
+            // Only the current session may be read without logging in
+            if (operation.startsWith("RetrieveProperties") && isSessionManagerOnly(request)) {
+                return retrieveSessionManager(null, operation);
+            }
+            throw new SimFault("NotAuthenticated", "The session is not authenticated");
+        }
+        switch (operation) {
+            case "Logout":
+                sessions.remove(session.key);
+                return null;
+            case "RetrieveProperties":
+            case "RetrievePropertiesEx":
+                return retrieveProperties(session, request);
+            case "ContinueRetrievePropertiesEx":
+                return nextResults(session, request.paramText("token"));
+            case "CancelRetrievePropertiesEx":
+                session.pendingResults.remove(request.paramText("token"));
+                return null;
+            case "CreatePropertyCollector":
+                return createCollector(session, "session[" + session.key + "]pc-"
+                                + nextId.getAndIncrement()).getRef();
+            case "DestroyPropertyCollector":
+                if (session.collectors.remove(request.getThis().getVal()) == null) {
+                    throw SimFault.notFound(request.getThis());
+                }
+                return null;
+            case "CreateFilter":
+                return getCollector(session, request.getThis()).createFilter(
+                                SimFilterSpec.parse(request.param("spec")));
+            case "DestroyPropertyFilter":
+                destroyFilter(session, request.getThis());
+                return null;
+            case "WaitForUpdates":
+                return getCollector(session, request.getThis()).waitForUpdates(
+                                request.paramText("version"), null, null);
+            case "WaitForUpdatesEx":
+                return waitForUpdatesEx(session, request);
+            case "CreateContainerView":
+                return inventory.createContainerView(SoapRequest.ref(request.param("container")),
+                                SoapRequest.texts(request.getOperation(), "type"),
+                                Boolean.parseBoolean(request.paramText("recursive")));
+            case "DestroyView":
+                inventory.remove(request.getThis());
+                return null;
+            case "QueryPerf":
+                return queryPerf(request);
+            case "QueryPerfComposite":
+                return queryPerfComposite(request);
+            case "FindByUuid":
+                return inventory.findByUuid(request.paramText("uuid"),
+                                Boolean.parseBoolean(request.paramText("vmSearch")),
+                                Boolean.parseBoolean(request.paramText("instanceUuid")));
+            case "PowerOnVM_Task":
+                return startPowerTask(request.getThis(), "VirtualMachine.powerOn", "poweredOn");
+            case "PowerOffVM_Task":
+                return startPowerTask(request.getThis(), "VirtualMachine.powerOff", "poweredOff");
+            case "ShutdownGuest":
+                shutdownGuest(request.getThis());
+                return null;
+            case "MigrateVM_Task":
+                return startMigrateTask(request);
+            case "ReconfigVM_Task":
+                return startReconfigTask(request);
+            default:
+                throw new SimFault("NotImplemented", "Operation " + operation
+                                + " is not simulated");
+        }
+    }
+
+    private Session getSession(HttpExchange exchange) {
+        List<String> cookies = exchange.getRequestHeaders().get("Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        for (String cookie : cookies) {
+            Matcher matcher = SESSION_COOKIE_PATTERN.matcher(cookie);
+            if (matcher.find()) {
+                return sessions.get(matcher.group(1));
+            }
+        }
+        return null;
+    }
+
+    private SimObject.Data createServiceContent() {
+        return new SimObject.DataBuilder("ServiceContent")
+                        .field("rootFolder", new SimObject.Ref("Folder", SimInventory.ROOT_FOLDER))
+                        .field("propertyCollector", new SimObject.Ref("PropertyCollector",
+                                        SimInventory.PROPERTY_COLLECTOR))
+                        .field("viewManager", new SimObject.Ref("ViewManager",
+                                        SimInventory.VIEW_MANAGER))
+                        .field("about", new SimObject.DataBuilder("AboutInfo")
+                                        .field("name", "VMware vCenter Server")
+                                        .field("fullName", "VMware vCenter Server 5.1.0 (simulated)")
+                                        .field("vendor", "VMware, Inc.")
+                                        .field("version", "5.1.0")
+                                        .field("build", "0")
+                                        .field("osType", "linux-x64")
+                                        .field("productLineId", "vpx")
+                                        .field("apiType", "VirtualCenter")
+                                        .field("apiVersion", "5.1")
+                                        .field("instanceUuid", UUID.nameUUIDFromBytes(
+                                                        "VimSimulator".getBytes()).toString())
+                                        .build())
+                        .field("sessionManager", new SimObject.Ref("SessionManager",
+                                        SimInventory.SESSION_MANAGER))
+                        .field("taskManager", new SimObject.Ref("TaskManager",
+                                        SimInventory.TASK_MANAGER))
+                        .field("searchIndex", new SimObject.Ref("SearchIndex",
+                                        SimInventory.SEARCH_INDEX))
+                        .field("perfManager", new SimObject.Ref("PerformanceManager",
+                                        SimInventory.PERF_MANAGER))
+                        .build();
+    }
+
+    private SimObject.Data login(SoapRequest request, HttpExchange exchange) {
+        String key = UUID.randomUUID().toString();
+        Calendar now = Calendar.getInstance();
+        SimObject.Data userSession = new SimObject.DataBuilder("UserSession")
+                        .field("key", key)
+                        .field("userName", request.paramText("userName"))
+                        .field("fullName", request.paramText("userName"))
+                        .field("loginTime", now)
+                        .field("lastActiveTime", now)
+                        .field("locale", "en")
+                        .field("messageLocale", "en")
+                        .build();
+        Session session = new Session(key, userSession);
+        createCollector(session, SimInventory.PROPERTY_COLLECTOR);
+        sessions.put(key, session);
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=\"" + key
+                        + "\"; Path=/; HttpOnly");
+        return userSession;
+    }
+
+    private SimPropertyCollector createCollector(Session session, String morVal) {
+        SimPropertyCollector collector = new SimPropertyCollector(morVal, inventory);
+        session.collectors.put(morVal, collector);
+        return collector;
+    }
+
+    private static SimPropertyCollector getCollector(Session session, SimObject.Ref ref)
+                    throws SimFault {
+        SimPropertyCollector collector = session.collectors.get(ref.getVal());
+        if (collector == null) {
+            throw SimFault.notFound(ref);
+        }
+        return collector;
+    }
+
+    private static void destroyFilter(Session session, SimObject.Ref filter) throws SimFault {
+        for (SimPropertyCollector collector : session.collectors.values()) {
+            try {
+                collector.destroyFilter(filter);
+                return;
+            }
+            catch (SimFault e) {
+                // Owned by another collector
+            }
+        }
+        throw SimFault.notFound(filter);
+    }
+
+    private static List<SimFilterSpec> parseSpecSet(SoapRequest request) {
+        List<SimFilterSpec> specs = new ArrayList<SimFilterSpec>();
+        for (Element spec : SoapRequest.children(request.getOperation(), "specSet")) {
+            specs.add(SimFilterSpec.parse(spec));
+        }
+        return specs;
+    }
+
+    private static boolean isSessionManagerOnly(SoapRequest request) {
+        List<SimFilterSpec> specs = parseSpecSet(request);
+        for (SimFilterSpec spec : specs) {
+            for (SimFilterSpec.ObjectSpec os : spec.objectSet) {
+                if (os.obj == null || !"SessionManager".equals(os.obj.getType())
+                                || !os.selectSet.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return !specs.isEmpty();
+    }
+
+    /**
+     * The session manager is per session, it is not part of the inventory.
+     */
+    private static Object retrieveSessionManager(Session session, String operation) {
+        List<SimObject.Data> propSet = new ArrayList<SimObject.Data>();
+        if (session != null) {
+            propSet.add(new SimObject.DataBuilder("DynamicProperty")
+                            .field("name", "currentSession")
+                            .field("val", new SimObject.Any(session.userSession))
+                            .build());
+        }
+        SimObject.Data content = new SimObject.DataBuilder("ObjectContent")
+                        .field("obj", new SimObject.Ref("SessionManager",
+                                        SimInventory.SESSION_MANAGER))
+                        .field("propSet", propSet)
+                        .build();
+        if ("RetrievePropertiesEx".equals(operation)) {
+            return new SimObject.DataBuilder("RetrieveResult")
+                            .field("objects", Collections.singletonList(content))
+                            .build();
+        }
+        return Collections.singletonList(content);
+    }
+
+    private Object retrieveProperties(Session session, SoapRequest request) throws SimFault {
+        String operation = request.getName();
+        if (isSessionManagerOnly(request)) {
+            return retrieveSessionManager(session, operation);
+        }
+        List<SimObject.Data> contents = SimPropertyCollector.retrieve(inventory,
+                        parseSpecSet(request));
+        if ("RetrieveProperties".equals(operation)) {
+            return contents;
+        }
+        Element options = request.param("options");
+        int maxObjects = options != null ? SoapRequest.intValue(options, "maxObjects", 0) : 0;
+        String token = "token-" + nextId.getAndIncrement();
+        session.pendingResults.put(token, new PendingResults(contents,
+                        maxObjects > 0 ? maxObjects : Integer.MAX_VALUE));
+        return nextResults(session, token);
+    }
+
+    /**
+     * @return The next page of a retrieval, with a token if more objects remain, null if the
+     *         retrieval has no objects.
+     * @throws SimFault if the token is unknown
+     */
+    private static SimObject.Data nextResults(Session session, String token) throws SimFault {
+        PendingResults pending = token != null ? session.pendingResults.get(token) : null;
+        if (pending == null) {
+            throw new SimFault("InvalidArgument", "Unknown token " + token);
+        }
+        if (pending.objects.isEmpty()) {
+            session.pendingResults.remove(token);
+            return null;
+        }
+        int end = (int)Math.min(pending.objects.size(), (long)pending.next + pending.pageSize);
+        List<SimObject.Data> page = pending.objects.subList(pending.next, end);
+        pending.next = end;
+        boolean more = end < pending.objects.size();
+        if (!more) {
+            session.pendingResults.remove(token);
+        }
+        return new SimObject.DataBuilder("RetrieveResult")
+                        .field("token", more ? token : null)
+                        .field("objects", page)
+                        .build();
+    }
+
+    private SimObject.Data waitForUpdatesEx(Session session, SoapRequest request)
+                    throws SimFault, InterruptedException {
+        Element options = request.param("options");
+        Integer maxWaitSeconds = null;
+        Integer maxObjectUpdates = null;
+        if (options != null) {
+            String maxWait = SoapRequest.text(options, "maxWaitSeconds");
+            String maxUpdates = SoapRequest.text(options, "maxObjectUpdates");
+            maxWaitSeconds = maxWait != null ? Integer.valueOf(maxWait.trim()) : null;
+            maxObjectUpdates = maxUpdates != null ? Integer.valueOf(maxUpdates.trim()) : null;
+        }
+        return getCollector(session, request.getThis()).waitForUpdates(
+                        request.paramText("version"), maxWaitSeconds, maxObjectUpdates);
+    }
+
+    /**
+     * @return The counters queried by a query specification, all counters if none is listed.
+     */
+    private List<SimObject.Data> getMetricIds(Element querySpec) {
+        List<SimObject.Data> metricIds = new ArrayList<SimObject.Data>();
+        List<Element> elements = SoapRequest.children(querySpec, "metricId");
+        if (elements.isEmpty()) {
+            for (String name : new String[] {SimInventory.COUNTER_CPU_USAGE,
+                            SimInventory.COUNTER_CPU_USAGE_MHZ, SimInventory.COUNTER_MEM_USAGE,
+                            SimInventory.COUNTER_MEM_CONSUMED}) {
+                metricIds.add(createMetricId(inventory.getCounterId(name), ""));
+            }
+        } else {
+            for (Element element : elements) {
+                String instance = SoapRequest.text(element, "instance");
+                metricIds.add(createMetricId(SoapRequest.intValue(element, "counterId", 0),
+                                instance != null ? instance : ""));
+            }
+        }
+        return metricIds;
+    }
+
+    private static SimObject.Data createMetricId(int counterId, String instance) {
+        return new SimObject.DataBuilder("PerfMetricId")
+                        .field("counterId", counterId)
+                        .field("instance", instance)
+                        .build();
+    }
+
+    /**
+     * @return A PerfEntityMetric with the latest sample of each counter, null if the entity
+     *         has no sample.
+     */
+    private SimObject.Data createEntityMetric(SimObject.Ref entity, List<SimObject.Data> metricIds,
+                    int intervalId) {
+        List<SimObject.Data> values = new ArrayList<SimObject.Data>();
+        for (SimObject.Data metricId : metricIds) {
+            Long sample = inventory.getPerfSample(entity, (Integer)metricId.getFields().get(
+                            "counterId"));
+            if (sample != null) {
+                values.add(new SimObject.DataBuilder("PerfMetricIntSeries")
+                                .field("id", metricId)
+                                .field("value", Collections.singletonList(sample))
+                                .build());
+            }
+        }
+        if (values.isEmpty()) {
+            return null;
+        }
+        return new SimObject.DataBuilder("PerfEntityMetric")
+                        .field("entity", entity)
+                        .field("sampleInfo", Collections.singletonList(
+                                        new SimObject.DataBuilder("PerfSampleInfo")
+                                                        .field("timestamp", Calendar.getInstance())
+                                                        .field("interval", intervalId)
+                                                        .build()))
+                        .field("value", values)
+                        .build();
+    }
+
+    private List<SimObject.Data> queryPerf(SoapRequest request) {
+        List<SimObject.Data> metrics = new ArrayList<SimObject.Data>();
+        for (Element querySpec : SoapRequest.children(request.getOperation(), "querySpec")) {
+            SimObject.Data metric = createEntityMetric(SoapRequest.ref(SoapRequest.child(
+                            querySpec, "entity")), getMetricIds(querySpec),
+                            SoapRequest.intValue(querySpec, "intervalId", 20));
+            if (metric != null) {
+                metrics.add(metric);
+            }
+        }
+        return metrics;
+    }
+
+    private SimObject.Data queryPerfComposite(SoapRequest request) throws SimFault {
+        Element querySpec = request.param("querySpec");
+        SimObject.Ref host = SoapRequest.ref(SoapRequest.child(querySpec, "entity"));
+        if (!"HostSystem".equals(host.getType())) {
+            throw new SimFault("InvalidArgument", "Composite queries need a host");
+        }
+        List<SimObject.Data> metricIds = getMetricIds(querySpec);
+        int intervalId = SoapRequest.intValue(querySpec, "intervalId", 20);
+        List<SimObject.Data> children = new ArrayList<SimObject.Data>();
+        Object vms = inventory.getProperty(host, "vm");
+        if (vms != null) {
+            for (Object vm : (List<?>)vms) {
+                SimObject.Data metric = createEntityMetric((SimObject.Ref)vm, metricIds,
+                                intervalId);
+                if (metric != null) {
+                    children.add(metric);
+                }
+            }
+        }
+        return new SimObject.DataBuilder("PerfCompositeMetric")
+                        .field("entity", createEntityMetric(host, metricIds, intervalId))
+                        .field("childEntity", children)
+                        .build();
+    }
+
+    private SimObject.EnumValue getPowerState(SimObject.Ref vm) throws SimFault {
+        Object state = inventory.getProperty(vm, "runtime.powerState");
+        if (state == null) {
+            throw SimFault.notFound(vm);
+        }
+        return (SimObject.EnumValue)state;
+    }
+
+    private SimFault invalidPowerState(SimObject.EnumValue existing, String requested) {
+        Map<String, Object> fields = new HashMap<String, Object>();
+        fields.put("requestedState", new SimObject.EnumValue("VirtualMachinePowerState",
+                        requested));
+        fields.put("existingState", existing);
+        return new SimFault("InvalidPowerState", "The attempted operation cannot be performed "
+                        + "in the current state (" + existing.getValue() + ")", fields);
+    }
+
+    private SimObject.Ref startPowerTask(final SimObject.Ref vm, String descriptionId,
+                    final String state) throws SimFault {
+        getPowerState(vm);
+        return inventory.startTask(vm, descriptionId, taskDurationMillis, taskScheduler,
+                        new SimInventory.TaskAction() {
+                            @Override
+                            public void run() throws SimFault {
+                                SimObject.EnumValue existing = getPowerState(vm);
+                                if (state.equals(existing.getValue())) {
+                                    throw invalidPowerState(existing, state);
+                                }
+                                inventory.setPowerState(vm, state);
+                            }
+                        });
+    }
+
+    private void shutdownGuest(final SimObject.Ref vm) throws SimFault {
+        SimObject.EnumValue existing = getPowerState(vm);
+        if (!"poweredOn".equals(existing.getValue())) {
+            throw invalidPowerState(existing, "poweredOff");
+        }
+        // The guest shuts down after the call returns, without a task
+        taskScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inventory.setPowerState(vm, "poweredOff");
+                }
+                catch (SimFault e) {
+                    logger.warn("Simulated guest shutdown of " + vm.getVal() + " failed: "
+                                    + e.getMessage());
+                }
+            }
+        }, taskDurationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private SimObject.Ref startMigrateTask(SoapRequest request) throws SimFault {
+        final SimObject.Ref vm = request.getThis();
+        final SimObject.Ref host = SoapRequest.ref(request.param("host"));
+        final SimObject.Ref pool = SoapRequest.ref(request.param("pool"));
+        getPowerState(vm);
+        return inventory.startTask(vm, "VirtualMachine.migrate", taskDurationMillis,
+                        taskScheduler, new SimInventory.TaskAction() {
+                            @Override
+                            public void run() throws SimFault {
+                                inventory.migrate(vm, host, pool);
+                            }
+                        });
+    }
+
+    private SimObject.Ref startReconfigTask(SoapRequest request) throws SimFault {
+        final SimObject.Ref vm = request.getThis();
+        Element spec = request.param("spec");
+        String numCpus = SoapRequest.text(spec, "numCPUs");
+        String memoryMB = SoapRequest.text(spec, "memoryMB");
+        Element cpuAllocation = SoapRequest.child(spec, "cpuAllocation");
+        Element memoryAllocation = SoapRequest.child(spec, "memoryAllocation");
+        String cpuLimit = cpuAllocation != null ? SoapRequest.text(cpuAllocation, "limit") : null;
+        String memoryLimit = memoryAllocation != null
+                        ? SoapRequest.text(memoryAllocation, "limit") : null;
+        final Integer newNumCpus = numCpus != null ? Integer.valueOf(numCpus.trim()) : null;
+        final Integer newMemoryMB = memoryMB != null ? Integer.valueOf(memoryMB.trim()) : null;
+        final Long newCpuLimit = cpuLimit != null ? Long.valueOf(cpuLimit.trim()) : null;
+        final Long newMemoryLimit = memoryLimit != null ? Long.valueOf(memoryLimit.trim()) : null;
+        getPowerState(vm);
+        return inventory.startTask(vm, "VirtualMachine.reconfigure", taskDurationMillis,
+                        taskScheduler, new SimInventory.TaskAction() {
+                            @Override
+                            public void run() throws SimFault {
+                                inventory.reconfigure(vm, newNumCpus, newMemoryMB, newCpuLimit,
+                                                newMemoryLimit);
+                            }
+                        });
+    }
+
+    /**
+     * Run a simulator until the process is stopped.
+     *
+     * @param args port clusters hostsPerCluster vmsPerHost [latencyMs]
+     * @throws IOException if the server could not be bound
+     * @throws IllegalArgumentException if arguments are missing
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            throw new IllegalArgumentException("Usage: VimSimulator port clusters hostsPerCluster "
+                            + "vmsPerHost [latencyMs]");
+        }
+        int clusters = Integer.parseInt(args[1]);
+        int hostsPerCluster = Integer.parseInt(args[2]);
+        SimInventory inventory = SimInventory.generate(clusters, hostsPerCluster,
+                        Integer.parseInt(args[3]), 4, 2);
+        VimSimulator simulator = new VimSimulator(inventory, Integer.parseInt(args[0]),
+                        Runtime.getRuntime().availableProcessors() * 4);
+        if (args.length > 4) {
+            long latency = Long.parseLong(args[4]);
+            simulator.setLatency(latency, latency / 2);
+        }
+        simulator.start();
+    }
+}